@@ -26,23 +26,29 @@ import static org.apache.directory.mavibot.btree.BTreeFactory.setKey;
 import static org.apache.directory.mavibot.btree.BTreeFactory.setValue;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.CsnFactory;
@@ -67,6 +73,7 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.schema.loader.JarLdifSchemaLoader;
 import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.api.util.FileUtils;
 import org.apache.directory.mavibot.btree.serializer.LongSerializer;
 import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 import org.apache.directory.mavibot.btree.util.Strings;
@@ -85,6 +92,7 @@ import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotPart
 import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotRdnIndex;
 import org.apache.directory.server.core.partition.ldif.SingleFileLdifPartition;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.ExternalTupleSorter;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.Store;
@@ -133,6 +141,73 @@ public class MavibotPartitionBuilder
     
     /** The DN factory, used to check DN */ 
     private DnFactory dnFactory;
+    
+    /** The number of threads used to parse the entries */
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    
+    /** The number of index tuples kept in memory, per index, before being spilled to disk */
+    private int maxTuplesInMemory = ExternalTupleSorter.DEFAULT_MAX_TUPLES_IN_MEMORY;
+    
+    /** The number of entries each parsing thread may have in advance on the master table build */
+    private static final int PARSE_WINDOW_PER_THREAD = 64;
+    
+    /** The number of entries waiting to be processed by each index worker */
+    private static final int INDEX_QUEUE_SIZE = 1024;
+    
+    /** The marker used to signal the index workers that the master table scan is completed */
+    private static final Tuple END_OF_DATA = new Tuple();
+
+    /** The character separating the RDNs in the tree keys, which sorts before any other one */
+    private static final char TREE_SEPARATOR = '\u0000';
+
+    /** The comparator used to sort the tree keys and the entry IDs */
+    private static final Comparator<String> STRING_COMPARATOR = new Comparator<String>()
+    {
+        @Override
+        public int compare( String s1, String s2 )
+        {
+            return s1.compareTo( s2 );
+        }
+    };
+
+    /** The comparator used to sort the RDN index keys : on the parent ID, then on the RDNs */
+    private static final Comparator<ParentIdAndRdn> PARENT_ID_AND_RDN_COMPARATOR = new Comparator<ParentIdAndRdn>()
+    {
+        @Override
+        public int compare( ParentIdAndRdn key1, ParentIdAndRdn key2 )
+        {
+            int val = key1.getParentId().compareTo( key2.getParentId() );
+
+            if ( val != 0 )
+            {
+                return val;
+            }
+
+            Rdn[] rdns1 = key1.getRdns();
+            Rdn[] rdns2 = key2.getRdns();
+
+            for ( int i = 0; ( i < rdns1.length ) && ( i < rdns2.length ); i++ )
+            {
+                val = rdns1[i].getNormName().compareTo( rdns2[i].getNormName() );
+
+                if ( val != 0 )
+                {
+                    return val;
+                }
+            }
+
+            return rdns1.length - rdns2.length;
+        }
+    };
+
+    /** The entries sorted by ID, with their parent ID and their position in the LDIF file */
+    private ExternalTupleSorter<String, Object[]> entrySorter;
+
+    /** The tuples of the RDN index forward tree */
+    private ExternalTupleSorter<ParentIdAndRdn, String> rdnFwdSorter;
+
+    /** The tuples of the RDN index reverse tree */
+    private ExternalTupleSorter<String, ParentIdAndRdn> rdnRevSorter;
 
     private static final Logger LOG = LoggerFactory.getLogger( MavibotPartitionBuilder.class );
 
@@ -229,8 +304,6 @@ public class MavibotPartitionBuilder
             
             if( btree.allowDuplicates )
             {
-                Set s = ( Set ) val;
-                val = s.toArray();
                 // to deal with passing an array to varargs param
                 eh = new PersistedValueHolder( btree, ( Object[] ) val );
             }
@@ -471,328 +544,325 @@ public class MavibotPartitionBuilder
     }
 
 
-    private Set<DnTuple> getDnTuples() throws Exception
+    /**
+     * Reads the DNs of the LDIF entries, and sorts them in the tree order using an external
+     * merge sort : an entry is read after its ancestors, and its descendants are read just
+     * after it. Only the current branch is kept in memory while the sorted DNs are walked.
+     * An entry is complete once all its descendants have been read : it's then added to the
+     * master table and RDN index sorters.
+     *
+     * @return The number of entries
+     */
+    private int sortDnTuples() throws Exception
     {
         File file = new File( ldifFile );
 
         raf = new RandomAccessFile( file, "r" );
 
-        FastLdifReader reader = new FastLdifReader( file, dnFactory );
-
-        Set<DnTuple> sortedDnSet = new TreeSet<DnTuple>();
+        ExternalTupleSorter<String, Object[]> treeSorter = new ExternalTupleSorter<String, Object[]>(
+            STRING_COMPARATOR, null, maxTuplesInMemory, null );
+        int nbEntries = 0;
 
-        while ( reader.hasNext() )
+        try
         {
-            // FastLdifReader will always return NULL LdifEntry
-            // call getDnTuple() after next() to get a DnTuple
-            reader.next();
-            
-            DnTuple dt = reader.getDnTuple();
-            
-            dt.getDn().apply( schemaManager );
-            sortedDnSet.add( dt );
+            FastLdifReader reader = new FastLdifReader( file, dnFactory );
 
-            if ( dt.getDn().toString().equals( "uid=user.29998,ou=People,dc=example,dc=com" ) )
+            while ( reader.hasNext() )
             {
-                System.out.println( dt );
+                // FastLdifReader will always return NULL LdifEntry
+                // call getDnTuple() after next() to get a DnTuple
+                reader.next();
+                
+                DnTuple dt = reader.getDnTuple();
+                
+                // The Dn is immutable, normalize it by creating a schema aware copy
+                Dn dn = new Dn( schemaManager, dt.getDn() );
+                treeSorter.add( getTreeKey( dn ), new Object[]
+                    { dn.getName(), dt.getOffset(), dt.getLen() } );
+                nbEntries++;
             }
-        }
 
-        reader.close();
+            reader.close();
 
-        if ( sortedDnSet.isEmpty() )
-        {
-            return Collections.EMPTY_SET;
-        }
+            Deque<DnTuple> branch = new ArrayDeque<DnTuple>();
+            Iterator<org.apache.directory.api.ldap.model.cursor.Tuple<String, Object[]>> treeTuples = 
+                treeSorter.sortedIterator();
+            String previousKey = null;
 
-        Iterator<DnTuple> itr = sortedDnSet.iterator();
-        /*
-        FileWriter fw = new FileWriter( "/tmp/dntuples.txt" );
-        while( itr.hasNext() )
-        {
-            fw.write( itr.next().getDn().getName() + "\n" );
-        }
-        
-        fw.close();
-        itr = sortedDnSet.iterator();
-        */
-        DnTuple root = itr.next();
-        root.setParent( null );
-
-        suffixDn = root.getDn();
-        
-        System.out.println( "Using " + suffixDn.getName() + " as the partition's root DN" );
-        
-        Map<String, DnTuple> parentDnIdMap = new HashMap<String, DnTuple>();
-        parentDnIdMap.put( root.getDn().getNormName(), root );
+            while ( treeTuples.hasNext() )
+            {
+                org.apache.directory.api.ldap.model.cursor.Tuple<String, Object[]> tuple = treeTuples.next();
+                Object[] value = tuple.getValue();
+                Dn dn = new Dn( schemaManager, ( String ) value[0] );
+                DnTuple dt = new DnTuple( dn, ( Long ) value[1], ( Integer ) value[2] );
 
-        DnTuple prevTuple = root;
-        
-        while ( itr.hasNext() )
-        {
-            DnTuple dt = itr.next();
+                if ( tuple.getKey().equals( previousKey ) )
+                {
+                    throw new IllegalStateException( "The entry " + dn.getName() + " is present more than once" );
+                }
 
-            String parentDn = dt.getDn().getParent().getNormName();
-            DnTuple parent = parentDnIdMap.get( parentDn );
+                // The entries which are not ancestors of this one are complete
+                while ( !branch.isEmpty() && !dn.isDescendantOf( branch.peek().getDn() ) )
+                {
+                    complete( branch.pop() );
+                }
 
-            if ( parent == null )
-            {
-                if ( parentDn.equals( prevTuple.getDn().getNormName() ) )
+                if ( previousKey == null )
                 {
-                    parentDnIdMap.put( prevTuple.getDn().getNormName(), prevTuple );
-                    parent = prevTuple;
+                    suffixDn = dn;
+
+                    System.out.println( "Using " + suffixDn.getName() + " as the partition's root DN" );
                 }
                 else
                 {
-                    throw new IllegalStateException( "Parent entry's ID of the entry " + dt.getDn().getName()
-                        + " not found." );
+                    DnTuple parent = branch.peek();
+
+                    if ( ( parent == null ) || !dn.getParent().equals( parent.getDn() ) )
+                    {
+                        throw new IllegalStateException( "Parent entry's ID of the entry " + dn.getName()
+                            + " not found." );
+                    }
+
+                    dt.setParent( parent );
+                    parent.addChild();
+                    parent.addDecendent();
                 }
+
+                branch.push( dt );
+                previousKey = tuple.getKey();
             }
-            else
+
+            while ( !branch.isEmpty() )
             {
-                // load certain siblings
-                if( !dt.getDn().isDescendantOf( prevTuple.getDn() ) )
-                {
-                    //System.out.println( "adding dn " + prevTuple.getDn().getName() + " to the map");
-                    parentDnIdMap.put( prevTuple.getDn().getNormName(), root );
-                }
+                complete( branch.pop() );
             }
-            
-            dt.setParent( parent );
-            parent.addChild();
-            parent.addDecendent();
-            
-            prevTuple = dt;
+        }
+        finally
+        {
+            treeSorter.close();
         }
 
-//        for ( DnTuple dt : sortedDnSet )
-//        {
-//            System.out.println( dt );
-//        }
-
-        return sortedDnSet;
+        return nbEntries;
     }
 
 
-    private void buildMasterTable( Set<DnTuple> sortedDnSet ) throws Exception
+    /**
+     * Adds an entry whose descendants have all been read to the master table and RDN index sorters
+     */
+    private void complete( DnTuple dt ) throws IOException
     {
-        final Set<DnTuple> idSortedSet = new TreeSet<DnTuple>( new Comparator<DnTuple>()
-        {
+        entrySorter.add( dt.getId(), new Object[]
+            { dt.getParentId(), dt.getOffset(), dt.getLen() } );
 
-            @Override
-            public int compare( DnTuple dt0, DnTuple dt1 )
-            {
-                return dt0.getId().compareTo( dt1.getId() );
-            }
-        } );
+        ParentIdAndRdn rdn = new ParentIdAndRdn( dt.getParentId(), dt.getDn().getRdns() );
+        rdn.setNbChildren( dt.getNbChildren() );
+        rdn.setNbDescendants( dt.getNbDecendents() );
 
-        idSortedSet.addAll( sortedDnSet );
+        rdnFwdSorter.add( rdn, dt.getId() );
+        rdnRevSorter.add( dt.getId(), rdn );
+    }
 
-//        System.out.println( "Sorted on ID" );
-//        for ( DnTuple dt : idSortedSet )
-//        {
-//            System.out.println( dt );
-//        }
 
-        Iterator<Tuple> entryItr = new Iterator<Tuple>()
+    /**
+     * Computes the key used to sort the entries in the tree order : the normalized RDNs, from
+     * the top of the DIT down to the entry, separated by a character which sorts before any other one.
+     */
+    private String getTreeKey( Dn dn )
+    {
+        StringBuilder key = new StringBuilder();
+
+        for ( int i = dn.size() - 1; i >= 0; i-- )
         {
+            key.append( TREE_SEPARATOR ).append( dn.getRdn( i ).getNormName() );
+        }
 
-            private Iterator<DnTuple> itr = idSortedSet.iterator();
+        return key.toString();
+    }
 
-            final SchemaAwareLdifReader lar = new SchemaAwareLdifReader( schemaManager );
 
-            final AttributeType atEntryUUID = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_UUID_AT );
-            final AttributeType atEntryParentID = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_PARENT_ID_AT );
-            final AttributeType atCsn = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_CSN_AT );
-            final AttributeType atCreator = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATORS_NAME_AT );
-            final AttributeType atCreatedTime = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATE_TIMESTAMP_AT );
-            
-            final Attribute creatorsName = new DefaultAttribute( atCreator, ServerDNConstants.ADMIN_SYSTEM_DN );
-            final Attribute createdTime = new DefaultAttribute( atCreatedTime, DateUtils.getGeneralizedTime() );
-            final Attribute entryCsn = new DefaultAttribute( atCsn, csnFactory.newInstance().toString() );
-            
-            final Tuple t = new Tuple();
-            
-            @Override
-            public boolean hasNext()
-            {
-                return itr.hasNext();
-            }
+    private void buildMasterTable() throws Exception
+    {
+        final AttributeType atEntryUUID = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_UUID_AT );
+        final AttributeType atEntryParentID = schemaManager.lookupAttributeTypeRegistry( ApacheSchemaConstants.ENTRY_PARENT_ID_AT );
+        final AttributeType atCsn = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_CSN_AT );
+        final AttributeType atCreator = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATORS_NAME_AT );
+        final AttributeType atCreatedTime = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATE_TIMESTAMP_AT );
 
+        final String createdTime = DateUtils.getGeneralizedTime();
+        final String entryCsn = csnFactory.newInstance().toString();
 
+        // The LdifReader is not thread safe, each parsing thread uses its own
+        final ThreadLocal<SchemaAwareLdifReader> ldifReaders = new ThreadLocal<SchemaAwareLdifReader>()
+        {
             @Override
-            public Tuple<String, Entry> next()
+            protected SchemaAwareLdifReader initialValue()
             {
-
-                DnTuple dt = itr.next();
-                t.setKey( dt.getId() );
-
                 try
                 {
-                    
-                    byte[] data = new byte[dt.getLen()];
-                    raf.seek( dt.getOffset() );
-                    raf.readFully( data, 0, data.length );
-
-                    Entry entry = lar.parseLdifEntry( Strings.utf8ToString( data ) ).getEntry();
-
-                    entry.add( atEntryUUID, dt.getId() );
-                    entry.add( atEntryParentID, dt.getParentId() );
-                    entry.add( entryCsn );
-                    entry.add( creatorsName );
-                    entry.add( createdTime );
-
-                    t.setValue( entry );
+                    return new SchemaAwareLdifReader( schemaManager );
                 }
                 catch ( Exception e )
                 {
-                    LOG.warn( "Failed to parse the entry for the DnTuple " + dt );
                     throw new RuntimeException( e );
                 }
-
-                return t;
-            }
-
-
-            @Override
-            public void remove()
-            {
-                throw new UnsupportedOperationException( "Not supported" );
             }
-
         };
 
-        build( entryItr, masterTableName );
-    }
+        final ExecutorService parserPool = Executors.newFixedThreadPool( numThreads );
 
+        // The raw LDIF is read sequentially by the builder thread, the parsing and
+        // the schema normalization are done in parallel by the parser pool. We keep
+        // a bounded window of pending entries, which are consumed in the ID order.
+        final Iterator<org.apache.directory.api.ldap.model.cursor.Tuple<String, Object[]>> sortedEntries = 
+            entrySorter.sortedIterator();
 
-    private void buildRdnIndex( Set<DnTuple> sortedDnSet ) throws Exception
-    {
-        final Set<DnTuple> parentIdRdnSortedSet = new TreeSet<DnTuple>( new Comparator<DnTuple>()
+        Iterator<Tuple> entryItr = new Iterator<Tuple>()
         {
+            private Iterator<org.apache.directory.api.ldap.model.cursor.Tuple<String, Object[]>> itr = sortedEntries;
 
-            @Override
-            public int compare( DnTuple dt0, DnTuple dt1 )
-            {
-                int val = dt0.getParentId().compareTo( dt1.getParentId() );
-                if ( val != 0 )
-                {
-                    return val;
-                }
+            private Deque<Future<Tuple>> pending = new ArrayDeque<Future<Tuple>>();
 
-                Rdn[] dt0Rdns = dt0.getDn().getRdns().toArray( new Rdn[0] );
+            private int maxPending = numThreads * PARSE_WINDOW_PER_THREAD;
 
-                Rdn[] dt1Rdns = dt1.getDn().getRdns().toArray( new Rdn[0] );
 
-                if ( dt0Rdns.length == 1 )
+            private void fill()
+            {
+                while ( ( pending.size() < maxPending ) && itr.hasNext() )
                 {
-                    // Special case : we only have one rdn.
-                    val = dt0Rdns[0].getNormName().compareTo( dt1Rdns[0].getNormName() );
+                    org.apache.directory.api.ldap.model.cursor.Tuple<String, Object[]> sortedEntry = itr.next();
+                    final String id = sortedEntry.getKey();
+                    final String parentId = ( String ) sortedEntry.getValue()[0];
+                    final byte[] data = new byte[( Integer ) sortedEntry.getValue()[2]];
 
-                    return val;
-                }
-                else
-                {
-                    for ( int i = 0; i < dt0Rdns.length; i++ )
+                    try
+                    {
+                        raf.seek( ( Long ) sortedEntry.getValue()[1] );
+                        raf.readFully( data, 0, data.length );
+                    }
+                    catch ( IOException ioe )
                     {
-                        val = dt0Rdns[i].getNormName().compareTo( dt1Rdns[i].getNormName() );
+                        LOG.warn( "Failed to read the entry " + id );
+                        throw new RuntimeException( ioe );
+                    }
 
-                        if ( val != 0 )
+                    pending.add( parserPool.submit( new Callable<Tuple>()
+                    {
+                        @Override
+                        public Tuple call() throws Exception
                         {
-                            return val;
-                        }
-                    }
+                            Entry entry = ldifReaders.get().parseLdifEntry( Strings.utf8ToString( data ) ).getEntry();
 
-                    return 0;
+                            entry.add( atEntryUUID, id );
+                            entry.add( atEntryParentID, parentId );
+                            entry.add( atCsn, entryCsn );
+                            entry.add( atCreator, ServerDNConstants.ADMIN_SYSTEM_DN );
+                            entry.add( atCreatedTime, createdTime );
+
+                            return new Tuple( id, entry );
+                        }
+                    } ) );
                 }
             }
-        } );
-
-        parentIdRdnSortedSet.addAll( sortedDnSet );
-
-//        System.out.println( "Sorted on ParentID and RDNs" );
-//        for ( DnTuple dt : parentIdRdnSortedSet )
-//        {
-//            System.out.println( dt );
-//        }
-
-        Iterator<Tuple> parentIdAndRdnFwdItr = new Iterator<Tuple>()
-        {
-            Iterator<DnTuple> itr = parentIdRdnSortedSet.iterator();
 
 
             @Override
-            public void remove()
+            public boolean hasNext()
             {
+                fill();
+
+                return !pending.isEmpty();
             }
 
 
             @Override
-            public Tuple next()
+            public Tuple<String, Entry> next()
             {
-                DnTuple dt = itr.next();
-                Tuple t = new Tuple();
+                fill();
 
-                ParentIdAndRdn rdn = new ParentIdAndRdn( dt.getParentId(), dt.getDn().getRdns() );
-                rdn.setNbChildren( dt.getNbChildren() );
-                rdn.setNbDescendants( dt.getNbDecendents() );
-                
-                t.setKey( rdn );
-                t.setValue( dt.getId() );
+                Future<Tuple> future = pending.poll();
+
+                if ( future == null )
+                {
+                    throw new NoSuchElementException();
+                }
 
-                return t;
+                try
+                {
+                    return future.get();
+                }
+                catch ( ExecutionException ee )
+                {
+                    LOG.warn( "Failed to parse an entry", ee.getCause() );
+                    throw new RuntimeException( ee.getCause() );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException( ie );
+                }
             }
 
 
             @Override
-            public boolean hasNext()
+            public void remove()
             {
-                return itr.hasNext();
+                throw new UnsupportedOperationException( "Not supported" );
             }
+
         };
 
+        try
+        {
+            build( entryItr, masterTableName );
+        }
+        finally
+        {
+            parserPool.shutdownNow();
+        }
+    }
+
+
+    private void buildRdnIndex() throws Exception
+    {
         String forwardRdnTree = ApacheSchemaConstants.APACHE_RDN_AT_OID + MavibotRdnIndex.FORWARD_BTREE;
 
-        build( parentIdAndRdnFwdItr, forwardRdnTree );
+        build( toMavibotTuples( rdnFwdSorter.sortedIterator() ), forwardRdnTree );
 
-        Iterator<Tuple> parentIdAndRdnRevItr = new Iterator<Tuple>()
-        {
-            Iterator<DnTuple> itr = parentIdRdnSortedSet.iterator();
+        String revRdnTree = ApacheSchemaConstants.APACHE_RDN_AT_OID + MavibotRdnIndex.REVERSE_BTREE;
 
+        build( toMavibotTuples( rdnRevSorter.sortedIterator() ), revRdnTree );
+    }
 
+
+    /**
+     * Converts the tuples read from a sorter into Mavibot tuples
+     */
+    private Iterator<Tuple> toMavibotTuples( final Iterator<? extends org.apache.directory.api.ldap.model.cursor.Tuple> sorted )
+    {
+        return new Iterator<Tuple>()
+        {
             @Override
-            public void remove()
+            public boolean hasNext()
             {
+                return sorted.hasNext();
             }
 
 
             @Override
             public Tuple next()
             {
-                DnTuple dt = itr.next();
-                Tuple t = new Tuple();
+                org.apache.directory.api.ldap.model.cursor.Tuple t = sorted.next();
 
-                ParentIdAndRdn rdn = new ParentIdAndRdn( dt.getParentId(), dt.getDn().getRdns() );
-                rdn.setNbChildren( dt.getNbChildren() );
-                rdn.setNbDescendants( dt.getNbDecendents() );
-                
-                t.setKey( dt.getId() );
-                t.setValue( rdn );
-
-                return t;
+                return new Tuple( t.getKey(), t.getValue() );
             }
 
 
             @Override
-            public boolean hasNext()
+            public void remove()
             {
-                return itr.hasNext();
+                throw new UnsupportedOperationException( "Not supported" );
             }
         };
-
-        String revRdnTree = ApacheSchemaConstants.APACHE_RDN_AT_OID + MavibotRdnIndex.REVERSE_BTREE;
-
-        build( parentIdAndRdnRevItr, revRdnTree );
     }
 
 
@@ -825,17 +895,19 @@ public class MavibotPartitionBuilder
         }
 
         // Now, read all the DNs, and sort them
-        Set<DnTuple> sortedDnSet = null;
+        entrySorter = new ExternalTupleSorter<String, Object[]>( STRING_COMPARATOR, null, maxTuplesInMemory, null );
+        rdnFwdSorter = new ExternalTupleSorter<ParentIdAndRdn, String>( PARENT_ID_AND_RDN_COMPARATOR, null,
+            maxTuplesInMemory, null );
+        rdnRevSorter = new ExternalTupleSorter<String, ParentIdAndRdn>( STRING_COMPARATOR, null, maxTuplesInMemory,
+            null );
         
         try
         {
             long sortT0 = System.currentTimeMillis();
             System.out.println( "Sorting the LDIF data..." );
             
-            sortedDnSet = getDnTuples();
+            totalEntries = sortDnTuples();
             long sortT1 = System.currentTimeMillis();
-
-            totalEntries = sortedDnSet.size();
             
             System.out.println( "Completed sorting, total number of entries " + totalEntries + 
                 ", time taken : " + ( sortT1 - sortT0 ) + "ms" );
@@ -844,10 +916,11 @@ public class MavibotPartitionBuilder
         {
             e.printStackTrace();
             LOG.warn( "Failed to parse the given LDIF file ", e );
+            closeSorters();
             return;
         }
         
-        if ( ( sortedDnSet == null ) || ( sortedDnSet.isEmpty() ) )
+        if ( totalEntries == 0 )
         {
             String message = "No entries found in the given LDIF file, aborting bulk load";
             System.out.println( message );
@@ -888,6 +961,7 @@ public class MavibotPartitionBuilder
         {
             e.printStackTrace();
             LOG.warn( "Failed to initialize the partition", e );
+            closeSorters();
             return;
         }
 
@@ -895,7 +969,7 @@ public class MavibotPartitionBuilder
         {
             long masterT0 = System.currentTimeMillis();
             System.out.print( "Building master table..." );
-            buildMasterTable( sortedDnSet );
+            buildMasterTable();
             long masterT1 = System.currentTimeMillis();
             System.out.println( ", time taken : " + ( masterT1 - masterT0 ) + "ms" );
         }
@@ -904,6 +978,7 @@ public class MavibotPartitionBuilder
             e.printStackTrace();
             LOG.warn( "Failed to build master table", e );
             e.printStackTrace();
+            closeSorters();
             return;
         }
         
@@ -914,13 +989,13 @@ public class MavibotPartitionBuilder
             // the RecordManager must be re-initialized cause we are
             // setting the "values" of leaves to null while building
             // the tree to avoid OOM errors
-            partition.destroy();
+            partition.destroy( null );
             
             rm = new RecordManager( new File( partition.getPartitionPath() ).getAbsolutePath() );
             
             long rdnT0 = System.currentTimeMillis();
             System.out.print( "Building RDN index." );
-            buildRdnIndex( sortedDnSet );
+            buildRdnIndex();
             long rdnT1 = System.currentTimeMillis();
             System.out.println( ", time taken : " + ( rdnT1 - rdnT0 ) + "ms" );
         }
@@ -928,24 +1003,90 @@ public class MavibotPartitionBuilder
         {
             e.printStackTrace();
             LOG.warn( "Failed to build the RDN index", e );
+            closeSorters();
             return;
         }
         
         // not needed anymore
-        System.out.println( "Clearing the sorted DN set." );
-        sortedDnSet.clear();
+        System.out.println( "Removing the sorted DN files." );
+        closeSorters();
+        
+        try
+        {
+            long indexT0 = System.currentTimeMillis();
+            LOG.info( "Building indexes..." );
+            buildIndexes( partition, userIndexItr );
+            long indexT1 = System.currentTimeMillis();
+            LOG.info( "Indexes built, time taken : {}ms", ( indexT1 - indexT0 ) );
+        }
+        catch( Exception e )
+        {
+            LOG.warn( "Failed to build the indexes.", e );
+            return;
+        }
+        
+        System.out.println( "Patition building complete." );
+    }
+
+    
+    /**
+     * Closes the master table and RDN index sorters, removing their temporary files
+     */
+    private void closeSorters()
+    {
+        for ( ExternalTupleSorter sorter : new ExternalTupleSorter[]
+            { entrySorter, rdnFwdSorter, rdnRevSorter } )
+        {
+            try
+            {
+                sorter.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Failed to remove the temporary files of a sorter", ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Builds all the indexes but the RDN index using a single scan of the master table.
+     * Each index has its own worker, fed through a bounded queue, which extracts the index
+     * tuples from the entries and sorts them using an external merge sort, so that the
+     * memory used does not depend on the number of entries. Once the scan is completed,
+     * the workers build their B-trees concurrently.
+     * 
+     * @param partition The partition being built
+     * @param userIndexItr The OIDs of the user indexes, used to build the presence index
+     * @throws Exception If one of the indexes can't be built
+     */
+    private void buildIndexes( MavibotPartition partition, Iterator<String> userIndexItr ) throws Exception
+    {
+        Set<String> presenceOids = new HashSet<String>();
+        
+        while( userIndexItr.hasNext() )
+        {
+            presenceOids.add( userIndexItr.next() );
+        }
+
+        List<IndexWorker> workers = new ArrayList<IndexWorker>();
         
-        for( Index<?, String> id : partition.getAllIndices() )
+        for( Index<?, String> idx : partition.getAllIndices() )
         {
-            // RDN and presence indices are built separately
-            String oid = id.getAttribute().getOid();
+            String oid = idx.getAttribute().getOid();
             
-            if( ApacheSchemaConstants.APACHE_RDN_AT_OID.equals( oid ) 
-                || ApacheSchemaConstants.APACHE_PRESENCE_AT_OID.equals( oid ) )
+            // RDN index is built separately
+            if( ApacheSchemaConstants.APACHE_RDN_AT_OID.equals( oid ) )
             {
                 continue;
             }
             
+            if( ApacheSchemaConstants.APACHE_PRESENCE_AT_OID.equals( oid ) )
+            {
+                workers.add( new PresenceIndexWorker( presenceOids ) );
+                continue;
+            }
+            
             String ignoreVal = null;
             
             if( SchemaConstants.OBJECT_CLASS_AT_OID.equals( oid ) )
@@ -954,273 +1095,389 @@ public class MavibotPartitionBuilder
                 ignoreVal = "top";
             }
             
-            try
-            {
-                long indexT0 = System.currentTimeMillis();
-                System.out.print("Building index " + id.getAttribute().getName() );
-                buildIndex( id, ignoreVal );
-                long indexT1 = System.currentTimeMillis();
-                System.out.println( ", time taken : " + ( indexT1 - indexT0 ) + "ms" );
-            }
-            catch( Exception e )
-            {
-                e.printStackTrace();
-                LOG.warn( "Failed to build the index " + id.getAttribute().getName() );
-                LOG.warn( "", e );
-                return;
-            }
+            workers.add( new AttributeIndexWorker( idx, ignoreVal ) );
         }
         
-        try
-        {
-            System.out.print( "Building presence index..." );
-            long presenceT0 = System.currentTimeMillis();
-            buildPresenceIndex( userIndexItr );
-            long presenceT1 = System.currentTimeMillis();
-            System.out.println( ", time taken : " + ( presenceT1 - presenceT0 ) + "ms" );
-        }
-        catch( Exception e )
+        if ( workers.isEmpty() )
         {
-            e.printStackTrace();
-            LOG.warn( "Failed to build the presence index." );
-            LOG.warn( "", e );
             return;
         }
         
-        System.out.println( "Patition building complete." );
-    }
-
-    
-    private void buildPresenceIndex( Iterator<String> itr ) throws Exception
-    {
-        Set<String> idxOids = new HashSet<String>();
-        
-        while( itr.hasNext() )
-        {
-            idxOids.add( itr.next() );
-        }
-
-        BTree masterTree = rm.getManagedTree( masterTableName );
-
-        BTree fwdTree = rm.getManagedTree( ApacheSchemaConstants.APACHE_PRESENCE_AT_OID + MavibotIndex.FORWARD_BTREE );
-        boolean fwdDupsAllowed = fwdTree.isAllowDuplicates();
-        
-        Comparator fwdKeyComparator = fwdTree.getKeySerializer().getComparator();
+        ExecutorService indexPool = Executors.newFixedThreadPool( workers.size() );
         
-        final Map<String, Set> fwdMap = new TreeMap<String, Set>();
-
-        TupleCursor<String, Entry> cursor = masterTree.browse();
-        
-        while ( cursor.hasNext() )
+        try
         {
-            Tuple<String, Entry> t = cursor.next();
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
             
-            Entry e = t.getValue();
+            for ( IndexWorker worker : workers )
+            {
+                results.add( indexPool.submit( worker ) );
+            }
             
-            for( String oid : idxOids )
+            BTree masterTree = rm.getManagedTree( masterTableName );
+            TupleCursor<String, Entry> cursor = masterTree.browse();
+            
+            try
             {
-                Attribute at = e.get( oid );
-                if( at == null )
+                while ( cursor.hasNext() )
                 {
-                    continue;
+                    Tuple<String, Entry> t = cursor.next();
+                    
+                    for ( IndexWorker worker : workers )
+                    {
+                        worker.put( t );
+                    }
                 }
+            }
+            finally
+            {
+                cursor.close();
                 
-                Set<String> idSet = fwdMap.get( oid );
-                
-                if( idSet == null )
+                for ( IndexWorker worker : workers )
                 {
-                    idSet = new TreeSet<String>();
-                    idSet.add( t.getKey() );
-
-                    fwdMap.put( oid, idSet );
+                    worker.put( END_OF_DATA );
+                }
+            }
+            
+            for ( int i = 0; i < results.size(); i++ )
+            {
+                try
+                {
+                    results.get( i ).get();
+                }
+                catch ( ExecutionException ee )
+                {
+                    LOG.warn( "Failed to build the index " + workers.get( i ).getName() );
+                    
+                    if ( ee.getCause() instanceof Exception )
+                    {
+                        throw ( Exception ) ee.getCause();
+                    }
+                    
+                    throw ee;
                 }
             }
         }
+        finally
+        {
+            indexPool.shutdownNow();
+        }
+    }
+    
+    
+    /**
+     * Builds a B-tree from the tuples stored in the given sorter. The values associated with
+     * the same key are read from the sorted runs as they are needed : if the B-tree allows
+     * duplicates, they are all given to the key's value holder, otherwise only the first value
+     * is kept.
+     */
+    private void build( BTree tree, ExternalTupleSorter sorter ) throws Exception
+    {
+        final Iterator<org.apache.directory.api.ldap.model.cursor.Tuple> grouped = sorter.groupedIterator();
+        final boolean allowDuplicates = tree.isAllowDuplicates();
         
-        cursor.close();
-        
-        Iterator<Tuple> tupleItr = new Iterator<Tuple>()
+        Iterator<Tuple> itr = new Iterator<Tuple>()
         {
-            Iterator<java.util.Map.Entry<String, Set>> itr = fwdMap.entrySet().iterator();
-            
             @Override
-            public Tuple next()
+            public boolean hasNext()
             {
-                java.util.Map.Entry<String, Set> e = itr.next();
-                
-                Tuple t = new Tuple();
-                t.setKey( e.getKey() );
-                t.setValue( e.getValue() );
-                
-                return t;
+                return grouped.hasNext();
             }
             
             
             @Override
-            public boolean hasNext()
+            public Tuple next()
             {
-                return itr.hasNext();
+                org.apache.directory.api.ldap.model.cursor.Tuple t = grouped.next();
+                Iterator values = ( Iterator ) t.getValue();
+                
+                if ( !allowDuplicates )
+                {
+                    return new Tuple( t.getKey(), values.next() );
+                }
+                
+                // The value holder is created with all the values of the key
+                List<Object> valueList = new ArrayList<Object>();
+                
+                while ( values.hasNext() )
+                {
+                    valueList.add( values.next() );
+                }
+                
+                return new Tuple( t.getKey(), valueList.toArray() );
             }
             
+            
             @Override
             public void remove()
             {
+                throw new UnsupportedOperationException( "Not supported" );
             }
         };
         
-        build( tupleItr, fwdTree.getName() );
+        // The RecordManager does not support concurrent page writes, the trees
+        // are sorted concurrently but their pages are written one tree at a time
+        synchronized ( rm )
+        {
+            build( itr, tree.getName() );
+        }
     }
     
     
-    private void buildIndex( Index<?, String> idx, String ignoreVal ) throws Exception
+    /**
+     * A worker extracting the tuples of an index from the master table entries
+     */
+    private abstract class IndexWorker implements Callable<Void>
     {
-        BTree masterTree = rm.getManagedTree( masterTableName );
+        /** The entries to process */
+        private final BlockingQueue<Tuple<String, Entry>> queue = new ArrayBlockingQueue<Tuple<String, Entry>>( INDEX_QUEUE_SIZE );
         
-        AttributeType type = idx.getAttribute();
-        boolean isBinary = type.getSyntax().isHumanReadable();
-        boolean singleValued = type.isSingleValued();
+        /** Set when the worker has stopped, so that the scan is never blocked by a failed worker */
+        private volatile boolean done = false;
+        
+        
+        /**
+         * Pushes an entry to this worker, waiting for some room in the queue if needed
+         */
+        void put( Tuple<String, Entry> t ) throws InterruptedException
+        {
+            while ( !done && !queue.offer( t, 100, TimeUnit.MILLISECONDS ) )
+            {
+                // Wait for the worker to consume some entries
+            }
+        }
         
-        BTree fwdTree = rm.getManagedTree( type.getOid() + MavibotIndex.FORWARD_BTREE );
-        boolean fwdDupsAllowed = fwdTree.isAllowDuplicates();
         
-        Comparator fwdKeyComparator = fwdTree.getKeySerializer().getComparator();
+        @Override
+        public Void call() throws Exception
+        {
+            try
+            {
+                while ( true )
+                {
+                    Tuple<String, Entry> t = queue.take();
+                    
+                    if ( t == END_OF_DATA )
+                    {
+                        break;
+                    }
+                    
+                    collect( t.getKey(), t.getValue() );
+                }
+                
+                long indexT0 = System.currentTimeMillis();
+                buildTrees();
+                long indexT1 = System.currentTimeMillis();
+                LOG.info( "Built index {}, time taken : {}ms", getName(), ( indexT1 - indexT0 ) );
+            }
+            finally
+            {
+                done = true;
+                queue.clear();
+                close();
+            }
+            
+            return null;
+        }
         
-        Set<Tuple> fwdSet = new TreeSet<Tuple>( new IndexTupleComparator( fwdKeyComparator ) );
         
-        Map fwdMap = new TreeMap( fwdKeyComparator );
+        abstract String getName();
         
-        BTree revTree = null;
-        boolean revDupsAllowed;
-        Set<Tuple> revSet = null;
-        Map<String,Tuple> revMap = null;
-        Comparator revValComparator = null;
         
-        if( idx.hasReverse() )
+        abstract void collect( String id, Entry entry ) throws Exception;
+        
+        
+        abstract void buildTrees() throws Exception;
+        
+        
+        abstract void close() throws IOException;
+    }
+    
+    
+    /**
+     * A worker building the forward and reverse B-trees of an attribute index
+     */
+    private class AttributeIndexWorker extends IndexWorker
+    {
+        private final AttributeType type;
+        
+        /** The normalized value to ignore, if any */
+        private final String ignoreVal;
+        
+        private final BTree fwdTree;
+        
+        private final ExternalTupleSorter fwdSorter;
+        
+        private BTree revTree;
+        
+        private ExternalTupleSorter revSorter;
+        
+        
+        AttributeIndexWorker( Index<?, String> idx, String ignoreVal ) throws IOException
         {
-            revTree = rm.getManagedTree( type.getOid() + MavibotIndex.REVERSE_BTREE );
-            revDupsAllowed = revTree.isAllowDuplicates();
-            Comparator revKeyComparator = revTree.getKeySerializer().getComparator();
-            revValComparator = revTree.getValueSerializer().getComparator();
-            revSet = new TreeSet<Tuple>( new IndexTupleComparator( revKeyComparator ) );
-            revMap = new TreeMap( revKeyComparator );
+            this.type = idx.getAttribute();
+            this.ignoreVal = ignoreVal;
+            
+            fwdTree = rm.getManagedTree( type.getOid() + MavibotIndex.FORWARD_BTREE );
+            fwdSorter = new ExternalTupleSorter( fwdTree.getKeySerializer().getComparator(), 
+                fwdTree.getValueSerializer().getComparator(), maxTuplesInMemory, null );
+            
+            if( idx.hasReverse() )
+            {
+                revTree = rm.getManagedTree( type.getOid() + MavibotIndex.REVERSE_BTREE );
+                revSorter = new ExternalTupleSorter( revTree.getKeySerializer().getComparator(), 
+                    revTree.getValueSerializer().getComparator(), maxTuplesInMemory, null );
+            }
         }
         
         
-        TupleCursor<String, Entry> cursor = masterTree.browse();
+        @Override
+        String getName()
+        {
+            return type.getName();
+        }
+        
         
-        while ( cursor.hasNext() )
+        @Override
+        void collect( String id, Entry entry ) throws Exception
         {
-            Tuple<String, Entry> t = cursor.next();
+            Attribute at = entry.get( type );
             
-            Entry e = t.getValue();
-            Attribute at = e.get( type );
             if( at == null )
             {
-                continue;
+                return;
             }
             
-            if( singleValued )
+            for( Value v : at )
             {
-                Value v = at.get();
-                Object normVal = v.getNormValue();
+                Object val = v.getNormalized();
                 
-                if( ignoreVal != null )
+                if( ( ignoreVal != null ) && ignoreVal.equals( val ) )
                 {
-                    if( normVal.equals( ignoreVal ) )
-                    {
-                        continue;
-                    }
+                    continue;
                 }
                 
-                Tuple fwdTuple = new Tuple( normVal, t.getKey() );
-                fwdSet.add( fwdTuple );
+                fwdSorter.add( val, id );
                 
-                if( revTree != null )
+                if( revSorter != null )
                 {
-                    Tuple revTuple = new Tuple( t.getKey(), v.getNormValue() );
-                    revSet.add( revTuple );
-                }
-            }
-            else
-            {
-                for( Value v : at )
-                {
-                    Object val = v.getNormValue();
-                    
-                    if( ignoreVal != null )
-                    {
-                        if( val.equals( ignoreVal ) )
-                        {
-                            continue;
-                        }
-                    }
-                    
-                    Tuple fwdTuple = ( Tuple ) fwdMap.get( val );
-                    
-                    if( fwdTuple == null )
-                    {
-                        Set<String> idSet = new TreeSet<String>();
-                        idSet.add( t.getKey() );
-                        
-                        fwdTuple = new Tuple( val, idSet );
-                        fwdMap.put( val, fwdTuple );
-                    }
-                    else
-                    {
-                        Set<String> idSet = ( Set<String> ) fwdTuple.getValue();
-                        idSet.add( t.getKey() );
-                    }
-                    
-                    if( revTree != null )
-                    {
-                        Tuple revTuple = revMap.get( t.getKey() );
-                        
-                        if( revTuple == null )
-                        {
-                            Set valSet = new TreeSet( revValComparator );
-                            valSet.add( val );
-                            revTuple = new Tuple( t.getKey(), valSet );
-                        }
-                        else
-                        {
-                            Set valSet = ( Set ) revTuple.getValue();
-                            valSet.add( val );
-                        }
-                    }
+                    revSorter.add( id, val );
                 }
             }
         }
         
-        cursor.close();
         
-        if( singleValued )
+        @Override
+        void buildTrees() throws Exception
         {
-            if( fwdSet.isEmpty() )
+            if( fwdSorter.getNbTuples() == 0 )
             {
                 return;
             }
             
-            build( fwdSet.iterator(), fwdTree.getName() );
+            build( fwdTree, fwdSorter );
             
-            if( revTree != null )
+            if( revSorter != null )
             {
-                build( revSet.iterator(), revTree.getName() );
+                build( revTree, revSorter );
             }
         }
-        else
+        
+        
+        @Override
+        void close() throws IOException
         {
-            if( fwdMap.isEmpty() )
+            fwdSorter.close();
+            
+            if( revSorter != null )
             {
-                return;
+                revSorter.close();
             }
+        }
+    }
+    
+    
+    /**
+     * A worker building the presence index, which associates each indexed attribute's OID
+     * to the IDs of the entries containing this attribute
+     */
+    private class PresenceIndexWorker extends IndexWorker
+    {
+        private final Set<String> idxOids;
+        
+        private final BTree fwdTree;
+        
+        private final ExternalTupleSorter fwdSorter;
+        
+        
+        PresenceIndexWorker( Set<String> idxOids ) throws IOException
+        {
+            this.idxOids = idxOids;
             
-            build( fwdMap.values().iterator(), fwdTree.getName() );
-
-            if( revTree != null )
+            fwdTree = rm.getManagedTree( ApacheSchemaConstants.APACHE_PRESENCE_AT_OID + MavibotIndex.FORWARD_BTREE );
+            fwdSorter = new ExternalTupleSorter( fwdTree.getKeySerializer().getComparator(), 
+                fwdTree.getValueSerializer().getComparator(), maxTuplesInMemory, null );
+        }
+        
+        
+        @Override
+        String getName()
+        {
+            return "presence";
+        }
+        
+        
+        @Override
+        void collect( String id, Entry entry ) throws Exception
+        {
+            for( String oid : idxOids )
+            {
+                if( entry.get( oid ) != null )
+                {
+                    fwdSorter.add( oid, id );
+                }
+            }
+        }
+        
+        
+        @Override
+        void buildTrees() throws Exception
+        {
+            if( fwdSorter.getNbTuples() > 0 )
             {
-                build( revMap.values().iterator(), revTree.getName() );
+                build( fwdTree, fwdSorter );
             }
         }
+        
+        
+        @Override
+        void close() throws IOException
+        {
+            fwdSorter.close();
+        }
+    }
+    
+    
+    /**
+     * Sets the number of threads used to parse the LDIF entries.
+     *
+     * @param numThreads The number of parsing threads
+     */
+    public void setNumThreads( int numThreads )
+    {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+    
+    
+    /**
+     * Sets the number of index tuples each index keeps in memory before spilling them
+     * to a temporary file.
+     *
+     * @param maxTuplesInMemory The number of tuples kept in memory per index
+     */
+    public void setMaxTuplesInMemory( int maxTuplesInMemory )
+    {
+        this.maxTuplesInMemory = Math.max( 1, maxTuplesInMemory );
     }
     
     
@@ -1331,6 +1588,8 @@ public class MavibotPartitionBuilder
         String outDirPath = null;
         int numKeysInNode = 16;
         int rid = 1;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int maxTuplesInMemory = ExternalTupleSorter.DEFAULT_MAX_TUPLES_IN_MEMORY;
         boolean cleanOutDir = false;
         boolean verifyMasterTable = false;
 
@@ -1379,6 +1638,14 @@ public class MavibotPartitionBuilder
                     configDir = getArgAt( ++i, opt, args );
                     break;
 
+                case NUM_THREADS :
+                    numThreads = Integer.parseInt( getArgAt( ++i, opt, args ) );
+                    break;
+
+                case SORT_BUFFER :
+                    maxTuplesInMemory = Integer.parseInt( getArgAt( ++i, opt, args ) );
+                    break;
+
                 case UNKNOWN :
                     System.out.println( "Unknown option " + args[i] );
                     continue;
@@ -1413,6 +1680,8 @@ public class MavibotPartitionBuilder
         }
         
         MavibotPartitionBuilder builder = new MavibotPartitionBuilder( configDir, inFile, outDirPath, numKeysInNode, rid );
+        builder.setNumThreads( numThreads );
+        builder.setMaxTuplesInMemory( maxTuplesInMemory );
         
         long start = System.currentTimeMillis();
         
@@ -33,6 +33,8 @@ package org.apache.directory.mavibot.btree;
  * <li>-o : the directory where the resulting partition will be stored</li>
  * <li>-rid : the replica ID</li>
  * <li>-verify : check that we have loaded all the entries in the MAsterTable</li>
+ * <li>-threads : the number of threads used to parse the entries</li>
+ * <li>-sortBuffer : the number of index tuples kept in memory before being sorted on disk</li>
  * </ul>
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -55,6 +57,10 @@ public enum Option
 
     VERIFY_MASTER_TABLE("-verify", "(optional) Verifies the master table by just browsing (entries are not verified)"),
     
+    NUM_THREADS("-threads", "(optional) The number of threads used to parse the entries, default is the number of processors"),
+    
+    SORT_BUFFER("-sortBuffer", "(optional) The number of index tuples kept in memory, per index, before being sorted on disk, default is 100000"),
+    
     UNKNOWN(null, "Unknown Option");
 
     private String text;
@@ -124,6 +130,16 @@ public enum Option
             return CONFIG_DIR;
         }
 
+        if ( opt.equalsIgnoreCase( NUM_THREADS.text ) )
+        {
+            return NUM_THREADS;
+        }
+
+        if ( opt.equalsIgnoreCase( SORT_BUFFER.text ) )
+        {
+            return SORT_BUFFER;
+        }
+
         return UNKNOWN;
     }
 }
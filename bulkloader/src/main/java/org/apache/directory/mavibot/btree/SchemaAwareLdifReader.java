@@ -24,8 +24,6 @@ import java.io.IOException;
 import java.io.StringReader;
 
 import org.apache.directory.api.i18n.I18n;
-import org.apache.directory.api.ldap.model.entry.DefaultEntry;
-import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.ldif.LdapLdifException;
 import org.apache.directory.api.ldap.model.ldif.LdifEntry;
@@ -42,21 +40,13 @@ import org.slf4j.LoggerFactory;
  */
 public class SchemaAwareLdifReader extends LdifReader
 {
-    private SchemaManager schemaManager;
-
     private static final Logger LOG = LoggerFactory.getLogger( SchemaAwareLdifReader.class );
     
     public SchemaAwareLdifReader( SchemaManager schemaManager ) throws Exception
     {
-        this.schemaManager = schemaManager;
+        super( schemaManager );
         validateDn = false;
     }
-
-    protected LdifEntry createLdifEntry()
-    {
-        Entry entry = new DefaultEntry( schemaManager );
-        return new LdifEntry( entry );
-    }
     
     
     /**
@@ -88,8 +78,8 @@ public class SchemaAwareLdifReader extends LdifReader
         }
         catch ( LdapLdifException ne )
         {
-            LOG.error( I18n.err( I18n.ERR_12069, ne.getLocalizedMessage() ) );
-            throw new LdapLdifException( I18n.err( I18n.ERR_12070 ), ne );
+            LOG.error( I18n.err( I18n.ERR_13428_CANNOT_PARSE_LDIF, ne.getLocalizedMessage() ) );
+            throw new LdapLdifException( I18n.err( I18n.ERR_13462_LDIF_PARSING_ERROR ), ne );
         }
         catch ( LdapException le )
         {
@@ -22,9 +22,15 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.file.Files;
 
-import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.server.config.LdifConfigExtractor;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotIndex;
+import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotRdnIndex;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -62,16 +68,17 @@ public class MavibotPartitionBuilderTest
     @Test
     public void testBulkLoad() throws Exception
     {
-        //File file = new File( outDir, "builder-test.ldif" );
-        File file = new File( outDir, "30k.ldif" );
-        //InputStream in = MavibotPartitionBuilder.class.getClassLoader().getResourceAsStream( "builder-test.ldif" );
-        try ( InputStream in = MavibotPartitionBuilder.class.getClassLoader().getResourceAsStream( "30k.ldif" ) )
+        File file = new File( outDir, "builder-test.ldif" );
+
+        try ( InputStream in = MavibotPartitionBuilder.class.getClassLoader().getResourceAsStream( "builder-test.ldif" ) )
         {
-            FileUtils.copyInputStreamToFile( in, file );
+            Files.copy( in, file.toPath() );
         }
 
         MavibotPartitionBuilder builder = new MavibotPartitionBuilder( configFile, file.getAbsolutePath(), outDir.getAbsolutePath() );
         
+        // Sort the DNs and the index tuples on disk
+        builder.setMaxTuplesInMemory( 2 );
         builder.buildPartition();
         
         //test the trees
@@ -79,5 +86,42 @@ public class MavibotPartitionBuilderTest
         RecordManager rm = builder.getRm();
         BTree masterTree = rm.getManagedTree( builder.getMasterTableName() );
         assertEquals( builder.getTotalEntries(), masterTree.getNbElems() );
+
+        // The RDN index counts the children and the descendants of each entry
+        BTree rdnReverseTree = rm.getManagedTree( ApacheSchemaConstants.APACHE_RDN_AT_OID
+            + MavibotRdnIndex.REVERSE_BTREE );
+        assertEquals( 7L, rdnReverseTree.getNbElems() );
+
+        TupleCursor cursor = rdnReverseTree.browse();
+        int nbRoots = 0;
+
+        while ( cursor.hasNext() )
+        {
+            ParentIdAndRdn rdn = ( ParentIdAndRdn ) cursor.next().getValue();
+
+            if ( Partition.ROOT_ID.equals( rdn.getParentId() ) )
+            {
+                assertEquals( 1, rdn.getNbChildren() );
+                assertEquals( 6, rdn.getNbDescendants() );
+                nbRoots++;
+            }
+        }
+
+        cursor.close();
+        assertEquals( 1, nbRoots );
+
+        // The objectClass index values are grouped by key
+        BTree objectClassTree = rm.getManagedTree( SchemaConstants.OBJECT_CLASS_AT_OID + MavibotIndex.FORWARD_BTREE );
+        ValueCursor values = objectClassTree.getValues( "2.5.6.6" );
+        int nbValues = 0;
+
+        while ( values.hasNext() )
+        {
+            values.next();
+            nbValues++;
+        }
+
+        values.close();
+        assertEquals( 5, nbValues );
     }
 }
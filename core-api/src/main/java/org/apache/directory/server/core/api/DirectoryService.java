@@ -36,6 +36,7 @@ import org.apache.directory.server.core.api.administrative.AccessControlAdminist
 import org.apache.directory.server.core.api.administrative.CollectiveAttributeAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.SubschemaAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.TriggerExecutionAdministrativePoint;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.changelog.ChangeLog;
 import org.apache.directory.server.core.api.entry.ServerEntryFactory;
 import org.apache.directory.server.core.api.event.EventService;
@@ -638,6 +639,21 @@ public interface DirectoryService extends ServerEntryFactory
     void setCacheService( CacheService cacheService );
 
 
+    /**
+     * @return The executor running the expensive password hashing operations
+     */
+    PasswordHashingExecutor getPasswordHashingExecutor();
+
+
+    /**
+     * Sets the executor running the expensive password hashing operations. A default
+     * one is created if none is set, and the DirectoryService shuts it down on shutdown.
+     * 
+     * @param passwordHashingExecutor The password hashing executor
+     */
+    void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor );
+
+
     /**
      * Gets the {@link AttributeTypeProvider}.
      * 
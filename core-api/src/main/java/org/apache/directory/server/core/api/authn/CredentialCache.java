@@ -0,0 +1,438 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.authn;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A concurrent cache of the credentials used by the simple binds. For each normalized
+ * Dn, it stores the passwords read from the backend and a salted digest of the last
+ * credentials which have been successfully verified against them : a bind using the
+ * same credentials does not need to hash them again with the stored password scheme.
+ * <br>
+ * The cache does not use any lock. It is bounded : when it's full, the expired
+ * elements are removed, then the least recently used element among a few sampled
+ * ones. The elements expire after a configurable time to live.
+ * <br>
+ * Passwords read before an invalidation are not kept in the cache.
+ * <br>
+ * The cache can also be keyed by the stored passwords themselves, when the entry they
+ * belong to is not known : only the credentials which have been successfully verified
+ * against them are then recorded.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCache
+{
+    /** The default maximum number of elements in the cache */
+    public static final int DEFAULT_MAX_SIZE = 100;
+
+    /** The default time to live of the elements, in milliseconds */
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+
+    /** The number of elements examined when we need to evict one */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /** The algorithm used to digest the verified credentials */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** The maximum number of elements in the cache */
+    private final int maxSize;
+
+    /** The time to live of the elements, in milliseconds. 0 means they never expire */
+    private final long timeToLive;
+
+    /** The salt used when digesting the credentials, so that the digests can't be precomputed */
+    private final byte[] salt = new byte[16];
+
+    /** The cached credentials, per normalized Dn or stored password */
+    private final ConcurrentMap<String, CachedCredentials> cache = new ConcurrentHashMap<>();
+
+    /** Incremented each time an element is invalidated */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** The number of lookups which have found the passwords in the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups which have not found the passwords in the cache */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of CredentialCache, with the default size and time to live.
+     */
+    public CredentialCache()
+    {
+        this( DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE );
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache.
+     *
+     * @param maxSize The maximum number of elements in the cache
+     * @param timeToLive The time to live of the elements, in milliseconds. 0 means they never expire
+     */
+    public CredentialCache( int maxSize, long timeToLive )
+    {
+        this.maxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+        this.timeToLive = Math.max( 0L, timeToLive );
+        new SecureRandom().nextBytes( salt );
+    }
+
+
+    /**
+     * Gets the credentials associated with a Dn.
+     *
+     * @param dn The normalized Dn
+     * @return The cached credentials, or null if they are not in the cache or have expired
+     */
+    public CachedCredentials get( Dn dn )
+    {
+        return get( dn.getNormName() );
+    }
+
+
+    /**
+     * Gets the credentials associated with a key, checking their expiration date.
+     */
+    private CachedCredentials get( String key )
+    {
+        CachedCredentials credentials = cache.get( key );
+
+        if ( credentials != null )
+        {
+            long now = System.currentTimeMillis();
+
+            if ( !credentials.isExpired( now ) )
+            {
+                credentials.lastAccess = now;
+                hits.incrementAndGet();
+
+                return credentials;
+            }
+
+            cache.remove( key, credentials );
+        }
+
+        misses.incrementAndGet();
+
+        return null;
+    }
+
+
+    /**
+     * @return The current generation of the cache, to be passed to {@link #put(Dn, byte[][], long)}
+     */
+    public long getGeneration()
+    {
+        return generation.get();
+    }
+
+
+    /**
+     * Stores the passwords read from the backend for a Dn. They are not kept if the
+     * cache has been invalidated since the given generation.
+     *
+     * @param dn The normalized Dn
+     * @param storedPasswords The passwords stored in the entry
+     * @param generation The generation of the cache before the passwords were read
+     * @return The cached credentials
+     */
+    public CachedCredentials put( Dn dn, byte[][] storedPasswords, long generation )
+    {
+        String normName = dn.getNormName();
+        long now = System.currentTimeMillis();
+        CachedCredentials credentials = new CachedCredentials( storedPasswords, null, now );
+
+        store( normName, credentials, now );
+
+        if ( this.generation.get() != generation )
+        {
+            cache.remove( normName, credentials );
+        }
+
+        return credentials;
+    }
+
+
+    /**
+     * Tells if some credentials have already been successfully verified against the
+     * cached passwords.
+     *
+     * @param cached The cached credentials
+     * @param credentials The credentials sent by the user
+     * @return true if the credentials have been verified
+     */
+    public boolean isVerified( CachedCredentials cached, byte[] credentials )
+    {
+        return ( cached.digest != null ) && MessageDigest.isEqual( cached.digest, digest( credentials ) );
+    }
+
+
+    /**
+     * Records that some credentials have been successfully verified against the
+     * cached passwords. Nothing is recorded if the element has been invalidated
+     * or replaced in the meantime.
+     *
+     * @param dn The normalized Dn
+     * @param cached The cached credentials
+     * @param credentials The credentials sent by the user
+     */
+    public void setVerified( Dn dn, CachedCredentials cached, byte[] credentials )
+    {
+        CachedCredentials verified = new CachedCredentials( cached.storedPasswords, digest( credentials ),
+            cached.created );
+
+        cache.replace( dn.getNormName(), cached, verified );
+    }
+
+
+    /**
+     * Tells if some credentials have already been successfully verified against a
+     * stored password, whatever the entry it belongs to.
+     *
+     * @param storedPassword The stored password
+     * @param credentials The credentials sent by the user
+     * @return true if the credentials have been verified
+     */
+    public boolean isVerified( byte[] storedPassword, byte[] credentials )
+    {
+        CachedCredentials cached = get( Strings.utf8ToString( storedPassword ) );
+
+        // Two invalid UTF-8 stored passwords may have the same key
+        return ( cached != null ) && MessageDigest.isEqual( cached.storedPasswords[0], storedPassword )
+            && isVerified( cached, credentials );
+    }
+
+
+    /**
+     * Records that some credentials have been successfully verified against a stored
+     * password. The failed verifications must not be recorded, they would evict the
+     * successful ones.
+     *
+     * @param storedPassword The stored password
+     * @param credentials The credentials sent by the user
+     */
+    public void setVerified( byte[] storedPassword, byte[] credentials )
+    {
+        long now = System.currentTimeMillis();
+
+        // The stored password may be modified by the caller
+        CachedCredentials verified = new CachedCredentials( new byte[][]
+            { storedPassword.clone() }, digest( credentials ), now );
+
+        store( Strings.utf8ToString( storedPassword ), verified, now );
+    }
+
+
+    /**
+     * Removes the credentials associated with a Dn from the cache.
+     *
+     * @param dn The normalized Dn
+     */
+    public void invalidate( Dn dn )
+    {
+        generation.incrementAndGet();
+        cache.remove( dn.getNormName() );
+    }
+
+
+    /**
+     * Removes all the credentials from the cache.
+     */
+    public void clear()
+    {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+
+    /**
+     * @return The number of elements in the cache
+     */
+    public int size()
+    {
+        return cache.size();
+    }
+
+
+    /**
+     * @return The number of lookups which have found the passwords in the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return The number of lookups which have not found the passwords in the cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return The ratio of lookups which have found the passwords in the cache, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long nbHits = hits.get();
+        long total = nbHits + misses.get();
+
+        return total == 0L ? 0d : ( double ) nbHits / total;
+    }
+
+
+    /**
+     * Stores some credentials, evicting another element if the cache is full.
+     */
+    private void store( String key, CachedCredentials credentials, long now )
+    {
+        if ( ( cache.size() >= maxSize ) && !cache.containsKey( key ) )
+        {
+            evict( now );
+        }
+
+        cache.put( key, credentials );
+    }
+
+
+    /**
+     * Makes some room in the cache : removes the expired elements, or if there is none,
+     * the least recently used element among a few sampled ones.
+     */
+    private void evict( long now )
+    {
+        boolean removed = false;
+        String lruName = null;
+        CachedCredentials lru = null;
+        int sampled = 0;
+
+        for ( Iterator<Map.Entry<String, CachedCredentials>> it = cache.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, CachedCredentials> element = it.next();
+            CachedCredentials credentials = element.getValue();
+
+            if ( credentials.isExpired( now ) )
+            {
+                it.remove();
+                removed = true;
+            }
+            else if ( !removed && ( sampled < EVICTION_SAMPLE_SIZE ) )
+            {
+                if ( ( lru == null ) || ( credentials.lastAccess < lru.lastAccess ) )
+                {
+                    lruName = element.getKey();
+                    lru = credentials;
+                }
+
+                sampled++;
+            }
+            else if ( !removed )
+            {
+                break;
+            }
+        }
+
+        if ( !removed && ( lru != null ) )
+        {
+            cache.remove( lruName, lru );
+        }
+    }
+
+
+    /**
+     * Computes the salted digest of some credentials.
+     */
+    private byte[] digest( byte[] credentials )
+    {
+        try
+        {
+            MessageDigest messageDigest = MessageDigest.getInstance( DIGEST_ALGORITHM );
+            messageDigest.update( salt );
+
+            return messageDigest.digest( credentials == null ? new byte[0] : credentials );
+        }
+        catch ( NoSuchAlgorithmException nsae )
+        {
+            // Every JVM supports SHA-256
+            throw new IllegalStateException( nsae );
+        }
+    }
+
+
+    /**
+     * The passwords of an entry, and the digest of the last verified credentials.
+     */
+    public final class CachedCredentials
+    {
+        /** The passwords stored in the entry */
+        private final byte[][] storedPasswords;
+
+        /** The salted digest of the verified credentials, if any */
+        private final byte[] digest;
+
+        /** The creation date of this element */
+        private final long created;
+
+        /** The last time this element has been read */
+        private volatile long lastAccess;
+
+
+        private CachedCredentials( byte[][] storedPasswords, byte[] digest, long created )
+        {
+            this.storedPasswords = storedPasswords;
+            this.digest = digest;
+            this.created = created;
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+
+        /**
+         * @return The passwords stored in the entry. They must not be modified.
+         */
+        public byte[][] getStoredPasswords()
+        {
+            return storedPasswords;
+        }
+
+
+        private boolean isExpired( long now )
+        {
+            return ( timeToLive > 0L ) && ( now - created >= timeToLive );
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.authn;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs the expensive password hashing operations (PKCS5S2 and CRYPT) on a bounded
+ * pool of threads, so that they can't use more than a given number of CPUs whatever
+ * the number of concurrent binds or password modifications. The other algorithms are
+ * cheap enough to be run on the caller thread.
+ * <br>
+ * The number of hashing operations waiting for a thread is bounded too : when the
+ * queue is full, the operation is rejected with a BUSY error instead of holding one
+ * more request thread. The time spent in the queue is measured.
+ * <br>
+ * The successful credential verifications are kept for a short time in a {@link CredentialCache},
+ * keyed by the stored password and a digest of the presented credentials, so that a client
+ * binding repeatedly with the same password does not pay the hashing cost each time. The
+ * failed ones are not kept, so that wrong passwords can't evict the verified ones.
+ * <br>
+ * The DirectoryService owns the instance used by the interceptors, and shuts it down
+ * when it is shut down.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordHashingExecutor
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordHashingExecutor.class );
+
+    /** The default maximum number of hashing operations waiting for a thread */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /** The default time to live of the successful verifications, in milliseconds */
+    public static final long DEFAULT_VERIFICATION_TTL = 60 * 1000L;
+
+    /** The default maximum number of successful verifications kept in the cache */
+    public static final int DEFAULT_VERIFICATION_CACHE_SIZE = 10000;
+
+    /** The threads running the hashing operations */
+    private final ThreadPoolExecutor executor;
+
+    /** The successful verifications, null if they are not cached */
+    private final CredentialCache verifications;
+
+    /** The number of hashing operations which have been run by the threads */
+    private final AtomicLong nbExecuted = new AtomicLong();
+
+    /** The number of hashing operations which have been rejected */
+    private final AtomicLong nbRejected = new AtomicLong();
+
+    /** The total time spent by the hashing operations in the queue, in nanoseconds */
+    private final AtomicLong totalQueueTime = new AtomicLong();
+
+    /** The longest time spent by a hashing operation in the queue, in nanoseconds */
+    private final AtomicLong maxQueueTime = new AtomicLong();
+
+    /** The number of verifications found in the cache */
+    private final AtomicLong nbVerificationHits = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of PasswordHashingExecutor, with one thread per CPU
+     * and the default queue size and verification cache settings.
+     */
+    public PasswordHashingExecutor()
+    {
+        this( Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, DEFAULT_VERIFICATION_TTL,
+            DEFAULT_VERIFICATION_CACHE_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of PasswordHashingExecutor.
+     *
+     * @param nbThreads The number of threads running the hashing operations
+     * @param queueSize The maximum number of hashing operations waiting for a thread
+     * @param verificationTtl The time to live of the successful verifications, in milliseconds. 0 disables the cache
+     * @param verificationCacheSize The maximum number of successful verifications kept in the cache
+     */
+    public PasswordHashingExecutor( int nbThreads, int queueSize, long verificationTtl, int verificationCacheSize )
+    {
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor( nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>( queueSize ), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "password-hashing-" + threadNumber.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+        if ( verificationTtl > 0L )
+        {
+            verifications = new CredentialCache( verificationCacheSize, verificationTtl );
+        }
+        else
+        {
+            verifications = null;
+        }
+    }
+
+
+    /**
+     * Tells if a hashing algorithm is expensive enough to be run on the hashing threads.
+     *
+     * @param algorithm The algorithm
+     * @return true if the algorithm is expensive
+     */
+    public static boolean isExpensive( LdapSecurityConstants algorithm )
+    {
+        return ( algorithm == LdapSecurityConstants.HASH_METHOD_PKCS5S2 )
+            || ( algorithm == LdapSecurityConstants.HASH_METHOD_CRYPT );
+    }
+
+
+    /**
+     * Hashes a password the way it is stored.
+     *
+     * @param credentials The password
+     * @param algorithm The hashing algorithm
+     * @return The stored password
+     * @throws LdapException If the operation has been rejected or has failed
+     */
+    public byte[] createStoragePassword( final byte[] credentials, final LdapSecurityConstants algorithm )
+        throws LdapException
+    {
+        if ( !isExpensive( algorithm ) )
+        {
+            return PasswordUtil.createStoragePassword( credentials, algorithm );
+        }
+
+        return execute( new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call()
+            {
+                return PasswordUtil.createStoragePassword( credentials, algorithm );
+            }
+        } );
+    }
+
+
+    /**
+     * Compares some credentials with a stored password.
+     *
+     * @param credentials The presented credentials
+     * @param storedPassword The stored password
+     * @return true if the credentials match the stored password
+     * @throws LdapException If the operation has been rejected or has failed
+     */
+    public boolean compareCredentials( final byte[] credentials, final byte[] storedPassword ) throws LdapException
+    {
+        if ( !isExpensive( PasswordUtil.findAlgorithm( storedPassword ) ) )
+        {
+            return PasswordUtil.compareCredentials( credentials, storedPassword );
+        }
+
+        if ( ( verifications != null ) && verifications.isVerified( storedPassword, credentials ) )
+        {
+            nbVerificationHits.incrementAndGet();
+
+            return true;
+        }
+
+        boolean matches = execute( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return PasswordUtil.compareCredentials( credentials, storedPassword );
+            }
+        } );
+
+        if ( matches && ( verifications != null ) )
+        {
+            verifications.setVerified( storedPassword, credentials );
+        }
+
+        return matches;
+    }
+
+
+    /**
+     * Runs a task on the hashing threads, and waits for its result.
+     *
+     * @param task The task to run
+     * @return The task result
+     * @throws LdapException If the task has been rejected because the queue is full, or has failed
+     */
+    public <T> T execute( final Callable<T> task ) throws LdapException
+    {
+        final long submitted = System.nanoTime();
+        Future<T> future;
+
+        try
+        {
+            future = executor.submit( new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    long queueTime = System.nanoTime() - submitted;
+                    totalQueueTime.addAndGet( queueTime );
+                    updateMaxQueueTime( queueTime );
+                    nbExecuted.incrementAndGet();
+
+                    return task.call();
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            nbRejected.incrementAndGet();
+            LOG.warn( "Too many pending password hashing operations, rejecting the request" );
+
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY,
+                "Too many pending password hashing operations" );
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            future.cancel( true );
+            Thread.currentThread().interrupt();
+
+            throw new LdapOtherException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            Throwable cause = ee.getCause();
+
+            if ( cause instanceof LdapException )
+            {
+                throw ( LdapException ) cause;
+            }
+
+            throw new LdapOtherException( cause.getMessage(), cause );
+        }
+    }
+
+
+    /**
+     * Stops the hashing threads.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+
+    /**
+     * @return The number of hashing operations which have been run by the threads
+     */
+    public long getNbExecuted()
+    {
+        return nbExecuted.get();
+    }
+
+
+    /**
+     * @return The number of hashing operations which have been rejected because the queue was full
+     */
+    public long getNbRejected()
+    {
+        return nbRejected.get();
+    }
+
+
+    /**
+     * @return The number of hashing operations currently waiting for a thread
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+
+    /**
+     * @return The average time spent by the hashing operations in the queue, in microseconds
+     */
+    public long getAverageQueueTime()
+    {
+        long executed = nbExecuted.get();
+
+        return executed == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros( totalQueueTime.get() / executed );
+    }
+
+
+    /**
+     * @return The longest time spent by a hashing operation in the queue, in microseconds
+     */
+    public long getMaxQueueTime()
+    {
+        return TimeUnit.NANOSECONDS.toMicros( maxQueueTime.get() );
+    }
+
+
+    /**
+     * @return The number of credential verifications found in the cache
+     */
+    public long getNbVerificationHits()
+    {
+        return nbVerificationHits.get();
+    }
+
+
+    private void updateMaxQueueTime( long queueTime )
+    {
+        long max = maxQueueTime.get();
+
+        while ( ( queueTime > max ) && !maxQueueTime.compareAndSet( max, queueTime ) )
+        {
+            max = maxQueueTime.get();
+        }
+    }
+}
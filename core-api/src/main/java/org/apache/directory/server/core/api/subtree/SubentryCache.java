@@ -20,9 +20,14 @@
 package org.apache.directory.server.core.api.subtree;
 
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -31,7 +36,9 @@ import org.apache.directory.api.ldap.model.subtree.Subentry;
 
 /**
  * A cache for subtree specifications. It associates a Subentry with a Dn,
- * representing its position in the DIT.<br>
+ * representing its position in the DIT. The subentries are also indexed by
+ * administrative point, so that the subentries which may select an entry can
+ * be found by walking up the entry Dn.<br>
  * This cache has a size limit set to 1000 at the moment. We should add a configuration
  * parameter to manage its size.
  *
@@ -51,6 +58,15 @@ public class SubentryCache implements Iterable<Dn>
     /** The Subentry cache */
     private final Map<Dn, Subentry> cache;
 
+    /** The subentries Dn, per administrative point Dn */
+    private final Map<Dn, Set<Dn>> apSubentries = new ConcurrentHashMap<>();
+
+    /** Tells if the subentry operational attributes are computed when read instead of being stored */
+    private volatile boolean computedOperationalAttributes;
+
+    /** The bases of the entries whose references to a subentry are being updated, per subentry Dn */
+    private final Map<Dn, List<Dn>> pendingUpdates = new ConcurrentHashMap<>();
+
 
     /**
      * Creates a new instance of SubentryCache with a default maximum size.
@@ -101,6 +117,21 @@ public class SubentryCache implements Iterable<Dn>
         if ( oldSubentry != null )
         {
             cacheSize.decrementAndGet();
+
+            synchronized ( apSubentries )
+            {
+                Set<Dn> subentryDns = apSubentries.get( dn.getParent() );
+
+                if ( subentryDns != null )
+                {
+                    subentryDns.remove( dn );
+
+                    if ( subentryDns.isEmpty() )
+                    {
+                        apSubentries.remove( dn.getParent() );
+                    }
+                }
+            }
         }
 
         return oldSubentry;
@@ -126,6 +157,19 @@ public class SubentryCache implements Iterable<Dn>
         if ( oldSubentry == null )
         {
             cacheSize.getAndIncrement();
+
+            synchronized ( apSubentries )
+            {
+                Set<Dn> subentryDns = apSubentries.get( dn.getParent() );
+
+                if ( subentryDns == null )
+                {
+                    subentryDns = Collections.newSetFromMap( new ConcurrentHashMap<Dn, Boolean>() );
+                    apSubentries.put( dn.getParent(), subentryDns );
+                }
+
+                subentryDns.add( dn );
+            }
         }
 
         return oldSubentry;
@@ -143,6 +187,128 @@ public class SubentryCache implements Iterable<Dn>
     }
 
 
+    /**
+     * Gets the Dn of the subentries stored immediately below an administrative point.
+     *
+     * @param apDn The administrative point Dn
+     * @return The subentries Dn, or an empty set if the Dn is not an administrative point
+     */
+    public Set<Dn> getSubentries( Dn apDn )
+    {
+        Set<Dn> subentryDns = apSubentries.get( apDn );
+
+        if ( subentryDns == null )
+        {
+            return Collections.emptySet();
+        }
+
+        return Collections.unmodifiableSet( subentryDns );
+    }
+
+
+    /**
+     * @return <code>true</code> if the subentry operational attributes (accessControlSubentries,
+     * collectiveAttributeSubentries, subschemaSubentry and triggerExecutionSubentries) are
+     * computed when an entry is read instead of being stored in the entries
+     */
+    public boolean isComputedOperationalAttributes()
+    {
+        return computedOperationalAttributes;
+    }
+
+
+    /**
+     * @param computedOperationalAttributes Tells if the subentry operational attributes are
+     * computed when an entry is read instead of being stored in the entries
+     */
+    public void setComputedOperationalAttributes( boolean computedOperationalAttributes )
+    {
+        this.computedOperationalAttributes = computedOperationalAttributes;
+    }
+
+
+    /**
+     * Records that the references to a subentry held by the entries below a base Dn
+     * are being updated. Until the update is done, the references stored in these
+     * entries may be wrong.
+     *
+     * @param subentryDn The subentry Dn
+     * @param baseDn The base of the updated entries
+     */
+    public void addPendingUpdate( Dn subentryDn, Dn baseDn )
+    {
+        synchronized ( pendingUpdates )
+        {
+            List<Dn> baseDns = pendingUpdates.get( subentryDn );
+
+            if ( baseDns == null )
+            {
+                baseDns = new CopyOnWriteArrayList<>();
+                pendingUpdates.put( subentryDn, baseDns );
+            }
+
+            baseDns.add( baseDn );
+        }
+    }
+
+
+    /**
+     * Records that an update of the references to a subentry is done.
+     *
+     * @param subentryDn The subentry Dn
+     * @param baseDn The base of the updated entries
+     */
+    public void removePendingUpdate( Dn subentryDn, Dn baseDn )
+    {
+        synchronized ( pendingUpdates )
+        {
+            List<Dn> baseDns = pendingUpdates.get( subentryDn );
+
+            if ( baseDns != null )
+            {
+                baseDns.remove( baseDn );
+
+                if ( baseDns.isEmpty() )
+                {
+                    pendingUpdates.remove( subentryDn );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Gets the subentries whose references held by an entry may not be up to date,
+     * because they are still being updated.
+     *
+     * @param dn The entry Dn
+     * @return The subentries Dn, or an empty set if no update is pending for this entry
+     */
+    public Set<Dn> getPendingSubentries( Dn dn )
+    {
+        if ( pendingUpdates.isEmpty() )
+        {
+            return Collections.emptySet();
+        }
+
+        Set<Dn> subentryDns = new HashSet<>();
+
+        for ( Map.Entry<Dn, List<Dn>> pendingUpdate : pendingUpdates.entrySet() )
+        {
+            for ( Dn baseDn : pendingUpdate.getValue() )
+            {
+                if ( dn.isDescendantOf( baseDn ) )
+                {
+                    subentryDns.add( pendingUpdate.getKey() );
+                    break;
+                }
+            }
+        }
+
+        return subentryDns;
+    }
+
+
     /**
      * @return An Iterator over the Subentry's DNs 
      */
@@ -20,15 +20,19 @@
 package org.apache.directory.server.core.api.subtree;
 
 
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.subtree.Subentry;
-import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+import org.apache.directory.server.core.api.AttributeTypeProvider;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,14 +77,29 @@ public class SubentryUtils
         SubentryCache subentryCache = directoryService.getSubentryCache();
         SubtreeEvaluator evaluator = directoryService.getEvaluator();
 
-        for ( Dn subentryDn : subentryCache )
+        if ( subentryCache.getCacheSize() == 0 )
         {
-            Dn apDn = subentryDn.getParent();
-            Subentry subentry = subentryCache.getSubentry( subentryDn );
-            SubtreeSpecification ss = subentry.getSubtreeSpecification();
+            return subentryAttrs;
+        }
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+        }
 
-            if ( evaluator.evaluate( ss, apDn, dn, entryAttrs ) )
+        // Only the subentries of the administrative points above the entry can select it
+        for ( Dn apDn = dn; !apDn.isEmpty(); apDn = apDn.getParent() )
+        {
+            for ( Dn subentryDn : subentryCache.getSubentries( apDn ) )
             {
+                Subentry subentry = subentryCache.getSubentry( subentryDn );
+
+                if ( ( subentry == null )
+                    || !evaluator.evaluate( subentry.getSubtreeSpecification(), apDn, dn, entryAttrs ) )
+                {
+                    continue;
+                }
+
                 Attribute operational;
 
                 if ( subentry.isAccessControlAdminRole() )
@@ -142,4 +161,148 @@ public class SubentryUtils
 
         return subentryAttrs;
     }
+
+
+    /**
+     * Gets the references to the subentries selecting an entry, held by one of the
+     * subentry operational attributes. They are read from the entry, unless the
+     * subentry operational attributes are computed instead of being stored. The
+     * references to the subentries whose update is still pending are computed.
+     *
+     * @param entry The entry
+     * @param attributeType The subentry operational attribute
+     * @return The subentries references, or null if there are none
+     * @throws LdapException if there are problems accessing entry information
+     */
+    public Attribute getSubentryReferences( Entry entry, AttributeType attributeType ) throws LdapException
+    {
+        return getSubentryReferences( entry.getDn(), entry, attributeType );
+    }
+
+
+    /**
+     * Gets the references to the subentries selecting an entry, which Dn may differ
+     * from the one the entry had when it was read (the entry may have been moved since).
+     *
+     * @param dn The current entry Dn
+     * @param entry The entry
+     * @param attributeType The subentry operational attribute
+     * @return The subentries references, or null if there are none
+     * @throws LdapException if there are problems accessing entry information
+     */
+    public Attribute getSubentryReferences( Dn dn, Entry entry, AttributeType attributeType ) throws LdapException
+    {
+        SubentryCache subentryCache = directoryService.getSubentryCache();
+
+        if ( !subentryCache.isComputedOperationalAttributes() )
+        {
+            Attribute references = entry.get( attributeType );
+            Set<Dn> pendingSubentries = subentryCache.getPendingSubentries( dn );
+
+            if ( pendingSubentries.isEmpty() )
+            {
+                return references;
+            }
+
+            return applyPendingUpdates( dn, entry, attributeType, references, pendingSubentries );
+        }
+
+        // The subentries don't reference other subentries
+        if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
+        {
+            return null;
+        }
+
+        return getSubentryAttributes( dn, entry ).get( attributeType );
+    }
+
+
+    /**
+     * Gives the references held by an entry the values they will have once the pending
+     * updates of some subentries are done : the stored references may be wrong until then.
+     */
+    private Attribute applyPendingUpdates( Dn entryDn, Entry entry, AttributeType attributeType, Attribute references,
+        Set<Dn> pendingSubentries ) throws LdapException
+    {
+        // The subentries don't reference other subentries
+        if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
+        {
+            return references;
+        }
+
+        SubentryCache subentryCache = directoryService.getSubentryCache();
+        SubtreeEvaluator evaluator = directoryService.getEvaluator();
+        Dn dn = entryDn;
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+        }
+
+        Attribute updated;
+
+        if ( references == null )
+        {
+            updated = new DefaultAttribute( attributeType );
+        }
+        else
+        {
+            updated = references.clone();
+        }
+
+        for ( Dn subentryDn : pendingSubentries )
+        {
+            Subentry subentry = subentryCache.getSubentry( subentryDn );
+            Dn apDn = subentryDn.getParent();
+            String reference = subentryDn.getName();
+
+            if ( ( subentry != null ) && hasRole( subentry, attributeType ) && dn.isDescendantOf( apDn )
+                && evaluator.evaluate( subentry.getSubtreeSpecification(), apDn, dn, entry ) )
+            {
+                if ( !updated.contains( reference ) )
+                {
+                    updated.add( reference );
+                }
+            }
+            else
+            {
+                updated.remove( reference );
+            }
+        }
+
+        if ( updated.size() == 0 )
+        {
+            return null;
+        }
+
+        return updated;
+    }
+
+
+    /**
+     * Tells if a subentry is referenced by a subentry operational attribute.
+     */
+    private boolean hasRole( Subentry subentry, AttributeType attributeType )
+    {
+        AttributeTypeProvider atProvider = directoryService.getAtProvider();
+
+        if ( attributeType.equals( atProvider.getAccessControlSubentries() ) )
+        {
+            return subentry.isAccessControlAdminRole();
+        }
+        else if ( attributeType.equals( atProvider.getSubschemaSubentry() ) )
+        {
+            return subentry.isSchemaAdminRole();
+        }
+        else if ( attributeType.equals( atProvider.getCollectiveAttributeSubentries() ) )
+        {
+            return subentry.isCollectiveAdminRole();
+        }
+        else if ( attributeType.equals( atProvider.getTriggerExecutionSubentries() ) )
+        {
+            return subentry.isTriggersAdminRole();
+        }
+
+        return false;
+    }
 }
@@ -40,6 +40,7 @@ import org.apache.directory.server.core.api.administrative.AccessControlAdminist
 import org.apache.directory.server.core.api.administrative.CollectiveAttributeAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.SubschemaAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.TriggerExecutionAdministrativePoint;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.changelog.ChangeLog;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
@@ -623,6 +624,20 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    @Override
+    public PasswordHashingExecutor getPasswordHashingExecutor()
+    {
+        return null;
+    }
+
+
+    @Override
+    public void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor )
+    {
+        // nothing
+    }
+
+
     @Override
     public AttributeTypeProvider getAtProvider()
     {
@@ -0,0 +1,164 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.authn.CredentialCache.CachedCredentials;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CredentialCache} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    private static SchemaManager schemaManager;
+
+    private static final byte[][] PASSWORDS = new byte[][]
+        { Strings.getBytesUtf8( "secret" ) };
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    @Test
+    public void testNormalizedDn() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+
+        cache.put( new Dn( schemaManager, "uid=admin,ou=system" ), PASSWORDS, cache.getGeneration() );
+
+        assertNotNull( cache.get( new Dn( schemaManager, "UID=Admin, OU=System" ) ) );
+        assertNull( cache.get( new Dn( schemaManager, "uid=akarasulu,ou=users,ou=system" ) ) );
+        assertEquals( 1L, cache.getHits() );
+        assertEquals( 1L, cache.getMisses() );
+        assertEquals( 0.5d, cache.getHitRate(), 0d );
+    }
+
+
+    @Test
+    public void testVerifiedCredentials() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        byte[] credentials = Strings.getBytesUtf8( "secret" );
+
+        CachedCredentials cached = cache.put( dn, PASSWORDS, cache.getGeneration() );
+        assertFalse( cache.isVerified( cached, credentials ) );
+
+        cache.setVerified( dn, cached, credentials );
+        cached = cache.get( dn );
+        assertTrue( cache.isVerified( cached, credentials ) );
+        assertFalse( cache.isVerified( cached, Strings.getBytesUtf8( "wrong" ) ) );
+
+        // The verified credentials are forgotten when the entry is modified
+        cache.invalidate( dn );
+        assertNull( cache.get( dn ) );
+        cache.setVerified( dn, cached, credentials );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testStaleGeneration() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+
+        long generation = cache.getGeneration();
+        cache.invalidate( dn );
+
+        // The passwords have been read before the invalidation
+        cache.put( dn, PASSWORDS, generation );
+        assertNull( cache.get( dn ) );
+    }
+
+
+    @Test
+    public void testTimeToLive() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 10, 1L );
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+
+        cache.put( dn, PASSWORDS, cache.getGeneration() );
+        Thread.sleep( 20L );
+
+        assertNull( cache.get( dn ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 2, 0L );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            cache.put( new Dn( schemaManager, "uid=user" + i + ",ou=system" ), PASSWORDS, cache.getGeneration() );
+            assertTrue( cache.size() <= 2 );
+        }
+
+        assertNotNull( cache.get( new Dn( schemaManager, "uid=user9,ou=system" ) ) );
+    }
+
+
+    @Test
+    public void testVerifiedStoredPassword() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 2, 0L );
+        byte[] storedPassword = Strings.getBytesUtf8( "{PKCS5S2}stored" );
+        byte[] credentials = Strings.getBytesUtf8( "secret" );
+
+        assertFalse( cache.isVerified( storedPassword, credentials ) );
+
+        cache.setVerified( storedPassword, credentials );
+        assertTrue( cache.isVerified( storedPassword, credentials ) );
+        assertFalse( cache.isVerified( storedPassword, Strings.getBytesUtf8( "wrong" ) ) );
+        assertFalse( cache.isVerified( Strings.getBytesUtf8( "{PKCS5S2}other" ), credentials ) );
+
+        // The stored password is copied
+        storedPassword[0] = 'x';
+        assertTrue( cache.isVerified( Strings.getBytesUtf8( "{PKCS5S2}stored" ), credentials ) );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            cache.setVerified( Strings.getBytesUtf8( "{PKCS5S2}stored" + i ), credentials );
+            assertTrue( cache.size() <= 2 );
+        }
+    }
+}
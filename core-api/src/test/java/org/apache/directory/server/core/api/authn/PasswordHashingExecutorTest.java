@@ -0,0 +1,155 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.util.Strings;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link PasswordHashingExecutor} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordHashingExecutorTest
+{
+    @Test
+    public void testCompareCredentials() throws Exception
+    {
+        PasswordHashingExecutor executor = new PasswordHashingExecutor( 1, 10, 60000L, 100 );
+
+        try
+        {
+            byte[] password = Strings.getBytesUtf8( "secret" );
+            byte[] stored = executor.createStoragePassword( password, LdapSecurityConstants.HASH_METHOD_PKCS5S2 );
+            assertEquals( 1L, executor.getNbExecuted() );
+
+            assertTrue( executor.compareCredentials( password, stored ) );
+            assertFalse( executor.compareCredentials( Strings.getBytesUtf8( "wrong" ), stored ) );
+            assertEquals( 3L, executor.getNbExecuted() );
+
+            // The successful verification is found in the cache, the failed one is run again
+            assertTrue( executor.compareCredentials( password, stored ) );
+            assertFalse( executor.compareCredentials( Strings.getBytesUtf8( "wrong" ), stored ) );
+            assertEquals( 4L, executor.getNbExecuted() );
+            assertEquals( 1L, executor.getNbVerificationHits() );
+
+            // Cheap algorithms are not run on the hashing threads
+            stored = executor.createStoragePassword( password, LdapSecurityConstants.HASH_METHOD_SSHA );
+            assertTrue( executor.compareCredentials( password, stored ) );
+            assertEquals( 4L, executor.getNbExecuted() );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testAdmissionControl() throws Exception
+    {
+        final PasswordHashingExecutor executor = new PasswordHashingExecutor( 1, 1, 0L, 0 );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Callable<Boolean> blocking = new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                started.countDown();
+                release.await();
+
+                return Boolean.TRUE;
+            }
+        };
+
+        Thread running = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    executor.execute( blocking );
+                }
+                catch ( Exception e )
+                {
+                    // Nothing to do
+                }
+            }
+        } );
+        running.start();
+        started.await();
+
+        Thread queued = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    executor.execute( blocking );
+                }
+                catch ( Exception e )
+                {
+                    // Nothing to do
+                }
+            }
+        } );
+        queued.start();
+
+        while ( executor.getQueueSize() == 0 )
+        {
+            Thread.sleep( 10L );
+        }
+
+        try
+        {
+            // The thread is busy and the queue is full
+            executor.execute( blocking );
+            fail();
+        }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            assertEquals( 1L, executor.getNbRejected() );
+        }
+        finally
+        {
+            release.countDown();
+            running.join();
+            queued.join();
+            executor.shutdown();
+        }
+
+        assertEquals( 2L, executor.getNbExecuted() );
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.subtree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link SubentryCache} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryCacheTest
+{
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    @Test
+    public void testSubentriesPerAdministrativePoint() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn apDn = new Dn( schemaManager, "ou=AP,ou=system" );
+        Dn subentry1 = new Dn( schemaManager, "cn=subentry1,ou=AP,ou=system" );
+        Dn subentry2 = new Dn( schemaManager, "cn=subentry2,ou=AP,ou=system" );
+
+        cache.addSubentry( subentry1, new Subentry() );
+        cache.addSubentry( subentry2, new Subentry() );
+
+        assertEquals( 2, cache.getSubentries( apDn ).size() );
+        assertTrue( cache.getSubentries( new Dn( schemaManager, "OU=ap, ou=SYSTEM" ) ).contains( subentry1 ) );
+        assertTrue( cache.getSubentries( new Dn( schemaManager, "ou=system" ) ).isEmpty() );
+
+        // Replacing a subentry does not change the index
+        cache.addSubentry( subentry1, new Subentry() );
+        assertEquals( 2, cache.getSubentries( apDn ).size() );
+
+        cache.removeSubentry( subentry1 );
+        assertEquals( 1, cache.getSubentries( apDn ).size() );
+        assertTrue( cache.getSubentries( apDn ).contains( subentry2 ) );
+
+        cache.removeSubentry( subentry2 );
+        assertTrue( cache.getSubentries( apDn ).isEmpty() );
+        assertEquals( 0, cache.getCacheSize() );
+    }
+
+
+    @Test
+    public void testPendingUpdates() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn subentry1 = new Dn( schemaManager, "cn=subentry1,ou=AP,ou=system" );
+        Dn baseDn = new Dn( schemaManager, "ou=base,ou=AP,ou=system" );
+        Dn entryDn = new Dn( schemaManager, "cn=entry,ou=base,ou=AP,ou=system" );
+
+        assertTrue( cache.getPendingSubentries( entryDn ).isEmpty() );
+
+        // Two updates of the same subentry, on the same base
+        cache.addPendingUpdate( subentry1, baseDn );
+        cache.addPendingUpdate( subentry1, baseDn );
+
+        assertEquals( Collections.singleton( subentry1 ), cache.getPendingSubentries( entryDn ) );
+        assertEquals( Collections.singleton( subentry1 ), cache.getPendingSubentries( baseDn ) );
+        assertTrue( cache.getPendingSubentries( new Dn( schemaManager, "ou=AP,ou=system" ) ).isEmpty() );
+
+        // The subentry is still pending until both updates are done
+        cache.removePendingUpdate( subentry1, baseDn );
+        assertEquals( Collections.singleton( subentry1 ), cache.getPendingSubentries( entryDn ) );
+
+        cache.removePendingUpdate( subentry1, baseDn );
+        assertTrue( cache.getPendingSubentries( entryDn ).isEmpty() );
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.subtree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.subtree.AdministrativeRole;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecificationParser;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.AttributeTypeProvider;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link SubentryUtils} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryUtilsTest
+{
+    private static SchemaManager schemaManager;
+    private static AttributeTypeProvider atProvider;
+    private static Dn apDn;
+    private static Dn subentryDn;
+
+    private SubentryCache subentryCache;
+    private SubentryUtils subentryUtils;
+
+    /**
+     * A DirectoryService providing the subentry cache and the evaluator
+     */
+    private static final class SubentryDirectoryService extends MockDirectoryService
+    {
+        private final SubentryCache subentryCache;
+        private final SubtreeEvaluator evaluator;
+
+
+        private SubentryDirectoryService( SubentryCache subentryCache )
+        {
+            this.subentryCache = subentryCache;
+            evaluator = new SubtreeEvaluator( schemaManager );
+            setSchemaManager( schemaManager );
+        }
+
+
+        @Override
+        public SubentryCache getSubentryCache()
+        {
+            return subentryCache;
+        }
+
+
+        @Override
+        public SubtreeEvaluator getEvaluator()
+        {
+            return evaluator;
+        }
+
+
+        @Override
+        public AttributeTypeProvider getAtProvider()
+        {
+            return atProvider;
+        }
+    }
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        atProvider = new AttributeTypeProvider( schemaManager );
+        apDn = new Dn( schemaManager, "ou=AP,ou=system" );
+        subentryDn = new Dn( schemaManager, "cn=subentry,ou=AP,ou=system" );
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        Subentry subentry = new Subentry();
+        subentry.setAdministrativeRoles( Collections.singleton( AdministrativeRole.AccessControlInnerArea ) );
+        subentry.setSubtreeSpecification( new SubtreeSpecificationParser( schemaManager ).parse(
+            "{ base \"ou=base\" }" ) );
+
+        subentryCache = new SubentryCache();
+        subentryCache.addSubentry( subentryDn, subentry );
+        subentryUtils = new SubentryUtils( new SubentryDirectoryService( subentryCache ) );
+    }
+
+
+    private Entry entry( String dn, String... subentries ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", new Dn( schemaManager, dn ).getRdn().getValue() );
+
+        for ( String subentry : subentries )
+        {
+            entry.add( atProvider.getAccessControlSubentries(), subentry );
+        }
+
+        return entry;
+    }
+
+
+    @Test
+    public void testStoredReferences() throws Exception
+    {
+        Entry entry = entry( "ou=entry,ou=base,ou=AP,ou=system" );
+
+        assertNull( subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() ) );
+
+        entry = entry( "ou=entry,ou=base,ou=AP,ou=system", "cn=other,ou=AP,ou=system" );
+        Attribute references = subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() );
+
+        assertEquals( 1, references.size() );
+        assertTrue( references.contains( "cn=other,ou=AP,ou=system" ) );
+    }
+
+
+    @Test
+    public void testPendingAddedSubentry() throws Exception
+    {
+        Dn baseDn = new Dn( schemaManager, "ou=base,ou=AP,ou=system" );
+        subentryCache.addPendingUpdate( subentryDn, baseDn );
+
+        // The selected entry is not updated yet, but references the subentry
+        Entry entry = entry( "ou=entry,ou=base,ou=AP,ou=system", "cn=other,ou=AP,ou=system" );
+        Attribute references = subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() );
+
+        assertEquals( 2, references.size() );
+        assertTrue( references.contains( subentryDn.getName() ) );
+        assertTrue( references.contains( "cn=other,ou=AP,ou=system" ) );
+
+        // The stored references are not modified
+        assertEquals( 1, entry.get( atProvider.getAccessControlSubentries() ).size() );
+
+        // The subentry has no collective attribute role
+        assertNull( subentryUtils.getSubentryReferences( entry, atProvider.getCollectiveAttributeSubentries() ) );
+
+        // The entries outside of the updated subtree are not changed
+        entry = entry( "ou=other,ou=AP,ou=system" );
+        assertNull( subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() ) );
+
+        // Once the update is done, the stored references are used again
+        subentryCache.removePendingUpdate( subentryDn, baseDn );
+        entry = entry( "ou=entry,ou=base,ou=AP,ou=system" );
+        assertNull( subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() ) );
+    }
+
+
+    @Test
+    public void testPendingDeletedSubentry() throws Exception
+    {
+        subentryCache.removeSubentry( subentryDn );
+        subentryCache.addPendingUpdate( subentryDn, apDn );
+
+        // The entry still stores a reference to the deleted subentry
+        Entry entry = entry( "ou=entry,ou=base,ou=AP,ou=system", subentryDn.getName() );
+
+        assertNull( subentryUtils.getSubentryReferences( entry, atProvider.getAccessControlSubentries() ) );
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.number;
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.LoadSchema;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the reservation of the incremented numbers by blocks in the
+ * {@link NumberIncrementingInterceptor}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "NumberIncrementingInterceptorIT",
+    enableChangeLog = false,
+    additionalInterceptors =
+        { NumberIncrementingInterceptor.class },
+    loadedSchemas =
+        { @LoadSchema(name = "nis", enabled = true) })
+public class NumberIncrementingInterceptorIT extends AbstractLdapTestUnit
+{
+    private static final String HOLDER_DN = "ou=autoIncDataHolder,ou=system";
+
+    private static final int BLOCK_SIZE = 10;
+
+
+    private NumberIncrementingInterceptor getInterceptor()
+    {
+        return ( NumberIncrementingInterceptor ) getService().getInterceptor(
+            NumberIncrementingInterceptor.class.getSimpleName() );
+    }
+
+
+    /**
+     * Stores the initial value of the attribute in the holder entry, and restarts the server
+     * so that the interceptor increments it.
+     */
+    private void initHolder( String attributeId ) throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+        connection.modify( HOLDER_DN, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            attributeId, "0" ) );
+
+        getInterceptor().setBlockSize( BLOCK_SIZE );
+        restart();
+    }
+
+
+    private void restart() throws Exception
+    {
+        getService().shutdown();
+        getService().startup();
+    }
+
+
+    /**
+     * Adds an entry, and returns the number it has been given
+     */
+    private long addEntry( String cn, String attributeId ) throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+        String dn = "cn=" + cn + ",ou=system";
+
+        connection.add( new DefaultEntry( getService().getSchemaManager(), dn,
+            "objectClass: person",
+            "objectClass: extensibleObject",
+            "cn: " + cn,
+            "sn: " + cn,
+            attributeId + ": 0" ) );
+
+        return Long.parseLong( connection.lookup( dn, attributeId ).get( attributeId ).getString() );
+    }
+
+
+    private long getReserved( String attributeId ) throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+        return Long.parseLong( connection.lookup( HOLDER_DN, attributeId ).get( attributeId ).getString() );
+    }
+
+
+    @Test
+    public void testReserveBlocks() throws Exception
+    {
+        initHolder( "uidNumber" );
+
+        // The first number reserves a block
+        assertEquals( 1L, addEntry( "block1", "uidNumber" ) );
+        assertEquals( BLOCK_SIZE, getReserved( "uidNumber" ) );
+        assertEquals( 1L, getInterceptor().getNbReservations() );
+
+        // The next numbers are taken from the block, until it's exhausted
+        for ( int i = 2; i <= BLOCK_SIZE; i++ )
+        {
+            assertEquals( i, addEntry( "block" + i, "uidNumber" ) );
+        }
+
+        assertEquals( BLOCK_SIZE, getReserved( "uidNumber" ) );
+        assertEquals( 1L, getInterceptor().getNbReservations() );
+
+        assertEquals( BLOCK_SIZE + 1L, addEntry( "block" + ( BLOCK_SIZE + 1 ), "uidNumber" ) );
+        assertEquals( 2L * BLOCK_SIZE, getReserved( "uidNumber" ) );
+        assertEquals( 2L, getInterceptor().getNbReservations() );
+        assertEquals( BLOCK_SIZE + 1L, getInterceptor().getNbAllocated() );
+    }
+
+
+    @Test
+    public void testReleaseOnShutdown() throws Exception
+    {
+        initHolder( "gidNumber" );
+
+        assertEquals( 1L, addEntry( "release1", "gidNumber" ) );
+        assertEquals( 2L, addEntry( "release2", "gidNumber" ) );
+        assertEquals( 3L, addEntry( "release3", "gidNumber" ) );
+        assertEquals( BLOCK_SIZE, getReserved( "gidNumber" ) );
+
+        // The unused numbers are given back on shutdown
+        restart();
+
+        assertEquals( 3L, getReserved( "gidNumber" ) );
+
+        // The numbers handed out before the restart are not reused
+        assertEquals( 4L, addEntry( "release4", "gidNumber" ) );
+        assertEquals( 3L + BLOCK_SIZE, getReserved( "gidNumber" ) );
+    }
+}
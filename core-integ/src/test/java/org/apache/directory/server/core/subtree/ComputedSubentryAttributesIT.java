@@ -0,0 +1,314 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.apache.directory.server.core.authz.AutzIntegUtils.createAccessControlSubentry;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.createUser;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.deleteAccessControlSubentry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.authz.AutzIntegUtils;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the SubentryInterceptor when the subentry operational attributes are computed
+ * when the entries are read instead of being stored : the search results, and the
+ * collective attribute and access control interceptors must see the references to the
+ * subentries, while the selected entries are never modified.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "ComputedSubentryAttributesIT-class")
+@ApplyLdifs(
+    {
+        // A test branch
+        "dn: dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "dc: test",
+        "",
+        // The AP
+        "dn: dc=AP-A,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "administrativeRole: collectiveAttributeSpecificArea",
+        "dc: AP-A",
+        "",
+        // entry A1
+        "dn: cn=A1,dc=AP-A,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A1",
+        "sn: a1",
+        "",
+        // entry A1-1
+        "dn: cn=A1-1,cn=A1,dc=AP-A,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A1-1",
+        "sn: a1-1",
+        "",
+        // entry A2
+        "dn: cn=A2,dc=AP-A,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A2",
+        "sn: a2",
+        "",
+        // The non AP
+        "dn: dc=not-AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "dc: not-AP",
+        "",
+        // An entry under non-AP
+        "dn: cn=C,dc=not-AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: C",
+        "sn: entry-C"
+})
+public class ComputedSubentryAttributesIT extends AbstractLdapTestUnit
+{
+    private static final String SUBENTRY_A = "cn=testsubentryA,dc=AP-A,dc=test,ou=system";
+
+    private static final String[] SELECTED_ENTRIES = new String[]
+        { "dc=AP-A,dc=test,ou=system", "cn=A1,dc=AP-A,dc=test,ou=system",
+            "cn=A1-1,cn=A1,dc=AP-A,dc=test,ou=system", "cn=A2,dc=AP-A,dc=test,ou=system" };
+
+    private static final String READ_ACI = "{ " +
+        "  identificationTag \"searchAci\", " +
+        "  precedence 14, " +
+        "  authenticationLevel none, " +
+        "  itemOrUserFirst userFirst: " +
+        "  { " +
+        "    userClasses { allUsers }, " +
+        "    userPermissions " +
+        "    { " +
+        "      { " +
+        "        protectedItems {entry, allUserAttributeTypesAndValues}, " +
+        "        grantsAndDenials { grantRead, grantReturnDN, grantBrowse } " +
+        "      } " +
+        "    } " +
+        "  } " +
+        "}";
+
+
+    @Before
+    public void setComputedOperationalAttributes()
+    {
+        setComputedOperationalAttributes( true );
+        AutzIntegUtils.service = getService();
+    }
+
+
+    @After
+    public void resetComputedOperationalAttributes()
+    {
+        setComputedOperationalAttributes( false );
+        getService().setAccessControlEnabled( false );
+    }
+
+
+    private void setComputedOperationalAttributes( boolean computed )
+    {
+        SubentryInterceptor interceptor = ( SubentryInterceptor ) getService().getInterceptor(
+            InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() );
+        interceptor.setComputedOperationalAttributes( computed );
+        getService().getSubentryCache().setComputedOperationalAttributes( computed );
+    }
+
+
+    private Map<String, Entry> getAllEntries( LdapConnection connection, String dn ) throws Exception
+    {
+        Map<String, Entry> results = new HashMap<String, Entry>();
+
+        EntryCursor responses = connection.search( dn, "(objectClass=*)", SearchScope.SUBTREE, "+", "*" );
+
+        while ( responses.next() )
+        {
+            Entry entry = responses.get();
+
+            results.put( entry.getDn().getName(), entry );
+        }
+
+        responses.close();
+
+        return results;
+    }
+
+
+    private void checkHasOpAttr( Entry entry, String opAttr, String subentryDn ) throws Exception
+    {
+        Attribute attribute = entry.get( opAttr );
+        assertNotNull( attribute );
+        assertEquals( 1, attribute.size() );
+        assertTrue( attribute.contains( subentryDn ) );
+    }
+
+
+    private void checkDoesNotHaveOpAttr( Entry entry, String opAttr ) throws Exception
+    {
+        assertNull( entry.get( opAttr ) );
+    }
+
+
+    /**
+     * Add, then delete a collective attribute subentry. The selected entries get the
+     * references to the subentry and its collective attributes when they are searched,
+     * but are not modified.
+     */
+    @Test
+    public void testCollectiveAttributeSubentry() throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+        Map<String, Entry> before = getAllEntries( connection, "dc=test,ou=system" );
+
+        Entry subEntryA = new DefaultEntry(
+            SUBENTRY_A,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: collectiveAttributeSubentry",
+            "subtreeSpecification: {}",
+            "c-o: Test Org",
+            "cn: testsubentryA" );
+
+        connection.add( subEntryA );
+
+        Map<String, Entry> results = getAllEntries( connection, "dc=test,ou=system" );
+
+        for ( String dn : SELECTED_ENTRIES )
+        {
+            Entry entry = results.get( dn );
+
+            checkHasOpAttr( entry, "collectiveAttributeSubentries", SUBENTRY_A );
+            assertEquals( "Test Org", entry.get( "c-o" ).getString() );
+
+            // The entry has not been modified
+            assertEquals( before.get( dn ).get( "entryCSN" ).getString(), entry.get( "entryCSN" ).getString() );
+        }
+
+        Entry notSelected = results.get( "cn=C,dc=not-AP,dc=test,ou=system" );
+        checkDoesNotHaveOpAttr( notSelected, "collectiveAttributeSubentries" );
+        checkDoesNotHaveOpAttr( notSelected, "c-o" );
+
+        // An entry moved out of the administrative area is not selected anymore
+        connection.move( "cn=A1-1,cn=A1,dc=AP-A,dc=test,ou=system", "dc=not-AP,dc=test,ou=system" );
+
+        Entry moved = connection.lookup( "cn=A1-1,dc=not-AP,dc=test,ou=system", "+", "*" );
+        checkDoesNotHaveOpAttr( moved, "collectiveAttributeSubentries" );
+        checkDoesNotHaveOpAttr( moved, "c-o" );
+
+        // Now, delete the subentry
+        connection.delete( SUBENTRY_A );
+
+        results = getAllEntries( connection, "dc=test,ou=system" );
+
+        for ( Entry entry : results.values() )
+        {
+            checkDoesNotHaveOpAttr( entry, "collectiveAttributeSubentries" );
+            checkDoesNotHaveOpAttr( entry, "c-o" );
+        }
+
+        connection.close();
+    }
+
+
+    /**
+     * Add, then delete an access control subentry. The ACI interceptor enforces the
+     * computed references : a user can read the selected entry only while the
+     * subentry exists.
+     */
+    @Test
+    public void testAccessControlSubentry() throws Exception
+    {
+        Dn userDn = createUser( "billyd", "billyd" );
+        Dn dn = new Dn( "cn=A1,dc=AP-A,dc=test,ou=system" );
+        getService().setAccessControlEnabled( true );
+
+        CoreSession session = getService().getSession( userDn, Strings.getBytesUtf8( "billyd" ) );
+
+        try
+        {
+            session.lookup( dn );
+            fail();
+        }
+        catch ( LdapNoPermissionException lnpe )
+        {
+            // Expected
+        }
+
+        createAccessControlSubentry( "anybodySearch", READ_ACI );
+
+        Entry entry = session.lookup( dn );
+        assertNotNull( entry );
+        assertEquals( "A1", entry.get( "cn" ).getString() );
+
+        // The admin sees the computed reference
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+        checkHasOpAttr( connection.lookup( dn.getName(), "+" ), "accessControlSubentries",
+            "cn=anybodySearch,ou=system" );
+
+        deleteAccessControlSubentry( "anybodySearch" );
+
+        try
+        {
+            session.lookup( dn );
+            fail();
+        }
+        catch ( LdapNoPermissionException lnpe )
+        {
+            // Expected
+        }
+
+        checkDoesNotHaveOpAttr( connection.lookup( dn.getName(), "+" ), "accessControlSubentries" );
+
+        connection.close();
+    }
+}
@@ -61,6 +61,7 @@ import org.apache.directory.api.ldap.util.JndiUtils;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.server.core.annotations.ApplyLdifs;
 import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.FrameworkRunner;
 import org.apache.directory.server.core.integ.IntegrationUtils;
@@ -1445,6 +1446,105 @@ public class SubentryServiceIT extends AbstractLdapTestUnit
     }
 
 
+    /**
+     * Add and delete a subentry selecting more entries than the number of entries
+     * updated within the operation : the remaining entries are updated in the
+     * background, and are returned as if they were already updated.
+     */
+    @Test
+    public void testSubentryAddInBackground() throws Exception
+    {
+        SubentryInterceptor interceptor = ( SubentryInterceptor ) getService().getInterceptor(
+            InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() );
+        int batchSize = interceptor.getUpdateBatchSize();
+        interceptor.setUpdateBatchSize( 2 );
+
+        String[] selectedEntries = new String[]
+            { "dc=AP-A,dc=test,ou=system", "cn=A1,dc=AP-A,dc=test,ou=system",
+                "cn=A1-1,cn=A1,dc=AP-A,dc=test,ou=system", "cn=A1-2,cn=A1,dc=AP-A,dc=test,ou=system",
+                "cn=A2,dc=AP-A,dc=test,ou=system", "cn=A2-1,cn=A2,dc=AP-A,dc=test,ou=system",
+                "dc=AP-B,cn=A2,dc=AP-A,dc=test,ou=system", "cn=B1,dc=AP-B,cn=A2,dc=AP-A,dc=test,ou=system",
+                "cn=B2,dc=AP-B,cn=A2,dc=AP-A,dc=test,ou=system", };
+
+        try
+        {
+            LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+            Entry subEntryA = new DefaultEntry(
+                "cn=testsubentryA,dc=AP-A,dc=test,ou=system",
+                "objectClass: top",
+                "objectClass: subentry",
+                "objectClass: collectiveAttributeSubentry",
+                "subtreeSpecification: {}",
+                "c-o: Test Org",
+                "cn: testsubentryA" );
+
+            connection.add( subEntryA );
+
+            // The entries are seen as updated, even if the update is still pending : they
+            // also get the collective attributes of the subentry
+            Map<String, Entry> results = getAllEntries( connection, "dc=test,ou=system" );
+
+            for ( String dn : selectedEntries )
+            {
+                assertEquals( 1, results.get( dn ).get( "collectiveAttributeSubentries" ).size() );
+                assertEquals( "Test Org", results.get( dn ).get( "c-o" ).getString() );
+            }
+
+            checkDoesNotHaveOpAttr( results.get( "cn=C,dc=not-AP,dc=test,ou=system" ),
+                "collectiveAttributeSubentries" );
+
+            waitForPendingUpdates( interceptor );
+
+            results = getAllEntries( connection, "dc=test,ou=system" );
+
+            for ( String dn : selectedEntries )
+            {
+                assertEquals( 1, results.get( dn ).get( "collectiveAttributeSubentries" ).size() );
+            }
+
+            // Now, delete the subentry
+            connection.delete( "cn=testsubentryA,dc=AP-A,dc=test,ou=system" );
+
+            results = getAllEntries( connection, "dc=test,ou=system" );
+
+            for ( String dn : selectedEntries )
+            {
+                checkDoesNotHaveOpAttr( results.get( dn ), "collectiveAttributeSubentries" );
+            }
+
+            waitForPendingUpdates( interceptor );
+
+            results = getAllEntries( connection, "dc=test,ou=system" );
+
+            for ( String dn : selectedEntries )
+            {
+                checkDoesNotHaveOpAttr( results.get( dn ), "collectiveAttributeSubentries" );
+            }
+        }
+        finally
+        {
+            interceptor.setUpdateBatchSize( batchSize );
+        }
+    }
+
+
+    private void waitForPendingUpdates( SubentryInterceptor interceptor ) throws Exception
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            if ( interceptor.getPendingUpdates().isEmpty() )
+            {
+                return;
+            }
+
+            Thread.sleep( 100 );
+        }
+
+        fail( "The pending updates have not been completed : " + interceptor.getPendingUpdates() );
+    }
+
+
     @Test(expected = LdapNoPermissionException.class)
     @Ignore
     public void testUserInjectAccessControlSubentries() throws Exception
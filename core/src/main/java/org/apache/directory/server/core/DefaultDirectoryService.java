@@ -87,6 +87,7 @@ import org.apache.directory.server.core.api.administrative.AccessControlAdminist
 import org.apache.directory.server.core.api.administrative.CollectiveAttributeAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.SubschemaAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.TriggerExecutionAdministrativePoint;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.changelog.ChangeLog;
 import org.apache.directory.server.core.api.changelog.ChangeLogEvent;
 import org.apache.directory.server.core.api.changelog.Tag;
@@ -273,6 +274,9 @@ public class DefaultDirectoryService implements DirectoryService
     /** the ehcache based cache service */
     private CacheService cacheService;
 
+    /** The executor running the expensive password hashing operations */
+    private PasswordHashingExecutor passwordHashingExecutor;
+
     /** The AccessControl AdministrativePoint cache */
     private DnNode<AccessControlAdministrativePoint> accessControlAPCache;
 
@@ -1263,6 +1267,18 @@ public class DefaultDirectoryService implements DirectoryService
             return;
         }
 
+        // --------------------------------------------------------------------
+        // Shutdown the interceptors, while the partitions are still opened so
+        // that they can write the state they keep in memory, like the password
+        // policy state deferred by the AuthenticationInterceptor
+        // --------------------------------------------------------------------
+        LOG.debug( "--- Destroying the interceptors" );
+        
+        for ( Interceptor interceptor : interceptors )
+        {
+            interceptor.destroy();
+        }
+
         // --------------------------------------------------------------------
         // Shutdown the sync thread
         // --------------------------------------------------------------------
@@ -1296,22 +1312,16 @@ public class DefaultDirectoryService implements DirectoryService
         LOG.debug( "--- Destroying the nexus" );
         partitionNexus.destroy( null );
         
-        // --------------------------------------------------------------------
-        // Shutdown the interceptors
-        // --------------------------------------------------------------------
-        LOG.debug( "--- Destroying the interceptors" );
-        
-        for ( Interceptor interceptor : interceptors )
-        {
-            interceptor.destroy();
-        }
-
         // --------------------------------------------------------------------
         // And shutdown the server
         // --------------------------------------------------------------------
         LOG.debug( "--- Deleting the cache service" );
         cacheService.destroy();
 
+        LOG.debug( "--- Stopping the password hashing executor" );
+        passwordHashingExecutor.shutdown();
+        passwordHashingExecutor = null;
+
         LOG.debug( "---Deleting the DnCache" );
         dnFactory = null;
 
@@ -1958,6 +1968,12 @@ public class DefaultDirectoryService implements DirectoryService
 
         cacheService.initialize( instanceLayout, instanceId );
 
+        if ( passwordHashingExecutor == null )
+        {
+            // Initialize a default password hashing executor
+            passwordHashingExecutor = new PasswordHashingExecutor();
+        }
+
         // Initialize the AP caches
         accessControlAPCache = new DnNode<>();
         collectiveAttributeAPCache = new DnNode<>();
@@ -2478,6 +2494,26 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PasswordHashingExecutor getPasswordHashingExecutor()
+    {
+        return passwordHashingExecutor;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor )
+    {
+        this.passwordHashingExecutor = passwordHashingExecutor;
+    }
+
+
     /**
      * {@inheritDoc}
      */
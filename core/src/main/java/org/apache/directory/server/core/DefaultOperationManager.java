@@ -49,6 +49,7 @@ import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.OperationManager;
 import org.apache.directory.server.core.api.ReferralManager;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
@@ -211,6 +212,21 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * Copies the stored entry, which will be modified and written back. The attributes computed
+     * when the entry has been read, like the collective attributes, must not be stored.
+     */
+    private Entry getModifiedEntry( Entry originalEntry )
+    {
+        if ( originalEntry instanceof ClonedServerEntry )
+        {
+            return ( ( ClonedServerEntry ) originalEntry ).getOriginalEntry().clone();
+        }
+
+        return originalEntry.clone();
+    }
+
+
     private LdapReferralException buildReferralException( Entry parentEntry, Dn childDn ) throws LdapException
     {
         // Get the Ref attributeType
@@ -1237,6 +1253,7 @@ public class DefaultOperationManager implements OperationManager
             Entry originalEntry = getOriginalEntry( moveContext );
 
             moveContext.setOriginalEntry( originalEntry );
+            moveContext.setModifiedEntry( getModifiedEntry( originalEntry ) );
 
             // Call the Move method
             Interceptor head = directoryService.getInterceptor( moveContext.getNextInterceptor() );
@@ -1399,7 +1416,7 @@ public class DefaultOperationManager implements OperationManager
         {
             transaction = partition.beginWriteTransaction();
             moveAndRenameContext.setOriginalEntry( getOriginalEntry( moveAndRenameContext ) );
-            moveAndRenameContext.setModifiedEntry( moveAndRenameContext.getOriginalEntry().clone() );
+            moveAndRenameContext.setModifiedEntry( getModifiedEntry( moveAndRenameContext.getOriginalEntry() ) );
             moveAndRenameContext.setTransaction( transaction );
 
             // Call the MoveAndRename method
@@ -1584,7 +1601,7 @@ public class DefaultOperationManager implements OperationManager
 
             Entry originalEntry = getOriginalEntry( renameContext );
             renameContext.setOriginalEntry( originalEntry );
-            renameContext.setModifiedEntry( originalEntry.clone() );
+            renameContext.setModifiedEntry( getModifiedEntry( originalEntry ) );
 
             // Call the Rename method
             PartitionTxn transaction = null; 
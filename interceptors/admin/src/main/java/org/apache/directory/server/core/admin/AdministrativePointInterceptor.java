@@ -741,7 +741,7 @@ public class AdministrativePointInterceptor extends BaseInterceptor
     //-------------------------------------------------------------------------------------------
     // Helper methods
     //-------------------------------------------------------------------------------------------
-    private List<Entry> getAdministrativePoints() throws LdapException
+    private List<Entry> getAdministrativePoints( Dn baseDn ) throws LdapException
     {
         List<Entry> entries = new ArrayList<>();
 
@@ -755,9 +755,9 @@ public class AdministrativePointInterceptor extends BaseInterceptor
 
         CoreSession adminSession = directoryService.getAdminSession();
 
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter,
+        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, baseDn, filter,
             controls );
-        Partition partition = nexus.getPartition( Dn.ROOT_DSE );
+        Partition partition = nexus.getPartition( baseDn );
         searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
         searchOperationContext.setPartition( partition );
         
@@ -1128,8 +1128,22 @@ public class AdministrativePointInterceptor extends BaseInterceptor
         // Load all the AdministratvePoint :
         // Autonomous Administrative Point first, then Specific
         // administrative point, finally the Inner administrative Point
+        loadAdministrativePoints( Dn.ROOT_DSE );
+    }
+
+
+    /**
+     * Loads the AdministrativePoints found below a base into the caches. This is done
+     * for all the partitions on startup, and for a partition which content has been
+     * loaded without going through the interceptors.
+     *
+     * @param baseDn The base to search the AdministrativePoints from
+     * @throws LdapException If the AdministrativePoints can't be read
+     */
+    public void loadAdministrativePoints( Dn baseDn ) throws LdapException
+    {
         // get the list of all the AAPs
-        List<Entry> administrativePoints = getAdministrativePoints();
+        List<Entry> administrativePoints = getAdministrativePoints( baseDn );
 
         lockWrite();
 
@@ -348,11 +348,20 @@ public abstract class AbstractAuthenticator implements Authenticator
         {
             Attribute pwdLastSuccessTimeAttr = userEntry.get( PWD_LAST_SUCCESS_AT );
 
+            // The last success may not have been written yet
+            String lastSuccess = authenticationInterceptor.getPwdPolicyStateStore().getLastSuccess(
+                userEntry.getDn() );
+
+            if ( ( lastSuccess == null ) && ( pwdLastSuccessTimeAttr != null ) )
+            {
+                lastSuccess = pwdLastSuccessTimeAttr.getString();
+            }
+
             // Let's be sure that the user has already logged in
-            if ( pwdLastSuccessTimeAttr != null )
+            if ( lastSuccess != null )
             {
                 long time = pPolicyConfig.getPwdMaxIdle() * 1000L;
-                time += DateUtils.getDate( pwdLastSuccessTimeAttr.getString() ).getTime();
+                time += DateUtils.getDate( lastSuccess ).getTime();
 
                 if ( System.currentTimeMillis() >= time )
                 {
@@ -65,6 +65,7 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -154,6 +155,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
     /** a container to hold all the ppolicies */
     private PpolicyConfigContainer pwdPolicyContainer;
 
+    /** The password policy state updated by the binds and not written yet */
+    private final PasswordPolicyStateStore pwdPolicyStateStore = new PasswordPolicyStateStore( this );
+
 
     /**
      * Creates an authentication service interceptor.
@@ -186,6 +190,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
 
         loadPwdPolicyStateAttributeTypes();
+        pwdPolicyStateStore.init( directoryService );
     }
 
 
@@ -269,6 +274,40 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             authenticator.destroy();
         }
+
+        pwdPolicyStateStore.destroy();
+    }
+
+
+    /**
+     * @return The period between two writes of the password policy state updated by the binds,
+     * in milliseconds. 0 means that the state is written by each bind.
+     */
+    public long getPwdPolicyStateFlushPeriod()
+    {
+        return pwdPolicyStateStore.getFlushPeriod();
+    }
+
+
+    /**
+     * Sets the period between two writes of the password policy state updated by the binds.
+     * When it's not 0, the pwdLastSuccess times and the failure times below the lockout threshold
+     * are kept in memory, and written periodically.
+     *
+     * @param pwdPolicyStateFlushPeriod The period in milliseconds. 0 means that the state is written by each bind.
+     */
+    public void setPwdPolicyStateFlushPeriod( long pwdPolicyStateFlushPeriod )
+    {
+        pwdPolicyStateStore.setFlushPeriod( pwdPolicyStateFlushPeriod );
+    }
+
+
+    /**
+     * @return The password policy state updated by the binds and not written yet
+     */
+    public PasswordPolicyStateStore getPwdPolicyStateStore()
+    {
+        return pwdPolicyStateStore;
     }
 
 
@@ -591,6 +630,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             ppe = e;
         }
+        catch ( LdapServiceUnavailableException e )
+        {
+            // The server is too busy to check the credentials : this is not a failed authentication
+            throw e;
+        }
         catch ( LdapAuthenticationException e )
         {
             // authentication failed, try the next authenticator
@@ -650,10 +694,10 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 {
                     pwdFailTimeAt = new DefaultAttribute( pwdFailurTimeAT );
                 }
-                else
-                {
-                    purgeFailureTimes( policyConfig, pwdFailTimeAt );
-                }
+
+                // Add the failures which have not been written yet
+                boolean deferred = pwdPolicyStateStore.addFailureTimes( bindDn, pwdFailTimeAt );
+                purgeFailureTimes( policyConfig, pwdFailTimeAt );
 
                 String failureTime = DateUtils.getGeneralizedTime();
                 pwdFailTimeAt.add( failureTime );
@@ -666,6 +710,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
                 if ( policyConfig.isPwdLockout() && ( numFailures >= policyConfig.getPwdMaxFailure() ) )
                 {
+                    // The lockout threshold is reached : the state is written now
+                    deferred = false;
+
                     // Checking that we're not locking the admin user of the system partition
                     // See DIRSERVER-1812 (The default admin account should never get locked forever)
                     if ( !userEntry.getDn().equals( new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN ) ) )
@@ -711,7 +758,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
                     }
                 }
 
-                if ( !mods.isEmpty() )
+                if ( deferred )
+                {
+                    pwdPolicyStateStore.recordFailure( bindDn, failureTime );
+                }
+                else if ( !mods.isEmpty() )
                 {
                     String csnVal = directoryService.getCSN().toString();
                     Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
@@ -724,6 +775,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
                     bindModCtx.setPushToEvtInterceptor( true );
 
                     internalModify( bindContext, bindModCtx );
+                    pwdPolicyStateStore.discard( bindDn );
                 }
             }
 
@@ -733,15 +785,20 @@ public class AuthenticationInterceptor extends BaseInterceptor
         else if ( policyConfig != null )
         {
             List<Modification> mods = new ArrayList<>();
+            String lastSuccess = null;
 
             if ( policyConfig.getPwdMaxIdle() > 0 )
             {
+                lastSuccess = DateUtils.getGeneralizedTime();
                 Attribute pwdLastSuccesTimeAt = new DefaultAttribute( pwdLastSuccessAT );
-                pwdLastSuccesTimeAt.add( DateUtils.getGeneralizedTime() );
+                pwdLastSuccesTimeAt.add( lastSuccess );
                 Modification pwdLastSuccesTimeMod = new DefaultModification( REPLACE_ATTRIBUTE, pwdLastSuccesTimeAt );
                 mods.add( pwdLastSuccesTimeMod );
             }
 
+            // The pwdLastSuccess time alone can be written later
+            int nbDeferredMods = mods.size();
+
             Attribute pwdFailTimeAt = userEntry.get( pwdFailurTimeAT );
 
             if ( pwdFailTimeAt != null )
@@ -792,7 +849,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 }
             }
 
-            if ( !mods.isEmpty() )
+            if ( pwdPolicyStateStore.isDeferred() && ( mods.size() == nbDeferredMods ) )
+            {
+                pwdPolicyStateStore.recordSuccess( bindDn, lastSuccess );
+            }
+            else if ( !mods.isEmpty() )
             {
                 String csnVal = directoryService.getCSN().toString();
                 Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
@@ -806,6 +867,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 bindModCtx.setPushToEvtInterceptor( true );
                 
                 internalModify( bindContext, bindModCtx );
+                pwdPolicyStateStore.discard( bindDn );
             }
 
             if ( isPPolicyReqCtrlPresent )
@@ -928,6 +990,8 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 authenticator.invalidateCache( principalDn );
             }
         }
+
+        pwdPolicyStateStore.discard( principalDn );
     }
 
     
@@ -952,6 +1016,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             processPasswordPolicydModify( modifyContext );
         }
+
+        pwdPolicyStateStore.discard( modifyContext.getDn(), modifyContext.getModItems(),
+            PWD_POLICY_STATE_ATTRIBUTE_TYPES );
     }
 
     
@@ -1894,7 +1961,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
      * purges failure timestamps which are older than the configured interval
      * (section 7.6 in the draft)
      */
-    private void purgeFailureTimes( PasswordPolicyConfiguration config, Attribute pwdFailTimeAt )
+    /* no qualifier */ void purgeFailureTimes( PasswordPolicyConfiguration config, Attribute pwdFailTimeAt )
     {
         long interval = config.getPwdFailureCountInterval();
 
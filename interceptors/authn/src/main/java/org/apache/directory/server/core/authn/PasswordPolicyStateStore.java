@@ -0,0 +1,579 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT;
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT;
+import static org.apache.directory.api.ldap.model.entry.ModificationOperation.REPLACE_ATTRIBUTE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps in memory the password policy state updated by the binds, and writes it
+ * periodically into the entries. The successive successful binds of a user only
+ * update his <code>pwdLastSuccess</code> time, and a failure followed by a success
+ * does not need to be stored at all : those updates are coalesced, and written at
+ * most once per flush period.
+ * <br>
+ * The state which protects the accounts is never deferred : the bind writes the
+ * failure times and the <code>pwdAccountLockedTime</code> attribute immediately
+ * when the lockout threshold is reached. If the server crashes, we lose at most
+ * one flush period of success times and of failures below the threshold.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordPolicyStateStore
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordPolicyStateStore.class );
+
+    /** The interceptor which owns this store */
+    private final AuthenticationInterceptor interceptor;
+
+    /** The directory service */
+    private DirectoryService directoryService;
+
+    /** The pwdFailureTime attribute type */
+    private AttributeType pwdFailureTimeAT;
+
+    /** The pwdLastSuccess attribute type */
+    private AttributeType pwdLastSuccessAT;
+
+    /** The period between two flushes, in ms. 0 means that the state is not deferred */
+    private volatile long flushPeriod;
+
+    /** The pending states, per normalized Dn */
+    private final ConcurrentMap<String, PendingState> pendingStates = new ConcurrentHashMap<>();
+
+    /** The executor flushing the pending states */
+    private ScheduledExecutorService flushExecutor;
+
+
+    /**
+     * Creates a new instance of PasswordPolicyStateStore.
+     *
+     * @param interceptor The authentication interceptor
+     */
+    /* no qualifier */ PasswordPolicyStateStore( AuthenticationInterceptor interceptor )
+    {
+        this.interceptor = interceptor;
+    }
+
+
+    /**
+     * Initializes the store, and starts flushing the pending states if the flush
+     * period is set.
+     *
+     * @param directoryService The directory service
+     * @throws LdapException If the password policy attribute types can't be found
+     */
+    /* no qualifier */ void init( DirectoryService directoryService ) throws LdapException
+    {
+        this.directoryService = directoryService;
+        pwdFailureTimeAT = directoryService.getSchemaManager().lookupAttributeTypeRegistry( PWD_FAILURE_TIME_AT );
+        pwdLastSuccessAT = directoryService.getSchemaManager().lookupAttributeTypeRegistry( PWD_LAST_SUCCESS_AT );
+
+        start();
+    }
+
+
+    /**
+     * Stops flushing the pending states, and writes them. The DirectoryService destroys
+     * the interceptors before closing the partitions, so the pending states can still
+     * be written at this point. The states which can't be written are reported, and lost.
+     */
+    /* no qualifier */ void destroy()
+    {
+        stop();
+        flush();
+
+        if ( !pendingStates.isEmpty() )
+        {
+            LOG.warn( "The password policy state of {} users has not been written", pendingStates.size() );
+        }
+    }
+
+
+    /**
+     * @return The period between two writes of the pending states, in milliseconds.
+     * 0 means that the state is written by each bind.
+     */
+    public long getFlushPeriod()
+    {
+        return flushPeriod;
+    }
+
+
+    /**
+     * Sets the period between two writes of the pending states. The states pending
+     * so far are written, and the flushes are rescheduled if the store is initialized.
+     *
+     * @param flushPeriod The period in milliseconds. 0 means that the state is written by each bind.
+     */
+    public void setFlushPeriod( long flushPeriod )
+    {
+        this.flushPeriod = Math.max( 0L, flushPeriod );
+
+        if ( directoryService != null )
+        {
+            stop();
+            flush();
+            start();
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the binds defer the writes of the password policy state
+     */
+    public boolean isDeferred()
+    {
+        return flushPeriod > 0;
+    }
+
+
+    /**
+     * Starts flushing the pending states periodically, if the flush period is set.
+     */
+    private synchronized void start()
+    {
+        if ( ( flushExecutor == null ) && ( flushPeriod > 0 ) )
+        {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor();
+            flushExecutor.scheduleWithFixedDelay( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS );
+        }
+    }
+
+
+    /**
+     * Stops flushing the pending states.
+     */
+    private synchronized void stop()
+    {
+        if ( flushExecutor != null )
+        {
+            flushExecutor.shutdownNow();
+            flushExecutor = null;
+        }
+    }
+
+
+    /**
+     * Gets the last successful bind time of a user which has not been written yet.
+     *
+     * @param dn The user Dn
+     * @return The pending pwdLastSuccess value, or null if there is none
+     */
+    public String getLastSuccess( Dn dn )
+    {
+        PendingState state = pendingStates.get( dn.getNormName() );
+
+        if ( state == null )
+        {
+            return null;
+        }
+
+        synchronized ( state )
+        {
+            return state.lastSuccess;
+        }
+    }
+
+
+    /**
+     * Adds the failure times of a user which have not been written yet to an attribute.
+     *
+     * @param dn The user Dn
+     * @param pwdFailureTimeAt The pwdFailureTime attribute read from the entry
+     * @return <code>true</code> if the writes are deferred
+     * @throws LdapException If a value can't be added
+     */
+    public boolean addFailureTimes( Dn dn, Attribute pwdFailureTimeAt ) throws LdapException
+    {
+        PendingState state = pendingStates.get( dn.getNormName() );
+
+        if ( state == null )
+        {
+            return isDeferred();
+        }
+
+        synchronized ( state )
+        {
+            for ( String failureTime : state.failureTimes )
+            {
+                pwdFailureTimeAt.add( failureTime );
+            }
+        }
+
+        return isDeferred();
+    }
+
+
+    /**
+     * Records a successful bind. The pending failures are forgotten, as a successful
+     * bind removes the failure times from the entry.
+     *
+     * @param dn The user Dn
+     * @param lastSuccess The new pwdLastSuccess value, or null if it is not maintained
+     */
+    public void recordSuccess( Dn dn, String lastSuccess )
+    {
+        if ( lastSuccess == null )
+        {
+            discard( dn );
+
+            return;
+        }
+
+        while ( true )
+        {
+            PendingState state = getState( dn );
+
+            synchronized ( state )
+            {
+                // Get a new state if this one has been written and forgotten meanwhile
+                if ( !state.removed )
+                {
+                    state.lastSuccess = lastSuccess;
+                    state.failureTimes.clear();
+                    state.version++;
+
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Records a failed bind, which has not reached the lockout threshold.
+     *
+     * @param dn The user Dn
+     * @param failureTime The failure time
+     */
+    public void recordFailure( Dn dn, String failureTime )
+    {
+        while ( true )
+        {
+            PendingState state = getState( dn );
+
+            synchronized ( state )
+            {
+                if ( !state.removed )
+                {
+                    state.failureTimes.add( failureTime );
+                    state.version++;
+
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forgets the pending state of a user. This is done when his state has been
+     * written into his entry, or when the entry has been deleted or renamed.
+     *
+     * @param dn The user Dn
+     */
+    public void discard( Dn dn )
+    {
+        PendingState state = pendingStates.remove( dn.getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.removed = true;
+            }
+        }
+    }
+
+
+    /**
+     * Forgets the pending state of a user if a modification of his entry updates
+     * his password policy state, which makes the pending state obsolete.
+     *
+     * @param dn The user Dn
+     * @param modifications The modifications applied to the entry
+     * @param pwdPolicyStateAttributeTypes The password policy state attribute types
+     */
+    public void discard( Dn dn, List<Modification> modifications, Set<AttributeType> pwdPolicyStateAttributeTypes )
+    {
+        for ( Modification modification : modifications )
+        {
+            if ( pwdPolicyStateAttributeTypes.contains( modification.getAttribute().getAttributeType() ) )
+            {
+                discard( dn );
+
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of users having a pending state
+     */
+    public int size()
+    {
+        return pendingStates.size();
+    }
+
+
+    /**
+     * Writes all the pending states into the entries. A state is forgotten once it has been
+     * written, unless a bind has updated it meanwhile. A state which can't be written is kept,
+     * and written again by the next flush.
+     */
+    public void flush()
+    {
+        for ( Map.Entry<String, PendingState> pending : pendingStates.entrySet() )
+        {
+            PendingState state = pending.getValue();
+
+            try
+            {
+                long version = write( state );
+
+                synchronized ( state )
+                {
+                    if ( state.version == version )
+                    {
+                        state.removed = true;
+                        pendingStates.remove( pending.getKey(), state );
+                    }
+                }
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Cannot write the password policy state of {}", state.dn, e );
+            }
+        }
+    }
+
+
+    /**
+     * Gets the pending state of a user, creating it if needed.
+     */
+    private PendingState getState( Dn dn )
+    {
+        String normName = dn.getNormName();
+        PendingState state = pendingStates.get( normName );
+
+        if ( state == null )
+        {
+            PendingState newState = new PendingState( dn );
+            state = pendingStates.putIfAbsent( normName, newState );
+
+            if ( state == null )
+            {
+                state = newState;
+            }
+        }
+
+        return state;
+    }
+
+
+    /**
+     * Writes a pending state into the user entry, which is read again in the
+     * write transaction.
+     *
+     * @return The version of the state which has been written
+     */
+    private long write( PendingState state ) throws Exception
+    {
+        String lastSuccess;
+        List<String> failureTimes;
+        long version;
+
+        synchronized ( state )
+        {
+            lastSuccess = state.lastSuccess;
+            failureTimes = new ArrayList<>( state.failureTimes );
+            version = state.version;
+        }
+
+        if ( ( lastSuccess == null ) && failureTimes.isEmpty() )
+        {
+            return version;
+        }
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        PartitionNexus nexus = directoryService.getPartitionNexus();
+        CoreSession session = directoryService.getAdminSession();
+        Partition partition = nexus.getPartition( state.dn );
+
+        operationManager.lockWrite();
+
+        try
+        {
+            PartitionTxn partitionTxn = partition.beginWriteTransaction();
+
+            try
+            {
+                LookupOperationContext lookupContext = new LookupOperationContext( session, state.dn,
+                    SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+                lookupContext.setPartition( partition );
+                lookupContext.setTransaction( partitionTxn );
+
+                Entry entry = nexus.lookup( lookupContext );
+
+                if ( entry == null )
+                {
+                    // Deleted in the meantime
+                    partitionTxn.abort();
+
+                    return version;
+                }
+
+                List<Modification> mods = new ArrayList<>();
+
+                if ( lastSuccess != null )
+                {
+                    mods.add( new DefaultModification( REPLACE_ATTRIBUTE, pwdLastSuccessAT, lastSuccess ) );
+                }
+
+                if ( !failureTimes.isEmpty() )
+                {
+                    Attribute pwdFailureTimeAt = entry.get( pwdFailureTimeAT );
+
+                    if ( pwdFailureTimeAt == null )
+                    {
+                        pwdFailureTimeAt = new DefaultAttribute( pwdFailureTimeAT );
+                    }
+                    else
+                    {
+                        pwdFailureTimeAt = pwdFailureTimeAt.clone();
+                    }
+
+                    for ( String failureTime : failureTimes )
+                    {
+                        pwdFailureTimeAt.add( failureTime );
+                    }
+
+                    PasswordPolicyConfiguration policyConfig = interceptor.getPwdPolicy( entry );
+
+                    if ( policyConfig != null )
+                    {
+                        interceptor.purgeFailureTimes( policyConfig, pwdFailureTimeAt );
+                    }
+
+                    mods.add( new DefaultModification( REPLACE_ATTRIBUTE, pwdFailureTimeAt ) );
+                }
+
+                mods.add( new DefaultModification( REPLACE_ATTRIBUTE,
+                    directoryService.getAtProvider().getEntryCSN(), directoryService.getCSN().toString() ) );
+
+                ModifyOperationContext modifyContext = new ModifyOperationContext( session );
+                modifyContext.setDn( state.dn );
+                modifyContext.setEntry( entry );
+                modifyContext.setModItems( mods );
+                modifyContext.setPushToEvtInterceptor( true );
+                modifyContext.setPartition( partition );
+                modifyContext.setTransaction( partitionTxn );
+
+                nexus.modify( modifyContext );
+
+                partitionTxn.commit();
+            }
+            catch ( Exception e )
+            {
+                partitionTxn.abort();
+
+                throw e;
+            }
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+
+        return version;
+    }
+
+
+    /**
+     * The password policy state of a user which has not been written yet.
+     */
+    private static final class PendingState
+    {
+        /** The user Dn */
+        private final Dn dn;
+
+        /** The last successful bind time */
+        private String lastSuccess;
+
+        /** The failed bind times */
+        private final List<String> failureTimes = new ArrayList<>();
+
+        /** Incremented by each update of the state */
+        private long version;
+
+        /** Tells if the state has been forgotten : it can't be updated anymore */
+        private boolean removed;
+
+
+        private PendingState( Dn dn )
+        {
+            this.dn = dn;
+        }
+    }
+}
@@ -24,7 +24,6 @@ import java.net.SocketAddress;
 
 import javax.naming.Context;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -33,10 +32,12 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.authn.CredentialCache;
+import org.apache.directory.server.core.api.authn.CredentialCache.CachedCredentials;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyException;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
@@ -52,7 +53,8 @@ import org.apache.mina.core.session.IoSession;
  * password is stored with a one-way encryption applied (e.g. SHA), the password
  * is hashed the same way before comparison.
  *
- * We use a cache to speedup authentication, where the Dn/password are stored.
+ * We use a cache to speedup authentication, where the Dn/password are stored, along
+ * with a digest of the last verified credentials.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -62,7 +64,8 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
     /**
-     * A cache to store passwords. It's a speedup, we will be able to avoid backend lookups.
+     * A cache to store passwords. It's a speedup, we will be able to avoid backend lookups,
+     * and to avoid hashing again some credentials which have already been verified.
      *
      * Note that the backend also use a cache mechanism, but for performance gain, it's good
      * to manage a cache here. The main problem is that when a user modify his password, we will
@@ -74,13 +77,12 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * The update of the backend and partition cache is already correctly handled, so we will
      * just have to offer an access to refresh the local cache.
      *
-     * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * The cache is read by all the concurrent binds, so it does not use any lock.
      */
-    private final LRUMap credentialCache;
+    private final CredentialCache credentialCache;
 
-    /** Declare a default for this cache. 100 entries seems to be enough */
-    private static final int DEFAULT_CACHE_SIZE = 100;
+    /** The executor running the expensive password comparisons, owned by the DirectoryService */
+    private PasswordHashingExecutor hashingExecutor;
 
 
     /**
@@ -89,7 +91,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator()
     {
         super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache();
     }
 
 
@@ -102,7 +104,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator( Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache();
     }
 
 
@@ -112,9 +114,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize )
     {
-        super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, Dn.ROOT_DSE );
     }
 
 
@@ -126,65 +126,50 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize, Dn baseDn )
     {
-        super( AuthenticationLevel.SIMPLE, baseDn );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, CredentialCache.DEFAULT_TIME_TO_LIVE, baseDn );
     }
 
 
     /**
-     * Get the password either from cache or from backend.
-     * @param principalDN The Dn from which we want the password
-     * @return A byte array which can be empty if the password was not found
-     * @throws Exception If we have a problem during the lookup operation
+     * Creates a new instance, with an initial cache size and time to live
+     * 
+     * @param cacheSize the size of the credential cache
+     * @param cacheTimeToLive the time to live of the cached credentials, in milliseconds
+     * @param baseDn The base Dn
      */
-    private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
+    public SimpleAuthenticator( int cacheSize, long cacheTimeToLive, Dn baseDn )
     {
-        LdapPrincipal principal = null;
+        super( AuthenticationLevel.SIMPLE, baseDn );
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
-        {
-            synchronized ( credentialCache )
-            {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
-            }
-        }
+        credentialCache = new CredentialCache( cacheSize, cacheTimeToLive );
+    }
 
-        byte[][] storedPasswords;
 
-        if ( principal == null )
-        {
-            // Not found in the cache
-            // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
+    /**
+     * @return The credential cache, which exposes its hit rate
+     */
+    public CredentialCache getCredentialCache()
+    {
+        return credentialCache;
+    }
 
-            // Deal with the special case where the user didn't enter a password
-            // We will compare the empty array with the credentials. Sometime,
-            // a user does not set a password. This is bad, but there is nothing
-            // we can do against that, except education ...
-            if ( storedPasswords == null )
-            {
-                storedPasswords = new byte[][]
-                    {};
-            }
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+    /**
+     * @return The executor running the expensive password comparisons
+     */
+    public PasswordHashingExecutor getHashingExecutor()
+    {
+        return hashingExecutor;
+    }
 
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
-            {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
-            }
-        }
 
-        return principal;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doInit()
+    {
+        hashingExecutor = getDirectoryService().getPasswordHashingExecutor();
     }
 
 
@@ -205,21 +190,45 @@ public class SimpleAuthenticator extends AbstractAuthenticator
 
         // ---- extract password from JNDI environment
         byte[] credentials = bindContext.getCredentials();
+        Dn dn = bindContext.getDn();
 
-        LdapPrincipal principal = getStoredPassword( bindContext );
+        // use cache only if pwdpolicy is not enabled
+        boolean useCache = !getDirectoryService().isPwdPolicyEnabled();
+        CachedCredentials cached = null;
+        byte[][] storedPasswords;
 
-        IoSession session = bindContext.getIoSession();
+        if ( useCache )
+        {
+            cached = credentialCache.get( dn );
+        }
 
-        if ( session != null )
+        if ( cached != null )
         {
-            SocketAddress clientAddress = session.getRemoteAddress();
-            principal.setClientAddress( clientAddress );
-            SocketAddress serverAddress = session.getServiceAddress();
-            principal.setServerAddress( serverAddress );
+            storedPasswords = cached.getStoredPasswords();
+
+            // Those credentials have already been verified, no need to hash them again
+            if ( credentialCache.isVerified( cached, credentials ) )
+            {
+                if ( IS_DEBUG )
+                {
+                    LOG.debug( "{} Authenticated from the credential cache", dn );
+                }
+
+                return createPrincipal( bindContext, storedPasswords );
+            }
         }
+        else
+        {
+            // Not found in the cache
+            // Get the user password from the backend
+            long generation = credentialCache.getGeneration();
+            storedPasswords = lookupUserPassword( bindContext );
 
-        // Get the stored password, either from cache or from backend
-        byte[][] storedPasswords = principal.getUserPasswords();
+            if ( useCache )
+            {
+                cached = credentialCache.put( dn, storedPasswords, generation );
+            }
+        }
 
         PasswordPolicyException ppe = null;
         try 
@@ -234,30 +243,59 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // Now, compare the passwords.
         for ( byte[] storedPassword : storedPasswords )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            if ( hashingExecutor.compareCredentials( credentials, storedPassword ) )
             {
                 if ( ppe != null ) 
                 {
-                    LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
+                    LOG.debug( "{} Authentication failed: {}", dn, ppe.getMessage() );
                     throw ppe;
                 }
 
                 if ( IS_DEBUG )
                 {
-                    LOG.debug( "{} Authenticated", bindContext.getDn() );
+                    LOG.debug( "{} Authenticated", dn );
                 }
 
-                return principal;
+                if ( cached != null )
+                {
+                    credentialCache.setVerified( dn, cached, credentials );
+                }
+
+                return createPrincipal( bindContext, storedPasswords );
             }
         }
 
         // Bad password ...
-        String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
+        String message = I18n.err( I18n.ERR_230, dn.getName() );
         LOG.info( message );
         throw new LdapAuthenticationException( message );
     }
 
 
+    /**
+     * Creates the principal of an authenticated user. A new principal is created for
+     * each bind, as it holds the addresses of the session.
+     */
+    private LdapPrincipal createPrincipal( BindOperationContext bindContext, byte[][] storedPasswords )
+    {
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( storedPasswords );
+
+        IoSession session = bindContext.getIoSession();
+
+        if ( session != null )
+        {
+            SocketAddress clientAddress = session.getRemoteAddress();
+            principal.setClientAddress( clientAddress );
+            SocketAddress serverAddress = session.getServiceAddress();
+            principal.setServerAddress( serverAddress );
+        }
+
+        return principal;
+    }
+
+
     /**
      * Local function which request the password from the backend
      * @param bindContext the Bind operation context
@@ -320,7 +358,10 @@ public class SimpleAuthenticator extends AbstractAuthenticator
 
         bindContext.setEntry( new ClonedServerEntry( userEntry ) );
 
-        // ---- assert that credentials match
+        // Deal with the special case where the user didn't enter a password
+        // We will compare the empty array with the credentials. Sometime,
+        // a user does not set a password. This is bad, but there is nothing
+        // we can do against that, except education ...
         if ( userPasswordAttr == null )
         {
             return new byte[][]
@@ -349,9 +390,6 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
-        {
-            credentialCache.remove( bindDn.getNormName() );
-        }
+        credentialCache.invalidate( bindDn );
     }
 }
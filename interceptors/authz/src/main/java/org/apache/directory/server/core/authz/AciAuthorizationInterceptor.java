@@ -23,10 +23,13 @@ package org.apache.directory.server.core.authz;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.directory.SearchControls;
@@ -79,8 +82,11 @@ import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.subtree.SubentryUtils;
+import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
 import org.apache.directory.server.core.authz.support.ACDFEngine;
 import org.apache.directory.server.core.authz.support.AciContext;
+import org.apache.directory.server.core.authz.support.AciDecisionCache;
+import org.apache.directory.server.core.authz.support.CompiledAciTuples;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -158,6 +164,15 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** use and instance of the ACDF engine */
     private ACDFEngine engine;
 
+    /** the decisions taken by the engine when filtering the search results */
+    private AciDecisionCache decisionCache;
+
+    /** the evaluator used for the subtree user classes of the compiled tuples */
+    private SubtreeEvaluator subtreeEvaluator;
+
+    /** the tuple and group caches versions the decision cache is based on */
+    private volatile long cachesVersion;
+
     /** the system wide subschemaSubentryDn */
     private Dn subschemaSubentryDn;
 
@@ -180,9 +195,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
 
     /**
-     * Load the Tuples into the cache
+     * Load the Tuples found below a base into the cache
      */
-    private void initTupleCache() throws LdapException
+    private void initTupleCache( Dn baseDn ) throws LdapException
     {
         // Load all the prescriptiveACI : they are stored in AccessControlSubentry entries
         SearchControls controls = new SearchControls();
@@ -196,10 +211,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         CoreSession adminSession = directoryService.getAdminSession();
 
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter, controls );
+        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, baseDn, filter, controls );
 
         searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-        Partition partition = nexus.getPartition( Dn.ROOT_DSE );
+        Partition partition = nexus.getPartition( baseDn );
         searchOperationContext.setPartition( partition );
         
         try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
@@ -232,9 +247,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
 
     /**
-     * Load the Groups into the cache
+     * Load the Groups found below a base into the cache
      */
-    private void initGroupCache() throws LdapException
+    private void initGroupCache( Dn baseDn ) throws LdapException
     {
         // Load all the member/uniqueMember : they are stored in groupOfNames/groupOfUniqueName
         SearchControls controls = new SearchControls();
@@ -250,27 +265,38 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         CoreSession adminSession = directoryService.getAdminSession();
         
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter,
+        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, baseDn, filter,
             controls );
 
         searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        Partition partition = nexus.getPartition( baseDn );
+        searchOperationContext.setPartition( partition );
 
-        EntryFilteringCursor results = nexus.search( searchOperationContext );
-
-        try
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            while ( results.next() )
+            searchOperationContext.setTransaction( partitionTxn );
+
+            EntryFilteringCursor results = nexus.search( searchOperationContext );
+
+            try
             {
-                Entry entry = results.get();
+                while ( results.next() )
+                {
+                    Entry entry = results.get();
 
-                groupCache.groupAdded( entry.getDn().getNormName(), entry );
-            }
+                    groupCache.groupAdded( entry.getDn().getNormName(), entry );
+                }
 
-            results.close();
+                results.close();
+            }
+            catch ( Exception e )
+            {
+                throw new LdapOperationException( e.getMessage(), e );
+            }
         }
-        catch ( Exception e )
+        catch ( IOException ioe )
         {
-            throw new LdapOperationException( e.getMessage(), e );
+            throw new LdapOtherException( ioe.getMessage(), ioe );
         }
     }
 
@@ -300,6 +326,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         // Iitialize the ACI PARSER and ACDF engine
         aciParser = new ACIItemParser( new ConcreteNameComponentNormalizer( schemaManager ), schemaManager );
         engine = new ACDFEngine( schemaManager );
+        decisionCache = new AciDecisionCache( engine );
+        subtreeEvaluator = new SubtreeEvaluator( schemaManager );
 
         // stuff for dealing with subentries (garbage for now)
         Value subschemaSubentry = directoryService.getPartitionNexus().getRootDseValue(
@@ -307,14 +335,45 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         subschemaSubentryDn = dnFactory.create( subschemaSubentry.getValue() );
 
         // Init the caches now
-        initTupleCache();
-        initGroupCache();
+        initTupleCache( Dn.ROOT_DSE );
+        initGroupCache( Dn.ROOT_DSE );
 
         // Init the SubentryUtils instance
         subentryUtils = new SubentryUtils( directoryService );
     }
 
 
+    /**
+     * Loads the ACI tuples and the groups of a partition into the caches, when its content
+     * has been loaded without going through the interceptors.
+     *
+     * @param suffixDn The partition suffix
+     * @throws LdapException If the tuples or the groups can't be read
+     */
+    public void loadTuplesAndGroups( Dn suffixDn ) throws LdapException
+    {
+        initTupleCache( suffixDn );
+        initGroupCache( suffixDn );
+        invalidateDecisions();
+    }
+
+
+    /**
+     * Invalidates the cached ACI decisions if an ACI subentry or a group has been
+     * modified since they have been computed.
+     */
+    private void invalidateDecisions()
+    {
+        long version = tupleCache.getVersion() + groupCache.getVersion();
+
+        if ( version != cachesVersion )
+        {
+            cachesVersion = version;
+            decisionCache.invalidate();
+        }
+    }
+
+
     private void protectCriticalEntries( OperationContext opCtx, Dn dn ) throws LdapException
     {
         Dn principalDn = getPrincipal( opCtx ).getDn();
@@ -353,6 +412,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         throws LdapException
     {
         Entry originalEntry;
+        Dn entryDn = dn;
 
         if ( entry instanceof ClonedServerEntry )
         {
@@ -384,21 +444,44 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             lookupContext.setTransaction( opContext.getTransaction() );
 
             originalEntry = directoryService.getPartitionNexus().lookup( lookupContext );
+            entryDn = parentDn;
         }
 
-        Attribute subentries = originalEntry.get( directoryService.getAtProvider().getAccessControlSubentries() );
+        for ( String subentryDn : getAccessControlSubentries( entryDn, originalEntry ) )
+        {
+            tuples.addAll( tupleCache.getACITuples( subentryDn ) );
+        }
+    }
+
+
+    /**
+     * Gets the normalized DNs of the access control subentries governing an entry.
+     *
+     * @param dn the current entry Dn, which may differ from the Dn the entry was read with
+     * @param entry the entry
+     * @return the normalized subentry DNs
+     * @throws LdapException if a subentry Dn is invalid
+     */
+    private List<String> getAccessControlSubentries( Dn dn, Entry entry ) throws LdapException
+    {
+        Attribute subentries = subentryUtils.getSubentryReferences( dn, entry,
+            directoryService.getAtProvider().getAccessControlSubentries() );
 
         if ( subentries == null )
         {
-            return;
+            return Collections.emptyList();
         }
 
+        List<String> subentryDns = new ArrayList<>( subentries.size() );
+
         for ( Value value : subentries )
         {
             String subentryDnStr = value.getValue();
             Dn subentryDn = dnFactory.create( subentryDnStr );
-            tuples.addAll( tupleCache.getACITuples( subentryDn.getNormName() ) );
+            subentryDns.add( subentryDn.getNormName() );
         }
+
+        return subentryDns;
     }
 
 
@@ -552,6 +635,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             next( addContext );
             tupleCache.subentryAdded( dn, serverEntry );
             groupCache.groupAdded( dn.getNormName(), serverEntry );
+            invalidateDecisions();
             return;
         }
 
@@ -611,6 +695,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         // update the ACITuple cache and the groups cache to keep them in sync
         tupleCache.subentryAdded( dn, serverEntry );
         groupCache.groupAdded( dn.getNormName(), serverEntry );
+        invalidateDecisions();
     }
 
 
@@ -699,6 +784,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
             tupleCache.subentryDeleted( dn, entry );
             groupCache.groupDeleted( dn, entry );
+            invalidateDecisions();
 
             return;
         }
@@ -724,6 +810,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         tupleCache.subentryDeleted( dn, entry );
         groupCache.groupDeleted( dn, entry );
+        invalidateDecisions();
     }
 
 
@@ -851,6 +938,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             Entry modifiedEntry = modifyContext.getAlteredEntry();
             tupleCache.subentryModified( dn, mods, modifiedEntry );
             groupCache.groupModified( dn, mods, entry, schemaManager );
+            invalidateDecisions();
 
             return;
         }
@@ -972,6 +1060,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         Entry modifiedEntry = modifyContext.getAlteredEntry();
         tupleCache.subentryModified( dn, mods, modifiedEntry );
         groupCache.groupModified( dn, mods, entry, schemaManager );
+        invalidateDecisions();
     }
 
 
@@ -1007,6 +1096,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             next( moveContext );
             tupleCache.subentryRenamed( oriChildName, newDn );
             groupCache.groupRenamed( oriChildName, newDn );
+            invalidateDecisions();
             return;
         }
 
@@ -1071,6 +1161,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         next( moveContext );
         tupleCache.subentryRenamed( oriChildName, newDn );
         groupCache.groupRenamed( oriChildName, newDn );
+        invalidateDecisions();
     }
 
 
@@ -1105,6 +1196,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             next( moveAndRenameContext );
             tupleCache.subentryRenamed( oldDn, newDn );
             groupCache.groupRenamed( oldDn, newDn );
+            invalidateDecisions();
 
             return;
         }
@@ -1171,6 +1263,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         next( moveAndRenameContext );
         tupleCache.subentryRenamed( oldDn, newDn );
         groupCache.groupRenamed( oldDn, newDn );
+        invalidateDecisions();
     }
 
 
@@ -1209,6 +1302,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
             // TODO : this method returns a boolean : what should we do with the result ?
             groupCache.groupRenamed( oldName, newName );
+            invalidateDecisions();
 
             return;
         }
@@ -1233,6 +1327,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         next( renameContext );
         tupleCache.subentryRenamed( oldName, newName );
         groupCache.groupRenamed( oldName, newName );
+        invalidateDecisions();
     }
 
 
@@ -1340,10 +1435,12 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     public void cacheNewGroup( String name, Entry entry ) throws LdapException
     {
         groupCache.groupAdded( name, entry );
+        invalidateDecisions();
     }
 
 
-    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry,
+        Map<CompiledAciTuples, BitSet> userTuplesCache ) throws LdapException
     {
         /*
          * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
@@ -1354,10 +1451,45 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
         Dn userDn = principal.getDn();
         Set<String> userGroups = groupCache.getGroups( userDn.getNormName() );
+        Entry originalEntry = ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry();
         Collection<ACITuple> tuples = new HashSet<>();
         addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        addEntryAciTuples( tuples, originalEntry );
+        addSubentryAciTuples( opContext, tuples, normName, originalEntry );
+
+        /*
+         * The decisions are cached when they only depend on the prescriptive ACIs, the
+         * entry objectClasses and the requested attribute : the entry must not have
+         * its own entryACI, and must not be a subentry.
+         */
+        AciDecisionCache.EntryScope scope = null;
+
+        if ( ( originalEntry.get( directoryService.getAtProvider().getEntryACI() ) == null )
+            && !originalEntry.contains( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.SUBENTRY_OC )
+            && AciDecisionCache.isCacheable( tuples ) )
+        {
+            // The tuples related to the user are computed once per search
+            CompiledAciTuples compiled = tupleCache.getCompiledACITuples(
+                getAccessControlSubentries( normName, originalEntry ) );
+            BitSet userTuples = null;
+
+            if ( compiled.isCompiled() )
+            {
+                userTuples = userTuplesCache.get( compiled );
+
+                if ( userTuples == null )
+                {
+                    userTuples = compiled.getUserTuples( userDn, userGroups, principal.getAuthenticationLevel(),
+                        subtreeEvaluator );
+                    userTuplesCache.put( compiled, userTuples );
+                }
+            }
+
+            scope = decisionCache.createScope( userDn, userGroups, principal.getAuthenticationLevel(),
+                subentryUtils.getSubentryReferences( normName, originalEntry,
+                    directoryService.getAtProvider().getAccessControlSubentries() ),
+                originalEntry.get( directoryService.getAtProvider().getObjectClass() ), compiled, userTuples );
+        }
 
         AciContext aciContext = new AciContext( schemaManager, opContext );
         aciContext.setUserGroupNames( userGroups );
@@ -1366,9 +1498,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         aciContext.setEntryDn( normName );
         aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
         aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        aciContext.setEntry( originalEntry );
 
-        if ( !engine.hasPermission( aciContext ) )
+        if ( !decisionCache.hasPermission( scope, aciContext ) )
         {
             return false;
         }
@@ -1398,7 +1530,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             aciContext.setAciTuples( tuples );
             aciContext.setEntry( clonedEntry );
 
-            if ( !engine.hasPermission( aciContext ) )
+            if ( !decisionCache.hasPermission( scope, aciContext ) )
             {
                 attributeToRemove.add( attributeType );
 
@@ -1421,7 +1553,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 aciContext.setAciTuples( tuples );
                 aciContext.setEntry( clonedEntry );
 
-                if ( !engine.hasPermission( aciContext ) )
+                if ( !decisionCache.hasPermission( scope, aciContext ) )
                 {
                     valueToRemove.add( value );
                 }
@@ -1451,6 +1583,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
      */
     private class AuthorizationFilter implements EntryFilter
     {
+        /** The compiled tuples related to the user, computed once for the whole search */
+        private final Map<CompiledAciTuples, BitSet> userTuples = new HashMap<>();
+
+
         /**
          * {@inheritDoc}
          */
@@ -1462,7 +1598,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 entry.setDn(  new Dn( schemaManager, entry.getDn() ) );
             }
 
-            return filter( searchContext, entry.getDn(), entry );
+            return filter( searchContext, entry.getDn(), entry, userTuples );
         }
 
 
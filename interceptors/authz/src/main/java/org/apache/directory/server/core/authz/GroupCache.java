@@ -20,14 +20,20 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
 import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -95,6 +101,20 @@ public class GroupCache
     /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
     private Cache groupCache;
 
+    /**
+     * The reverse index of the groupCache : the normalized Dn of a member to the set of
+     * normalized DNs of the groups it belongs to. The groupCache is the only source of
+     * truth : this index is derived from it, updated by the methods modifying the
+     * groupCache, which hold the instance lock, and read without locking. When the
+     * groupCache changes behind our back (an eviction), the index is rebuilt from it.
+     */
+    private volatile Map<String, Set<String>> memberGroups = new ConcurrentHashMap<>();
+
+    /** Incremented each time a group is modified, or evicted from the groupCache */
+    private final AtomicLong version = new AtomicLong();
+
+    /** The version of the groupCache the memberGroups index reflects */
+    private volatile long indexedVersion;
 
 
     /**
@@ -114,6 +134,7 @@ public class GroupCache
         administratorsGroupDn = parseNormalized( ServerDNConstants.ADMINISTRATORS_GROUP_DN );
 
         groupCache = dirService.getCacheService().getCache( "groupCache" );
+        groupCache.getCacheEventNotificationService().registerListener( new GroupEvictionListener() );
 
         initialize( dirService.getAdminSession() );
     }
@@ -175,11 +196,7 @@ public class GroupCache
 
                     if ( members != null )
                     {
-                        Set<String> memberSet = new HashSet<>( members.size() );
-                        addMembers( memberSet, members );
-
-                        Element cacheElement = new Element( groupDn.getNormName(), memberSet );
-                        groupCache.put( cacheElement );
+                        putGroup( groupDn.getNormName(), members );
                     }
                     else
                     {
@@ -232,6 +249,200 @@ public class GroupCache
     }
 
 
+    /**
+     * Stores a group and its members in the cache, replacing the previous group with the
+     * same name if any.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param members the member attribute of the group
+     * @throws LdapException if there are problems accessing the attr values
+     */
+    private synchronized void putGroup( String groupDn, Attribute members ) throws LdapException
+    {
+        Set<String> memberSet = new HashSet<>( members.size() );
+        addMembers( memberSet, members );
+
+        storeGroup( groupDn, memberSet );
+    }
+
+
+    /**
+     * Stores a set of members in the cache, and updates the reverse index. The stored set
+     * must not be modified afterward : the cache may hand back copies of it, so a change
+     * is always done on a new set, stored again.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param memberSet the normalized DNs of the group members
+     */
+    private synchronized void storeGroup( String groupDn, Set<String> memberSet )
+    {
+        Set<String> oldMemberSet = getMembers( groupDn );
+
+        groupCache.put( new Element( groupDn, memberSet ) );
+        updateIndex( groupDn, oldMemberSet, memberSet );
+    }
+
+
+    /**
+     * Removes a group from the cache, and its members from the reverse index.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @return the members of the removed group, or null if the group was not cached
+     */
+    private synchronized Set<String> removeGroup( String groupDn )
+    {
+        Set<String> memberSet = getMembers( groupDn );
+
+        if ( memberSet == null )
+        {
+            return null;
+        }
+
+        groupCache.remove( groupDn );
+        updateIndex( groupDn, memberSet, null );
+
+        return memberSet;
+    }
+
+
+    /**
+     * @param groupDn the normalized Dn of the group
+     * @return the members of the group as stored in the cache, or null if the group is not cached
+     */
+    private Set<String> getMembers( String groupDn )
+    {
+        Element element = groupCache.get( groupDn );
+
+        if ( element == null )
+        {
+            return null;
+        }
+
+        return ( Set<String> ) element.getObjectValue();
+    }
+
+
+    /**
+     * Applies the change of a group members to the reverse index, and bumps the version.
+     * If the index was already stale, it is left as is : it will be rebuilt from the
+     * groupCache on the next read.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param oldMemberSet the members before the change, or null
+     * @param newMemberSet the members after the change, or null
+     */
+    private void updateIndex( String groupDn, Set<String> oldMemberSet, Set<String> newMemberSet )
+    {
+        long previous = version.getAndIncrement();
+
+        if ( indexedVersion != previous )
+        {
+            return;
+        }
+
+        if ( oldMemberSet != null )
+        {
+            for ( String member : oldMemberSet )
+            {
+                if ( ( newMemberSet == null ) || !newMemberSet.contains( member ) )
+                {
+                    unindexMember( groupDn, member );
+                }
+            }
+        }
+
+        if ( newMemberSet != null )
+        {
+            for ( String member : newMemberSet )
+            {
+                if ( ( oldMemberSet == null ) || !oldMemberSet.contains( member ) )
+                {
+                    indexMember( memberGroups, groupDn, member );
+                }
+            }
+        }
+
+        indexedVersion = previous + 1;
+    }
+
+
+    /**
+     * Rebuilds the reverse index from the groupCache, if it does not reflect its
+     * current version.
+     */
+    private synchronized void rebuildIndex()
+    {
+        long current = version.get();
+
+        if ( indexedVersion == current )
+        {
+            return;
+        }
+
+        Map<String, Set<String>> index = new ConcurrentHashMap<>();
+
+        for ( Object key : groupCache.getKeys() )
+        {
+            String groupDn = ( String ) key;
+            Set<String> memberSet = getMembers( groupDn );
+
+            if ( memberSet != null )
+            {
+                for ( String member : memberSet )
+                {
+                    indexMember( index, groupDn, member );
+                }
+            }
+        }
+
+        memberGroups = index;
+        indexedVersion = current;
+    }
+
+
+    /**
+     * Records in a reverse index that a member belongs to a group.
+     *
+     * @param index the reverse index to update
+     * @param groupDn the normalized Dn of the group
+     * @param member the normalized Dn of the member
+     */
+    private static void indexMember( Map<String, Set<String>> index, String groupDn, String member )
+    {
+        Set<String> groups = index.get( member );
+
+        if ( groups == null )
+        {
+            groups = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+            index.put( member, groups );
+        }
+
+        groups.add( groupDn );
+    }
+
+
+    /**
+     * Records in the reverse index that a member does not belong to a group anymore.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param member the normalized Dn of the member
+     */
+    private void unindexMember( String groupDn, String member )
+    {
+        Set<String> groups = memberGroups.get( member );
+
+        if ( groups != null )
+        {
+            groups.remove( groupDn );
+
+            if ( groups.isEmpty() )
+            {
+                memberGroups.remove( member );
+            }
+        }
+    }
+
+
     /**
      * Adds normalized member DNs to the set of normalized member names.
      *
@@ -310,11 +521,7 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = new HashSet<>( members.size() );
-        addMembers( memberSet, members );
-
-        Element cacheElement = new Element( name, memberSet );
-        groupCache.put( cacheElement );
+        putGroup( name, members );
 
         if ( IS_DEBUG )
         {
@@ -341,7 +548,7 @@ public class GroupCache
             return;
         }
 
-        groupCache.remove( name.getNormName() );
+        removeGroup( name.getNormName() );
 
         if ( IS_DEBUG )
         {
@@ -352,17 +559,26 @@ public class GroupCache
 
 
     /**
-     * Utility method to modify a set of member names based on a modify operation
-     * that changes the members of a group.
+     * Utility method to modify the set of member names of a cached group based on a modify
+     * operation that changes the members of a group. The new set is stored in place of the
+     * old one.
      *
-     * @param memberSet the set of members to be altered
+     * @param groupDn the normalized Dn of the group
      * @param modOp the type of modify operation being performed
      * @param members the members being added, removed or replaced
      * @throws LdapException if there are problems accessing attribute values
      */
-    private void modify( Set<String> memberSet, ModificationOperation modOp, Attribute members )
+    private synchronized void modify( String groupDn, ModificationOperation modOp, Attribute members )
         throws LdapException
     {
+        Set<String> oldMemberSet = getMembers( groupDn );
+
+        if ( oldMemberSet == null )
+        {
+            return;
+        }
+
+        Set<String> memberSet = new HashSet<>( oldMemberSet );
 
         switch ( modOp )
         {
@@ -386,6 +602,8 @@ public class GroupCache
             default:
                 throw new InternalError( I18n.err( I18n.ERR_235, modOp ) );
         }
+
+        storeGroup( groupDn, memberSet );
     }
 
 
@@ -427,13 +645,7 @@ public class GroupCache
         {
             if ( memberAttr.getOid() == modification.getAttribute().getId() )
             {
-                Element memSetElement = groupCache.get( name.getNormName() );
-
-                if ( memSetElement != null )
-                {
-                    Set<String> memberSet = ( Set<String> ) memSetElement.getObjectValue();
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
-                }
+                modify( name.getNormName(), modification.getOperation(), modification.getAttribute() );
 
                 break;
             }
@@ -465,13 +677,7 @@ public class GroupCache
             return;
         }
 
-        Element memSetElement = groupCache.get( name.getNormName() );
-
-        if ( memSetElement != null )
-        {
-            Set<String> memberSet = ( Set<String> ) memSetElement.getObjectValue();
-            modify( memberSet, modOp, members );
-        }
+        modify( name.getNormName(), modOp, members );
 
         if ( IS_DEBUG )
         {
@@ -521,57 +727,38 @@ public class GroupCache
      */
     public Set<String> getGroups( String memberDn ) throws LdapException
     {
-        Set<String> memberGroups = null;
-
-        for ( Object obj : groupCache.getKeys() )
+        if ( indexedVersion != version.get() )
         {
-            String group = ( String ) obj;
-            Element element = groupCache.get( group );
-
-            if ( element == null )
-            {
-                continue;
-            }
-
-            Set<String> members = ( Set<String> ) element.getObjectValue();
-
-            if ( members == null )
-            {
-                continue;
-            }
-
-            if ( members.contains( memberDn ) )
-            {
-                if ( memberGroups == null )
-                {
-                    memberGroups = new HashSet<>();
-                }
-
-                memberGroups.add( group );
-            }
+            rebuildIndex();
         }
 
-        if ( memberGroups == null )
+        Set<String> groups = memberGroups.get( memberDn );
+
+        if ( groups == null )
         {
             return EMPTY_GROUPS;
         }
 
-        return memberGroups;
+        return new HashSet<>( groups );
     }
 
 
-    public boolean groupRenamed( Dn oldName, Dn newName )
+    /**
+     * @return A number incremented each time a group is modified
+     */
+    public long getVersion()
     {
-        Element membersElement = groupCache.get( oldName.getNormName() );
+        return version.get();
+    }
 
-        if ( membersElement != null )
-        {
-            Set<String> members = ( Set<String> ) membersElement.getObjectValue();
 
-            groupCache.remove( oldName.getNormName() );
+    public synchronized boolean groupRenamed( Dn oldName, Dn newName )
+    {
+        Set<String> members = removeGroup( oldName.getNormName() );
 
-            Element cacheElement = new Element( newName, members );
-            groupCache.put( cacheElement );
+        if ( members != null )
+        {
+            storeGroup( newName.getNormName(), members );
 
             if ( IS_DEBUG )
             {
@@ -584,4 +771,32 @@ public class GroupCache
 
         return false;
     }
+
+
+    /**
+     * Bumps the version when groups leave the groupCache without going through this
+     * class, so that the reverse index gets rebuilt from the groupCache.
+     */
+    private final class GroupEvictionListener extends CacheEventListenerAdapter
+    {
+        @Override
+        public void notifyElementEvicted( Ehcache cache, Element element )
+        {
+            version.incrementAndGet();
+        }
+
+
+        @Override
+        public void notifyElementExpired( Ehcache cache, Element element )
+        {
+            version.incrementAndGet();
+        }
+
+
+        @Override
+        public void notifyRemoveAll( Ehcache cache )
+        {
+            version.incrementAndGet();
+        }
+    }
 }
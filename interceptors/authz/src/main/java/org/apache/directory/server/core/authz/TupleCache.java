@@ -27,6 +27,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
@@ -57,6 +59,7 @@ import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.authz.support.CompiledAciTuples;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,6 +80,15 @@ public class TupleCache
     /** a map of strings to ACITuple collections */
     private final Map<String, List<ACITuple>> tuples = new HashMap<>();
 
+    /** the compiled tuples, per subentry */
+    private final Map<String, CompiledAciTuples> compiledTuples = new ConcurrentHashMap<>();
+
+    /** the compiled tuples of the entries governed by more than one subentry, per sorted subentry list */
+    private final Map<List<String>, CompiledAciTuples> combinedTuples = new ConcurrentHashMap<>();
+
+    /** Incremented each time the cached tuples are modified */
+    private final AtomicLong version = new AtomicLong();
+
     /** the directory service */
     private final DirectoryService directoryService;
 
@@ -235,6 +247,9 @@ public class TupleCache
         }
 
         tuples.put( dn.getNormName(), entryTuples );
+        compiledTuples.put( dn.getNormName(), new CompiledAciTuples( entryTuples ) );
+        combinedTuples.clear();
+        version.incrementAndGet();
     }
 
 
@@ -246,6 +261,9 @@ public class TupleCache
         }
 
         tuples.remove( dn.getNormName() );
+        compiledTuples.remove( dn.getNormName() );
+        combinedTuples.clear();
+        version.incrementAndGet();
     }
 
 
@@ -298,5 +316,68 @@ public class TupleCache
     public void subentryRenamed( Dn oldName, Dn newName )
     {
         tuples.put( newName.getNormName(), tuples.remove( oldName.getNormName() ) );
+
+        CompiledAciTuples compiled = compiledTuples.remove( oldName.getNormName() );
+
+        if ( compiled != null )
+        {
+            compiledTuples.put( newName.getNormName(), compiled );
+        }
+
+        combinedTuples.clear();
+        version.incrementAndGet();
+    }
+
+
+    /**
+     * Gets the compiled tuples of a set of subentries. The tuples of each subentry are
+     * compiled when the subentry is loaded, the tuples of several subentries are compiled
+     * the first time they are requested.
+     *
+     * @param subentryDns The normalized DNs of the subentries
+     * @return The compiled tuples
+     */
+    public CompiledAciTuples getCompiledACITuples( List<String> subentryDns )
+    {
+        if ( subentryDns.size() == 1 )
+        {
+            CompiledAciTuples compiled = compiledTuples.get( subentryDns.get( 0 ) );
+
+            if ( compiled != null )
+            {
+                return compiled;
+            }
+
+            return new CompiledAciTuples( Collections.<ACITuple> emptyList() );
+        }
+
+        List<String> key = new ArrayList<>( subentryDns );
+        Collections.sort( key );
+
+        CompiledAciTuples compiled = combinedTuples.get( key );
+
+        if ( compiled == null )
+        {
+            List<ACITuple> aciTuples = new ArrayList<>();
+
+            for ( String subentryDn : key )
+            {
+                aciTuples.addAll( getACITuples( subentryDn ) );
+            }
+
+            compiled = new CompiledAciTuples( aciTuples );
+            combinedTuples.put( key, compiled );
+        }
+
+        return compiled;
+    }
+
+
+    /**
+     * @return A number incremented each time the cached tuples are modified
+     */
+    public long getVersion()
+    {
+        return version.get();
     }
 }
@@ -0,0 +1,443 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeValueItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxValueCountItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RangeOfValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RestrictedByItem;
+import org.apache.directory.api.ldap.aci.protectedItem.SelfValueItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+
+
+/**
+ * A cache of the decisions taken by the {@link ACDFEngine}. When the same user reads many
+ * entries governed by the same ACI subentries, most of the decisions are identical : the
+ * result of the engine only depends on the user, its groups and its authentication level,
+ * the ACI tuples, the objectClasses of the entry, the attribute type, and the requested
+ * micro-operations.
+ * <br>
+ * This is only true if the tuples don't contain any item depending on the entry itself
+ * (its name, its values, its children), which is checked by {@link #isCacheable(Collection)}.
+ * The ACI tuples are identified by the set of ACI subentries governing the entry : the cache
+ * must be invalidated when the content of a subentry changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCache
+{
+    /** The default maximum number of decisions kept in the cache */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /** The engine taking the decisions */
+    private final ACDFEngine engine;
+
+    /** The maximum number of decisions kept in the cache */
+    private final int maxSize;
+
+    /** The cached decisions */
+    private final Map<Decision, Boolean> decisions = new ConcurrentHashMap<>();
+
+    /** Incremented each time the cache is invalidated */
+    private final AtomicLong generation = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of AciDecisionCache.
+     *
+     * @param engine The engine taking the decisions
+     */
+    public AciDecisionCache( ACDFEngine engine )
+    {
+        this( engine, DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of AciDecisionCache.
+     *
+     * @param engine The engine taking the decisions
+     * @param maxSize The maximum number of decisions kept in the cache
+     */
+    public AciDecisionCache( ACDFEngine engine, int maxSize )
+    {
+        this.engine = engine;
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Tells if the decisions taken on a set of tuples can be cached, ie if none of the
+     * tuples depends on the entry name, on the entry values or on the value being checked.
+     *
+     * @param tuples The ACI tuples
+     * @return <tt>true</tt> if the decisions can be cached
+     */
+    public static boolean isCacheable( Collection<ACITuple> tuples )
+    {
+        for ( ACITuple tuple : tuples )
+        {
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( ( userClass == UserClass.THIS_ENTRY ) || ( userClass == UserClass.PARENT_OF_ENTRY ) )
+                {
+                    return false;
+                }
+
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    // A refinement is evaluated against the user entry, which may change
+                    for ( SubtreeSpecification subtreeSpec : ( ( UserClass.Subtree ) userClass )
+                        .getSubtreeSpecifications() )
+                    {
+                        if ( subtreeSpec.getRefinement() != null )
+                        {
+                            return false;
+                        }
+                    }
+                }
+            }
+
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item instanceof AttributeValueItem ) || ( item instanceof SelfValueItem )
+                    || ( item instanceof RangeOfValuesItem ) || ( item instanceof MaxValueCountItem )
+                    || ( item instanceof RestrictedByItem ) || ( item instanceof MaxImmSubItem ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Creates the part of the cache key shared by all the decisions taken on an entry.
+     *
+     * @param userDn The user Dn
+     * @param userGroups The normalized names of the user's groups
+     * @param authenticationLevel The user's authentication level
+     * @param subentries The accessControlSubentries attribute of the entry. May be null.
+     * @param objectClasses The objectClass attribute of the entry
+     * @return The entry scope
+     */
+    public EntryScope createScope( Dn userDn, Collection<String> userGroups, AuthenticationLevel authenticationLevel,
+        Attribute subentries, Attribute objectClasses )
+    {
+        return createScope( userDn, userGroups, authenticationLevel, subentries, objectClasses, null, null );
+    }
+
+
+    /**
+     * Creates the part of the cache key shared by all the decisions taken on an entry. The
+     * decisions which are not cached are taken using the compiled tuples.
+     *
+     * @param userDn The user Dn
+     * @param userGroups The normalized names of the user's groups
+     * @param authenticationLevel The user's authentication level
+     * @param subentries The accessControlSubentries attribute of the entry. May be null.
+     * @param objectClasses The objectClass attribute of the entry
+     * @param compiled The compiled tuples governing the entry. If null, the ACDFEngine is used.
+     * @param userTuples The compiled tuples related to the user
+     * @return The entry scope
+     */
+    public EntryScope createScope( Dn userDn, Collection<String> userGroups, AuthenticationLevel authenticationLevel,
+        Attribute subentries, Attribute objectClasses, CompiledAciTuples compiled, BitSet userTuples )
+    {
+        EntryScope scope = new EntryScope( generation.get(), userDn.getNormName(), new HashSet<String>( userGroups ),
+            authenticationLevel, normalize( subentries ), normalize( objectClasses ) );
+
+        if ( ( compiled != null ) && compiled.isCompiled() )
+        {
+            scope.compiled = compiled;
+            scope.userTuples = userTuples;
+        }
+
+        return scope;
+    }
+
+
+    private static Set<String> normalize( Attribute attribute )
+    {
+        if ( attribute == null )
+        {
+            return Collections.emptySet();
+        }
+
+        Set<String> values = new HashSet<>( attribute.size() );
+
+        for ( Value value : attribute )
+        {
+            values.add( value.getNormalized() );
+        }
+
+        return values;
+    }
+
+
+    /**
+     * Returns the decision for an ACI context, computing it if it's not cached.
+     *
+     * @param scope The entry scope, or null if the decisions for this entry can't be cached
+     * @param aciContext The ACI context
+     * @return <tt>true</tt> if the user has permission to access the resource
+     * @throws LdapException if failed to evaluate ACI items
+     */
+    public boolean hasPermission( EntryScope scope, AciContext aciContext ) throws LdapException
+    {
+        if ( scope == null )
+        {
+            return engine.hasPermission( aciContext );
+        }
+
+        String oid = null;
+
+        if ( aciContext.getAttributeType() != null )
+        {
+            oid = aciContext.getAttributeType().getOid();
+        }
+
+        Decision decision = new Decision( scope, oid, aciContext.getAttrValue() != null,
+            aciContext.getMicroOperations() );
+        Boolean granted = decisions.get( decision );
+
+        if ( granted != null )
+        {
+            return granted;
+        }
+
+        if ( scope.compiled != null )
+        {
+            granted = scope.compiled.hasPermission( scope.userTuples, aciContext.getAttributeType(),
+                aciContext.getAttrValue() != null, aciContext.getMicroOperations() );
+        }
+        else
+        {
+            granted = engine.hasPermission( aciContext );
+        }
+
+        if ( decisions.size() >= maxSize )
+        {
+            decisions.clear();
+        }
+
+        decisions.put( decision, granted );
+
+        // The decision may have been taken on stale tuples
+        if ( generation.get() != scope.generation )
+        {
+            decisions.remove( decision );
+        }
+
+        return granted;
+    }
+
+
+    /**
+     * Removes all the decisions. Must be called when an ACI subentry or a group is modified.
+     */
+    public void invalidate()
+    {
+        generation.incrementAndGet();
+        decisions.clear();
+    }
+
+
+    /**
+     * @return The number of cached decisions
+     */
+    public int size()
+    {
+        return decisions.size();
+    }
+
+    /**
+     * The user and the entry related part of the cache keys
+     */
+    public static final class EntryScope
+    {
+        /** The cache generation when this scope has been created */
+        private final long generation;
+
+        private final String userDn;
+        private final Set<String> userGroups;
+        private final AuthenticationLevel authenticationLevel;
+        private final Set<String> subentries;
+        private final Set<String> objectClasses;
+        private final int hashCode;
+
+        /** The compiled tuples used to take the decisions, if any. Not part of the key */
+        private CompiledAciTuples compiled;
+
+        /** The compiled tuples related to the user */
+        private BitSet userTuples;
+
+
+        private EntryScope( long generation, String userDn, Set<String> userGroups,
+            AuthenticationLevel authenticationLevel, Set<String> subentries, Set<String> objectClasses )
+        {
+            this.generation = generation;
+            this.userDn = userDn;
+            this.userGroups = userGroups;
+            this.authenticationLevel = authenticationLevel;
+            this.subentries = subentries;
+            this.objectClasses = objectClasses;
+
+            int h = 37;
+            h = h * 17 + userDn.hashCode();
+            h = h * 17 + userGroups.hashCode();
+            h = h * 17 + authenticationLevel.hashCode();
+            h = h * 17 + subentries.hashCode();
+            h = h * 17 + objectClasses.hashCode();
+            hashCode = h;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( obj == this )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof EntryScope ) )
+            {
+                return false;
+            }
+
+            EntryScope that = ( EntryScope ) obj;
+
+            return ( hashCode == that.hashCode ) && userDn.equals( that.userDn )
+                && ( authenticationLevel == that.authenticationLevel ) && userGroups.equals( that.userGroups )
+                && subentries.equals( that.subentries ) && objectClasses.equals( that.objectClasses );
+        }
+    }
+
+    /**
+     * A cache key
+     */
+    private static final class Decision
+    {
+        private final EntryScope scope;
+        private final String attributeOid;
+        private final boolean hasValue;
+        private final Set<MicroOperation> microOperations;
+
+
+        private Decision( EntryScope scope, String attributeOid, boolean hasValue,
+            Collection<MicroOperation> microOperations )
+        {
+            this.scope = scope;
+            this.attributeOid = attributeOid;
+            this.hasValue = hasValue;
+
+            if ( ( microOperations == null ) || microOperations.isEmpty() )
+            {
+                this.microOperations = EnumSet.noneOf( MicroOperation.class );
+            }
+            else
+            {
+                this.microOperations = EnumSet.copyOf( microOperations );
+            }
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            int h = scope.hashCode();
+            h = h * 17 + ( attributeOid == null ? 0 : attributeOid.hashCode() );
+            h = h * 17 + ( hasValue ? 1 : 0 );
+            h = h * 17 + microOperations.hashCode();
+
+            return h;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof Decision ) )
+            {
+                return false;
+            }
+
+            Decision that = ( Decision ) obj;
+
+            if ( attributeOid == null )
+            {
+                if ( that.attributeOid != null )
+                {
+                    return false;
+                }
+            }
+            else if ( !attributeOid.equals( that.attributeOid ) )
+            {
+                return false;
+            }
+
+            return ( hasValue == that.hasValue ) && microOperations.equals( that.microOperations )
+                && scope.equals( that.scope );
+        }
+    }
+}
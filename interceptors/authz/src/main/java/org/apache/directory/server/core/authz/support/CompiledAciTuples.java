@@ -0,0 +1,521 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
+
+
+/**
+ * A set of ACI tuples compiled into bit sets, one bit per tuple. The tuples are sorted
+ * by decreasing precedence, and the user classes, the protected items, the authentication
+ * levels and the micro-operations are turned into masks. A decision then only requires a
+ * few mask operations, and gives the same result as the {@link ACDFEngine} :
+ * <ul>
+ *   <li>{@link #getUserTuples(Dn, Collection, AuthenticationLevel, SubtreeEvaluator)} applies
+ *   the {@link RelatedUserClassFilter}. The result only depends on the user, and can be reused
+ *   for all the entries governed by these tuples</li>
+ *   <li>{@link #hasPermission(BitSet, AttributeType, boolean, Collection)} applies the
+ *   {@link RelatedProtectedItemFilter}, the {@link MicroOperationFilter}, the
+ *   {@link HighestPrecedenceFilter}, the {@link MostSpecificUserClassFilter} and the
+ *   {@link MostSpecificProtectedItemFilter}, then checks that all the remaining tuples are
+ *   grants</li>
+ * </ul>
+ * Only the tuples which don't depend on the entry or on the checked value can be compiled :
+ * the user classes must be allUsers, name, userGroup or subtree without refinement, and the
+ * protected items must be entry, allUserAttributeTypes, allUserAttributeTypesAndValues,
+ * attributeType or allAttributeValues. If any tuple can't be compiled, {@link #isCompiled()}
+ * returns <tt>false</tt> and the ACDFEngine must be used.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompiledAciTuples
+{
+    /** Sorts the tuples by decreasing precedence */
+    private static final Comparator<ACITuple> PRECEDENCE_COMPARATOR = new Comparator<ACITuple>()
+    {
+        @Override
+        public int compare( ACITuple tuple1, ACITuple tuple2 )
+        {
+            return tuple2.getPrecedence().compareTo( tuple1.getPrecedence() );
+        }
+    };
+
+    /** Tells if all the tuples have been compiled */
+    private final boolean compiled;
+
+    /** The number of tuples */
+    private final int size;
+
+    /** For each tuple, the position of the first tuple with a lower precedence */
+    private final int[] precedenceEnd;
+
+    /** The grant tuples. The other ones are denials */
+    private final BitSet grants = new BitSet();
+
+    /** The tuples with an allUsers user class */
+    private final BitSet allUsers = new BitSet();
+
+    /** The tuples per normalized user name */
+    private final Map<String, BitSet> userNames = new HashMap<>();
+
+    /** The tuples per normalized group name */
+    private final Map<String, BitSet> userGroups = new HashMap<>();
+
+    /** The subtree user classes, per tuple */
+    private final Map<Integer, List<SubtreeSpecification>> subtrees = new HashMap<>();
+
+    /** The tuples with a name, a userGroup or a subtree user class */
+    private final BitSet nameTuples = new BitSet();
+    private final BitSet groupTuples = new BitSet();
+    private final BitSet subtreeTuples = new BitSet();
+
+    /** The tuples whose authentication level is lower or equal to a given level */
+    private final Map<AuthenticationLevel, BitSet> levels = new EnumMap<>( AuthenticationLevel.class );
+
+    /** The tuples protecting the entry */
+    private final BitSet entryItems = new BitSet();
+
+    /** The tuples protecting all the user attribute types */
+    private final BitSet allUserAttributeTypes = new BitSet();
+
+    /** The tuples protecting an attribute type, per OID */
+    private final Map<String, BitSet> attributeTypes = new HashMap<>();
+
+    /** The tuples protecting all the values of an attribute type, per OID */
+    private final Map<String, BitSet> attributeValues = new HashMap<>();
+
+    /** The tuples with an attributeType or allAttributeValues protected item */
+    private final BitSet attributeSpecific = new BitSet();
+
+    /** The tuples granting or denying a micro-operation */
+    private final Map<MicroOperation, BitSet> microOperations = new EnumMap<>( MicroOperation.class );
+
+
+    /**
+     * Compiles a set of ACI tuples.
+     *
+     * @param aciTuples The tuples to compile
+     */
+    public CompiledAciTuples( Collection<ACITuple> aciTuples )
+    {
+        List<ACITuple> tuples = new ArrayList<>( aciTuples );
+        size = tuples.size();
+        precedenceEnd = new int[size];
+
+        for ( MicroOperation microOperation : MicroOperation.values() )
+        {
+            microOperations.put( microOperation, new BitSet() );
+        }
+
+        for ( AuthenticationLevel level : AuthenticationLevel.values() )
+        {
+            levels.put( level, new BitSet() );
+        }
+
+        compiled = isCompilable( tuples );
+
+        if ( !compiled )
+        {
+            return;
+        }
+
+        Collections.sort( tuples, PRECEDENCE_COMPARATOR );
+
+        for ( int i = 0; i < size; i++ )
+        {
+            compile( i, tuples.get( i ) );
+        }
+
+        // The precedence blocks
+        int end = size;
+
+        for ( int i = size - 1; i >= 0; i-- )
+        {
+            if ( ( i < size - 1 )
+                && !tuples.get( i ).getPrecedence().equals( tuples.get( i + 1 ).getPrecedence() ) )
+            {
+                end = i + 1;
+            }
+
+            precedenceEnd[i] = end;
+        }
+    }
+
+
+    private static boolean isCompilable( List<ACITuple> tuples )
+    {
+        for ( ACITuple tuple : tuples )
+        {
+            if ( tuple.getPrecedence() == null )
+            {
+                return false;
+            }
+
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtreeSpec : ( ( UserClass.Subtree ) userClass )
+                        .getSubtreeSpecifications() )
+                    {
+                        if ( subtreeSpec.getRefinement() != null )
+                        {
+                            return false;
+                        }
+                    }
+                }
+                else if ( ( userClass != UserClass.ALL_USERS ) && !( userClass instanceof UserClass.Name )
+                    && !( userClass instanceof UserClass.UserGroup ) )
+                {
+                    return false;
+                }
+            }
+
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item != ProtectedItem.ENTRY ) && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES )
+                    && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES )
+                    && !( item instanceof AttributeTypeItem ) && !( item instanceof AllAttributeValuesItem ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    private void compile( int pos, ACITuple tuple )
+    {
+        if ( tuple.isGrant() )
+        {
+            grants.set( pos );
+        }
+
+        for ( UserClass userClass : tuple.getUserClasses() )
+        {
+            if ( userClass == UserClass.ALL_USERS )
+            {
+                allUsers.set( pos );
+            }
+            else if ( userClass instanceof UserClass.Name )
+            {
+                nameTuples.set( pos );
+
+                for ( String name : ( ( UserClass.Name ) userClass ).getNames() )
+                {
+                    getBitSet( userNames, name ).set( pos );
+                }
+            }
+            else if ( userClass instanceof UserClass.UserGroup )
+            {
+                groupTuples.set( pos );
+
+                for ( String name : ( ( UserClass.UserGroup ) userClass ).getNames() )
+                {
+                    getBitSet( userGroups, name ).set( pos );
+                }
+            }
+            else
+            {
+                subtreeTuples.set( pos );
+
+                List<SubtreeSpecification> specs = subtrees.get( pos );
+
+                if ( specs == null )
+                {
+                    specs = new ArrayList<>();
+                    subtrees.put( pos, specs );
+                }
+
+                specs.addAll( ( ( UserClass.Subtree ) userClass ).getSubtreeSpecifications() );
+            }
+        }
+
+        for ( Map.Entry<AuthenticationLevel, BitSet> level : levels.entrySet() )
+        {
+            if ( level.getKey().compareTo( tuple.getAuthenticationLevel() ) >= 0 )
+            {
+                level.getValue().set( pos );
+            }
+        }
+
+        for ( ProtectedItem item : tuple.getProtectedItems() )
+        {
+            if ( item == ProtectedItem.ENTRY )
+            {
+                entryItems.set( pos );
+            }
+            else if ( ( item == ProtectedItem.ALL_USER_ATTRIBUTE_TYPES )
+                || ( item == ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES ) )
+            {
+                allUserAttributeTypes.set( pos );
+            }
+            else if ( item instanceof AttributeTypeItem )
+            {
+                attributeSpecific.set( pos );
+
+                for ( Iterator<AttributeType> iterator = ( ( AttributeTypeItem ) item ).iterator(); iterator
+                    .hasNext(); )
+                {
+                    getBitSet( attributeTypes, iterator.next().getOid() ).set( pos );
+                }
+            }
+            else
+            {
+                attributeSpecific.set( pos );
+
+                for ( Iterator<AttributeType> iterator = ( ( AllAttributeValuesItem ) item ).iterator(); iterator
+                    .hasNext(); )
+                {
+                    getBitSet( attributeValues, iterator.next().getOid() ).set( pos );
+                }
+            }
+        }
+
+        for ( MicroOperation microOperation : tuple.getMicroOperations() )
+        {
+            microOperations.get( microOperation ).set( pos );
+        }
+    }
+
+
+    private static BitSet getBitSet( Map<String, BitSet> map, String key )
+    {
+        BitSet bitSet = map.get( key );
+
+        if ( bitSet == null )
+        {
+            bitSet = new BitSet();
+            map.put( key, bitSet );
+        }
+
+        return bitSet;
+    }
+
+
+    /**
+     * @return <tt>true</tt> if all the tuples have been compiled. Otherwise, this instance
+     * can't be used.
+     */
+    public boolean isCompiled()
+    {
+        return compiled;
+    }
+
+
+    /**
+     * Selects the tuples related to a user, as the {@link RelatedUserClassFilter} does : the
+     * grants applying to the user, if its authentication level is high enough, and the denials
+     * applying to the user or requiring a higher authentication level.
+     *
+     * @param userDn The user Dn
+     * @param userGroupNames The normalized names of the user's groups
+     * @param authenticationLevel The user's authentication level
+     * @param subtreeEvaluator The evaluator used for the subtree user classes
+     * @return The tuples related to the user
+     * @throws LdapException If a subtree user class can't be evaluated
+     */
+    public BitSet getUserTuples( Dn userDn, Collection<String> userGroupNames,
+        AuthenticationLevel authenticationLevel, SubtreeEvaluator subtreeEvaluator ) throws LdapException
+    {
+        BitSet related = ( BitSet ) allUsers.clone();
+
+        BitSet names = userNames.get( userDn.getNormName() );
+
+        if ( names != null )
+        {
+            related.or( names );
+        }
+
+        for ( String userGroupName : userGroupNames )
+        {
+            BitSet groups = userGroups.get( userGroupName );
+
+            if ( groups != null )
+            {
+                related.or( groups );
+            }
+        }
+
+        for ( Map.Entry<Integer, List<SubtreeSpecification>> subtree : subtrees.entrySet() )
+        {
+            if ( related.get( subtree.getKey() ) )
+            {
+                continue;
+            }
+
+            for ( SubtreeSpecification subtreeSpec : subtree.getValue() )
+            {
+                // There is no refinement, the user entry is not needed
+                if ( subtreeEvaluator.evaluate( subtreeSpec, Dn.ROOT_DSE, userDn, null ) )
+                {
+                    related.set( subtree.getKey() );
+                    break;
+                }
+            }
+        }
+
+        BitSet levelOk = levels.get( authenticationLevel );
+
+        // The grants must be related, and require at most the user authentication level
+        BitSet userTuples = ( BitSet ) related.clone();
+        userTuples.and( levelOk );
+        userTuples.and( grants );
+
+        // The denials must be related, or require a higher authentication level
+        BitSet denials = ( BitSet ) levelOk.clone();
+        denials.flip( 0, size );
+        denials.or( related );
+        denials.andNot( grants );
+
+        userTuples.or( denials );
+
+        return userTuples;
+    }
+
+
+    /**
+     * Tells if a user can access an entry, an attribute type or an attribute value.
+     *
+     * @param userTuples The tuples related to the user, as returned by
+     * {@link #getUserTuples(Dn, Collection, AuthenticationLevel, SubtreeEvaluator)}
+     * @param attributeType The attribute type, or null to check the access to the entry
+     * @param hasValue <tt>true</tt> if the access to an attribute value is checked
+     * @param requestedOperations The requested micro-operations
+     * @return <tt>true</tt> if the user has permission to access the resource
+     */
+    public boolean hasPermission( BitSet userTuples, AttributeType attributeType, boolean hasValue,
+        Collection<MicroOperation> requestedOperations )
+    {
+        BitSet candidates = ( BitSet ) userTuples.clone();
+
+        // The related protected items
+        if ( attributeType == null )
+        {
+            candidates.and( entryItems );
+        }
+        else
+        {
+            BitSet items = ( BitSet ) allUserAttributeTypes.clone();
+            BitSet specific;
+
+            if ( hasValue )
+            {
+                specific = attributeValues.get( attributeType.getOid() );
+            }
+            else
+            {
+                specific = attributeTypes.get( attributeType.getOid() );
+            }
+
+            if ( specific != null )
+            {
+                items.or( specific );
+            }
+
+            candidates.and( items );
+        }
+
+        // The tuples must contain all the requested micro-operations
+        for ( MicroOperation microOperation : requestedOperations )
+        {
+            candidates.and( microOperations.get( microOperation ) );
+        }
+
+        // The highest precedence
+        int first = candidates.nextSetBit( 0 );
+
+        if ( first < 0 )
+        {
+            return false;
+        }
+
+        candidates.clear( precedenceEnd[first], size );
+
+        // The most specific user classes, then the most specific protected items
+        if ( candidates.cardinality() > 1 )
+        {
+            if ( !retain( candidates, nameTuples ) && !retain( candidates, groupTuples ) )
+            {
+                retain( candidates, subtreeTuples );
+            }
+        }
+
+        if ( candidates.cardinality() > 1 )
+        {
+            retain( candidates, attributeSpecific );
+        }
+
+        // Grant access if and only if all the remaining tuples grant access
+        candidates.andNot( grants );
+
+        return candidates.isEmpty();
+    }
+
+
+    /**
+     * Keeps the candidates which are in the given set, if there are some.
+     */
+    private static boolean retain( BitSet candidates, BitSet set )
+    {
+        if ( !candidates.intersects( set ) )
+        {
+            return false;
+        }
+
+        candidates.and( set );
+
+        return true;
+    }
+
+
+    /**
+     * @return The number of tuples
+     */
+    public int size()
+    {
+        return size;
+    }
+}
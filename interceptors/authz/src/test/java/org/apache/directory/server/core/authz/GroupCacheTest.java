@@ -0,0 +1,324 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.AttributeTypeProvider;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests {@link GroupCache}, and the consistency of its member to groups reverse index
+ * with the groupCache. The groupCache copies the elements on read and write, as a disk
+ * backed cache does, and only holds two groups, so that a third one evicts another.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupCacheTest
+{
+    private static final String GROUP1 = "cn=group1,ou=groups,ou=system";
+    private static final String GROUP2 = "cn=group2,ou=groups,ou=system";
+    private static final String GROUP3 = "cn=group3,ou=groups,ou=system";
+
+    private static SchemaManager schemaManager;
+
+    private CacheManager cacheManager;
+    private GroupCacheDirectoryService directoryService;
+    private GroupCache groupCache;
+
+    /**
+     * A DirectoryService providing what the GroupCache needs, with no partition to
+     * load the groups from.
+     */
+    private static final class GroupCacheDirectoryService extends MockDirectoryService
+    {
+        private final CacheService cacheService;
+        private final AttributeTypeProvider atProvider;
+
+
+        private GroupCacheDirectoryService( CacheManager cacheManager )
+        {
+            cacheService = new CacheService( cacheManager );
+            atProvider = new AttributeTypeProvider( schemaManager );
+            setSchemaManager( schemaManager );
+            setDnFactory( new DefaultDnFactory( schemaManager, null ) );
+        }
+
+
+        @Override
+        public CacheService getCacheService()
+        {
+            return cacheService;
+        }
+
+
+        @Override
+        public AttributeTypeProvider getAtProvider()
+        {
+            return atProvider;
+        }
+
+
+        @Override
+        public PartitionNexus getPartitionNexus()
+        {
+            InvocationHandler handler = new InvocationHandler()
+            {
+                @Override
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if ( "listSuffixes".equals( method.getName() ) )
+                    {
+                        return Collections.emptySet();
+                    }
+
+                    return null;
+                }
+            };
+
+            return ( PartitionNexus ) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[]
+                    { PartitionNexus.class }, handler );
+        }
+    }
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        Configuration configuration = new Configuration().name( "GroupCacheTest" );
+        configuration.addCache( new CacheConfiguration( "groupCache", 2 ).copyOnRead( true ).copyOnWrite( true ) );
+        cacheManager = new CacheManager( configuration );
+
+        directoryService = new GroupCacheDirectoryService( cacheManager );
+        groupCache = new GroupCache( directoryService );
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        cacheManager.shutdown();
+    }
+
+
+    private Entry group( String dn, String... members ) throws LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: groupOfNames",
+            "cn: " + new Dn( schemaManager, dn ).getRdn().getValue() );
+
+        for ( String member : members )
+        {
+            entry.add( "member", member );
+        }
+
+        return entry;
+    }
+
+
+    private Entry members( String... members ) throws LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager );
+
+        for ( String member : members )
+        {
+            entry.add( "member", member );
+        }
+
+        return entry;
+    }
+
+
+    private static String user( String uid )
+    {
+        return "uid=" + uid + ",ou=users,ou=system";
+    }
+
+
+    private static Dn dn( String name ) throws LdapException
+    {
+        return new Dn( schemaManager, name );
+    }
+
+
+    private Set<String> getGroups( String uid ) throws LdapException
+    {
+        return groupCache.getGroups( dn( user( uid ) ).getNormName() );
+    }
+
+
+    private static Set<String> groups( String... names ) throws LdapException
+    {
+        Set<String> groups = new HashSet<>();
+
+        for ( String name : names )
+        {
+            groups.add( dn( name ).getNormName() );
+        }
+
+        return groups;
+    }
+
+
+    private void addGroup( String name, String... members ) throws LdapException
+    {
+        groupCache.groupAdded( dn( name ).getNormName(), group( name, members ) );
+    }
+
+
+    @Test
+    public void testGroupAdded() throws Exception
+    {
+        addGroup( GROUP1, user( "user1" ), user( "user2" ) );
+        addGroup( GROUP2, user( "user2" ) );
+
+        assertEquals( groups( GROUP1 ), getGroups( "user1" ) );
+        assertEquals( groups( GROUP1, GROUP2 ), getGroups( "user2" ) );
+        assertTrue( getGroups( "user3" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testGroupModified() throws Exception
+    {
+        addGroup( GROUP1, user( "user1" ), user( "user2" ) );
+        long version = groupCache.getVersion();
+
+        groupCache.groupModified( dn( GROUP1 ), ModificationOperation.ADD_ATTRIBUTE, members( user( "user3" ) ) );
+        assertEquals( groups( GROUP1 ), getGroups( "user3" ) );
+        assertTrue( groupCache.getVersion() > version );
+
+        groupCache.groupModified( dn( GROUP1 ), ModificationOperation.REMOVE_ATTRIBUTE, members( user( "user1" ) ) );
+        assertTrue( getGroups( "user1" ).isEmpty() );
+        assertEquals( groups( GROUP1 ), getGroups( "user2" ) );
+
+        groupCache.groupModified( dn( GROUP1 ), ModificationOperation.REPLACE_ATTRIBUTE, members( user( "user4" ) ) );
+        assertTrue( getGroups( "user2" ).isEmpty() );
+        assertTrue( getGroups( "user3" ).isEmpty() );
+        assertEquals( groups( GROUP1 ), getGroups( "user4" ) );
+
+        // The groupCache hands back copies : the modified members must have been stored back
+        Cache cache = cacheManager.getCache( "groupCache" );
+        assertEquals( Collections.singleton( dn( user( "user4" ) ).getNormName() ),
+            cache.get( dn( GROUP1 ).getNormName() ).getObjectValue() );
+
+        // and the index is rebuilt from them when groups leave the groupCache behind our back
+        cache.removeAll();
+        assertTrue( getGroups( "user4" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testGroupDeleted() throws Exception
+    {
+        addGroup( GROUP1, user( "user1" ), user( "user2" ) );
+        addGroup( GROUP2, user( "user2" ) );
+
+        groupCache.groupDeleted( dn( GROUP1 ), group( GROUP1, user( "user1" ), user( "user2" ) ) );
+
+        assertTrue( getGroups( "user1" ).isEmpty() );
+        assertEquals( groups( GROUP2 ), getGroups( "user2" ) );
+    }
+
+
+    @Test
+    public void testGroupRenamed() throws Exception
+    {
+        addGroup( GROUP1, user( "user1" ) );
+
+        assertTrue( groupCache.groupRenamed( dn( GROUP1 ), dn( GROUP3 ) ) );
+        assertEquals( groups( GROUP3 ), getGroups( "user1" ) );
+
+        groupCache.groupModified( dn( GROUP3 ), ModificationOperation.ADD_ATTRIBUTE, members( user( "user2" ) ) );
+        assertEquals( groups( GROUP3 ), getGroups( "user2" ) );
+
+        assertFalse( groupCache.groupRenamed( dn( GROUP1 ), dn( GROUP2 ) ) );
+    }
+
+
+    @Test
+    public void testGroupEvicted() throws Exception
+    {
+        addGroup( GROUP1, user( "user1" ) );
+        addGroup( GROUP2, user( "user2" ) );
+        addGroup( GROUP3, user( "user3" ) );
+
+        // One of the three groups has been evicted : the index must agree with the groupCache
+        Cache cache = cacheManager.getCache( "groupCache" );
+        String[] names = { GROUP1, GROUP2, GROUP3 };
+        int cached = 0;
+
+        for ( int i = 0; i < names.length; i++ )
+        {
+            String uid = "user" + ( i + 1 );
+
+            if ( cache.isKeyInCache( dn( names[i] ).getNormName() ) )
+            {
+                cached++;
+                assertEquals( groups( names[i] ), getGroups( uid ) );
+            }
+            else
+            {
+                assertTrue( getGroups( uid ).isEmpty() );
+            }
+        }
+
+        assertEquals( 2, cached );
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests {@link AciDecisionCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCacheTest
+{
+    private static SchemaManager schemaManager;
+    private static Dn USER_NAME;
+    private static Attribute OBJECT_CLASSES;
+
+    private CountingEngine engine;
+    private AciDecisionCache cache;
+
+    /**
+     * An engine counting the decisions it takes
+     */
+    private static class CountingEngine extends ACDFEngine
+    {
+        private int count;
+
+
+        private CountingEngine( SchemaManager schemaManager )
+        {
+            super( schemaManager );
+        }
+
+
+        @Override
+        public boolean hasPermission( AciContext aciContext ) throws LdapException
+        {
+            count++;
+
+            return aciContext.getAttrValue() == null;
+        }
+    }
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        USER_NAME = new Dn( schemaManager, "uid=test,ou=users,ou=system" );
+        OBJECT_CLASSES = new DefaultAttribute( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT ),
+            "top", "person" );
+    }
+
+
+    @Before
+    public void setup()
+    {
+        engine = new CountingEngine( schemaManager );
+        cache = new AciDecisionCache( engine );
+    }
+
+
+    private static Collection<ACITuple> getTuples( UserClass userClass )
+    {
+        Collection<ACITuple> tuples = new ArrayList<>();
+        Set<MicroOperation> microOperations = new HashSet<>();
+        microOperations.add( MicroOperation.READ );
+
+        tuples.add( new ACITuple( Collections.<UserClass>singleton( userClass ), AuthenticationLevel.NONE,
+            Collections.<ProtectedItem>singleton( ProtectedItem.ENTRY ), microOperations, true, 0 ) );
+
+        return tuples;
+    }
+
+
+    private AciContext getContext( Collection<MicroOperation> microOperations )
+    {
+        AciContext aciContext = new AciContext( schemaManager, null );
+        aciContext.setUserDn( USER_NAME );
+        aciContext.setAuthenticationLevel( AuthenticationLevel.NONE );
+        aciContext.setEntryDn( USER_NAME );
+        aciContext.setMicroOperations( microOperations );
+        aciContext.setAciTuples( getTuples( UserClass.ALL_USERS ) );
+
+        return aciContext;
+    }
+
+
+    private AciDecisionCache.EntryScope getScope()
+    {
+        return cache.createScope( USER_NAME, Collections.<String> emptySet(), AuthenticationLevel.NONE, null,
+            OBJECT_CLASSES );
+    }
+
+
+    @Test
+    public void testIsCacheable()
+    {
+        assertTrue( AciDecisionCache.isCacheable( getTuples( UserClass.ALL_USERS ) ) );
+        assertTrue( AciDecisionCache.isCacheable( Collections.<ACITuple> emptyList() ) );
+
+        // These user classes depend on the entry name
+        assertFalse( AciDecisionCache.isCacheable( getTuples( UserClass.THIS_ENTRY ) ) );
+        assertFalse( AciDecisionCache.isCacheable( getTuples( UserClass.PARENT_OF_ENTRY ) ) );
+    }
+
+
+    @Test
+    public void testCachedDecision() throws Exception
+    {
+        AciDecisionCache.EntryScope scope = getScope();
+
+        assertTrue( cache.hasPermission( scope, getContext( Collections.singleton( MicroOperation.READ ) ) ) );
+        assertEquals( 1, engine.count );
+
+        // Same user, same subentries and objectClasses : the decision is cached
+        assertTrue( cache.hasPermission( getScope(), getContext( Collections.singleton( MicroOperation.READ ) ) ) );
+        assertEquals( 1, engine.count );
+        assertEquals( 1, cache.size() );
+
+        // Other micro-operations
+        assertTrue( cache.hasPermission( scope, getContext( Collections.singleton( MicroOperation.BROWSE ) ) ) );
+        assertEquals( 2, engine.count );
+
+        // A null scope disables the cache
+        assertTrue( cache.hasPermission( null, getContext( Collections.singleton( MicroOperation.READ ) ) ) );
+        assertEquals( 3, engine.count );
+        assertEquals( 2, cache.size() );
+    }
+
+
+    @Test
+    public void testInvalidate() throws Exception
+    {
+        AciDecisionCache.EntryScope scope = getScope();
+
+        cache.hasPermission( scope, getContext( Collections.singleton( MicroOperation.READ ) ) );
+        cache.invalidate();
+
+        assertEquals( 0, cache.size() );
+
+        // The decisions taken with a scope created before the invalidation are not kept
+        cache.hasPermission( scope, getContext( Collections.singleton( MicroOperation.READ ) ) );
+        assertEquals( 2, engine.count );
+        assertEquals( 0, cache.size() );
+
+        cache.hasPermission( getScope(), getContext( Collections.singleton( MicroOperation.READ ) ) );
+        cache.hasPermission( getScope(), getContext( Collections.singleton( MicroOperation.READ ) ) );
+        assertEquals( 3, engine.count );
+        assertEquals( 1, cache.size() );
+    }
+}
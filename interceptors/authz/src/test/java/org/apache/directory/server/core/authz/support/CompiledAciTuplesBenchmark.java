@@ -0,0 +1,155 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Compares the time needed to decide if an attribute can be read with the ACDFEngine
+ * filters, and with the {@link CompiledAciTuples}. The tuples are the random ones of
+ * {@link CompiledAciTuplesTest}, which checks that both paths take the same decisions.
+ * <br>
+ * The benchmark is run from the authz module, once the test classes are compiled :
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.apache.directory.server.core.authz.support.CompiledAciTuplesBenchmark
+ * </pre>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledAciTuplesBenchmark
+{
+    /** The number of random ACI items in the subentry */
+    @Param(
+        { "1", "10", "100" })
+    private int nbItems;
+
+    /** The tuples of the ACI items */
+    private List<ACITuple> tuples;
+
+    /** The same tuples, compiled */
+    private CompiledAciTuples compiled;
+
+    /** The compiled tuples the user belongs to */
+    private BitSet userTuples;
+
+    private Set<String> userGroups;
+
+    private Set<MicroOperation> microOperations;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        CompiledAciTuplesTest.setup();
+
+        Random random = new Random( 0L );
+        tuples = new ArrayList<>();
+
+        for ( int i = 0; i < nbItems; i++ )
+        {
+            tuples.addAll( CompiledAciTuplesTest.createRandomTuples( random ) );
+        }
+
+        userGroups = Collections.singleton( CompiledAciTuplesTest.GROUP_NAME.getNormName() );
+        microOperations = Collections.singleton( MicroOperation.READ );
+
+        compiled = new CompiledAciTuples( tuples );
+        userTuples = compiled.getUserTuples( CompiledAciTuplesTest.USER_NAME, userGroups, AuthenticationLevel.SIMPLE,
+            CompiledAciTuplesTest.subtreeEvaluator );
+    }
+
+
+    /**
+     * The decision taken by the ACDFEngine filters
+     */
+    @Benchmark
+    public boolean filters() throws Exception
+    {
+        return CompiledAciTuplesTest.evaluate( tuples, CompiledAciTuplesTest.USER_NAME, userGroups,
+            AuthenticationLevel.SIMPLE, CompiledAciTuplesTest.CN_AT, null, microOperations );
+    }
+
+
+    /**
+     * The decision taken with the compiled tuples, the user tuples being selected once per operation
+     */
+    @Benchmark
+    public boolean compiled()
+    {
+        return compiled.hasPermission( userTuples, CompiledAciTuplesTest.CN_AT, false, microOperations );
+    }
+
+
+    /**
+     * The decision taken with the compiled tuples, including the selection of the user tuples
+     */
+    @Benchmark
+    public boolean compiledWithUserClasses() throws Exception
+    {
+        BitSet tuplesOfUser = compiled.getUserTuples( CompiledAciTuplesTest.USER_NAME, userGroups,
+            AuthenticationLevel.SIMPLE, CompiledAciTuplesTest.subtreeEvaluator );
+
+        return compiled.hasPermission( tuplesOfUser, CompiledAciTuplesTest.CN_AT, false, microOperations );
+    }
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        Options options = new OptionsBuilder()
+            .include( CompiledAciTuplesBenchmark.class.getSimpleName() )
+            .build();
+
+        new Runner( options ).run();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.api.subtree.RefinementEvaluator;
+import org.apache.directory.server.core.api.subtree.RefinementLeafEvaluator;
+import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests {@link CompiledAciTuples}, comparing its decisions with the ones of the
+ * ACDFEngine filters.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompiledAciTuplesTest
+{
+    private static final MicroOperation[] MICRO_OPERATIONS =
+        { MicroOperation.READ, MicroOperation.BROWSE, MicroOperation.RETURN_DN, MicroOperation.COMPARE };
+
+    private static final AuthenticationLevel[] LEVELS =
+        { AuthenticationLevel.NONE, AuthenticationLevel.SIMPLE, AuthenticationLevel.STRONG };
+
+    private static SchemaManager schemaManager;
+    /* no qualifier */ static SubtreeEvaluator subtreeEvaluator;
+    private static ACITupleFilter[] filters;
+
+    /* no qualifier */ static AttributeType CN_AT;
+    private static AttributeType SN_AT;
+    /* no qualifier */ static Dn USER_NAME;
+    private static Dn OTHER_USER_NAME;
+    /* no qualifier */ static Dn GROUP_NAME;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        subtreeEvaluator = new SubtreeEvaluator( schemaManager );
+
+        CN_AT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CN_AT );
+        SN_AT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.SN_AT );
+        USER_NAME = new Dn( schemaManager, "uid=test,ou=users,ou=system" );
+        OTHER_USER_NAME = new Dn( schemaManager, "uid=other,ou=users,ou=system" );
+        GROUP_NAME = new Dn( schemaManager, "cn=test,ou=groups,ou=system" );
+
+        // The ACDFEngine filters, without the user entry lookup
+        filters = new ACITupleFilter[]
+            {
+                new RelatedUserClassFilter( subtreeEvaluator ),
+                new RelatedProtectedItemFilter( new RefinementEvaluator( new RefinementLeafEvaluator(
+                    schemaManager ) ), new ExpressionEvaluator( schemaManager ), schemaManager ),
+                new MaxValueCountFilter(),
+                new MaxImmSubFilter( schemaManager ),
+                new RestrictedByFilter(),
+                new MicroOperationFilter(),
+                new HighestPrecedenceFilter(),
+                new MostSpecificUserClassFilter(),
+                new MostSpecificProtectedItemFilter() };
+    }
+
+
+    /**
+     * Takes a decision the way the ACDFEngine does
+     */
+    /* no qualifier */ static boolean evaluate( Collection<ACITuple> tuples, Dn userDn, Set<String> userGroups,
+        AuthenticationLevel level, AttributeType attributeType, Value value,
+        Collection<MicroOperation> microOperations ) throws Exception
+    {
+        AciContext aciContext = new AciContext( schemaManager, null );
+        aciContext.setUserDn( userDn );
+        aciContext.setUserGroupNames( userGroups );
+        aciContext.setAuthenticationLevel( level );
+        aciContext.setEntryDn( USER_NAME );
+        aciContext.setAttributeType( attributeType );
+        aciContext.setAttrValue( value );
+        aciContext.setMicroOperations( microOperations );
+        aciContext.setAciTuples( new ArrayList<ACITuple>( tuples ) );
+
+        OperationScope scope;
+
+        if ( attributeType == null )
+        {
+            scope = OperationScope.ENTRY;
+        }
+        else if ( value == null )
+        {
+            scope = OperationScope.ATTRIBUTE_TYPE;
+        }
+        else
+        {
+            scope = OperationScope.ATTRIBUTE_TYPE_AND_VALUE;
+        }
+
+        for ( ACITupleFilter filter : filters )
+        {
+            if ( aciContext.getAciTuples().isEmpty() )
+            {
+                return false;
+            }
+
+            aciContext.setAciTuples( filter.filter( aciContext, scope, null ) );
+        }
+
+        if ( aciContext.getAciTuples().isEmpty() )
+        {
+            return false;
+        }
+
+        for ( ACITuple tuple : aciContext.getAciTuples() )
+        {
+            if ( !tuple.isGrant() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static ACITuple createTuple( UserClass userClass, ProtectedItem item, AuthenticationLevel level,
+        Set<MicroOperation> microOperations, boolean grant, int precedence )
+    {
+        return new ACITuple( Collections.singleton( userClass ), level, Collections.singleton( item ),
+            microOperations, grant, precedence );
+    }
+
+
+    /* no qualifier */ static Collection<ACITuple> createRandomTuples( Random random )
+    {
+        List<ACITuple> tuples = new ArrayList<>();
+        int nbTuples = 1 + random.nextInt( 6 );
+
+        for ( int i = 0; i < nbTuples; i++ )
+        {
+            UserClass userClass;
+
+            switch ( random.nextInt( 4 ) )
+            {
+                case 0:
+                    userClass = UserClass.ALL_USERS;
+                    break;
+
+                case 1:
+                    userClass = new UserClass.Name( Collections.singleton( USER_NAME.getNormName() ) );
+                    break;
+
+                case 2:
+                    userClass = new UserClass.Name( Collections.singleton( OTHER_USER_NAME.getNormName() ) );
+                    break;
+
+                default:
+                    userClass = new UserClass.UserGroup( Collections.singleton( GROUP_NAME.getNormName() ) );
+                    break;
+            }
+
+            ProtectedItem item;
+
+            switch ( random.nextInt( 6 ) )
+            {
+                case 0:
+                    item = ProtectedItem.ENTRY;
+                    break;
+
+                case 1:
+                    item = ProtectedItem.ALL_USER_ATTRIBUTE_TYPES;
+                    break;
+
+                case 2:
+                    item = ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES;
+                    break;
+
+                case 3:
+                    item = new AttributeTypeItem( Collections.singleton( CN_AT ) );
+                    break;
+
+                case 4:
+                    item = new AllAttributeValuesItem( Collections.singleton( CN_AT ) );
+                    break;
+
+                default:
+                    item = new AttributeTypeItem( Collections.singleton( SN_AT ) );
+                    break;
+            }
+
+            Set<MicroOperation> microOperations = new HashSet<>();
+
+            for ( MicroOperation microOperation : MICRO_OPERATIONS )
+            {
+                if ( random.nextBoolean() )
+                {
+                    microOperations.add( microOperation );
+                }
+            }
+
+            tuples.add( createTuple( userClass, item, LEVELS[random.nextInt( LEVELS.length )], microOperations,
+                random.nextInt( 3 ) > 0, random.nextInt( 3 ) ) );
+        }
+
+        return tuples;
+    }
+
+
+    @Test
+    public void testNotCompilable()
+    {
+        Set<MicroOperation> microOperations = Collections.singleton( MicroOperation.READ );
+
+        // thisEntry depends on the entry name
+        CompiledAciTuples compiled = new CompiledAciTuples( Collections.singleton( createTuple(
+            UserClass.THIS_ENTRY, ProtectedItem.ENTRY, AuthenticationLevel.NONE, microOperations, true, 0 ) ) );
+
+        assertFalse( compiled.isCompiled() );
+
+        compiled = new CompiledAciTuples( Collections.singleton( createTuple(
+            UserClass.ALL_USERS, ProtectedItem.ENTRY, AuthenticationLevel.NONE, microOperations, true, 0 ) ) );
+
+        assertTrue( compiled.isCompiled() );
+        assertEquals( 1, compiled.size() );
+    }
+
+
+    @Test
+    public void testPrecedence() throws Exception
+    {
+        Set<MicroOperation> microOperations = Collections.singleton( MicroOperation.READ );
+        List<ACITuple> tuples = new ArrayList<>();
+        tuples.add( createTuple( UserClass.ALL_USERS, ProtectedItem.ALL_USER_ATTRIBUTE_TYPES,
+            AuthenticationLevel.NONE, microOperations, true, 10 ) );
+        tuples.add( createTuple( UserClass.ALL_USERS, new AttributeTypeItem( Collections.singleton( SN_AT ) ),
+            AuthenticationLevel.NONE, microOperations, false, 5 ) );
+
+        CompiledAciTuples compiled = new CompiledAciTuples( tuples );
+        BitSet userTuples = compiled.getUserTuples( USER_NAME, Collections.<String> emptySet(),
+            AuthenticationLevel.SIMPLE, subtreeEvaluator );
+
+        // The grant has the highest precedence
+        assertTrue( compiled.hasPermission( userTuples, SN_AT, false, microOperations ) );
+        assertTrue( compiled.hasPermission( userTuples, CN_AT, false, microOperations ) );
+
+        // No tuple for the entry
+        assertFalse( compiled.hasPermission( userTuples, null, false, microOperations ) );
+
+        // No tuple granting compare
+        assertFalse( compiled.hasPermission( userTuples, CN_AT, false,
+            Collections.singleton( MicroOperation.COMPARE ) ) );
+    }
+
+
+    @Test
+    public void testSameDecisionsAsFilters() throws Exception
+    {
+        Random random = new Random( 0L );
+        Value value = new Value( CN_AT, "test" );
+        AttributeType[] attributeTypes = { null, CN_AT, SN_AT };
+        List<Set<String>> groupSets = new ArrayList<>();
+        groupSets.add( Collections.<String> emptySet() );
+        groupSets.add( Collections.singleton( GROUP_NAME.getNormName() ) );
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            Collection<ACITuple> tuples = createRandomTuples( random );
+            CompiledAciTuples compiled = new CompiledAciTuples( tuples );
+
+            assertTrue( compiled.isCompiled() );
+
+            for ( AuthenticationLevel level : LEVELS )
+            {
+                for ( Set<String> userGroups : groupSets )
+                {
+                    BitSet userTuples = compiled.getUserTuples( USER_NAME, userGroups, level, subtreeEvaluator );
+
+                    for ( AttributeType attributeType : attributeTypes )
+                    {
+                        for ( MicroOperation microOperation : MICRO_OPERATIONS )
+                        {
+                            Set<MicroOperation> microOperations = Collections.singleton( microOperation );
+
+                            boolean expected = evaluate( tuples, USER_NAME, userGroups, level, attributeType, null,
+                                microOperations );
+                            assertEquals( tuples.toString(), expected,
+                                compiled.hasPermission( userTuples, attributeType, false, microOperations ) );
+
+                            if ( attributeType != null )
+                            {
+                                expected = evaluate( tuples, USER_NAME, userGroups, level, attributeType, value,
+                                    microOperations );
+                                assertEquals( tuples.toString(), expected,
+                                    compiled.hasPermission( userTuples, attributeType, true, microOperations ) );
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.collective;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+
+
+/**
+ * A cache of the collective attributes injected into the entries. The collective
+ * attributes of an entry only depend on the collective attribute subentries it
+ * references and on its collective exclusions : the entries sharing the same
+ * subentries and exclusions share the same merged collective attributes, which
+ * are computed once.
+ * <br>
+ * The cache must be invalidated when a subentry is added, modified, renamed, moved
+ * or deleted. The attributes computed while the cache is invalidated are not kept.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CollectiveAttributeCache
+{
+    /** The default maximum number of collective attribute sets kept in the cache */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** The maximum number of collective attribute sets kept in the cache */
+    private final int maxSize;
+
+    /** The merged collective attributes */
+    private final Map<Key, List<Attribute>> cache = new ConcurrentHashMap<>();
+
+    /** Incremented each time the cache is invalidated */
+    private final AtomicLong generation = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of CollectiveAttributeCache, with a default maximum size.
+     */
+    public CollectiveAttributeCache()
+    {
+        this( DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of CollectiveAttributeCache.
+     *
+     * @param maxSize The maximum number of collective attribute sets kept in the cache
+     */
+    public CollectiveAttributeCache( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Creates the key associated with the collective attributes of an entry.
+     *
+     * @param subentryDns The normalized Dn of the collective attribute subentries referenced by the entry
+     * @param exclusions The OIDs of the collective attributes excluded by the entry
+     * @return The key
+     */
+    public Key createKey( Collection<String> subentryDns, Collection<String> exclusions )
+    {
+        return new Key( generation.get(), new HashSet<String>( subentryDns ), new HashSet<String>( exclusions ) );
+    }
+
+
+    /**
+     * Gets the merged collective attributes associated with a key.
+     *
+     * @param key The key
+     * @return The collective attributes, or null if they are not in the cache. They must not be modified.
+     */
+    public List<Attribute> get( Key key )
+    {
+        return cache.get( key );
+    }
+
+
+    /**
+     * Stores the merged collective attributes associated with a key. They are not kept
+     * if the cache has been invalidated since the key was created.
+     *
+     * @param key The key
+     * @param attributes The collective attributes
+     */
+    public void put( Key key, List<Attribute> attributes )
+    {
+        if ( cache.size() >= maxSize )
+        {
+            cache.clear();
+        }
+
+        cache.put( key, Collections.unmodifiableList( attributes ) );
+
+        if ( generation.get() != key.generation )
+        {
+            cache.remove( key );
+        }
+    }
+
+
+    /**
+     * Removes all the collective attributes from the cache
+     */
+    public void invalidate()
+    {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+
+    /**
+     * @return The number of collective attribute sets in the cache
+     */
+    public int size()
+    {
+        return cache.size();
+    }
+
+
+    /**
+     * The subentries and the exclusions of an entry.
+     */
+    public static final class Key
+    {
+        /** The cache generation when this key has been created */
+        private final long generation;
+
+        /** The normalized subentries Dn */
+        private final Set<String> subentryDns;
+
+        /** The excluded collective attributes OIDs */
+        private final Set<String> exclusions;
+
+
+        private Key( long generation, Set<String> subentryDns, Set<String> exclusions )
+        {
+            this.generation = generation;
+            this.subentryDns = subentryDns;
+            this.exclusions = exclusions;
+        }
+
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return subentryDns.hashCode() * 31 + exclusions.hashCode();
+        }
+
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+
+            Key other = ( Key ) obj;
+
+            return subentryDns.equals( other.subentryDns ) && exclusions.equals( other.exclusions );
+        }
+
+
+        /**
+         * @see Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return "Key[" + subentryDns + ", " + exclusions + "]";
+        }
+    }
+}
@@ -20,8 +20,11 @@
 package org.apache.directory.server.core.collective;
 
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -46,10 +49,15 @@ import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -108,6 +116,12 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     /** The CollectiveAttribute search filter */
     private final EntryFilter searchFilter = new CollectiveAttributeFilter();
 
+    /** The SubentryUtils instance */
+    private SubentryUtils subentryUtils;
+
+    /** The merged collective attributes, per set of subentries and exclusions */
+    private final CollectiveAttributeCache collectiveAttributeCache = new CollectiveAttributeCache();
+
 
     //-------------------------------------------------------------------------------------
     // Initialization
@@ -120,6 +134,8 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     {
         super.init( directoryService );
 
+        subentryUtils = new SubentryUtils( directoryService );
+
         LOG.debug( "CollectiveAttribute interceptor initialized" );
     }
 
@@ -136,6 +152,20 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
         checkAdd( addContext.getDn(), addContext.getEntry() );
 
         next( addContext );
+
+        invalidateIfSubentry( addContext.getEntry() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        next( deleteContext );
+
+        invalidateIfSubentry( deleteContext.getEntry() );
     }
 
 
@@ -169,6 +199,44 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
         checkModify( modifyContext );
 
         next( modifyContext );
+
+        invalidateIfSubentry( modifyContext.getEntry() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        next( moveContext );
+
+        invalidateIfSubentry( moveContext.getOriginalEntry() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        next( moveAndRenameContext );
+
+        invalidateIfSubentry( moveAndRenameContext.getOriginalEntry() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        next( renameContext );
+
+        invalidateIfSubentry( renameContext.getEntry() );
     }
 
 
@@ -193,6 +261,18 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     //-------------------------------------------------------------------------------------
     // Helper methods
     //-------------------------------------------------------------------------------------
+    /**
+     * Invalidates the collective attributes cache when a subentry is updated
+     */
+    private void invalidateIfSubentry( Entry entry )
+    {
+        if ( ( entry != null ) && entry.hasObjectClass( SchemaConstants.SUBENTRY_OC ) )
+        {
+            collectiveAttributeCache.invalidate();
+        }
+    }
+
+
     /**
      * Check if we can add an entry. There are two cases : <br>
      * <ul>
@@ -336,10 +416,10 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     private void addCollectiveAttributes( FilteringOperationContext opContext, Entry entry )
         throws LdapException
     {
-        CoreSession session = opContext.getSession();
-
-        Attribute collectiveAttributeSubentries = ( ( ClonedServerEntry ) entry ).getOriginalEntry().get(
-            directoryService.getAtProvider().getCollectiveAttributeSubentries() );
+        // The original entry may still have the Dn it had before being moved
+        Entry originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        Attribute collectiveAttributeSubentries = subentryUtils.getSubentryReferences( entry.getDn(),
+            originalEntry, directoryService.getAtProvider().getCollectiveAttributeSubentries() );
 
         /*
          * If there are no collective attribute subentries referenced then we
@@ -361,7 +441,7 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
          * in the exclusions set instead of regular names that may have case
          * variance.
          */
-        Attribute collectiveExclusions = ( ( ClonedServerEntry ) entry ).getOriginalEntry().get(
+        Attribute collectiveExclusions = originalEntry.get(
             directoryService.getAtProvider().getCollectiveExclusions() );
         Set<AttributeType> exclusions = new HashSet<>();
 
@@ -389,10 +469,91 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
             }
         }
 
+        /*
+         * The collective attributes only depend on the referenced subentries and
+         * on the exclusions : get them from the cache, or merge them if they are
+         * not there yet.
+         */
+        List<String> subentryDns = new ArrayList<>( collectiveAttributeSubentries.size() );
+
+        for ( Value value : collectiveAttributeSubentries )
+        {
+            subentryDns.add( dnFactory.create( value.getValue() ).getNormName() );
+        }
+
+        List<String> exclusionOids = new ArrayList<>( exclusions.size() );
+
+        for ( AttributeType exclusion : exclusions )
+        {
+            exclusionOids.add( exclusion.getOid() );
+        }
+
+        CollectiveAttributeCache.Key key = collectiveAttributeCache.createKey( subentryDns, exclusionOids );
+        List<Attribute> collectiveAttributes = collectiveAttributeCache.get( key );
+
+        if ( collectiveAttributes == null )
+        {
+            collectiveAttributes = getCollectiveAttributes( opContext, collectiveAttributeSubentries, exclusions );
+            collectiveAttributeCache.put( key, collectiveAttributes );
+        }
+
+        for ( Attribute collectiveAttribute : collectiveAttributes )
+        {
+            AttributeType attributeType = collectiveAttribute.getAttributeType();
+
+            /*
+             * If not all attributes or this collective attribute requested specifically
+             * then bypass the inclusion process.
+             */
+            if ( !opContext.isAllUserAttributes() && !opContext.contains( schemaManager, attributeType ) )
+            {
+                LOG.debug( "The {} subentry attribute is not in the list of attributes to return",
+                    attributeType.getName() );
+                continue;
+            }
+
+            Attribute entryColAttr = entry.get( attributeType );
+
+            /*
+             * If entry does not have attribute for collective attribute then create it.
+             */
+            if ( entryColAttr == null )
+            {
+                entryColAttr = new DefaultAttribute( attributeType );
+                entry.put( entryColAttr );
+            }
+
+            /*
+             *  Add all the collective attribute values in the subentries
+             *  to the currently processed collective attribute in the entry.
+             */
+            for ( Value collectiveValue : collectiveAttribute )
+            {
+                entryColAttr.add( collectiveValue.getValue() );
+            }
+        }
+    }
+
+
+    /**
+     * Merges the collective attributes of a set of subentries, skipping the excluded ones.
+     *
+     * @param opContext the context of the operation collective attributes are added to
+     * @param collectiveAttributeSubentries the subentries references
+     * @param exclusions the excluded collective attributes
+     * @return the merged collective attributes
+     * @throws LdapException if there are problems accessing subentries
+     */
+    private List<Attribute> getCollectiveAttributes( FilteringOperationContext opContext,
+        Attribute collectiveAttributeSubentries, Set<AttributeType> exclusions ) throws LdapException
+    {
+        CoreSession session = opContext.getSession();
+        Map<AttributeType, Attribute> collectiveAttributes = new LinkedHashMap<>();
+
         /*
          * For each collective subentry referenced by the entry we lookup the
          * attributes of the subentry and copy collective attributes from the
-         * subentry into the entry.
+         * subentry into the merged attributes.
          */
         for ( Value value : collectiveAttributeSubentries )
         {
@@ -401,13 +562,6 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
 
             LOG.debug( "Applying subentries {}", subentryDn.getName() );
 
-            /*
-             * TODO - Instead of hitting disk here can't we leverage the
-             * SubentryService to get us cached sub-entries so we're not
-             * wasting time with a lookup here? It is ridiculous to waste
-             * time looking up this sub-entry.
-             */
-
             LookupOperationContext lookupContext = new LookupOperationContext( session, subentryDn,
                 SchemaConstants.ALL_ATTRIBUTES_ARRAY );
             lookupContext.setPartition( opContext.getPartition() );
@@ -415,7 +569,11 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
 
             Entry subentry = directoryService.getPartitionNexus().lookup( lookupContext );
 
-            //LOG.debug( "Fetched the subentry : {}", subentry.getDn().getName() );
+            if ( subentry == null )
+            {
+                LOG.debug( "The {} subentry does not exist", subentryDn.getName() );
+                continue;
+            }
 
             for ( Attribute attribute : subentry.getAttributes() )
             {
@@ -424,7 +582,6 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
                 // Skip the attributes which are not collective
                 if ( !attributeType.isCollective() )
                 {
-                    //LOG.debug( "The {} subentry attribute is not collective", attributeType.getName() );
                     continue;
                 }
 
@@ -439,39 +596,22 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
                     continue;
                 }
 
-                /*
-                 * If not all attributes or this collective attribute requested specifically
-                 * then bypass the inclusion process.
-                 */
-                if ( !opContext.isAllUserAttributes() && !opContext.contains( schemaManager, attributeType ) )
-                {
-                    LOG.debug( "The {} subentry attribute is not in the list of attributes to return",
-                        attributeType.getName() );
-                    continue;
-                }
+                Attribute collectiveAttribute = collectiveAttributes.get( attributeType );
 
-                Attribute subentryColAttr = subentry.get( attributeType );
-                Attribute entryColAttr = entry.get( attributeType );
-
-                /*
-                 * If entry does not have attribute for collective attribute then create it.
-                 */
-                if ( entryColAttr == null )
+                if ( collectiveAttribute == null )
                 {
-                    entryColAttr = new DefaultAttribute( attributeType );
-                    entry.put( entryColAttr );
+                    collectiveAttribute = new DefaultAttribute( attributeType );
+                    collectiveAttributes.put( attributeType, collectiveAttribute );
                 }
 
-                /*
-                 *  Add all the collective attribute values in the subentry
-                 *  to the currently processed collective attribute in the entry.
-                 */
-                for ( Value subentryColVal : subentryColAttr )
+                for ( Value subentryColVal : attribute )
                 {
-                    LOG.debug( "Adding the {} collective attribute into the entry", subentryColAttr );
-                    entryColAttr.add( subentryColVal.getValue() );
+                    LOG.debug( "Adding the {} collective attribute into the entry", attribute );
+                    collectiveAttribute.add( subentryColVal.getValue() );
                 }
             }
         }
+
+        return new ArrayList<>( collectiveAttributes.values() );
     }
 }
@@ -0,0 +1,119 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.collective;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CollectiveAttributeCache} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CollectiveAttributeCacheTest
+{
+    private static final String SUBENTRY_A = "2.5.4.3=subentrya,2.5.4.11=system";
+    private static final String SUBENTRY_B = "2.5.4.3=subentryb,2.5.4.11=system";
+
+
+    private static List<Attribute> getAttributes() throws Exception
+    {
+        List<Attribute> attributes = new ArrayList<>();
+        attributes.add( new DefaultAttribute( "c-o", "Test Org" ) );
+
+        return attributes;
+    }
+
+
+    @Test
+    public void testSharedKey() throws Exception
+    {
+        CollectiveAttributeCache cache = new CollectiveAttributeCache();
+
+        CollectiveAttributeCache.Key key = cache.createKey( Arrays.asList( SUBENTRY_A, SUBENTRY_B ),
+            Collections.<String> emptyList() );
+        assertNull( cache.get( key ) );
+
+        cache.put( key, getAttributes() );
+
+        // The order of the subentries does not matter
+        assertNotNull( cache.get( cache.createKey( Arrays.asList( SUBENTRY_B, SUBENTRY_A ),
+            Collections.<String> emptyList() ) ) );
+
+        // The exclusions do
+        assertNull( cache.get( cache.createKey( Arrays.asList( SUBENTRY_A, SUBENTRY_B ),
+            Collections.singletonList( "2.5.4.10" ) ) ) );
+        assertNull( cache.get( cache.createKey( Collections.singletonList( SUBENTRY_A ),
+            Collections.<String> emptyList() ) ) );
+    }
+
+
+    @Test
+    public void testInvalidate() throws Exception
+    {
+        CollectiveAttributeCache cache = new CollectiveAttributeCache();
+
+        CollectiveAttributeCache.Key key = cache.createKey( Collections.singletonList( SUBENTRY_A ),
+            Collections.<String> emptyList() );
+        cache.put( key, getAttributes() );
+        assertEquals( 1, cache.size() );
+
+        cache.invalidate();
+        assertEquals( 0, cache.size() );
+
+        // Attributes computed before the invalidation are not kept
+        cache.put( key, getAttributes() );
+        assertEquals( 0, cache.size() );
+
+        key = cache.createKey( Collections.singletonList( SUBENTRY_A ), Collections.<String> emptyList() );
+        cache.put( key, getAttributes() );
+        assertEquals( 1, cache.size() );
+    }
+
+
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        CollectiveAttributeCache cache = new CollectiveAttributeCache( 2 );
+
+        cache.put( cache.createKey( Collections.singletonList( SUBENTRY_A ), Collections.<String> emptyList() ),
+            getAttributes() );
+        cache.put( cache.createKey( Collections.singletonList( SUBENTRY_B ), Collections.<String> emptyList() ),
+            getAttributes() );
+        assertEquals( 2, cache.size() );
+
+        // The cache is cleared when it's full
+        cache.put( cache.createKey( Arrays.asList( SUBENTRY_A, SUBENTRY_B ), Collections.<String> emptyList() ),
+            getAttributes() );
+        assertEquals( 1, cache.size() );
+    }
+}
@@ -31,11 +31,11 @@ import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.server.config.beans.HashInterceptorBean;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
@@ -55,6 +55,9 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
     private LdapSecurityConstants algorithm;
     private List<AttributeType> attributeTypes;
 
+    /** The executor running the expensive hashing operations, owned by the DirectoryService */
+    private PasswordHashingExecutor hashingExecutor;
+
 
     /**
      * Creates a new instance of ConfigurableHashingInterceptor which hashes the
@@ -104,7 +107,16 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
     }
     
     
-    private void includeHashed( Attribute attribute ) throws LdapInvalidAttributeValueException 
+    /**
+     * @return The executor running the expensive hashing operations
+     */
+    public PasswordHashingExecutor getHashingExecutor()
+    {
+        return hashingExecutor;
+    }
+    
+    
+    private void includeHashed( Attribute attribute ) throws LdapException 
     {
         if ( attribute == null ) 
         {
@@ -130,7 +142,7 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
             if ( existingAlgo == null ) 
             {
                 // not already hashed, so hash it
-                values.add( PasswordUtil.createStoragePassword( bytes, algorithm ) );
+                values.add( hashingExecutor.createStoragePassword( bytes, algorithm ) );
             }
             else 
             {
@@ -153,6 +165,7 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
     {
         // allow base initialization
         super.init( directoryService );       
+        hashingExecutor = directoryService.getPasswordHashingExecutor();
 
         // initialize from config
         algorithm = LdapSecurityConstants.getAlgorithm( config.getHashAlgorithm() );
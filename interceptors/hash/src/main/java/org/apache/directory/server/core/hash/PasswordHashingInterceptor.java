@@ -34,6 +34,8 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.authn.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
@@ -51,6 +53,9 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
     /** the hashing algorithm to be used, if null then the password won't be changed */
     private LdapSecurityConstants algorithm;
 
+    /** The executor running the expensive hashing operations, owned by the DirectoryService */
+    private PasswordHashingExecutor hashingExecutor;
+
 
     /**
      * 
@@ -68,6 +73,27 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( DirectoryService directoryService ) throws LdapException
+    {
+        super.init( directoryService );
+
+        hashingExecutor = directoryService.getPasswordHashingExecutor();
+    }
+
+
+    /**
+     * @return The executor running the expensive hashing operations
+     */
+    public PasswordHashingExecutor getHashingExecutor()
+    {
+        return hashingExecutor;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -163,7 +189,7 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
             // if there exists NO algorithm, then hash the password
             if ( existingAlgo == null )
             {
-                byte[] hashedPassword = PasswordUtil.createStoragePassword( userPassword.getBytes(), algorithm );
+                byte[] hashedPassword = hashingExecutor.createStoragePassword( userPassword.getBytes(), algorithm );
 
                 newPwd.add( hashedPassword );
             }
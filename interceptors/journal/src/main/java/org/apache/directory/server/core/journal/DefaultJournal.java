@@ -43,6 +43,13 @@ public class DefaultJournal implements Journal
     /** The class logger */
     private static final Logger LOG = LoggerFactory.getLogger( DefaultJournal.class );
 
+    /**
+     * The system property giving the class of the journal store, when it's not the
+     * {@link DefaultJournalStore}. The {@link SegmentedJournalStore} is selected with
+     * -Dapacheds.journal.store=org.apache.directory.server.core.journal.SegmentedJournalStore
+     */
+    public static final String JOURNAL_STORE_PROPERTY = "apacheds.journal.store";
+
     /** Tells if the service is activated or not */
     private boolean enabled;
 
@@ -100,7 +107,7 @@ public class DefaultJournal implements Journal
 
         if ( store == null )
         {
-            store = new DefaultJournalStore();
+            store = createJournalStore();
         }
 
         try
@@ -116,6 +123,34 @@ public class DefaultJournal implements Journal
     }
 
 
+    /**
+     * Creates the journal store configured by the {@link #JOURNAL_STORE_PROPERTY} system
+     * property. The LDIF journal store is used by default, or if the configured store
+     * can't be instantiated.
+     *
+     * @return A new instance of the configured journal store
+     */
+    public static JournalStore createJournalStore()
+    {
+        String className = System.getProperty( JOURNAL_STORE_PROPERTY );
+
+        if ( className != null )
+        {
+            try
+            {
+                return ( JournalStore ) Class.forName( className ).newInstance();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to load and instantiate the journal store {}, using the default store",
+                    className, e );
+            }
+        }
+
+        return new DefaultJournalStore();
+    }
+
+
     /**
      * {@inheritDoc}
      */
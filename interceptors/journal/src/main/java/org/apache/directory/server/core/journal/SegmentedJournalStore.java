@@ -0,0 +1,1180 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.journal;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.journal.JournalStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Journal Store writing the changes in binary, append only, segment files. The changes
+ * are queued by the logging threads, and written by a dedicated thread, which forces the
+ * written batch on disk before releasing the threads waiting for their changes to be
+ * durable. The logging threads only format the principal name : the LDIF is formatted by
+ * the writer thread.
+ * <br>
+ * The segments are named <em>&lt;fileName&gt;.&lt;segment number&gt;</em>. A new segment is
+ * started when the current one is bigger than the maximum segment size, or older than the
+ * maximum segment age. Each record is stored with its length and a CRC32 checksum, so that a
+ * record partially written when the server has crashed is detected, and removed when the
+ * journal is opened again.
+ * <br>
+ * A sparse index maps the revisions to the records position, so that the changes done since
+ * a given revision can be replayed without reading the whole journal. As the changes are not
+ * always logged in the revision order, the index key is the highest revision written before
+ * the indexed record.
+ * <br>
+ * When a batch can't be written, the changes it contains are reported as not logged, and the
+ * writer thread goes on with a new segment.
+ * <br>
+ * The store is used by the {@link DefaultJournal} when the
+ * {@link DefaultJournal#JOURNAL_STORE_PROPERTY} system property gives its class name.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SegmentedJournalStore implements JournalStore
+{
+    /** The class logger */
+    private static final Logger LOG = LoggerFactory.getLogger( SegmentedJournalStore.class );
+
+    /** The default maximum segment size, in bytes */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+    /** The default maximum segment age, in milliseconds */
+    public static final long DEFAULT_MAX_SEGMENT_AGE = TimeUnit.HOURS.toMillis( 1L );
+
+    /** The default maximum number of changes waiting to be written */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /** The maximum number of records written in a batch */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /** The number of records between two index entries */
+    /* no qualifier */ static final int INDEX_INTERVAL = 64;
+
+    /** The delay between two checks of the segment age when nothing is logged, in milliseconds */
+    private static final long IDLE_INTERVAL = 1000L;
+
+    /** The segment header : a magic number and the format version */
+    private static final int MAGIC = 0x4144534A;
+    private static final int VERSION = 1;
+    /* no qualifier */ static final int HEADER_SIZE = 8;
+
+    /** The size of the record length and checksum */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** The size of the record type, revision and timestamp */
+    private static final int RECORD_BODY_MIN_SIZE = 17;
+
+    /** The record types */
+    private static final byte LOG_RECORD = 1;
+    private static final byte ACK_RECORD = 2;
+    private static final byte NACK_RECORD = 3;
+
+    /** A record only used to wait for the previous ones to be written */
+    private static final byte SYNC_RECORD = 0;
+
+    /** The record telling the writer thread to stop */
+    private static final Record STOP = new Record( SYNC_RECORD, 0L, null, null );
+
+    /**
+     * The handler the replayed changes are given to
+     */
+    public interface ReplayHandler
+    {
+        /**
+         * A change has been logged
+         *
+         * @param principalName The name of the principal who has done the change
+         * @param revision The change revision
+         * @param timestamp The time the change has been logged
+         * @param forward The change
+         */
+        void log( String principalName, long revision, long timestamp, LdifEntry forward );
+
+
+        /**
+         * A change has been acked
+         *
+         * @param revision The change revision
+         */
+        void ack( long revision );
+
+
+        /**
+         * A change has been nacked
+         *
+         * @param revision The change revision
+         */
+        void nack( long revision );
+    }
+
+    /**
+     * A position in the journal
+     */
+    private static final class Position
+    {
+        private final long segment;
+        private final long offset;
+
+
+        private Position( long segment, long offset )
+        {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A record waiting to be written
+     */
+    private static final class Record
+    {
+        private static final int PENDING = 0;
+        private static final int WRITTEN = 1;
+        private static final int FAILED = 2;
+
+        private final byte type;
+        private final long revision;
+        private final long timestamp;
+        private final String principalName;
+        private final LdifEntry forward;
+        private volatile int status = PENDING;
+
+
+        private Record( byte type, long revision, String principalName, LdifEntry forward )
+        {
+            this.type = type;
+            this.revision = revision;
+            this.principalName = principalName;
+            this.forward = forward;
+            timestamp = System.currentTimeMillis();
+        }
+    }
+
+    /** The directory where the journal is stored */
+    private File workingDirectory;
+
+    /** The segments file name prefix */
+    private String fileName;
+
+    /** The size above which a new segment is started */
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+    /** The age above which a new segment is started */
+    private long maxSegmentAge = DEFAULT_MAX_SEGMENT_AGE;
+
+    /** The maximum number of changes waiting to be written */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /** Tells if the logging threads wait for their change to be on disk */
+    private boolean syncOnLog = true;
+
+    /** The records waiting to be written */
+    private BlockingQueue<Record> queue;
+
+    /** The writer thread */
+    private Thread writerThread;
+
+    /** Tells if the journal accepts new records */
+    private volatile boolean running;
+
+    /** The lock the threads waiting for their records to be written wait on */
+    private final Object writtenLock = new Object();
+
+    /** The segment files, per number */
+    private final NavigableMap<Long, File> segments = new ConcurrentSkipListMap<>();
+
+    /** The index : the highest revision written before a record, and the record position */
+    private final NavigableMap<Long, Position> index = new ConcurrentSkipListMap<>();
+
+    /** The end of the data forced on disk */
+    private volatile Position durableEnd;
+
+    /** The highest logged revision */
+    private volatile long currentRevision;
+
+    // The following fields are owned by the writer thread once the journal is initialized
+    /** The current segment */
+    private FileChannel channel;
+    private long segmentNumber;
+    private long segmentSize;
+    private long segmentCreation;
+
+    /** The highest revision written */
+    private long highestRevision;
+
+    /** The number of records written since the last index entry */
+    private int nbUnindexed;
+
+    /** The records written but not yet sent to the file */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream( pending );
+
+    /** The serialized record */
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream( recordBytes );
+
+    /** The checksum computer */
+    private final CRC32 crc = new CRC32();
+
+    /** Tells if some data have been written since the last force */
+    private boolean dirty;
+
+    /** Tells if the last write has failed : the current segment can't be used anymore */
+    private boolean failed;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( DirectoryService service ) throws IOException
+    {
+        if ( workingDirectory == null )
+        {
+            workingDirectory = service.getInstanceLayout().getLogDirectory();
+        }
+
+        if ( fileName == null )
+        {
+            fileName = "journal";
+        }
+
+        if ( !workingDirectory.exists() && !workingDirectory.mkdirs() )
+        {
+            throw new IOException( "Cannot create the journal directory " + workingDirectory );
+        }
+
+        recover();
+
+        queue = new LinkedBlockingQueue<>( queueCapacity );
+        running = true;
+
+        writerThread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "JournalWriter" );
+
+        writerThread.setDaemon( true );
+        writerThread.start();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws IOException
+    {
+        Thread thread = writerThread;
+
+        if ( thread == null )
+        {
+            return;
+        }
+
+        running = false;
+
+        try
+        {
+            if ( thread.isAlive() )
+            {
+                queue.put( STOP );
+            }
+
+            thread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        writerThread = null;
+    }
+
+
+    /**
+     * Waits until all the changes logged so far are on disk
+     *
+     * @throws IOException If the journal can't be written
+     */
+    @Override
+    public void sync() throws IOException
+    {
+        if ( !submit( new Record( SYNC_RECORD, 0L, null, null ), true ) )
+        {
+            throw new IOException( "The journal has not been written" );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCurrentRevision()
+    {
+        return currentRevision;
+    }
+
+
+    /**
+     * Stores an event into the journal. If the logging threads wait for the changes to be on
+     * disk, the method returns once the batch containing the change has been forced.
+     *
+     * @param principal The principal who is logging the change
+     * @param revision The operation revision
+     * @param forward The change to log
+     */
+    @Override
+    public boolean log( LdapPrincipal principal, long revision, LdifEntry forward )
+    {
+        return submit( new Record( LOG_RECORD, revision, principal.getName(), forward ), syncOnLog );
+    }
+
+
+    /**
+     * Records a ack for a change. The method does not wait for the ack to be on disk.
+     *
+     * @param revision The change revision which is acked
+     * @return <code>true</code> if the ack has been queued
+     */
+    @Override
+    public boolean ack( long revision )
+    {
+        return submit( new Record( ACK_RECORD, revision, null, null ), false );
+    }
+
+
+    /**
+     * Records a nack for a change. The method does not wait for the nack to be on disk.
+     *
+     * @param revision The change revision which is nacked
+     * @return <code>true</code> if the nack has been queued
+     */
+    @Override
+    public boolean nack( long revision )
+    {
+        return submit( new Record( NACK_RECORD, revision, null, null ), false );
+    }
+
+
+    /**
+     * Replays the changes, acks and nacks which revision is in the given range, in the order
+     * they have been written. Only the records on disk are replayed.
+     *
+     * @param fromRevision The lowest revision to replay
+     * @param toRevision The highest revision to replay
+     * @param handler The handler the records are given to
+     * @throws IOException If the journal can't be read
+     */
+    public void replay( long fromRevision, long toRevision, ReplayHandler handler ) throws IOException
+    {
+        Position end = durableEnd;
+
+        if ( ( end == null ) || segments.isEmpty() )
+        {
+            return;
+        }
+
+        Map.Entry<Long, Position> start = index.lowerEntry( fromRevision );
+        Position position = ( start == null ) ? new Position( segments.firstKey(), HEADER_SIZE ) : start.getValue();
+
+        for ( Map.Entry<Long, File> segment : segments.tailMap( position.segment, true ).entrySet() )
+        {
+            long number = segment.getKey();
+
+            if ( number > end.segment )
+            {
+                break;
+            }
+
+            long offset = ( number == position.segment ) ? position.offset : HEADER_SIZE;
+            long limit = ( number == end.segment ) ? end.offset : segment.getValue().length();
+
+            try ( SegmentReader reader = new SegmentReader( segment.getValue(), offset, limit ) )
+            {
+                while ( reader.next() )
+                {
+                    if ( ( reader.revision < fromRevision ) || ( reader.revision > toRevision ) )
+                    {
+                        continue;
+                    }
+
+                    switch ( reader.type )
+                    {
+                        case LOG_RECORD:
+                            replayLog( reader, handler );
+                            break;
+
+                        case ACK_RECORD:
+                            handler.ack( reader.revision );
+                            break;
+
+                        case NACK_RECORD:
+                            handler.nack( reader.revision );
+                            break;
+
+                        default:
+                            LOG.warn( "Unknown journal record type {} in {}", reader.type, segment.getValue() );
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the fileName
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+
+    /**
+     * The prefix of the segment files. Default to 'journal'
+     *
+     * @param fileName the fileName to set
+     */
+    @Override
+    public void setFileName( String fileName )
+    {
+        this.fileName = fileName;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWorkingDirectory( String workingDirectoryName )
+    {
+        this.workingDirectory = new File( workingDirectoryName );
+    }
+
+
+    /**
+     * @param maxSegmentSize The size above which a new segment is started, in bytes
+     */
+    public void setMaxSegmentSize( long maxSegmentSize )
+    {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+
+    /**
+     * @param maxSegmentAge The age above which a new segment is started, in milliseconds
+     */
+    public void setMaxSegmentAge( long maxSegmentAge )
+    {
+        this.maxSegmentAge = maxSegmentAge;
+    }
+
+
+    /**
+     * @param queueCapacity The maximum number of changes waiting to be written. The logging
+     * threads wait when the queue is full.
+     */
+    public void setQueueCapacity( int queueCapacity )
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+
+    /**
+     * @param syncOnLog Tells if the logging threads wait for their change to be on disk
+     */
+    public void setSyncOnLog( boolean syncOnLog )
+    {
+        this.syncOnLog = syncOnLog;
+    }
+
+
+    /**
+     * @return The number of segments
+     */
+    public int getNbSegments()
+    {
+        return segments.size();
+    }
+
+
+    /**
+     * Queues a record, and waits for it to be written if requested
+     */
+    private boolean submit( Record record, boolean wait )
+    {
+        Thread thread = writerThread;
+
+        if ( !running || ( thread == null ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            queue.put( record );
+
+            if ( !wait )
+            {
+                return true;
+            }
+
+            synchronized ( writtenLock )
+            {
+                while ( record.status == Record.PENDING )
+                {
+                    if ( !thread.isAlive() )
+                    {
+                        // The record has been queued after the writer thread has stopped
+                        return false;
+                    }
+
+                    writtenLock.wait( IDLE_INTERVAL );
+                }
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+
+        return record.status == Record.WRITTEN;
+    }
+
+
+    /**
+     * The writer thread loop
+     */
+    private void write()
+    {
+        List<Record> batch = new ArrayList<>( MAX_BATCH_SIZE );
+        boolean stopped = false;
+
+        while ( !stopped )
+        {
+            Record record;
+
+            try
+            {
+                record = queue.poll( IDLE_INTERVAL, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                LOG.warn( "The journal writer thread has been interrupted" );
+                break;
+            }
+
+            try
+            {
+                if ( record == null )
+                {
+                    // Nothing logged lately, start a new segment if the current one is too old
+                    if ( !failed && isSegmentExpired() )
+                    {
+                        rotate();
+                    }
+
+                    continue;
+                }
+
+                batch.add( record );
+                queue.drainTo( batch, MAX_BATCH_SIZE - 1 );
+
+                if ( failed )
+                {
+                    restart();
+                }
+
+                for ( Record next : batch )
+                {
+                    if ( next == STOP )
+                    {
+                        stopped = true;
+                        break;
+                    }
+
+                    append( next );
+                }
+
+                flush();
+                written( batch, Record.WRITTEN );
+            }
+            catch ( IOException ioe )
+            {
+                // The changes of the batch are reported as not logged, the writer goes on with a
+                // new segment
+                LOG.error( "Failed to write the journal in {}", workingDirectory, ioe );
+                failed = true;
+                stopped = batch.contains( STOP );
+                written( batch, Record.FAILED );
+            }
+
+            batch.clear();
+        }
+
+        running = false;
+
+        try
+        {
+            channel.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot close the journal segment {}", segmentNumber, ioe );
+        }
+
+        // Release the threads which have queued a record after the stop
+        queue.drainTo( batch );
+        written( batch, Record.FAILED );
+    }
+
+
+    /**
+     * Sets the status of the batch records, up to the stop record, and wakes up the
+     * threads waiting for them. The following records are failed.
+     */
+    private void written( List<Record> batch, int status )
+    {
+        int recordStatus = status;
+
+        for ( Record record : batch )
+        {
+            if ( record == STOP )
+            {
+                recordStatus = Record.FAILED;
+            }
+            else if ( record.status == Record.PENDING )
+            {
+                record.status = recordStatus;
+            }
+        }
+
+        synchronized ( writtenLock )
+        {
+            writtenLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Serializes a record, and adds it to the pending data
+     */
+    private void append( Record record ) throws IOException
+    {
+        if ( record.type == SYNC_RECORD )
+        {
+            return;
+        }
+
+        recordBytes.reset();
+        recordOut.writeByte( record.type );
+        recordOut.writeLong( record.revision );
+        recordOut.writeLong( record.timestamp );
+
+        if ( record.type == LOG_RECORD )
+        {
+            try
+            {
+                writeString( record.principalName );
+                writeString( LdifUtils.convertToLdif( record.forward ) );
+            }
+            catch ( LdapException le )
+            {
+                LOG.error( "Cannot log the change {}", record.revision, le );
+                record.status = Record.FAILED;
+
+                return;
+            }
+        }
+
+        recordOut.flush();
+        byte[] body = recordBytes.toByteArray();
+        crc.reset();
+        crc.update( body );
+
+        long recordSize = RECORD_HEADER_SIZE + body.length;
+
+        if ( ( getSegmentLength() > HEADER_SIZE )
+            && ( ( getSegmentLength() + recordSize > maxSegmentSize ) || isSegmentExpired() ) )
+        {
+            rotate();
+        }
+
+        if ( nbUnindexed >= INDEX_INTERVAL )
+        {
+            index.put( highestRevision, new Position( segmentNumber, getSegmentLength() ) );
+            nbUnindexed = 0;
+        }
+
+        pendingOut.writeInt( body.length );
+        pendingOut.writeInt( ( int ) crc.getValue() );
+        pendingOut.write( body );
+        nbUnindexed++;
+
+        highestRevision = Math.max( highestRevision, record.revision );
+
+        if ( record.type == LOG_RECORD )
+        {
+            currentRevision = Math.max( currentRevision, record.revision );
+        }
+    }
+
+
+    private void writeString( String value ) throws IOException
+    {
+        byte[] bytes = Strings.getBytesUtf8( value );
+        recordOut.writeInt( bytes.length );
+        recordOut.write( bytes );
+    }
+
+
+    /**
+     * Writes the pending data in the current segment, and forces them on disk
+     */
+    private void flush() throws IOException
+    {
+        pendingOut.flush();
+
+        if ( pending.size() > 0 )
+        {
+            ByteBuffer buffer = ByteBuffer.wrap( pending.toByteArray() );
+
+            while ( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+
+            segmentSize += pending.size();
+            pending.reset();
+            dirty = true;
+        }
+
+        if ( dirty )
+        {
+            channel.force( false );
+            dirty = false;
+            durableEnd = new Position( segmentNumber, segmentSize );
+        }
+    }
+
+
+    /**
+     * Starts a new segment after a failed write. The data partially written in the current
+     * segment are removed.
+     */
+    private void restart() throws IOException
+    {
+        pending.reset();
+
+        if ( channel.isOpen() )
+        {
+            try
+            {
+                channel.truncate( segmentSize );
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+
+        createSegment( segmentNumber + 1 );
+        failed = false;
+
+        LOG.warn( "The journal writer has restarted with the segment {}", segmentNumber );
+    }
+
+
+    /**
+     * Closes the current segment, and starts a new one
+     */
+    private void rotate() throws IOException
+    {
+        flush();
+        channel.close();
+        createSegment( segmentNumber + 1 );
+
+        LOG.debug( "Started the journal segment {}", segmentNumber );
+    }
+
+
+    private long getSegmentLength()
+    {
+        return segmentSize + pending.size();
+    }
+
+
+    private boolean isSegmentExpired()
+    {
+        return ( getSegmentLength() > HEADER_SIZE )
+            && ( System.currentTimeMillis() - segmentCreation >= maxSegmentAge );
+    }
+
+
+    private File getSegmentFile( long number )
+    {
+        return new File( workingDirectory, fileName + "." + String.format( "%010d", number ) );
+    }
+
+
+    /**
+     * Creates a segment, and makes it the current one
+     */
+    private void createSegment( long number ) throws IOException
+    {
+        File file = getSegmentFile( number );
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING );
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).putInt( VERSION ).flip();
+
+        while ( header.hasRemaining() )
+        {
+            channel.write( header );
+        }
+
+        channel.force( true );
+
+        segments.put( number, file );
+        segmentNumber = number;
+        segmentSize = HEADER_SIZE;
+        segmentCreation = System.currentTimeMillis();
+        durableEnd = new Position( segmentNumber, segmentSize );
+
+        // The first record of a segment is always indexed
+        nbUnindexed = INDEX_INTERVAL;
+    }
+
+
+    /**
+     * Reads the existing segments to rebuild the index and find the current revision. A
+     * record partially written at the end of the last segment is removed, and the last
+     * segment is reopened.
+     */
+    private void recover() throws IOException
+    {
+        final String prefix = fileName + ".";
+
+        String[] names = workingDirectory.list( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( prefix ) && name.substring( prefix.length() ).matches( "[0-9]+" );
+            }
+        } );
+
+        segments.clear();
+        index.clear();
+
+        if ( names != null )
+        {
+            for ( String name : names )
+            {
+                segments.put( Long.valueOf( name.substring( prefix.length() ) ), new File( workingDirectory, name ) );
+            }
+        }
+
+        if ( segments.isEmpty() )
+        {
+            createSegment( 1L );
+
+            return;
+        }
+
+        long lastNumber = segments.lastKey();
+        long validLength = 0L;
+
+        for ( Map.Entry<Long, File> segment : segments.entrySet() )
+        {
+            File file = segment.getValue();
+            nbUnindexed = INDEX_INTERVAL;
+
+            try ( SegmentReader reader = new SegmentReader( file, HEADER_SIZE, file.length() ) )
+            {
+                while ( true )
+                {
+                    long position = reader.position;
+
+                    if ( !reader.next() )
+                    {
+                        break;
+                    }
+
+                    if ( nbUnindexed >= INDEX_INTERVAL )
+                    {
+                        index.put( highestRevision, new Position( segment.getKey(), position ) );
+                        nbUnindexed = 0;
+                    }
+
+                    nbUnindexed++;
+                    highestRevision = Math.max( highestRevision, reader.revision );
+
+                    if ( reader.type == LOG_RECORD )
+                    {
+                        currentRevision = Math.max( currentRevision, reader.revision );
+                    }
+                }
+
+                validLength = reader.position;
+            }
+            catch ( IOException ioe )
+            {
+                // Not a journal segment, or an unreadable header : it won't be replayed
+                LOG.warn( "Cannot read the journal segment {}", file, ioe );
+                segments.remove( segment.getKey() );
+                validLength = 0L;
+
+                continue;
+            }
+
+            if ( ( validLength < file.length() ) && ( segment.getKey() < lastNumber ) )
+            {
+                LOG.warn( "The journal segment {} is truncated at {}", file, validLength );
+            }
+        }
+
+        if ( validLength < HEADER_SIZE )
+        {
+            // The last segment is unusable, start a new one
+            createSegment( lastNumber + 1 );
+
+            return;
+        }
+
+        File last = segments.get( lastNumber );
+        channel = FileChannel.open( last.toPath(), StandardOpenOption.WRITE );
+
+        if ( validLength < channel.size() )
+        {
+            LOG.warn( "Removing a partially written record at the end of the journal segment {}", last );
+            channel.truncate( validLength );
+            channel.force( true );
+        }
+
+        channel.position( validLength );
+        segmentNumber = lastNumber;
+        segmentSize = validLength;
+        segmentCreation = System.currentTimeMillis();
+        durableEnd = new Position( segmentNumber, segmentSize );
+    }
+
+
+    /**
+     * Parses a logged change, and gives it to the handler
+     */
+    private void replayLog( SegmentReader reader, ReplayHandler handler ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( reader.body, RECORD_BODY_MIN_SIZE,
+            reader.body.length - RECORD_BODY_MIN_SIZE ) );
+        String principalName = readString( in );
+        String ldif = readString( in );
+
+        LdifReader ldifReader = new LdifReader();
+
+        try
+        {
+            List<LdifEntry> entries = ldifReader.parseLdif( ldif );
+
+            if ( ( entries != null ) && !entries.isEmpty() )
+            {
+                handler.log( principalName, reader.revision, reader.timestamp, entries.get( 0 ) );
+            }
+        }
+        catch ( LdapException le )
+        {
+            throw new IOException( "Cannot parse the change " + reader.revision, le );
+        }
+        finally
+        {
+            ldifReader.close();
+        }
+    }
+
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+
+        return Strings.utf8ToString( bytes );
+    }
+
+
+    /**
+     * Reads the records of a segment, up to a limit. The reading stops on the first
+     * truncated or corrupted record.
+     */
+    private static final class SegmentReader implements Closeable
+    {
+        private final FileChannel readChannel;
+        private final DataInputStream in;
+        private final long limit;
+        private final CRC32 checksum = new CRC32();
+
+        /** The position of the next record */
+        private long position;
+
+        /** The last read record */
+        private byte[] body;
+        private byte type;
+        private long revision;
+        private long timestamp;
+
+
+        private SegmentReader( File file, long offset, long limit ) throws IOException
+        {
+            this.limit = limit;
+            readChannel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+
+            try
+            {
+                ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+
+                // Read the whole header, unless the file is too short
+                while ( header.hasRemaining() )
+                {
+                    if ( readChannel.read( header ) < 0 )
+                    {
+                        break;
+                    }
+                }
+
+                header.flip();
+
+                if ( ( header.remaining() < HEADER_SIZE ) || ( header.getInt() != MAGIC )
+                    || ( header.getInt() != VERSION ) )
+                {
+                    throw new IOException( file + " is not a journal segment" );
+                }
+
+                readChannel.position( offset );
+            }
+            catch ( IOException ioe )
+            {
+                readChannel.close();
+                throw ioe;
+            }
+
+            in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( readChannel ) ) );
+            position = offset;
+        }
+
+
+        /**
+         * Reads the next record
+         *
+         * @return false if there is no more valid record
+         */
+        private boolean next() throws IOException
+        {
+            if ( position + RECORD_HEADER_SIZE > limit )
+            {
+                return false;
+            }
+
+            try
+            {
+                int length = in.readInt();
+                int crc = in.readInt();
+
+                if ( ( length < RECORD_BODY_MIN_SIZE ) || ( position + RECORD_HEADER_SIZE + length > limit ) )
+                {
+                    return false;
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully( bytes );
+
+                checksum.reset();
+                checksum.update( bytes );
+
+                if ( ( int ) checksum.getValue() != crc )
+                {
+                    return false;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap( bytes );
+                body = bytes;
+                type = buffer.get();
+                revision = buffer.getLong();
+                timestamp = buffer.getLong();
+                position += RECORD_HEADER_SIZE + length;
+
+                return true;
+            }
+            catch ( EOFException eofe )
+            {
+                return false;
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            readChannel.close();
+        }
+    }
+}
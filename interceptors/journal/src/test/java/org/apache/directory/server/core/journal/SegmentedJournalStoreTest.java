@@ -0,0 +1,255 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.journal;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.ldif.ChangeType;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests the {@link SegmentedJournalStore} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SegmentedJournalStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final LdapPrincipal PRINCIPAL = new LdapPrincipal( null, new Dn(), AuthenticationLevel.SIMPLE,
+        new byte[0] );
+
+    /**
+     * A handler collecting the replayed records
+     */
+    private static class Collector implements SegmentedJournalStore.ReplayHandler
+    {
+        private final List<String> records = new ArrayList<String>();
+
+
+        @Override
+        public void log( String principalName, long revision, long timestamp, LdifEntry forward )
+        {
+            records.add( "log " + revision + " " + forward.getDn().getName() );
+        }
+
+
+        @Override
+        public void ack( long revision )
+        {
+            records.add( "ack " + revision );
+        }
+
+
+        @Override
+        public void nack( long revision )
+        {
+            records.add( "nack " + revision );
+        }
+    }
+
+
+    private SegmentedJournalStore createStore() throws Exception
+    {
+        SegmentedJournalStore store = new SegmentedJournalStore();
+        store.setWorkingDirectory( folder.getRoot().getAbsolutePath() );
+
+        return store;
+    }
+
+
+    private LdifEntry createChange( long revision ) throws Exception
+    {
+        LdifEntry ldif = new LdifEntry();
+        ldif.setChangeType( ChangeType.Delete );
+        ldif.setDn( new Dn( "cn=e" + revision + ",ou=system" ) );
+
+        return ldif;
+    }
+
+
+    @Test
+    public void testLogAndReplay() throws Exception
+    {
+        SegmentedJournalStore store = createStore();
+        store.init( null );
+
+        try
+        {
+            assertTrue( store.log( PRINCIPAL, 1L, createChange( 1L ) ) );
+            assertTrue( store.ack( 1L ) );
+            assertTrue( store.log( PRINCIPAL, 2L, createChange( 2L ) ) );
+            assertTrue( store.nack( 2L ) );
+            store.sync();
+
+            assertEquals( 2L, store.getCurrentRevision() );
+
+            Collector collector = new Collector();
+            store.replay( 0L, Long.MAX_VALUE, collector );
+
+            assertEquals( "[log 1 cn=e1,ou=system, ack 1, log 2 cn=e2,ou=system, nack 2]",
+                collector.records.toString() );
+
+            // Point in time replay
+            collector = new Collector();
+            store.replay( 2L, 2L, collector );
+
+            assertEquals( "[log 2 cn=e2,ou=system, nack 2]", collector.records.toString() );
+        }
+        finally
+        {
+            store.destroy();
+        }
+
+        // Closed
+        assertFalse( store.log( PRINCIPAL, 3L, createChange( 3L ) ) );
+    }
+
+
+    @Test
+    public void testRotation() throws Exception
+    {
+        SegmentedJournalStore store = createStore();
+        store.setMaxSegmentSize( 1024L );
+        store.init( null );
+
+        int nbChanges = SegmentedJournalStore.INDEX_INTERVAL * 4;
+
+        try
+        {
+            for ( long revision = 1L; revision <= nbChanges; revision++ )
+            {
+                assertTrue( store.log( PRINCIPAL, revision, createChange( revision ) ) );
+            }
+
+            assertTrue( store.getNbSegments() > 1 );
+
+            for ( File segment : folder.getRoot().listFiles() )
+            {
+                assertTrue( segment.length() <= 1024L );
+            }
+
+            // Replay from the middle of the journal, through the index
+            Collector collector = new Collector();
+            store.replay( 100L, Long.MAX_VALUE, collector );
+
+            assertEquals( nbChanges - 99, collector.records.size() );
+            assertEquals( "log 100 cn=e100,ou=system", collector.records.get( 0 ) );
+            assertEquals( "log " + nbChanges + " cn=e" + nbChanges + ",ou=system",
+                collector.records.get( nbChanges - 100 ) );
+        }
+        finally
+        {
+            store.destroy();
+        }
+    }
+
+
+    @Test
+    public void testWriteFailure() throws Exception
+    {
+        SegmentedJournalStore store = createStore();
+        store.setMaxSegmentSize( 100L );
+        store.init( null );
+
+        // The second segment can't be created
+        File blocker = new File( folder.getRoot(), "journal.0000000002" );
+        assertTrue( blocker.mkdir() );
+
+        try
+        {
+            assertTrue( store.log( PRINCIPAL, 1L, createChange( 1L ) ) );
+            assertFalse( store.log( PRINCIPAL, 2L, createChange( 2L ) ) );
+            assertFalse( store.log( PRINCIPAL, 3L, createChange( 3L ) ) );
+
+            // The writer goes on once the segment can be created
+            assertTrue( blocker.delete() );
+            assertTrue( store.log( PRINCIPAL, 4L, createChange( 4L ) ) );
+
+            Collector collector = new Collector();
+            store.replay( 0L, Long.MAX_VALUE, collector );
+
+            assertEquals( "[log 1 cn=e1,ou=system, log 4 cn=e4,ou=system]", collector.records.toString() );
+        }
+        finally
+        {
+            store.destroy();
+        }
+    }
+
+
+    @Test
+    public void testRecovery() throws Exception
+    {
+        SegmentedJournalStore store = createStore();
+        store.init( null );
+        store.log( PRINCIPAL, 1L, createChange( 1L ) );
+        store.ack( 1L );
+        store.log( PRINCIPAL, 2L, createChange( 2L ) );
+        store.destroy();
+
+        // Simulate a record partially written during a crash
+        File segment = folder.getRoot().listFiles()[0];
+        long length = segment.length();
+
+        try ( FileOutputStream out = new FileOutputStream( segment, true ) )
+        {
+            out.write( new byte[]
+                { 0, 0, 0, 100, 1, 2, 3 } );
+        }
+
+        store = createStore();
+        store.init( null );
+
+        try
+        {
+            assertEquals( 2L, store.getCurrentRevision() );
+            assertEquals( length, segment.length() );
+
+            assertTrue( store.log( PRINCIPAL, 3L, createChange( 3L ) ) );
+
+            Collector collector = new Collector();
+            store.replay( 0L, Long.MAX_VALUE, collector );
+
+            assertEquals( "[log 1 cn=e1,ou=system, ack 1, log 2 cn=e2,ou=system, log 3 cn=e3,ou=system]",
+                collector.records.toString() );
+        }
+        finally
+        {
+            store.destroy();
+        }
+    }
+}
@@ -26,7 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -52,7 +52,13 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * An interceptor to increment any attribute with integer matching rule
+ * An interceptor to increment any attribute with integer matching rule.
+ * <br>
+ * The numbers are reserved by blocks : the holder entry stores the upper bound of
+ * the last reserved block, which is written once per block, and the numbers of the
+ * block are handed out from memory. The numbers which haven't been used are given
+ * back when the server is stopped. If it crashes, they are lost, but a number is
+ * never handed out twice.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -61,11 +67,26 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
     /** A {@link Logger} for this class */
     private static final Logger LOG = LoggerFactory.getLogger( NumberIncrementingInterceptor.class );
 
+    /** The default number of values reserved at once */
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
     /** the DN of the holder entry */
     private Dn numberHolder;
     
     /** a map of integer attribute and it's present value */
-    private Map<String, AtomicInteger> incMap = new HashMap<>();
+    private Map<String, NumberBlock> incMap = new HashMap<>();
+
+    /** The number of values reserved at once */
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    /** The number of values handed out */
+    private final AtomicLong nbAllocated = new AtomicLong();
+
+    /** The number of blocks reserved */
+    private final AtomicLong nbReservations = new AtomicLong();
+
+    /** The date the interceptor has been initialized */
+    private long startTime;
     
     
     @Override
@@ -73,8 +94,10 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
     {
         super.init( directoryService );
         
+        startTime = System.currentTimeMillis();
+        nbAllocated.set( 0L );
+        nbReservations.set( 0L );
         numberHolder = new Dn( schemaManager, "ou=autoIncDataHolder,ou=system" );
-        
         Partition systemPartition = directoryService.getSystemPartition();
         
         LookupOperationContext lookupContext = new LookupOperationContext( directoryService.getAdminSession(), numberHolder, SchemaConstants.ALL_ATTRIBUTES_ARRAY ); 
@@ -157,8 +180,8 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
                 
                 if ( ( mr != null ) && SchemaConstants.INTEGER_MATCH_MR_OID.equals( mr.getOid() ) )
                 {
-                    int t = Integer.parseInt( at.getString() );
-                    incMap.put( at.getId(), new AtomicInteger( t ) );
+                    long reserved = Long.parseLong( at.getString() );
+                    incMap.put( at.getId(), new NumberBlock( at.getId(), reserved ) );
                 }
             }
         }
@@ -201,36 +224,206 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
 
         for ( Attribute at : lst )
         {
-            int stored = incMap.get( at.getId() ).get();
+            long value = incMap.get( at.getId() ).next();
             at.clear();
-            at.add( String.valueOf( stored + 1 ) );
+            at.add( String.valueOf( value ) );
         }
         
         // Ok, we are golden.
         next( addContext );
+    }
+
+
+    /**
+     * Gives back the values which have been reserved and not handed out.
+     */
+    @Override
+    public void destroy()
+    {
+        for ( NumberBlock block : incMap.values() )
+        {
+            try
+            {
+                block.release();
+            }
+            catch ( LdapException le )
+            {
+                LOG.warn( "Cannot release the unused values of {}", block.attributeId, le );
+            }
+        }
+
+        LOG.info( "{} values allocated in {} blocks, {} values per second", nbAllocated.get(),
+            nbReservations.get(), getAllocationRate() );
+    }
+
+
+    /**
+     * @return The number of values reserved at once
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+
+    /**
+     * @param blockSize The number of values reserved at once. 1 writes the holder entry for each value.
+     */
+    public void setBlockSize( int blockSize )
+    {
+        this.blockSize = Math.max( 1, blockSize );
+    }
+
+
+    /**
+     * @return The number of values handed out since the interceptor has been initialized
+     */
+    public long getNbAllocated()
+    {
+        return nbAllocated.get();
+    }
+
+
+    /**
+     * @return The number of blocks reserved since the interceptor has been initialized
+     */
+    public long getNbReservations()
+    {
+        return nbReservations.get();
+    }
+
+
+    /**
+     * @return The average number of values handed out per second since the interceptor has been initialized
+     */
+    public double getAllocationRate()
+    {
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        return elapsed <= 0L ? 0d : nbAllocated.get() * 1000d / elapsed;
+    }
+
+
+    /**
+     * Stores the value of an attribute in the holder entry, in its own transaction.
+     */
+    private void writeHolder( String attributeId, long value ) throws LdapException
+    {
+        Partition systemPartition = directoryService.getSystemPartition();
 
-        ModifyOperationContext bindModCtx = new ModifyOperationContext( directoryService.getAdminSession() );
-        bindModCtx.setDn( numberHolder );
-        bindModCtx.setPushToEvtInterceptor( true );
+        ModifyOperationContext modifyContext = new ModifyOperationContext( directoryService.getAdminSession() );
+        modifyContext.setDn( numberHolder );
+        modifyContext.setPushToEvtInterceptor( true );
+        modifyContext.setPartition( systemPartition );
 
         List<Modification> mods = new ArrayList<>();
+        mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.lookupAttributeTypeRegistry( attributeId ), String.valueOf( value ) ) );
+        modifyContext.setModItems( mods );
 
-        for ( Attribute at : lst )
+        PartitionTxn partitionTxn = null;
+
+        try
         {
-            AtomicInteger ai = incMap.get( at.getId() );
-            ai.set( ai.get() + 1 );
-            
-            Modification mod = new DefaultModification();
-            mod.setOperation( ModificationOperation.REPLACE_ATTRIBUTE );
-            mod.setAttribute( at );
+            partitionTxn = systemPartition.beginWriteTransaction();
+            modifyContext.setTransaction( partitionTxn );
+
+            directoryService.getPartitionNexus().modify( modifyContext );
+            partitionTxn.commit();
+        }
+        catch ( LdapException le )
+        {
+            if ( partitionTxn != null )
+            {
+                try
+                { 
+                    partitionTxn.abort();
+                }
+                catch ( IOException ioe )
+                {
+                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                }
+            }
             
-            mods.add( mod );
+            throw le;
+        }
+        catch ( IOException ioe )
+        {
+            if ( partitionTxn != null )
+            {
+                try
+                { 
+                    partitionTxn.abort();
+                }
+                catch ( IOException ioe2 )
+                {
+                    throw new LdapOtherException( ioe2.getMessage(), ioe2 );
+                }
+            }
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        LOG.debug( "Successfully updated numeric attribute {} in {}", attributeId, numberHolder );
+    }
+
+
+    /**
+     * The values of an attribute reserved in the holder entry.
+     */
+    private final class NumberBlock
+    {
+        /** The attribute */
+        private final String attributeId;
+
+        /** The last value handed out */
+        private long current;
+
+        /** The last value reserved */
+        private long reserved;
+
+
+        private NumberBlock( String attributeId, long reserved )
+        {
+            this.attributeId = attributeId;
+            this.current = reserved;
+            this.reserved = reserved;
+        }
+
+
+        /**
+         * Hands out the next value, reserving a new block if the current one is exhausted.
+         */
+        private synchronized long next() throws LdapException
+        {
+            if ( current == reserved )
+            {
+                // The block must be written before any of its values is used
+                writeHolder( attributeId, reserved + blockSize );
+                reserved += blockSize;
+                nbReservations.incrementAndGet();
+
+                LOG.debug( "Reserved the values of {} up to {}, {} values per second", attributeId, reserved,
+                    getAllocationRate() );
+            }
+
+            current++;
+            nbAllocated.incrementAndGet();
+
+            return current;
+        }
+
+
+        /**
+         * Gives back the reserved values which have not been handed out.
+         */
+        private synchronized void release() throws LdapException
+        {
+            if ( current < reserved )
+            {
+                writeHolder( attributeId, current );
+                reserved = current;
+            }
         }
-        
-        bindModCtx.setModItems( mods );
-        
-        directoryService.getPartitionNexus().modify( bindModCtx );
-        
-        LOG.debug( "Successfully updated numeric attribute in {}", numberHolder );
     }
 }
@@ -472,7 +472,7 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
     @Override
     public void move( MoveOperationContext moveContext ) throws LdapException
     {
-        Entry modifiedEntry = moveContext.getOriginalEntry().clone();
+        Entry modifiedEntry = moveContext.getModifiedEntry();
         modifiedEntry.put( SchemaConstants.MODIFIERS_NAME_AT, getPrincipal( moveContext ).getName() );
         modifiedEntry.put( SchemaConstants.MODIFY_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
 
@@ -518,7 +518,7 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
         entry.put( SchemaConstants.MODIFIERS_NAME_AT, getPrincipal( renameContext ).getName() );
         entry.put( SchemaConstants.MODIFY_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
 
-        Entry modifiedEntry = renameContext.getOriginalEntry().clone();
+        Entry modifiedEntry = renameContext.getModifiedEntry();
         modifiedEntry.put( SchemaConstants.MODIFIERS_NAME_AT, getPrincipal( renameContext ).getName() );
         modifiedEntry.put( SchemaConstants.MODIFY_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
 
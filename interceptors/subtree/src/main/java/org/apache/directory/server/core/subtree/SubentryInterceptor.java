@@ -20,10 +20,24 @@
 package org.apache.directory.server.core.subtree;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.naming.directory.SearchControls;
 
@@ -40,13 +54,11 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchAttributeException;
-import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -61,6 +73,7 @@ import org.apache.directory.api.ldap.model.subtree.SubtreeSpecificationParser;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InstanceLayout;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
@@ -68,6 +81,7 @@ import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
@@ -78,6 +92,7 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.subtree.SubentryCache;
+import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
@@ -106,13 +121,26 @@ public class SubentryInterceptor extends BaseInterceptor
     /** A reference to the nexus for direct backend operations */
     private PartitionNexus nexus;
 
-    /** An enum used for the entries update */
-    private enum OperationEnum
-    {
-        ADD,
-        REMOVE,
-        REPLACE
-    }
+    /** The number of entries updated in a single transaction when a subentry is added or modified */
+    private int updateBatchSize = SubentryUpdate.DEFAULT_BATCH_SIZE;
+
+    /** The updates of the subentry operational attributes not completed yet */
+    private final List<SubentryUpdate> pendingUpdates = new CopyOnWriteArrayList<>();
+
+    /** The executor running the pending updates */
+    private ExecutorService updateExecutor;
+
+    /** The name of the file, in the instance run directory, recording the pending updates */
+    private static final String PENDING_UPDATES_FILE = "subentry-updates";
+
+    /** The file recording the pending updates, so that they are resumed after a restart */
+    private File pendingUpdatesFile;
+
+    /** Tells if the subentry operational attributes are computed when read instead of being stored */
+    private boolean computedOperationalAttributes;
+
+    /** The SubentryUtils instance */
+    private SubentryUtils subentryUtils;
 
 
     /**
@@ -192,6 +220,64 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * SearchResultFilter used to give the returned entries the subentry operational
+     * attributes they will have once the pending updates are completed.
+     */
+    private class PendingUpdatesFilter implements EntryFilter
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( SearchOperationContext searchContext, Entry entry ) throws LdapException
+        {
+            applyPendingUpdates( searchContext, entry );
+
+            return true;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( String tabs )
+        {
+            return tabs + "PendingUpdatesFilter";
+        }
+    }
+
+
+    /**
+     * SearchResultFilter used to compute the subentry operational attributes of the
+     * returned entries.
+     */
+    private class ComputedOperationalAttributesFilter implements EntryFilter
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( SearchOperationContext searchContext, Entry entry ) throws LdapException
+        {
+            computeOperationalAttributes( searchContext, entry );
+
+            return true;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( String tabs )
+        {
+            return tabs + "ComputedOperationalAttributesFilter";
+        }
+    }
+
+
     //-------------------------------------------------------------------------------------------
     // Interceptor initialization
     //-------------------------------------------------------------------------------------------
@@ -206,81 +292,134 @@ public class SubentryInterceptor extends BaseInterceptor
         super.init( directoryService );
 
         nexus = directoryService.getPartitionNexus();
+        subentryUtils = new SubentryUtils( directoryService );
+        directoryService.getSubentryCache().setComputedOperationalAttributes( computedOperationalAttributes );
 
         ssParser = new SubtreeSpecificationParser( schemaManager );
         AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
 
-        // prepare to find all subentries in all namingContexts
-        Set<String> suffixes = nexus.listSuffixes();
-        ExprNode filter = new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.SUBENTRY_OC ) );
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.SUBTREE_SPECIFICATION_AT, SchemaConstants.OBJECT_CLASS_AT } );
-
         subentryOC = new Value( ocAt, SchemaConstants.SUBENTRY_OC );
 
         // search each namingContext for subentries
-        for ( String suffix : suffixes )
+        for ( String suffix : nexus.listSuffixes() )
         {
-            CoreSession adminSession = directoryService.getAdminSession();
+            loadSubentries( dnFactory.create( suffix ) );
+        }
 
-            Dn suffixDn = dnFactory.create( suffix );
-            Partition partition = nexus.getPartition( suffixDn );
+        InstanceLayout layout = directoryService.getInstanceLayout();
 
-            SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, suffixDn, filter,
-                controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( partition );
-            searchOperationContext.setTransaction( partition.beginReadTransaction() );
+        if ( layout != null )
+        {
+            pendingUpdatesFile = new File( layout.getRunDirectory(), PENDING_UPDATES_FILE );
+            resumePendingUpdates();
+        }
+    }
 
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
 
-            // Loop on all the found Subentries, parse the SubtreeSpecification
-            // and store the subentry in the subrentry cache
-            try
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        synchronized ( pendingUpdates )
+        {
+            if ( updateExecutor != null )
             {
-                while ( subentries.next() )
-                {
-                    Entry subentry = subentries.get();
-                    Dn subentryDn = subentry.getDn();
+                // Don't wait for the updates, which may be long : they are reported below
+                updateExecutor.shutdownNow();
+                updateExecutor = null;
+            }
+        }
 
-                    String subtree = subentry.get( directoryService.getAtProvider().getSubtreeSpecification() )
-                        .getString();
-                    SubtreeSpecification ss;
+        if ( !pendingUpdates.isEmpty() )
+        {
+            if ( pendingUpdatesFile != null )
+            {
+                LOG.info( "Some subentry operational attributes updates have not been completed, they will be "
+                    + "resumed on the next startup : {}", pendingUpdates );
+            }
+            else
+            {
+                LOG.warn( "Some subentry operational attributes updates have not been completed, the subentries "
+                    + "should be modified again to update the entries : {}", pendingUpdates );
+            }
+        }
+    }
 
-                    try
-                    {
-                        ss = ssParser.parse( subtree );
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.warn( "Failed while parsing subtreeSpecification for {}", subentryDn );
-                        continue;
-                    }
 
-                    Subentry newSubentry = new Subentry();
+    /**
+     * Loads the subentries of a partition into the SubentryCache. This is done for all
+     * the partitions on startup, and for a partition which content has been loaded
+     * without going through the interceptors.
+     *
+     * @param suffixDn The partition suffix
+     * @throws LdapException If the subentries can't be read
+     */
+    public void loadSubentries( Dn suffixDn ) throws LdapException
+    {
+        AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
+        ExprNode filter = new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.SUBENTRY_OC ) );
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        controls.setReturningAttributes( new String[]
+            { SchemaConstants.SUBTREE_SPECIFICATION_AT, SchemaConstants.OBJECT_CLASS_AT } );
 
-                    newSubentry.setAdministrativeRoles( getSubentryAdminRoles( subentry ) );
-                    newSubentry.setSubtreeSpecification( ss );
+        CoreSession adminSession = directoryService.getAdminSession();
+        Partition partition = nexus.getPartition( suffixDn );
 
-                    directoryService.getSubentryCache().addSubentry( subentryDn, newSubentry );
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationException( e.getMessage(), e );
-            }
-            finally
+        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, suffixDn, filter,
+            controls );
+        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchOperationContext.setPartition( partition );
+        searchOperationContext.setTransaction( partition.beginReadTransaction() );
+
+        EntryFilteringCursor subentries = nexus.search( searchOperationContext );
+
+        // Loop on all the found Subentries, parse the SubtreeSpecification
+        // and store the subentry in the subrentry cache
+        try
+        {
+            while ( subentries.next() )
             {
+                Entry subentry = subentries.get();
+                Dn subentryDn = subentry.getDn();
+
+                String subtree = subentry.get( directoryService.getAtProvider().getSubtreeSpecification() )
+                    .getString();
+                SubtreeSpecification ss;
+
                 try
                 {
-                    subentries.close();
+                    ss = ssParser.parse( subtree );
                 }
                 catch ( Exception e )
                 {
-                    LOG.error( I18n.err( I18n.ERR_168 ), e );
+                    LOG.warn( "Failed while parsing subtreeSpecification for {}", subentryDn );
+                    continue;
                 }
+
+                Subentry newSubentry = new Subentry();
+
+                newSubentry.setAdministrativeRoles( getSubentryAdminRoles( subentry ) );
+                newSubentry.setSubtreeSpecification( ss );
+
+                directoryService.getSubentryCache().addSubentry( subentryDn, newSubentry );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOperationException( e.getMessage(), e );
+        }
+        finally
+        {
+            try
+            {
+                subentries.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_168 ), e );
             }
         }
     }
@@ -354,84 +493,300 @@ public class SubentryInterceptor extends BaseInterceptor
 
 
     /**
-     * Update all the entries under an AP adding the
+     * Update the subentry operational attributes of all the entries under a base Dn,
+     * so that they reference the given subentry if and only if it selects them. The
+     * first batch of entries is updated within the current operation, the remaining
+     * entries are updated in the background.
      */
-    private void updateEntries( OperationContext opContext, OperationEnum operation, 
-        Dn apDn, SubtreeSpecification ss, Dn baseDn, List<Attribute> operationalAttributes ) throws LdapException
+    private void updateEntries( OperationContext opContext, Dn subentryDn, Dn baseDn ) throws LdapException
     {
-        ExprNode filter = ObjectClassNode.OBJECT_CLASS_NODE; // (objectClass=*)
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
+        SubentryUpdate update = new SubentryUpdate( this, directoryService, subentryDn, baseDn, updateBatchSize );
 
-        SearchOperationContext searchOperationContext = new SearchOperationContext( opContext.getSession(),
-            baseDn, filter, controls );
-        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-        searchOperationContext.setPartition( opContext.getPartition() );
-        searchOperationContext.setTransaction( opContext.getTransaction() );
+        if ( update.applyInline( opContext ) )
+        {
+            return;
+        }
 
-        EntryFilteringCursor subentries = nexus.search( searchOperationContext );
+        LOG.info( "Too many entries to update below {} for the {} subentry, updating them in the background",
+            baseDn, subentryDn );
 
-        try
+        addPendingUpdate( update );
+    }
+
+
+    /**
+     * Records an update as pending, then runs it in the background. Until it's done, the
+     * readers of the subentry operational attributes compute the references to the
+     * subentry (see {@link SubentryUtils#getSubentryReferences(Entry, AttributeType)}).
+     */
+    private void addPendingUpdate( SubentryUpdate update )
+    {
+        directoryService.getSubentryCache().addPendingUpdate( update.getSubentryDn(), update.getBaseDn() );
+        pendingUpdates.add( update );
+        savePendingUpdates();
+        submit( update );
+    }
+
+
+    /**
+     * Run an update in the background
+     */
+    private void submit( SubentryUpdate update )
+    {
+        synchronized ( pendingUpdates )
         {
-            while ( subentries.next() )
+            if ( updateExecutor == null )
             {
-                Entry candidate = subentries.get();
-                Dn candidateDn = candidate.getDn();
+                updateExecutor = Executors.newSingleThreadExecutor();
+            }
 
-                if ( directoryService.getEvaluator().evaluate( ss, apDn, candidateDn, candidate ) )
+            updateExecutor.execute( update );
+        }
+    }
+
+
+    /**
+     * Called when a background update is completed.
+     *
+     * @param update The completed update
+     */
+    /* no qualifier */ void updateDone( SubentryUpdate update )
+    {
+        pendingUpdates.remove( update );
+        directoryService.getSubentryCache().removePendingUpdate( update.getSubentryDn(), update.getBaseDn() );
+        savePendingUpdates();
+    }
+
+
+    /**
+     * Records the pending updates in the run directory. As the updates don't depend on
+     * the operation which triggered them, storing the subentry Dn and the base Dn is
+     * enough to run them again.
+     */
+    private void savePendingUpdates()
+    {
+        if ( pendingUpdatesFile == null )
+        {
+            return;
+        }
+
+        synchronized ( pendingUpdates )
+        {
+            try
+            {
+                if ( pendingUpdates.isEmpty() )
                 {
-                    List<Modification> modifications = null;
+                    Files.deleteIfExists( pendingUpdatesFile.toPath() );
 
-                    switch ( operation )
-                    {
-                        case ADD:
-                            modifications = getOperationalModsForAdd( candidate, operationalAttributes );
-                            break;
+                    return;
+                }
 
-                        case REMOVE:
-                            modifications = getOperationalModsForRemove( opContext.getDn(), candidate );
-                            break;
+                File tmpFile = new File( pendingUpdatesFile.getPath() + ".tmp" );
 
-                        case REPLACE:
-                            // TODO: why is that commented out???
-                            //modifications = getOperationalModsForReplace( subentryDn, candidate );
-                            break;
+                try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( tmpFile ) ) ) )
+                {
+                    out.writeInt( pendingUpdates.size() );
 
-                        default:
-                            throw new IllegalArgumentException( "Unexpected operation " + operation );
+                    for ( SubentryUpdate update : pendingUpdates )
+                    {
+                        out.writeUTF( update.getSubentryDn().getName() );
+                        out.writeUTF( update.getBaseDn().getName() );
                     }
-
-                    LOG.debug( "The entry {} has been evaluated to true for subentry {}", candidate.getDn(), opContext.getDn() );
-                    ModifyOperationContext modifyContext = new ModifyOperationContext( opContext.getSession(), candidateDn, modifications );
-                    modifyContext.setPartition( opContext.getPartition() );
-                    modifyContext.setTransaction( opContext.getTransaction() );
-                    
-                    nexus.modify( modifyContext );
                 }
+
+                Files.move( tmpFile.toPath(), pendingUpdatesFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( IOException ioe )
+            {
+                LOG.error( "Cannot record the pending subentry operational attributes updates in {} : {}",
+                    pendingUpdatesFile, pendingUpdates, ioe );
             }
+        }
+    }
 
-            subentries.close();
+
+    /**
+     * Runs again the updates which were pending when the server was stopped.
+     */
+    private void resumePendingUpdates()
+    {
+        if ( !pendingUpdatesFile.exists() )
+        {
+            return;
         }
-        catch ( Exception e )
+
+        List<SubentryUpdate> updates = new ArrayList<>();
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+            new FileInputStream( pendingUpdatesFile ) ) ) )
         {
-            throw new LdapOtherException( e.getMessage(), e );
+            int nbUpdates = in.readInt();
+
+            for ( int i = 0; i < nbUpdates; i++ )
+            {
+                Dn subentryDn = dnFactory.create( in.readUTF() );
+                Dn baseDn = dnFactory.create( in.readUTF() );
+
+                updates.add( new SubentryUpdate( this, directoryService, subentryDn, baseDn, updateBatchSize ) );
+            }
         }
-        finally
+        catch ( IOException | LdapException e )
         {
-            try
+            LOG.error( "Cannot read the pending subentry operational attributes updates from {}, the subentries "
+                + "should be modified again to update the entries", pendingUpdatesFile, e );
+
+            return;
+        }
+
+        LOG.info( "Resuming {} subentry operational attributes updates", updates.size() );
+
+        for ( SubentryUpdate update : updates )
+        {
+            addPendingUpdate( update );
+        }
+    }
+
+
+    /**
+     * Gives the entries read while some updates are pending the subentry operational
+     * attributes they will have once the updates are completed.
+     */
+    private void applyPendingUpdates( FilteringOperationContext opContext, Entry entry ) throws LdapException
+    {
+        for ( SubentryUpdate update : pendingUpdates )
+        {
+            update.apply( opContext, entry );
+        }
+    }
+
+
+    /**
+     * Computes the subentry operational attributes of an entry, replacing the ones
+     * it may contain. Only the attributes requested by the operation are computed.
+     */
+    private void computeOperationalAttributes( FilteringOperationContext opContext, Entry entry )
+        throws LdapException
+    {
+        // The returned entry may not contain the attributes used by the refinements
+        Entry original = entry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            original = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        if ( original.contains( directoryService.getAtProvider().getObjectClass(), subentryOC ) )
+        {
+            return;
+        }
+
+        Entry subentryAttrs = null;
+
+        for ( AttributeType attributeType : directoryService.getAtProvider().getSubentryOperationalAttributes() )
+        {
+            if ( !opContext.isAllOperationalAttributes() && !opContext.contains( schemaManager, attributeType ) )
             {
-                subentries.close();
+                continue;
             }
-            catch ( Exception e )
+
+            if ( subentryAttrs == null )
             {
-                LOG.error( I18n.err( I18n.ERR_168 ), e );
+                subentryAttrs = subentryUtils.getSubentryAttributes( entry.getDn(), original );
+            }
+
+            Attribute computed = subentryAttrs.get( attributeType );
+
+            // The subschemaSubentry is also set when the entry is not in a subschema administrative area
+            if ( ( computed == null )
+                && attributeType.equals( directoryService.getAtProvider().getSubschemaSubentry() ) )
+            {
+                continue;
+            }
+
+            entry.removeAttributes( attributeType );
+
+            if ( computed != null )
+            {
+                entry.put( computed );
+            }
+        }
+    }
+
+
+    /**
+     * @return The updates of the subentry operational attributes which are still
+     * being applied in the background, or which have failed
+     */
+    public List<SubentryUpdate> getPendingUpdates()
+    {
+        return Collections.unmodifiableList( new ArrayList<>( pendingUpdates ) );
+    }
+
+
+    /**
+     * Runs again the updates which have failed. They are resumed from the beginning,
+     * the entries which are already up to date being skipped.
+     */
+    public void resumeFailedUpdates()
+    {
+        for ( SubentryUpdate update : pendingUpdates )
+        {
+            if ( update.getState() == SubentryUpdate.State.FAILED )
+            {
+                submit( update );
             }
         }
     }
 
 
+    /**
+     * @return The number of entries updated in a single transaction
+     */
+    public int getUpdateBatchSize()
+    {
+        return updateBatchSize;
+    }
+
+
+    /**
+     * @param updateBatchSize The number of entries updated in a single transaction
+     * when a subentry is added, deleted or modified
+     */
+    public void setUpdateBatchSize( int updateBatchSize )
+    {
+        this.updateBatchSize = updateBatchSize;
+    }
+
+
+    /**
+     * @return <code>true</code> if the subentry operational attributes are computed when
+     * an entry is read instead of being stored in the entries
+     */
+    public boolean isComputedOperationalAttributes()
+    {
+        return computedOperationalAttributes;
+    }
+
+
+    /**
+     * Tells if the subentry operational attributes (accessControlSubentries,
+     * collectiveAttributeSubentries, subschemaSubentry and triggerExecutionSubentries)
+     * are computed when an entry is read, from the administrative points located above
+     * it. In this mode, adding, moving or deleting a subentry, or moving an entry, does
+     * not modify any other entry. The mode must be set before the interceptor is
+     * initialized, and the existing entries are not migrated.
+     *
+     * @param computedOperationalAttributes <code>true</code> if the subentry operational
+     * attributes are computed
+     */
+    public void setComputedOperationalAttributes( boolean computedOperationalAttributes )
+    {
+        this.computedOperationalAttributes = computedOperationalAttributes;
+    }
+
+
     /**
      * Checks if the given Dn is a namingContext
      */
@@ -713,120 +1068,6 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
-    /**
-     * Gets the subschema operational attributes to be added to or removed from
-     * an entry selected by a subentry's subtreeSpecification.
-     */
-    private List<Attribute> getSubentryOperationalAttributes( Dn dn, Subentry subentry ) throws LdapException
-    {
-        List<Attribute> attributes = new ArrayList<>();
-
-        if ( subentry.isAccessControlAdminRole() )
-        {
-            Attribute accessControlSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getAccessControlSubentries(), dn.getName() );
-            attributes.add( accessControlSubentries );
-        }
-
-        if ( subentry.isSchemaAdminRole() )
-        {
-            Attribute subschemaSubentry = new DefaultAttribute(
-                directoryService.getAtProvider().getSubschemaSubentry(), dn.getName() );
-            attributes.add( subschemaSubentry );
-        }
-
-        if ( subentry.isCollectiveAdminRole() )
-        {
-            Attribute collectiveAttributeSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getCollectiveAttributeSubentries(), dn.getName() );
-            attributes.add( collectiveAttributeSubentries );
-        }
-
-        if ( subentry.isTriggersAdminRole() )
-        {
-            Attribute tiggerExecutionSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getTriggerExecutionSubentries(), dn.getName() );
-            attributes.add( tiggerExecutionSubentries );
-        }
-
-        return attributes;
-    }
-
-
-    /**
-     * Calculates the subentry operational attributes to remove from a candidate
-     * entry selected by a subtreeSpecification.  When we remove a subentry we
-     * must remove the operational attributes in the entries that were once selected
-     * by the subtree specification of that subentry.  To do so we must perform
-     * a modify operation with the set of modifications to perform.  This method
-     * calculates those modifications.
-     *
-     * @param subentryDn the distinguished name of the subentry
-     * @param candidate the candidate entry to removed from the
-     * @return the set of modifications required to remove an entry's reference to
-     * a subentry
-     */
-    private List<Modification> getOperationalModsForRemove( Dn subentryDn, Entry candidate ) throws LdapException
-    {
-        List<Modification> modifications = new ArrayList<>();
-        String dn = subentryDn.getName();
-
-        for ( AttributeType operationalAttribute : directoryService.getAtProvider().getSubentryOperationalAttributes() )
-        {
-            Attribute opAttr = candidate.get( operationalAttribute );
-
-            if ( ( opAttr != null ) && opAttr.contains( dn ) )
-            {
-                Attribute attr = new DefaultAttribute( operationalAttribute, dn );
-                modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attr ) );
-            }
-        }
-
-        return modifications;
-    }
-
-
-    /**
-     * Calculates the subentry operational attributes to add or replace from
-     * a candidate entry selected by a subtree specification.  When a subentry
-     * is added or it's specification is modified some entries must have new
-     * operational attributes added to it to point back to the associated
-     * subentry.  To do so a modify operation must be performed on entries
-     * selected by the subtree specification.  This method calculates the
-     * modify operation to be performed on the entry.
-     */
-    private List<Modification> getOperationalModsForAdd( Entry entry, List<Attribute> operationalAttributes )
-        throws LdapException
-    {
-        List<Modification> modifications = new ArrayList<>();
-
-        for ( Attribute operationalAttribute : operationalAttributes )
-        {
-            Attribute opAttrInEntry = entry.get( operationalAttribute.getAttributeType() );
-
-            if ( ( opAttrInEntry != null ) && ( opAttrInEntry.size() > 0 ) )
-            {
-                Attribute newOperationalAttribute = operationalAttribute.clone();
-
-                for ( Value value : opAttrInEntry )
-                {
-                    newOperationalAttribute.add( value );
-                }
-
-                modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
-                    newOperationalAttribute ) );
-            }
-            else
-            {
-                modifications
-                    .add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, operationalAttribute ) );
-            }
-        }
-
-        return modifications;
-    }
-
-
     /**
      * Get the list of modification to apply to all the entries
      */
@@ -936,16 +1177,13 @@ public class SubentryInterceptor extends BaseInterceptor
             checkAdministrativeRole( addContext, apDn );
 
             /* ----------------------------------------------------------------
-             * Build the set of operational attributes to be injected into
-             * entries that are contained within the subtree represented by this
-             * new subentry.  In the process we make sure the proper roles are
-             * supported by the administrative point to allow the addition of
-             * this new subentry.
+             * Get the administrative roles of the subentry : they define the
+             * operational attributes to be injected into entries that are
+             * contained within the subtree represented by this new subentry.
              * ----------------------------------------------------------------
              */
             Subentry subentry = new Subentry();
             subentry.setAdministrativeRoles( getSubentryAdminRoles( entry ) );
-            List<Attribute> operationalAttributes = getSubentryOperationalAttributes( dn, subentry );
 
             /* ----------------------------------------------------------------
              * Parse the subtreeSpecification of the subentry and add it to the
@@ -964,20 +1202,28 @@ public class SubentryInterceptor extends BaseInterceptor
              * Find the baseDn for the subentry and use that to search the tree
              * while testing each entry returned for inclusion within the
              * subtree of the subentry's subtreeSpecification.  All included
-             * entries will have their operational attributes merged with the
-             * operational attributes calculated above.
+             * entries will reference the subentry in the operational attributes
+             * associated with its roles. Large subtrees are updated in the
+             * background.
              * ----------------------------------------------------------------
              */
             Dn baseDn = apDn;
             baseDn = baseDn.add( subentry.getSubtreeSpecification().getBase() );
 
-            updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
-                baseDn, operationalAttributes );
+            if ( !computedOperationalAttributes )
+            {
+                updateEntries( addContext, dn, baseDn );
+            }
 
             // Store the newly modified entry into the context for later use in interceptor
             // just in case
             addContext.setEntry( entry );
         }
+        else if ( computedOperationalAttributes )
+        {
+            // The subentry operational attributes are computed when the entry is read
+            next( addContext );
+        }
         else
         {
             // The added entry is not a Subentry.
@@ -1065,13 +1311,15 @@ public class SubentryInterceptor extends BaseInterceptor
             Dn baseDn = apDn;
             baseDn = baseDn.add( removedSubentry.getSubtreeSpecification().getBase() );
 
-            // Remove all the references to this removed subentry from all the selected entries
-            updateEntries( deleteContext, OperationEnum.REMOVE, apDn,
-                removedSubentry.getSubtreeSpecification(), baseDn, null );
-
-            // Update the cache
+            // Update the cache, then remove all the references to this removed subentry
+            // from all the selected entries
             directoryService.getSubentryCache().removeSubentry( dn );
 
+            if ( !computedOperationalAttributes )
+            {
+                updateEntries( deleteContext, dn, baseDn );
+            }
+
             // Now delete the subentry itself
             next( deleteContext );
         }
@@ -1143,111 +1391,39 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( modifyContext );
 
-            // search for all entries selected by the old SS and remove references to subentry
-            Dn apName = dn.getParent();
-            Dn oldBaseDn = apName;
-            oldBaseDn = oldBaseDn.add( ssOld.getBase() );
-
-            ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            controls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-            SearchOperationContext searchOperationContext = new SearchOperationContext( modifyContext.getSession(),
-                oldBaseDn, filter, controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( modifyContext.getPartition() );
-            searchOperationContext.setTransaction( modifyContext.getTransaction() );
-
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-            try
+            if ( computedOperationalAttributes )
             {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn candidateDn = candidate.getDn();
-
-                    if ( directoryService.getEvaluator().evaluate( ssOld, apName, candidateDn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( modifyContext.getSession(), candidateDn,
-                            getOperationalModsForRemove( dn, candidate ) );
-                        newModifyContext.setPartition( modifyContext.getPartition() );
-                        newModifyContext.setTransaction( modifyContext.getTransaction() );
-                        
-                        nexus.modify( newModifyContext );
-                    }
-                }
-
-                subentries.close();
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationErrorException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_168 ), e );
-                }
+                // The subentry operational attributes are computed when the entries are read
+                return;
             }
 
-            // search for all selected entries by the new SS and add references to subentry
-            subentry = directoryService.getSubentryCache().getSubentry( dn );
-            List<Attribute> operationalAttributes = getSubentryOperationalAttributes( dn, subentry );
+            // Remove the references to the subentry from the entries selected by the old SS,
+            // and add them to the entries selected by the new SS
+            Dn apName = dn.getParent();
+            Dn oldBaseDn = apName;
+            oldBaseDn = oldBaseDn.add( ssOld.getBase() );
             Dn newBaseDn = apName;
             newBaseDn = newBaseDn.add( ssNew.getBase() );
 
-            searchOperationContext = new SearchOperationContext( modifyContext.getSession(), newBaseDn, filter,
-                controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( modifyContext.getPartition() );
-            searchOperationContext.setTransaction( modifyContext.getTransaction() );
-
-            subentries = nexus.search( searchOperationContext );
-
-            try
+            if ( newBaseDn.equals( oldBaseDn ) || newBaseDn.isDescendantOf( oldBaseDn ) )
             {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn candidateDn = candidate.getDn();
-
-                    if ( directoryService.getEvaluator().evaluate( ssNew, apName, candidateDn, candidate ) )
-                    {
-                        nexus.modify( new ModifyOperationContext( modifyContext.getSession(), candidateDn,
-                            getOperationalModsForAdd( candidate, operationalAttributes ) ) );
-                    }
-                }
-                subentries.close();
+                updateEntries( modifyContext, dn, oldBaseDn );
             }
-            catch ( Exception e )
+            else if ( oldBaseDn.isDescendantOf( newBaseDn ) )
             {
-                throw new LdapOperationErrorException( e.getMessage(), e );
+                updateEntries( modifyContext, dn, newBaseDn );
             }
-            finally
+            else
             {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_168 ), e );
-                }
+                updateEntries( modifyContext, dn, oldBaseDn );
+                updateEntries( modifyContext, dn, newBaseDn );
             }
         }
         else
         {
             next( modifyContext );
 
-            if ( !containsSubentryOC )
+            if ( !containsSubentryOC && !computedOperationalAttributes )
             {
                 Entry newEntry = modifyContext.getAlteredEntry();
 
@@ -1328,6 +1504,12 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( moveContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             subentry = directoryService.getSubentryCache().getSubentry( newName );
 
             ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
@@ -1402,6 +1584,12 @@ public class SubentryInterceptor extends BaseInterceptor
             // Move the entry
             next( moveContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             // calculate the new Dn now for use below to modify subentry operational
             // attributes contained within this regular entry with name changes
             Dn newDn = moveContext.getNewDn();
@@ -1450,6 +1638,12 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( moveAndRenameContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             subentry = directoryService.getSubentryCache().getSubentry( newName );
 
             ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
@@ -1516,6 +1710,12 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( moveAndRenameContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             // calculate the new Dn now for use below to modify subentry operational
             // attributes contained within this regular entry with name changes
             Dn newDn = moveAndRenameContext.getNewDn();
@@ -1559,6 +1759,12 @@ public class SubentryInterceptor extends BaseInterceptor
             directoryService.getSubentryCache().addSubentry( newName, subentry );
             next( renameContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             subentry = directoryService.getSubentryCache().getSubentry( newName );
             ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
             SearchControls controls = new SearchControls();
@@ -1622,6 +1828,12 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( renameContext );
 
+            if ( computedOperationalAttributes )
+            {
+                // The subentry operational attributes are computed when the entries are read
+                return;
+            }
+
             // calculate the new Dn now for use below to modify subentry operational
             // attributes contained within this regular entry with name changes
             Dn newName = renameContext.getNewDn();
@@ -1639,6 +1851,27 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+    {
+        Entry entry = next( lookupContext );
+
+        if ( ( entry != null ) && computedOperationalAttributes )
+        {
+            computeOperationalAttributes( lookupContext, entry );
+        }
+        else if ( ( entry != null ) && !pendingUpdates.isEmpty() )
+        {
+            applyPendingUpdates( lookupContext, entry );
+        }
+
+        return entry;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1647,6 +1880,16 @@ public class SubentryInterceptor extends BaseInterceptor
     {
         EntryFilteringCursor cursor = next( searchContext );
 
+        if ( computedOperationalAttributes )
+        {
+            cursor.addEntryFilter( new ComputedOperationalAttributesFilter() );
+        }
+        else
+        {
+            // Expose the result of the updates not completed yet
+            cursor.addEntryFilter( new PendingUpdatesFilter() );
+        }
+
         // object scope searches by default return subentries
         if ( searchContext.getScope() == SearchScope.OBJECT )
         {
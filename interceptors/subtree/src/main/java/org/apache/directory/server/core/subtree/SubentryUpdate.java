@@ -0,0 +1,594 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The update of the subentry operational attributes (accessControlSubentries,
+ * collectiveAttributeSubentries, subschemaSubentry and triggerExecutionSubentries)
+ * of the entries stored below a base Dn, after a subentry has been added, deleted or
+ * had its subtreeSpecification modified.
+ * <br>
+ * The update does not depend on the operation that triggered it : each entry
+ * is made to reference the subentry if and only if the subentry currently stored in
+ * the SubentryCache selects it. Applying an update twice, or applying two updates
+ * of the same subentry in any order, gives the same result, which means a failed
+ * update can simply be run again.
+ * <br>
+ * The first batch of entries is updated within the triggering operation. If more
+ * entries have to be updated, the update goes on in the background, by batches,
+ * each batch being applied in its own transaction while holding the write lock.
+ * Until it's completed the update is pending : the entries returned by the
+ * SubentryInterceptor are given the operational attributes they will eventually
+ * have (see {@link #apply(FilteringOperationContext, Entry)}), and the references
+ * read by the other interceptors are computed by the SubentryUtils. The pending
+ * updates are recorded in the instance run directory, and resumed on startup.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryUpdate implements Runnable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( SubentryUpdate.class );
+
+    /** The default number of entries updated in a single transaction */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The update states
+     */
+    public enum State
+    {
+        /** The update is waiting for the background thread */
+        PENDING,
+
+        /** The update is being applied by the background thread */
+        RUNNING,
+
+        /** All the entries have been updated */
+        DONE,
+
+        /** The update has failed. It can be resumed. */
+        FAILED
+    }
+
+    /** The interceptor which created this update */
+    private final SubentryInterceptor interceptor;
+
+    /** The DirectoryService instance */
+    private final DirectoryService directoryService;
+
+    /** The subentry Dn */
+    private final Dn subentryDn;
+
+    /** The administrative point Dn */
+    private final Dn apDn;
+
+    /** The base of the updated entries */
+    private final Dn baseDn;
+
+    /** The number of entries updated in a single transaction */
+    private final int batchSize;
+
+    /** The update state */
+    private volatile State state = State.PENDING;
+
+    /** The number of entries read so far */
+    private volatile long nbRead;
+
+    /** The number of entries modified so far */
+    private volatile long nbUpdated;
+
+    /** The error that stopped the update, if any */
+    private volatile Exception failure;
+
+
+    /**
+     * Creates a new instance of SubentryUpdate.
+     *
+     * @param interceptor The interceptor which created this update
+     * @param directoryService The DirectoryService instance
+     * @param subentryDn The subentry Dn
+     * @param baseDn The base of the entries to update
+     * @param batchSize The number of entries updated in a single transaction
+     */
+    /* no qualifier */ SubentryUpdate( SubentryInterceptor interceptor, DirectoryService directoryService,
+        Dn subentryDn, Dn baseDn, int batchSize )
+    {
+        this.interceptor = interceptor;
+        this.directoryService = directoryService;
+        this.subentryDn = subentryDn;
+        this.apDn = subentryDn.getParent();
+        this.baseDn = baseDn;
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * Creates the search used to find the entries to update
+     */
+    private SearchOperationContext createSearchContext( CoreSession session, Partition partition,
+        PartitionTxn partitionTxn )
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        controls.setReturningAttributes( new String[]
+            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
+
+        SearchOperationContext searchOperationContext = new SearchOperationContext( session, baseDn,
+            ObjectClassNode.OBJECT_CLASS_NODE, controls );
+        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchOperationContext.setPartition( partition );
+        searchOperationContext.setTransaction( partitionTxn );
+
+        return searchOperationContext;
+    }
+
+
+    /**
+     * Updates the first batch of entries within the triggering operation.
+     *
+     * @param opContext The triggering operation
+     * @return <code>true</code> if all the entries have been updated
+     * @throws LdapException If the update failed
+     */
+    /* no qualifier */ boolean applyInline( OperationContext opContext ) throws LdapException
+    {
+        PartitionNexus nexus = directoryService.getPartitionNexus();
+        EntryFilteringCursor candidates = nexus.search( createSearchContext( opContext.getSession(),
+            opContext.getPartition(), opContext.getTransaction() ) );
+        int nbModified = 0;
+
+        try
+        {
+            while ( candidates.next() )
+            {
+                Entry candidate = candidates.get();
+                List<Modification> modifications = getModifications( candidate );
+                nbRead++;
+
+                if ( modifications.isEmpty() )
+                {
+                    continue;
+                }
+
+                if ( nbModified == batchSize )
+                {
+                    // Too many entries to update, the background thread will take over
+                    return false;
+                }
+
+                ModifyOperationContext modifyContext = new ModifyOperationContext( opContext.getSession(),
+                    candidate.getDn(), modifications );
+                modifyContext.setPartition( opContext.getPartition() );
+                modifyContext.setTransaction( opContext.getTransaction() );
+
+                nexus.modify( modifyContext );
+                nbModified++;
+                nbUpdated++;
+            }
+
+            state = State.DONE;
+
+            return true;
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            try
+            {
+                candidates.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_168 ), e );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        LOG.info( "Updating the entries below {} for the {} subentry", baseDn, subentryDn );
+
+        state = State.RUNNING;
+        nbRead = 0L;
+        nbUpdated = 0L;
+        failure = null;
+
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        // Wait for the triggering operation to be completed
+        operationManager.lockWrite();
+        operationManager.unlockWrite();
+
+        try
+        {
+            Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+            List<Dn> batch = new ArrayList<>( batchSize );
+
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                EntryFilteringCursor candidates = directoryService.getPartitionNexus().search(
+                    createSearchContext( directoryService.getAdminSession(), partition, partitionTxn ) );
+
+                try
+                {
+                    while ( candidates.next() )
+                    {
+                        Entry candidate = candidates.get();
+                        nbRead++;
+
+                        if ( !getModifications( candidate ).isEmpty() )
+                        {
+                            batch.add( candidate.getDn() );
+
+                            if ( batch.size() == batchSize )
+                            {
+                                applyBatch( partition, batch );
+                                batch.clear();
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    candidates.close();
+                }
+            }
+
+            applyBatch( partition, batch );
+
+            state = State.DONE;
+            interceptor.updateDone( this );
+
+            LOG.info( "The entries below {} have been updated for the {} subentry, {} entries modified", baseDn,
+                subentryDn, nbUpdated );
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "The update of the entries below {} for the {} subentry has failed", baseDn, subentryDn, e );
+            failure = e;
+            state = State.FAILED;
+        }
+    }
+
+
+    /**
+     * Update a batch of entries in a single transaction. The entries are read again,
+     * as they may have been modified since they have been selected.
+     */
+    private void applyBatch( Partition partition, List<Dn> batch ) throws Exception
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        PartitionNexus nexus = directoryService.getPartitionNexus();
+        CoreSession session = directoryService.getAdminSession();
+
+        operationManager.lockWrite();
+
+        try
+        {
+            PartitionTxn partitionTxn = partition.beginWriteTransaction();
+
+            try
+            {
+                for ( Dn dn : batch )
+                {
+                    LookupOperationContext lookupContext = new LookupOperationContext( session, dn,
+                        SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+                    lookupContext.setPartition( partition );
+                    lookupContext.setTransaction( partitionTxn );
+
+                    Entry entry = nexus.lookup( lookupContext );
+
+                    if ( entry == null )
+                    {
+                        // Deleted in the meantime
+                        continue;
+                    }
+
+                    List<Modification> modifications = getModifications( entry );
+
+                    if ( !modifications.isEmpty() )
+                    {
+                        ModifyOperationContext modifyContext = new ModifyOperationContext( session, dn,
+                            modifications );
+                        modifyContext.setPartition( partition );
+                        modifyContext.setTransaction( partitionTxn );
+
+                        nexus.modify( modifyContext );
+                        nbUpdated++;
+                    }
+                }
+
+                partitionTxn.commit();
+            }
+            catch ( Exception e )
+            {
+                partitionTxn.abort();
+
+                throw e;
+            }
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+
+        LOG.debug( "{} : {} entries read, {} entries modified", subentryDn, nbRead, nbUpdated );
+    }
+
+
+    /**
+     * Computes the references to the subentry an entry should have, per
+     * operational attribute : the accessControlSubentries, subschemaSubentry,
+     * collectiveAttributeSubentries and triggerExecutionSubentries flags,
+     * in this order.
+     */
+    private boolean[] getExpectedReferences( Entry entry ) throws LdapException
+    {
+        boolean[] expected = new boolean[4];
+        Subentry subentry = directoryService.getSubentryCache().getSubentry( subentryDn );
+
+        if ( ( subentry == null ) || !entry.getDn().isDescendantOf( apDn ) )
+        {
+            return expected;
+        }
+
+        if ( directoryService.getEvaluator().evaluate( subentry.getSubtreeSpecification(), apDn, entry.getDn(),
+            entry ) )
+        {
+            expected[0] = subentry.isAccessControlAdminRole();
+            expected[1] = subentry.isSchemaAdminRole();
+            expected[2] = subentry.isCollectiveAdminRole();
+            expected[3] = subentry.isTriggersAdminRole();
+        }
+
+        return expected;
+    }
+
+
+    /**
+     * @return The subentry operational attributes, in the same order as the flags
+     * returned by {@link #getExpectedReferences(Entry)}
+     */
+    private AttributeType[] getOperationalAttributeTypes()
+    {
+        return new AttributeType[]
+            {
+                directoryService.getAtProvider().getAccessControlSubentries(),
+                directoryService.getAtProvider().getSubschemaSubentry(),
+                directoryService.getAtProvider().getCollectiveAttributeSubentries(),
+                directoryService.getAtProvider().getTriggerExecutionSubentries()
+        };
+    }
+
+
+    /**
+     * Computes the modifications to apply on an entry so that it references the
+     * subentry if and only if the subentry selects it.
+     */
+    private List<Modification> getModifications( Entry entry ) throws LdapException
+    {
+        List<Modification> modifications = new ArrayList<>();
+        boolean[] expected = getExpectedReferences( entry );
+        AttributeType[] attributeTypes = getOperationalAttributeTypes();
+        String dn = subentryDn.getName();
+
+        for ( int i = 0; i < attributeTypes.length; i++ )
+        {
+            Attribute opAttr = entry.get( attributeTypes[i] );
+            boolean present = ( opAttr != null ) && opAttr.contains( dn );
+
+            if ( expected[i] && !present )
+            {
+                modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+                    new DefaultAttribute( attributeTypes[i], dn ) ) );
+            }
+            else if ( !expected[i] && present )
+            {
+                modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+                    new DefaultAttribute( attributeTypes[i], dn ) ) );
+            }
+        }
+
+        return modifications;
+    }
+
+
+    /**
+     * Gives an entry read while the update is pending the subentry operational
+     * attributes it will have once the update is completed. Only the attributes
+     * requested by the operation are modified.
+     *
+     * @param opContext The search or lookup operation
+     * @param entry The returned entry
+     * @throws LdapException If the entry can't be evaluated
+     */
+    /* no qualifier */ void apply( FilteringOperationContext opContext, Entry entry ) throws LdapException
+    {
+        if ( !entry.getDn().isDescendantOf( baseDn ) && !entry.getDn().equals( baseDn ) )
+        {
+            return;
+        }
+
+        // The returned entry may not contain the attributes used by the refinements
+        Entry original = entry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            original = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        boolean[] expected = getExpectedReferences( original );
+        AttributeType[] attributeTypes = getOperationalAttributeTypes();
+        String dn = subentryDn.getName();
+
+        for ( int i = 0; i < attributeTypes.length; i++ )
+        {
+            if ( !opContext.isAllOperationalAttributes()
+                && !opContext.contains( directoryService.getSchemaManager(), attributeTypes[i] ) )
+            {
+                continue;
+            }
+
+            Attribute opAttr = entry.get( attributeTypes[i] );
+
+            if ( expected[i] )
+            {
+                if ( opAttr == null )
+                {
+                    entry.put( attributeTypes[i], dn );
+                }
+                else if ( !opAttr.contains( dn ) )
+                {
+                    opAttr.add( dn );
+                }
+            }
+            else if ( ( opAttr != null ) && opAttr.contains( dn ) )
+            {
+                opAttr.remove( dn );
+
+                if ( opAttr.size() == 0 )
+                {
+                    entry.removeAttributes( attributeTypes[i] );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return The subentry Dn
+     */
+    public Dn getSubentryDn()
+    {
+        return subentryDn;
+    }
+
+
+    /**
+     * @return The base of the updated entries
+     */
+    public Dn getBaseDn()
+    {
+        return baseDn;
+    }
+
+
+    /**
+     * @return The update state
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+
+    /**
+     * @return The number of entries read so far
+     */
+    public long getNbRead()
+    {
+        return nbRead;
+    }
+
+
+    /**
+     * @return The number of entries modified so far
+     */
+    public long getNbUpdated()
+    {
+        return nbUpdated;
+    }
+
+
+    /**
+     * @return The error that stopped the update, if any
+     */
+    public Exception getFailure()
+    {
+        return failure;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "SubentryUpdate[" + subentryDn + ", " + baseDn + ", " + state + ", " + nbUpdated + "/" + nbRead
+            + "]";
+    }
+}
@@ -43,7 +43,6 @@ import org.apache.directory.api.ldap.trigger.LdapOperation;
 import org.apache.directory.api.ldap.trigger.TriggerSpecification;
 import org.apache.directory.api.ldap.trigger.TriggerSpecificationParser;
 import org.apache.directory.api.ldap.trigger.TriggerSpecification.SPSpec;
-import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
@@ -148,7 +147,8 @@ public class TriggerInterceptor extends BaseInterceptor
             entry = directoryService.getPartitionNexus().lookup( lookupContext );
         }
 
-        Attribute subentries = entry.get( ApacheSchemaConstants.TRIGGER_EXECUTION_SUBENTRIES_AT );
+        Attribute subentries = subentryUtils.getSubentryReferences( entry,
+            directoryService.getAtProvider().getTriggerExecutionSubentries() );
 
         if ( subentries == null )
         {
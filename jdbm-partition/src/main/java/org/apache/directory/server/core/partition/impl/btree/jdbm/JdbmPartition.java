@@ -26,7 +26,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import jdbm.RecordManager;
@@ -52,6 +54,7 @@ import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationExceptio
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.exception.MultiException;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
@@ -70,9 +73,13 @@ import org.apache.directory.server.core.api.partition.PartitionReadTxn;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.OnlineIndexBuild;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.ExternalTupleSorter;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -95,6 +102,9 @@ public class JdbmPartition extends AbstractBTreePartition
 
     private static final String JDBM_DB_FILE_EXTN = ".db";
 
+    /** The suffix of the name marking an index whose build has not been completed */
+    private static final String INDEX_BUILD_SUFFIX = "_building";
+
     private static final FilenameFilter DB_FILTER = new FilenameFilter()
     {
         @Override
@@ -111,6 +121,16 @@ public class JdbmPartition extends AbstractBTreePartition
     /** the entry cache */
     private Cache entryCache;
 
+    /**
+     * Tells if the new user indexes are built in the background once the partition is started,
+     * instead of during the startup. The default can be changed with the jdbm.index.online.build
+     * system property, till the partition configuration supports it.
+     */
+    private boolean onlineIndexBuild = Boolean.getBoolean( "jdbm.index.online.build" );
+
+    /** The new user indexes to build in the background when the partition is started */
+    private final List<Index<?, String>> pendingIndexBuilds = new ArrayList<>();
+
 
     /**
      * Creates a store based on JDBM B+Trees.
@@ -136,18 +156,24 @@ public class JdbmPartition extends AbstractBTreePartition
     
     
     /**
-     * Rebuild the indexes 
+     * Rebuild the indexes. The master table is read once, and the index tuples are
+     * dispatched to one worker per index, which sorts and writes them.
      */
     private int rebuildIndexes( PartitionTxn partitionTxn ) throws LdapException, IOException
     {
         Cursor<Tuple<String, Entry>> cursor = getMasterTable().cursor();
 
         int masterTableCount = 0;
-        int repaired = 0;
 
         System.out.println( "Re-building indices..." );
 
         boolean ctxEntryLoaded = false;
+        
+        // The aliases are processed once the RdnIndex has been built
+        List<Tuple<String, Entry>> aliases = new ArrayList<>();
+
+        ParallelIndexBuilder indexBuilder = new ParallelIndexBuilder( partitionTxn,
+            ParallelIndexBuilder.DEFAULT_QUEUE_SIZE, ExternalTupleSorter.DEFAULT_MAX_TUPLES_IN_MEMORY, null );
 
         try
         {
@@ -161,7 +187,7 @@ public class JdbmPartition extends AbstractBTreePartition
                 
                 // Start with the RdnIndex
                 String parentId = entry.get( ApacheSchemaConstants.ENTRY_PARENT_ID_OID ).getString();
-                System.out.println( "Read entry " + entry.getDn() + " with ID " + id + " and parent ID " + parentId );
+                LOG.debug( "Read entry {} with ID {} and parent ID {}", entry.getDn(), id, parentId );
 
                 Dn dn = entry.getDn();
                 
@@ -180,99 +206,44 @@ public class JdbmPartition extends AbstractBTreePartition
                 }
 
                 // Inject the parentIdAndRdn in the rdnIndex
-                rdnIdx.add( partitionTxn, parentIdAndRdn, id );
+                indexBuilder.handle( rdnIdx, parentIdAndRdn, id );
                 
-                // Process the ObjectClass index
-                // Update the ObjectClass index
+                // The Alias indexes
                 Attribute objectClass = entry.get( objectClassAT );
 
-                if ( objectClass == null )
+                if ( ( objectClass != null ) && objectClass.contains( SchemaConstants.ALIAS_OC ) )
                 {
-                    String msg = I18n.err( I18n.ERR_217, dn, entry );
-                    ResultCodeEnum rc = ResultCodeEnum.OBJECT_CLASS_VIOLATION;
-                    throw new LdapSchemaViolationException( rc, msg );
-                }
-
-                for ( Value value : objectClass )
-                {
-                    String valueStr = value.getValue();
-
-                    if ( valueStr.equals( SchemaConstants.TOP_OC ) )
-                    {
-                        continue;
-                    }
-
-                    objectClassIdx.add( partitionTxn, valueStr, id );
+                    aliases.add( tuple );
                 }
                 
-                // The Alias indexes
-                if ( objectClass.contains( SchemaConstants.ALIAS_OC ) )
-                {
-                    Attribute aliasAttr = entry.get( aliasedObjectNameAT );
-                    addAliasIndices( partitionTxn, id, dn, new Dn( schemaManager, aliasAttr.getString() ) );
-                }
-                
-                // The entryCSN index
-                // Update the EntryCsn index
-                Attribute entryCsn = entry.get( entryCsnAT );
-
-                if ( entryCsn == null )
-                {
-                    String msg = I18n.err( I18n.ERR_219, dn, entry );
-                    throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, msg );
-                }
+                // The other indexes
+                indexEntry( id, entry, indexBuilder );
 
-                entryCsnIdx.add( partitionTxn, entryCsn.getString(), id );
-
-                // The AdministrativeRole index
-                // Update the AdministrativeRole index, if needed
-                if ( entry.containsAttribute( administrativeRoleAT ) )
+                if ( masterTableCount % 100000 == 0 )
                 {
-                    // We may have more than one role
-                    Attribute adminRoles = entry.get( administrativeRoleAT );
-
-                    for ( Value value : adminRoles )
-                    {
-                        adminRoleIdx.add( partitionTxn, value.getValue(), id );
-                    }
-
-                    // Adds only those attributes that are indexed
-                    presenceIdx.add( partitionTxn, administrativeRoleAT.getOid(), id );
-                }
-
-                // And the user indexess
-                // Now work on the user defined userIndices
-                for ( Attribute attribute : entry )
-                {
-                    AttributeType attributeType = attribute.getAttributeType();
-                    String attributeOid = attributeType.getOid();
-
-                    if ( hasUserIndexOn( attributeType ) )
-                    {
-                        Index<Object, String> idx = ( Index<Object, String> ) getUserIndex( attributeType );
-
-                        // here lookup by attributeId is OK since we got attributeId from
-                        // the entry via the enumeration - it's in there as is for sure
-
-                        for ( Value value : attribute )
-                        {
-                            idx.add( partitionTxn, value.getValue(), id );
-                        }
-
-                        // Adds only those attributes that are indexed
-                        presenceIdx.add( partitionTxn, attributeOid, id );
-                    }
+                    LOG.info( "Read {} entries", masterTableCount );
                 }
             }
             
+            // Wait for all the indexes to be written
+            indexBuilder.finish();
+
+            for ( Tuple<String, Entry> alias : aliases )
+            {
+                Entry entry = alias.getValue();
+                Attribute aliasAttr = entry.get( aliasedObjectNameAT );
+                addAliasIndices( partitionTxn, alias.getKey(), entry.getDn(),
+                    new Dn( schemaManager, aliasAttr.getString() ) );
+            }
         }
         catch ( Exception e )
         {
-            System.out.println( "Exiting after fetching entries " + repaired );
+            LOG.error( "Exiting after fetching entries {}", masterTableCount );
             throw new LdapOtherException( e.getMessage(), e );
         }
         finally
         {
+            indexBuilder.close();
             cursor.close();
         }
         
@@ -280,6 +251,129 @@ public class JdbmPartition extends AbstractBTreePartition
     }
     
     
+    /**
+     * Extracts the ObjectClass, EntryCSN, AdministrativeRole, presence and user index tuples
+     * of an entry, and pass them to the given handler. The RDN and alias indexes are not
+     * processed, as they depend on the other entries.
+     * 
+     * @param id The entry ID
+     * @param entry The entry to index
+     * @param handler The handler receiving the index tuples
+     * @throws LdapException If the entry does not have an ObjectClass or an EntryCSN
+     */
+    /* no qualifier */ void indexEntry( String id, Entry entry, IndexTupleHandler handler ) throws LdapException
+    {
+        Dn dn = entry.getDn();
+
+        // Process the ObjectClass index
+        Attribute objectClass = entry.get( objectClassAT );
+
+        if ( objectClass == null )
+        {
+            String msg = I18n.err( I18n.ERR_217, dn, entry );
+            ResultCodeEnum rc = ResultCodeEnum.OBJECT_CLASS_VIOLATION;
+            throw new LdapSchemaViolationException( rc, msg );
+        }
+
+        // Normalized the way the add operation does
+        Normalizer objectClassNormalizer = objectClassAT.getEquality().getNormalizer();
+
+        for ( Value value : objectClass )
+        {
+            String valueStr = objectClassNormalizer.normalize( value.getValue() );
+
+            if ( valueStr.equals( SchemaConstants.TOP_OC_OID ) )
+            {
+                continue;
+            }
+
+            handler.handle( objectClassIdx, valueStr, id );
+        }
+        
+        // The entryCSN index
+        Attribute entryCsn = entry.get( entryCsnAT );
+
+        if ( entryCsn == null )
+        {
+            String msg = I18n.err( I18n.ERR_219, dn, entry );
+            throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, msg );
+        }
+
+        handler.handle( entryCsnIdx, entryCsn.getString(), id );
+
+        // The AdministrativeRole index, if needed
+        if ( entry.containsAttribute( administrativeRoleAT ) )
+        {
+            // We may have more than one role
+            Attribute adminRoles = entry.get( administrativeRoleAT );
+
+            for ( Value value : adminRoles )
+            {
+                handler.handle( adminRoleIdx, value.getValue(), id );
+            }
+
+            // Adds only those attributes that are indexed
+            handler.handle( presenceIdx, administrativeRoleAT.getOid(), id );
+        }
+
+        // And the user indexes
+        for ( Attribute attribute : entry )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+            String attributeOid = attributeType.getOid();
+
+            if ( hasUserIndexOn( attributeType ) )
+            {
+                Index<?, String> idx;
+                
+                try
+                {
+                    idx = getUserIndex( attributeType );
+                }
+                catch ( IndexNotFoundException infe )
+                {
+                    throw new LdapOtherException( infe.getMessage(), infe );
+                }
+
+                for ( Value value : attribute )
+                {
+                    handler.handle( idx, value.getNormalized(), id );
+                }
+
+                // Adds only those attributes that are indexed
+                handler.handle( presenceIdx, attributeOid, id );
+            }
+        }
+    }
+    
+    
+    /**
+     * Injects the alias indexes of an alias entry. This is used by the bulk loader,
+     * which processes the aliases once all the entries have been loaded.
+     * 
+     * @param id The alias entry ID
+     * @param aliasDn The alias entry DN
+     * @param aliasTarget The aliased entry DN
+     * @throws LdapException If the alias indexes can't be updated
+     */
+    /* no qualifier */ void indexAlias( String id, Dn aliasDn, Dn aliasTarget ) throws LdapException
+    {
+        addAliasIndices( null, id, aliasDn, aliasTarget );
+    }
+    
+    
+    /**
+     * Sets the partition's context CSN. This is used by the bulk loader, as the loaded
+     * entries bypass the add operation.
+     * 
+     * @param csn The context CSN
+     */
+    /* no qualifier */ void updateContextCsn( String csn )
+    {
+        setContextCsn( csn );
+    }
+    
+    
     /**
      * Update the children and descendant counters in the RDN index
      */
@@ -468,6 +562,12 @@ public class JdbmPartition extends AbstractBTreePartition
                         // The index does not exist in the database, we need to build it
                         indexToBuild.add( index );
                     }
+                    else if ( recMan.getNamedObject( oid + INDEX_BUILD_SUFFIX ) != 0 )
+                    {
+                        // The partition has been stopped while the index was built online
+                        LOG.info( "The build of the {} index has not been completed, it will be restarted", oid );
+                        indexToBuild.add( index );
+                    }
                 }
                 catch ( IOException ioe )
                 {
@@ -506,6 +606,26 @@ public class JdbmPartition extends AbstractBTreePartition
             }
             */
 
+            pendingIndexBuilds.clear();
+
+            if ( onlineIndexBuild )
+            {
+                // The user indexes will be built once the partition is initialized, they
+                // must not be setup now
+                for ( Index<?, String> index : indexToBuild )
+                {
+                    String oid = schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ).getOid();
+
+                    if ( !Store.SYS_INDEX_OIDS.contains( oid ) )
+                    {
+                        pendingIndexBuilds.add( index );
+                    }
+                }
+
+                indexToBuild.removeAll( pendingIndexBuilds );
+                getIndexedAttributes().removeAll( pendingIndexBuilds );
+            }
+
             // Initialize the indexes
             super.doInit();
 
@@ -532,6 +652,11 @@ public class JdbmPartition extends AbstractBTreePartition
             if ( !indexToBuild.isEmpty() )
             {
                 buildUserIndex( beginReadTransaction(), indexToBuild );
+
+                for ( Index<?, String> index : indexToBuild )
+                {
+                    setIndexBuildMarker( index.getAttribute().getOid(), false );
+                }
             }
 
             if ( cacheService != null )
@@ -708,6 +833,140 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The new user indexes are built in the background once the partition is initialized,
+     * if the online index build is enabled.
+     */
+    @Override
+    public void initialize() throws LdapException
+    {
+        super.initialize();
+
+        List<Index<?, String>> indexes = new ArrayList<>( pendingIndexBuilds );
+        pendingIndexBuilds.clear();
+
+        for ( Index<?, String> index : indexes )
+        {
+            buildIndex( index );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The index is marked as being built in the database until the build is completed :
+     * if the partition is stopped before, the build is restarted on the next startup,
+     * as long as the index is declared in the partition configuration.
+     */
+    @Override
+    public OnlineIndexBuild buildIndex( Index<?, String> index ) throws LdapException
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() );
+
+        if ( !initialized || Store.SYS_INDEX_OIDS.contains( attributeType.getOid() )
+            || hasUserIndexOn( attributeType ) )
+        {
+            // The index can't be built
+            return super.buildIndex( index );
+        }
+
+        // The mark must be written before the build completes
+        setIndexBuildMarker( attributeType.getOid(), true );
+
+        try
+        {
+            return super.buildIndex( index );
+        }
+        catch ( LdapException le )
+        {
+            setIndexBuildMarker( attributeType.getOid(), false );
+
+            throw le;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void indexBuilt( OnlineIndexBuild indexBuild )
+    {
+        super.indexBuilt( indexBuild );
+
+        try
+        {
+            setIndexBuildMarker( indexBuild.getIndex().getAttribute().getOid(), false );
+        }
+        catch ( LdapException le )
+        {
+            // The index will be built again on the next startup
+            LOG.warn( "Cannot record the completion of the {} index build", indexBuild.getIndex().getAttributeId(),
+                le );
+        }
+    }
+
+
+    /**
+     * Marks an index as being built, or removes the mark, and commits the change.
+     *
+     * @param oid The indexed AttributeType OID
+     * @param building <code>true</code> if the index is being built
+     * @throws LdapException If the mark can't be written
+     */
+    private void setIndexBuildMarker( String oid, boolean building ) throws LdapException
+    {
+        String name = oid + INDEX_BUILD_SUFFIX;
+
+        try
+        {
+            if ( building )
+            {
+                // Only the presence of the name matters, it does not refer to a record
+                recMan.setNamedObject( name, 1L );
+                recMan.commit();
+            }
+            else if ( recMan.getNamedObject( name ) != 0 )
+            {
+                // Setting a name to 0 removes it
+                recMan.setNamedObject( name, 0L );
+                recMan.commit();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Tells if the new user indexes are built in the background once the partition is started.
+     *
+     * @return <code>true</code> if the new user indexes are built online
+     */
+    public boolean isOnlineIndexBuild()
+    {
+        return onlineIndexBuild;
+    }
+
+
+    /**
+     * Builds the new user indexes in the background once the partition is started, instead
+     * of during the startup. The searches don't use those indexes until they are built.
+     *
+     * @param onlineIndexBuild <code>true</code> to build the new user indexes online
+     */
+    public void setOnlineIndexBuild( boolean onlineIndexBuild )
+    {
+        checkInitialized( "onlineIndexBuild" );
+        this.onlineIndexBuild = onlineIndexBuild;
+    }
+
+
     /**
      * Builds user defined indexes on a attributes by browsing all the entries present in master db
      * 
@@ -720,53 +979,77 @@ public class JdbmPartition extends AbstractBTreePartition
      */
     private void buildUserIndex( PartitionTxn partitionTxn, List<Index<?, String>> indices ) throws LdapException
     {
+        final Set<Index<?, String>> userIndices = new HashSet<>();
+        final Set<String> userIndexOids = new HashSet<>();
+
+        for ( Index<?, String> index : indices )
+        {
+            String attributeOid = index.getAttribute().getOid();
+
+            if ( systemIndices.get( attributeOid ) != null )
+            {
+                // skipping building of the system index
+                continue;
+            }
+
+            LOG.info( "building the index for attribute type {}", index.getAttribute() );
+
+            userIndices.add( index );
+            userIndexOids.add( attributeOid );
+        }
+
+        if ( userIndices.isEmpty() )
+        {
+            return;
+        }
+
+        final ParallelIndexBuilder indexBuilder = new ParallelIndexBuilder( partitionTxn,
+            ParallelIndexBuilder.DEFAULT_QUEUE_SIZE, ExternalTupleSorter.DEFAULT_MAX_TUPLES_IN_MEMORY, null );
+
+        // Only keep the tuples of the indexes to build
+        IndexTupleHandler handler = new IndexTupleHandler()
+        {
+            @Override
+            public void handle( Index<?, String> index, Object key, String id ) throws LdapException
+            {
+                if ( userIndices.contains( index ) || ( ( index == presenceIdx ) && userIndexOids.contains( key ) ) )
+                {
+                    indexBuilder.handle( index, key, id );
+                }
+            }
+        };
+
+        Cursor<Tuple<String, Entry>> cursor = master.cursor();
+
         try
         {
-            Cursor<Tuple<String, Entry>> cursor = master.cursor();
             cursor.beforeFirst();
     
             while ( cursor.next() )
             {
-                for ( Index index : indices )
-                {
-                    AttributeType atType = index.getAttribute();
-    
-                    String attributeOid = index.getAttribute().getOid();
-    
-                    if ( systemIndices.get( attributeOid ) != null )
-                    {
-                        // skipping building of the system index
-                        continue;
-                    }
-                    
-                    LOG.info( "building the index for attribute type {}", atType );
-    
-                    Tuple<String, Entry> tuple = cursor.get();
-    
-                    String id = tuple.getKey();
-                    Entry entry = tuple.getValue();
-    
-                    Attribute entryAttr = entry.get( atType );
-    
-                    if ( entryAttr != null )
-                    {
-                        for ( Value value : entryAttr )
-                        {
-                            index.add( partitionTxn, value.getValue(), id );
-                        }
-    
-                        // Adds only those attributes that are indexed
-                        presenceIdx.add( partitionTxn, attributeOid, id );
-                    }
-                }
+                Tuple<String, Entry> tuple = cursor.get();
+                indexEntry( tuple.getKey(), tuple.getValue(), handler );
             }
-    
-            cursor.close();
+
+            indexBuilder.finish();
         }
-        catch ( CursorException | IOException e )
+        catch ( CursorException e )
         {
             throw new LdapOtherException( e.getMessage(), e );
         }
+        finally
+        {
+            indexBuilder.close();
+
+            try
+            {
+                cursor.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Cannot close the master table cursor", ioe );
+            }
+        }
     }
 
 
@@ -0,0 +1,646 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapEntryAlreadyExistsException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.ExternalTupleSorter;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An offline bulk loader for a {@link JdbmPartition}. Entries are not added through the
+ * interceptor chain, nor through the partition's add operation : they are read once,
+ * their operational attributes are computed, and their master table and index tuples
+ * are sorted using an external merge sort. Each table is then filled in key order, so
+ * that the B-tree pages are written sequentially instead of being randomly updated.
+ * <br>
+ * The partition must be initialized and empty, and must not be used by a running server
+ * while the entries are loaded. The entries may be read in any order : their parents are
+ * found once they have been sorted in the tree order, so that only the current branch of
+ * the tree is kept in memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmPartitionBulkLoader
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( JdbmPartitionBulkLoader.class );
+
+    /** The default number of tuples written between two syncs */
+    public static final int DEFAULT_SYNC_INTERVAL = 10000;
+
+    /** The partition to load */
+    private final JdbmPartition partition;
+
+    /** The SchemaManager instance */
+    private final SchemaManager schemaManager;
+
+    /** The CSN factory used for the entries without entryCSN */
+    private final CsnFactory csnFactory;
+
+    /** The number of tuples each sorter keeps in memory */
+    private int maxTuplesInMemory = ExternalTupleSorter.DEFAULT_MAX_TUPLES_IN_MEMORY;
+
+    /** The number of tuples written between two syncs */
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    /** The directory where the temporary sorted runs are stored */
+    private File workDir;
+
+    /** The number of tuples written since the last sync */
+    private int unsynced;
+
+    /** The separator of the RDNs in a tree key. It sorts before any character of a normalized RDN */
+    private static final char TREE_SEPARATOR = '\u0000';
+
+    /** The comparator used to sort the tree keys */
+    private static final Comparator<String> TREE_KEY_COMPARATOR = new Comparator<String>()
+    {
+        @Override
+        public int compare( String key1, String key2 )
+        {
+            return key1.compareTo( key2 );
+        }
+    };
+
+    /**
+     * An entry of the branch being walked when the sorted tree keys are read, used to find
+     * the parent IDs and to compute the number of children and descendants stored in the
+     * RDN index
+     */
+    private static final class TreeNode
+    {
+        private final String key;
+        private final String id;
+        private final ParentIdAndRdn parentIdAndRdn;
+        private int nbChildren;
+        private int nbDescendants;
+
+
+        private TreeNode( String key, String id, ParentIdAndRdn parentIdAndRdn )
+        {
+            this.key = key;
+            this.id = id;
+            this.parentIdAndRdn = parentIdAndRdn;
+        }
+    }
+
+    /**
+     * The sorters used for an index
+     */
+    private static final class IndexSorters
+    {
+        private ExternalTupleSorter<Object, String> forward;
+        private ExternalTupleSorter<String, Object> reverse;
+    }
+
+
+    /**
+     * Creates a new instance of JdbmPartitionBulkLoader.
+     *
+     * @param partition The partition to load. It must be initialized, and empty.
+     * @param replicaId The replica ID used to create the missing entryCSNs
+     */
+    public JdbmPartitionBulkLoader( JdbmPartition partition, int replicaId )
+    {
+        this.partition = partition;
+        this.schemaManager = partition.getSchemaManager();
+        this.csnFactory = new CsnFactory( replicaId );
+    }
+
+
+    /**
+     * Sets the number of tuples each sorter keeps in memory before spilling them on disk.
+     *
+     * @param maxTuplesInMemory The number of tuples kept in memory
+     */
+    public void setMaxTuplesInMemory( int maxTuplesInMemory )
+    {
+        this.maxTuplesInMemory = maxTuplesInMemory;
+    }
+
+
+    /**
+     * Sets the number of tuples written before the partition is synced on disk.
+     *
+     * @param syncInterval The sync interval
+     */
+    public void setSyncInterval( int syncInterval )
+    {
+        this.syncInterval = syncInterval;
+    }
+
+
+    /**
+     * Sets the directory where the temporary files are created.
+     *
+     * @param workDir The working directory
+     */
+    public void setWorkDir( File workDir )
+    {
+        this.workDir = workDir;
+    }
+
+
+    /**
+     * Loads the given entries into the partition.
+     *
+     * @param ldifEntries The entries to load, typically a LdifReader
+     * @return The number of loaded entries
+     * @throws LdapException If one entry is invalid, or if the partition can't be written
+     */
+    public long load( Iterable<LdifEntry> ldifEntries ) throws LdapException
+    {
+        if ( !partition.isInitialized() )
+        {
+            throw new LdapOtherException( "The partition " + partition.getId() + " must be initialized" );
+        }
+
+        if ( partition.getMasterTable().count( null ) != 0 )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The partition " + partition.getId() + " is not empty, it can't be bulk loaded" );
+        }
+
+        JdbmMasterTable master = ( JdbmMasterTable ) partition.getMasterTable();
+        JdbmRdnIndex rdnIdx = ( JdbmRdnIndex ) partition.getRdnIndex();
+        EntrySerializer serializer = new EntrySerializer( schemaManager );
+
+        final Map<Index<?, String>, IndexSorters> indexSorters = new HashMap<>();
+        ExternalTupleSorter<String, byte[]> masterSorter = new ExternalTupleSorter<>( master.getKeyComparator(),
+            null, maxTuplesInMemory, workDir );
+        ExternalTupleSorter<String, String[]> treeSorter = new ExternalTupleSorter<>( TREE_KEY_COMPARATOR, null,
+            maxTuplesInMemory, workDir );
+        ExternalTupleSorter<ParentIdAndRdn, String> rdnForwardSorter = new ExternalTupleSorter<>(
+            rdnIdx.forward.getKeyComparator(), null, maxTuplesInMemory, workDir );
+
+        // Sorted as the master table, so that both can be read together
+        ExternalTupleSorter<String, ParentIdAndRdn> rdnReverseSorter = new ExternalTupleSorter<>(
+            master.getKeyComparator(), null, maxTuplesInMemory, workDir );
+
+        List<String[]> aliases = new ArrayList<>();
+        String contextCsn = null;
+        long nbEntries = 0;
+
+        IndexTupleHandler handler = new IndexTupleHandler()
+        {
+            @Override
+            public void handle( Index<?, String> index, Object key, String id ) throws LdapException
+            {
+                IndexSorters sorters = getSorters( indexSorters, index );
+
+                try
+                {
+                    sorters.forward.add( key, id );
+
+                    if ( sorters.reverse != null )
+                    {
+                        sorters.reverse.add( id, key );
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                }
+            }
+        };
+
+        Dn suffixDn = partition.getSuffixDn();
+        String createTimestamp = DateUtils.getGeneralizedTime();
+
+        try
+        {
+            // First, read all the entries, and sort the tuples of each table
+            for ( LdifEntry ldifEntry : ldifEntries )
+            {
+                if ( !ldifEntry.isEntry() )
+                {
+                    throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                        "Only entries can be bulk loaded, got " + ldifEntry.getDn() );
+                }
+
+                Entry entry = new DefaultEntry( schemaManager, ldifEntry.getEntry() );
+                Dn dn = entry.getDn();
+
+                if ( !dn.isSchemaAware() )
+                {
+                    dn = new Dn( schemaManager, dn );
+                }
+
+                String id = getId( entry );
+                String treeKey = getTreeKey( dn, suffixDn );
+
+                // Add the operational attributes the interceptors would have added
+                addOperationalAttributes( entry, id, createTimestamp );
+                entry.removeAttributes( SchemaConstants.ENTRY_DN_AT );
+
+                // Extract the index tuples. This also checks the entry.
+                partition.indexEntry( id, entry, handler );
+
+                Attribute objectClass = entry.get( SchemaConstants.OBJECT_CLASS_AT );
+
+                if ( objectClass.contains( SchemaConstants.ALIAS_OC ) )
+                {
+                    aliases.add( new String[]
+                        { id, dn.getName(), entry.get( SchemaConstants.ALIASED_OBJECT_NAME_AT ).getString() } );
+                }
+
+                String entryCsn = entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+
+                if ( ( contextCsn == null ) || ( contextCsn.compareTo( entryCsn ) < 0 ) )
+                {
+                    contextCsn = entryCsn;
+                }
+
+                // The parent ID is only known once the tree has been sorted
+                masterSorter.add( id, serializer.serialize( entry ) );
+                treeSorter.add( treeKey, new String[]
+                    { id, dn.getName() } );
+
+                nbEntries++;
+
+                if ( nbEntries % 100000 == 0 )
+                {
+                    LOG.info( "Read {} entries", nbEntries );
+                }
+            }
+
+            // Walk the sorted tree to find the parents, and to compute the RDN index counters
+            LOG.info( "Computing the hierarchy of the {} entries", nbEntries );
+            buildTree( treeSorter, rdnForwardSorter, rdnReverseSorter );
+            close( treeSorter );
+
+            // Now write each table, in key order
+            LOG.info( "Writing the {} entries of the master table", nbEntries );
+
+            Iterator<Tuple<String, byte[]>> masterTuples = masterSorter.sortedIterator();
+            Iterator<Tuple<String, ParentIdAndRdn>> rdnReverseTuples = rdnReverseSorter.sortedIterator();
+
+            while ( masterTuples.hasNext() )
+            {
+                Tuple<String, byte[]> tuple = masterTuples.next();
+                Tuple<String, ParentIdAndRdn> rdnTuple = rdnReverseTuples.next();
+
+                if ( !tuple.getKey().equals( rdnTuple.getKey() ) )
+                {
+                    throw new LdapOtherException( "The entry " + tuple.getKey() + " has no RDN index tuple" );
+                }
+
+                Entry entry = ( Entry ) serializer.deserialize( tuple.getValue() );
+                String parentId = rdnTuple.getValue().getParentId();
+                entry.put( ApacheSchemaConstants.ENTRY_PARENT_ID_AT, parentId );
+
+                if ( Partition.ROOT_ID.equals( parentId ) && ( contextCsn != null ) )
+                {
+                    // The context entry stores the partition's context CSN
+                    entry.put( SchemaConstants.CONTEXT_CSN_AT, contextCsn );
+                }
+
+                master.put( null, tuple.getKey(), entry );
+                rdnIdx.reverse.put( null, rdnTuple.getKey(), rdnTuple.getValue() );
+                written();
+                written();
+            }
+
+            LOG.info( "Writing the RDN index" );
+
+            Iterator<Tuple<ParentIdAndRdn, String>> rdnForwardTuples = rdnForwardSorter.sortedIterator();
+
+            while ( rdnForwardTuples.hasNext() )
+            {
+                Tuple<ParentIdAndRdn, String> tuple = rdnForwardTuples.next();
+                rdnIdx.forward.put( null, tuple.getKey(), tuple.getValue() );
+                written();
+            }
+
+            for ( Map.Entry<Index<?, String>, IndexSorters> indexSorter : indexSorters.entrySet() )
+            {
+                writeIndex( ( JdbmIndex<Object> ) indexSorter.getKey(), indexSorter.getValue() );
+            }
+
+            // The aliases can only be processed once all the entries are present
+            for ( String[] alias : aliases )
+            {
+                partition.indexAlias( alias[0], new Dn( schemaManager, alias[1] ), new Dn( schemaManager, alias[2] ) );
+            }
+
+            if ( contextCsn != null )
+            {
+                partition.updateContextCsn( contextCsn );
+            }
+
+            partition.sync();
+
+            LOG.info( "Bulk loaded {} entries in the partition {}", nbEntries, partition.getId() );
+
+            return nbEntries;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            close( masterSorter );
+            close( treeSorter );
+            close( rdnForwardSorter );
+            close( rdnReverseSorter );
+
+            for ( IndexSorters sorters : indexSorters.values() )
+            {
+                close( sorters.forward );
+                close( sorters.reverse );
+            }
+        }
+    }
+
+
+    private IndexSorters getSorters( Map<Index<?, String>, IndexSorters> indexSorters, Index<?, String> index )
+    {
+        IndexSorters sorters = indexSorters.get( index );
+
+        if ( sorters == null )
+        {
+            @SuppressWarnings("unchecked")
+            JdbmIndex<Object> jdbmIndex = ( JdbmIndex<Object> ) index;
+            sorters = new IndexSorters();
+            sorters.forward = new ExternalTupleSorter<>( jdbmIndex.forward.getKeyComparator(),
+                jdbmIndex.forward.getValueComparator(), maxTuplesInMemory, workDir );
+
+            if ( jdbmIndex.reverse != null )
+            {
+                sorters.reverse = new ExternalTupleSorter<>( jdbmIndex.reverse.getKeyComparator(),
+                    jdbmIndex.reverse.getValueComparator(), maxTuplesInMemory, workDir );
+            }
+
+            indexSorters.put( index, sorters );
+        }
+
+        return sorters;
+    }
+
+
+    private void writeIndex( JdbmIndex<Object> index, IndexSorters sorters ) throws IOException, LdapException
+    {
+        LOG.info( "Writing the {} index", index.getAttributeId() );
+
+        Iterator<Tuple<Object, String>> forwardTuples = sorters.forward.sortedIterator();
+
+        while ( forwardTuples.hasNext() )
+        {
+            Tuple<Object, String> tuple = forwardTuples.next();
+            index.forward.put( null, tuple.getKey(), tuple.getValue() );
+            written();
+        }
+
+        if ( sorters.reverse != null )
+        {
+            Iterator<Tuple<String, Object>> reverseTuples = sorters.reverse.sortedIterator();
+
+            while ( reverseTuples.hasNext() )
+            {
+                Tuple<String, Object> tuple = reverseTuples.next();
+                index.reverse.put( null, tuple.getKey(), tuple.getValue() );
+                written();
+            }
+        }
+    }
+
+
+    /**
+     * Sync the partition every syncInterval writes, so that the JDBM transaction
+     * does not grow without bounds
+     */
+    private void written() throws LdapException
+    {
+        unsynced++;
+
+        if ( unsynced >= syncInterval )
+        {
+            partition.sync();
+            unsynced = 0;
+        }
+    }
+
+
+    /**
+     * Reads the entries sorted by tree key : an entry is read after its ancestors, and its
+     * descendants are read just after it. Only the current branch is kept in memory. An
+     * entry is complete, and its RDN index tuples are created, once all its descendants
+     * have been read.
+     */
+    private void buildTree( ExternalTupleSorter<String, String[]> treeSorter,
+        ExternalTupleSorter<ParentIdAndRdn, String> rdnForwardSorter,
+        ExternalTupleSorter<String, ParentIdAndRdn> rdnReverseSorter ) throws IOException, LdapException
+    {
+        Deque<TreeNode> branch = new ArrayDeque<>();
+        Iterator<Tuple<String, String[]>> treeTuples = treeSorter.sortedIterator();
+        String previousKey = null;
+
+        while ( treeTuples.hasNext() )
+        {
+            Tuple<String, String[]> tuple = treeTuples.next();
+            String key = tuple.getKey();
+            String id = tuple.getValue()[0];
+            Dn dn = new Dn( schemaManager, tuple.getValue()[1] );
+
+            if ( key.equals( previousKey ) )
+            {
+                throw new LdapEntryAlreadyExistsException( I18n.err( I18n.ERR_250_ENTRY_ALREADY_EXISTS,
+                    dn.getName() ) );
+            }
+
+            previousKey = key;
+
+            // The entries which are not ancestors of this one are complete
+            while ( !branch.isEmpty() && !key.startsWith( branch.peek().key + TREE_SEPARATOR ) )
+            {
+                complete( branch, rdnForwardSorter, rdnReverseSorter );
+            }
+
+            ParentIdAndRdn parentIdAndRdn;
+
+            if ( key.isEmpty() )
+            {
+                // The context entry
+                parentIdAndRdn = new ParentIdAndRdn( Partition.ROOT_ID, partition.getSuffixDn().getRdns() );
+            }
+            else
+            {
+                TreeNode parent = branch.peek();
+
+                if ( ( parent == null ) || ( key.lastIndexOf( TREE_SEPARATOR ) != parent.key.length() ) )
+                {
+                    throw new LdapNoSuchObjectException( I18n.err( I18n.ERR_216_ID_FOR_PARENT_NOT_FOUND,
+                        dn.getParent() ) );
+                }
+
+                parentIdAndRdn = new ParentIdAndRdn( parent.id, dn.getRdn() );
+                parent.nbChildren++;
+            }
+
+            branch.push( new TreeNode( key, id, parentIdAndRdn ) );
+        }
+
+        while ( !branch.isEmpty() )
+        {
+            complete( branch, rdnForwardSorter, rdnReverseSorter );
+        }
+    }
+
+
+    /**
+     * Removes the last entry of the branch, and creates its RDN index tuples
+     */
+    private void complete( Deque<TreeNode> branch, ExternalTupleSorter<ParentIdAndRdn, String> rdnForwardSorter,
+        ExternalTupleSorter<String, ParentIdAndRdn> rdnReverseSorter ) throws IOException
+    {
+        TreeNode node = branch.pop();
+        TreeNode parent = branch.peek();
+
+        if ( parent != null )
+        {
+            parent.nbDescendants += node.nbDescendants + 1;
+        }
+
+        node.parentIdAndRdn.setNbChildren( node.nbChildren );
+        node.parentIdAndRdn.setNbDescendants( node.nbDescendants );
+
+        rdnForwardSorter.add( node.parentIdAndRdn, node.id );
+        rdnReverseSorter.add( node.id, node.parentIdAndRdn );
+    }
+
+
+    /**
+     * Computes the key used to sort the entries in the tree order : the normalized RDNs, from
+     * the suffix down to the entry, separated by a character which sorts before any other one.
+     * The context entry key is empty.
+     */
+    private String getTreeKey( Dn dn, Dn suffixDn ) throws LdapException
+    {
+        if ( !dn.isDescendantOf( suffixDn ) )
+        {
+            throw new LdapNoSuchObjectException( I18n.err( I18n.ERR_216_ID_FOR_PARENT_NOT_FOUND, dn.getParent() ) );
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        for ( int i = dn.size() - suffixDn.size() - 1; i >= 0; i-- )
+        {
+            key.append( TREE_SEPARATOR ).append( dn.getRdn( i ).getNormName() );
+        }
+
+        return key.toString();
+    }
+
+
+    private String getId( Entry entry ) throws LdapException
+    {
+        Attribute entryUuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( entryUuid == null )
+        {
+            return UUID.randomUUID().toString();
+        }
+
+        return entryUuid.getString();
+    }
+
+
+    /**
+     * Adds the operational attributes the OperationalAttributeInterceptor would
+     * have added, if they are not already present.
+     */
+    private void addOperationalAttributes( Entry entry, String id, String createTimestamp ) throws LdapException
+    {
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+        {
+            entry.add( SchemaConstants.ENTRY_UUID_AT, id );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
+        {
+            entry.add( SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATORS_NAME_AT ) )
+        {
+            entry.add( SchemaConstants.CREATORS_NAME_AT, ServerDNConstants.ADMIN_SYSTEM_DN );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATE_TIMESTAMP_AT ) )
+        {
+            entry.add( SchemaConstants.CREATE_TIMESTAMP_AT, createTimestamp );
+        }
+    }
+
+
+    private void close( ExternalTupleSorter<?, ?> sorter )
+    {
+        if ( sorter == null )
+        {
+            return;
+        }
+
+        try
+        {
+            sorter.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to remove the temporary files of a sorter", ioe );
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.ExternalTupleSorter;
+import org.apache.directory.server.xdbm.Index;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Builds a set of JDBM indexes in parallel. The index tuples produced by a single
+ * scan of the master table are dispatched to one worker per index through a bounded
+ * queue. Each worker sorts its tuples (spilling them on disk if needed), and writes
+ * them in key order once all the tuples have been received, so that the B-tree pages
+ * are filled sequentially. The indexes share the partition's record manager, which is
+ * not thread safe : the sorts are run in parallel, but the indexes are written one at
+ * a time.
+ * <br>
+ * The {@link #handle(Index, Object, String)} method must be called by a single thread.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */ class ParallelIndexBuilder implements IndexTupleHandler, Closeable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ParallelIndexBuilder.class );
+
+    /** The default number of tuples waiting in each worker queue */
+    /* no qualifier */ static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /** The marker sent to the workers when all the tuples have been produced */
+    private static final Tuple<Object, String> END_OF_DATA = new Tuple<>( null, null );
+
+    /** The transaction used to write the indexes */
+    private final PartitionTxn partitionTxn;
+
+    /** The size of each worker queue */
+    private final int queueSize;
+
+    /** The number of tuples each worker sorts in memory */
+    private final int maxTuplesInMemory;
+
+    /** The directory where the sorted runs are created */
+    private final File workDir;
+
+    /** The executor running the workers */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** The workers, per index */
+    private final Map<Index<?, String>, IndexWorker> workers = new HashMap<>();
+
+    /** Tells if the build has been completed */
+    private boolean finished;
+
+    /** Set when the build is aborted : the workers then stop without writing */
+    private volatile boolean aborted;
+
+    /** The lock held by the worker writing its index */
+    private final Object writeLock = new Object();
+
+
+    /**
+     * Creates a new instance of ParallelIndexBuilder.
+     *
+     * @param partitionTxn The transaction used to write the indexes
+     * @param queueSize The number of tuples waiting in each worker queue
+     * @param maxTuplesInMemory The number of tuples each worker sorts in memory
+     * @param workDir The directory where the sorted runs are created. May be null.
+     */
+    /* no qualifier */ ParallelIndexBuilder( PartitionTxn partitionTxn, int queueSize, int maxTuplesInMemory,
+        File workDir )
+    {
+        this.partitionTxn = partitionTxn;
+        this.queueSize = queueSize;
+        this.maxTuplesInMemory = maxTuplesInMemory;
+        this.workDir = workDir;
+    }
+
+
+    /**
+     * Sends an index tuple to the worker building this index. The worker is created
+     * when the first tuple of an index is received.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handle( Index<?, String> index, Object key, String id ) throws LdapException
+    {
+        IndexWorker worker = workers.get( index );
+
+        if ( worker == null )
+        {
+            worker = new IndexWorker( ( JdbmIndex<Object> ) index );
+            workers.put( index, worker );
+            worker.future = executor.submit( worker );
+        }
+
+        worker.checkFailure();
+        worker.put( new Tuple<Object, String>( key, id ) );
+    }
+
+
+    /**
+     * Waits for all the workers to write their index.
+     *
+     * @throws LdapException If one of the indexes can't be written
+     */
+    public void finish() throws LdapException
+    {
+        finished = true;
+
+        for ( IndexWorker worker : workers.values() )
+        {
+            worker.put( END_OF_DATA );
+        }
+
+        for ( IndexWorker worker : workers.values() )
+        {
+            try
+            {
+                worker.future.get();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new LdapOtherException( ie.getMessage(), ie );
+            }
+            catch ( ExecutionException ee )
+            {
+                throw new LdapOtherException( ee.getMessage(), ee.getCause() );
+            }
+
+            worker.checkFailure();
+        }
+    }
+
+
+    /**
+     * Stops the workers. If the build has not been finished, the workers stop
+     * without writing the remaining tuples.
+     */
+    @Override
+    public void close()
+    {
+        if ( !finished )
+        {
+            aborted = true;
+
+            for ( IndexWorker worker : workers.values() )
+            {
+                try
+                {
+                    worker.put( END_OF_DATA );
+                }
+                catch ( LdapException le )
+                {
+                    LOG.warn( "Cannot stop the worker building the {} index", worker.index.getAttributeId() );
+                }
+            }
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * The worker building one index
+     */
+    private final class IndexWorker implements Runnable
+    {
+        /** The index to build */
+        private final JdbmIndex<Object> index;
+
+        /** The tuples to process */
+        private final BlockingQueue<Tuple<Object, String>> queue = new ArrayBlockingQueue<>( queueSize );
+
+        /** The forward table tuples */
+        private final ExternalTupleSorter<Object, String> forwardSorter;
+
+        /** The reverse table tuples, if the index has a reverse table */
+        private final ExternalTupleSorter<String, Object> reverseSorter;
+
+        /** The worker's future */
+        private Future<?> future;
+
+        /** The error that stopped this worker, if any */
+        private volatile Exception failure;
+
+
+        private IndexWorker( JdbmIndex<Object> index )
+        {
+            this.index = index;
+
+            forwardSorter = new ExternalTupleSorter<>( index.forward.getKeyComparator(),
+                index.forward.getValueComparator(), maxTuplesInMemory, workDir );
+
+            if ( index.reverse != null )
+            {
+                reverseSorter = new ExternalTupleSorter<>( index.reverse.getKeyComparator(),
+                    index.reverse.getValueComparator(), maxTuplesInMemory, workDir );
+            }
+            else
+            {
+                reverseSorter = null;
+            }
+        }
+
+
+        private void put( Tuple<Object, String> tuple ) throws LdapException
+        {
+            try
+            {
+                queue.put( tuple );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new LdapOtherException( ie.getMessage(), ie );
+            }
+        }
+
+
+        private void checkFailure() throws LdapException
+        {
+            if ( failure != null )
+            {
+                throw new LdapOtherException( "Cannot build the " + index.getAttributeId() + " index : "
+                    + failure.getMessage(), failure );
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            boolean endOfData = false;
+
+            try
+            {
+                while ( true )
+                {
+                    Tuple<Object, String> tuple = queue.take();
+
+                    if ( tuple == END_OF_DATA )
+                    {
+                        endOfData = true;
+                        break;
+                    }
+
+                    forwardSorter.add( tuple.getKey(), tuple.getValue() );
+
+                    if ( reverseSorter != null )
+                    {
+                        reverseSorter.add( tuple.getValue(), tuple.getKey() );
+                    }
+                }
+
+                synchronized ( writeLock )
+                {
+                    if ( !aborted )
+                    {
+                        write();
+                    }
+                }
+            }
+            catch ( Exception e )
+            {
+                LOG.error( "Cannot build the {} index", index.getAttributeId(), e );
+                failure = e;
+
+                if ( e instanceof InterruptedException )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                else if ( !endOfData )
+                {
+                    drain();
+                }
+            }
+            finally
+            {
+                close( forwardSorter );
+                close( reverseSorter );
+            }
+        }
+
+
+        /**
+         * Writes the sorted tuples into the forward and reverse tables
+         */
+        private void write() throws IOException, LdapException
+        {
+            LOG.info( "Writing the {} tuples of the {} index", forwardSorter.getNbTuples(), index.getAttributeId() );
+
+            Iterator<Tuple<Object, String>> forwardTuples = forwardSorter.sortedIterator();
+
+            while ( forwardTuples.hasNext() )
+            {
+                Tuple<Object, String> tuple = forwardTuples.next();
+                index.forward.put( partitionTxn, tuple.getKey(), tuple.getValue() );
+            }
+
+            if ( reverseSorter != null )
+            {
+                Iterator<Tuple<String, Object>> reverseTuples = reverseSorter.sortedIterator();
+
+                while ( reverseTuples.hasNext() )
+                {
+                    Tuple<String, Object> tuple = reverseTuples.next();
+                    index.reverse.put( partitionTxn, tuple.getKey(), tuple.getValue() );
+                }
+            }
+        }
+
+
+        /**
+         * Consumes the remaining tuples after a failure, so that the producer is never blocked
+         */
+        private void drain()
+        {
+            try
+            {
+                Tuple<Object, String> tuple = queue.take();
+
+                while ( tuple != END_OF_DATA )
+                {
+                    tuple = queue.take();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        private void close( ExternalTupleSorter<?, ?> sorter )
+        {
+            if ( sorter != null )
+            {
+                try
+                {
+                    sorter.close();
+                }
+                catch ( IOException ioe )
+                {
+                    LOG.warn( "Cannot remove the sorted runs of the {} index", index.getAttributeId() );
+                }
+            }
+        }
+    }
+}
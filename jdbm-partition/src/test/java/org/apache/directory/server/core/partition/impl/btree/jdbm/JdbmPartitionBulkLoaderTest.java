@@ -0,0 +1,258 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.Index;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link JdbmPartitionBulkLoader} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmPartitionBulkLoaderTest
+{
+    private static SchemaManager schemaManager;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+    /** The temporary directory the files will be created in */
+    private static Path tempDir;
+
+    private JdbmPartition partition;
+
+    private static final String LDIF =
+        "dn: dc=example,dc=com\n" +
+        "objectClass: top\n" +
+        "objectClass: domain\n" +
+        "dc: example\n" +
+        "\n" +
+        "dn: ou=People,dc=example,dc=com\n" +
+        "objectClass: top\n" +
+        "objectClass: organizationalUnit\n" +
+        "ou: People\n" +
+        "\n" +
+        "dn: uid=user1,ou=People,dc=example,dc=com\n" +
+        "objectClass: top\n" +
+        "objectClass: person\n" +
+        "objectClass: organizationalPerson\n" +
+        "objectClass: inetOrgPerson\n" +
+        "uid: user1\n" +
+        "cn: User One\n" +
+        "sn: One\n" +
+        "\n" +
+        "dn: uid=user2,ou=People,dc=example,dc=com\n" +
+        "objectClass: top\n" +
+        "objectClass: person\n" +
+        "objectClass: organizationalPerson\n" +
+        "objectClass: inetOrgPerson\n" +
+        "uid: user2\n" +
+        "cn: User Two\n" +
+        "sn: Two\n";
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        tempDir = Files.createTempDirectory( JdbmPartitionBulkLoaderTest.class.getSimpleName() );
+
+        File schemaRepository = new File( tempDir.toFile(), "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( tempDir.toFile() );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+    }
+
+
+    @Before
+    public void createPartition() throws Exception
+    {
+        partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( "bulk" );
+        partition.setPartitionPath( tempDir.toUri() );
+        partition.setSyncOnWrite( false );
+
+        JdbmIndex<String> uidIndex = new JdbmIndex<>( SchemaConstants.UID_AT_OID, false );
+        uidIndex.setWkDirPath( tempDir.toUri() );
+        partition.addIndexedAttributes( uidIndex );
+
+        partition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        partition.setCacheService( cacheService );
+        partition.initialize();
+    }
+
+
+    @After
+    public void destroyPartition() throws Exception
+    {
+        if ( partition != null )
+        {
+            partition.destroy( null );
+        }
+
+        for ( File file : tempDir.toFile().listFiles() )
+        {
+            if ( !file.isDirectory() )
+            {
+                file.delete();
+            }
+        }
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoad() throws Exception
+    {
+        JdbmPartitionBulkLoader bulkLoader = new JdbmPartitionBulkLoader( partition, 1 );
+
+        // Force the sorters to use the disk
+        bulkLoader.setMaxTuplesInMemory( 2 );
+
+        try ( LdifReader reader = new LdifReader( new StringReader( LDIF ) ) )
+        {
+            assertEquals( 4L, bulkLoader.load( reader ) );
+        }
+
+        PartitionTxn partitionTxn = partition.beginReadTransaction();
+
+        // The context entry stores the context CSN
+        Entry contextEntry = partition.lookup( new LookupOperationContext( null, partition.getSuffixDn(),
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY ) );
+        assertNotNull( contextEntry.get( SchemaConstants.CONTEXT_CSN_AT ) );
+
+        assertEquals( 4L, partition.count( partitionTxn ) );
+
+        String peopleId = partition.getEntryId( partitionTxn, new Dn( schemaManager, "ou=People,dc=example,dc=com" ) );
+        assertNotNull( peopleId );
+        assertEquals( 2L, partition.getChildCount( partitionTxn, peopleId ) );
+
+        String suffixId = partition.getEntryId( partitionTxn, partition.getSuffixDn() );
+        assertEquals( 3, partition.getRdnIndex().reverseLookup( partitionTxn, suffixId ).getNbDescendants() );
+
+        String userId = partition.getEntryId( partitionTxn, new Dn( schemaManager, "uid=user2,ou=People,dc=example,dc=com" ) );
+        Entry user = partition.fetch( partitionTxn, userId );
+        assertNotNull( user.get( SchemaConstants.ENTRY_CSN_AT ) );
+        assertEquals( peopleId, user.get( ApacheSchemaConstants.ENTRY_PARENT_ID_AT ).getString() );
+
+        AttributeType uidAT = schemaManager.getAttributeType( SchemaConstants.UID_AT );
+        Index<String, String> uidIndex = ( Index<String, String> ) partition.getUserIndex( uidAT );
+        assertEquals( userId, uidIndex.forwardLookup( partitionTxn, new Value( uidAT, "user2" ).getNormalized() ) );
+        assertEquals( 2L, partition.getObjectClassIndex().count( partitionTxn, SchemaConstants.INET_ORG_PERSON_OC_OID ) );
+    }
+
+
+    @Test
+    public void testLoadChildrenFirst() throws Exception
+    {
+        // The entries are sorted in the tree order by the loader, so they may come in any order
+        int users = LDIF.indexOf( "dn: uid=user1" );
+        String ldif = LDIF.substring( users ) + "\n" + LDIF.substring( 0, users );
+
+        JdbmPartitionBulkLoader bulkLoader = new JdbmPartitionBulkLoader( partition, 1 );
+        bulkLoader.setMaxTuplesInMemory( 2 );
+
+        try ( LdifReader reader = new LdifReader( new StringReader( ldif ) ) )
+        {
+            assertEquals( 4L, bulkLoader.load( reader ) );
+        }
+
+        assertNotNull( partition.lookup( new LookupOperationContext( null, partition.getSuffixDn() ) ) );
+        PartitionTxn partitionTxn = partition.beginReadTransaction();
+
+        String peopleId = partition.getEntryId( partitionTxn, new Dn( schemaManager, "ou=People,dc=example,dc=com" ) );
+        assertEquals( 2L, partition.getChildCount( partitionTxn, peopleId ) );
+
+        String userId = partition.getEntryId( partitionTxn, new Dn( schemaManager, "uid=user1,ou=People,dc=example,dc=com" ) );
+        assertEquals( peopleId, partition.fetch( partitionTxn, userId ).get( ApacheSchemaConstants.ENTRY_PARENT_ID_AT ).getString() );
+    }
+
+
+    @Test(expected = LdapNoSuchObjectException.class)
+    public void testLoadOrphan() throws Exception
+    {
+        JdbmPartitionBulkLoader bulkLoader = new JdbmPartitionBulkLoader( partition, 1 );
+
+        try ( LdifReader reader = new LdifReader( new StringReader( LDIF.substring( LDIF.indexOf( "dn: uid=user1" ) ) ) ) )
+        {
+            bulkLoader.load( reader );
+        }
+    }
+
+
+    @Test(expected = LdapUnwillingToPerformException.class)
+    public void testLoadNonEmptyPartition() throws Exception
+    {
+        try ( LdifReader reader = new LdifReader( new StringReader( LDIF ) ) )
+        {
+            new JdbmPartitionBulkLoader( partition, 1 ).load( reader );
+        }
+
+        try ( LdifReader reader = new LdifReader( new StringReader( LDIF ) ) )
+        {
+            new JdbmPartitionBulkLoader( partition, 1 ).load( reader );
+        }
+    }
+}
@@ -47,6 +47,7 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -71,6 +72,7 @@ import org.apache.directory.server.core.api.interceptor.context.AddOperationCont
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModDnAva;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.OnlineIndexBuild;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
@@ -920,4 +922,101 @@ public class JdbmStoreTest
         lookedup = partition.modify( partitionTxn, dn, add );
         assertEquals( attribVal, lookedup.get( "ou" ).get().getValue() );
     }
+
+
+    @Test
+    public void testBuildIndexOnline() throws Exception
+    {
+        AttributeType cnAT = schemaManager.getAttributeType( SchemaConstants.CN_AT );
+        assertFalse( partition.hasIndexOn( cnAT ) );
+
+        JdbmIndex<String> cnIndex = new JdbmIndex<>( SchemaConstants.CN_AT_OID, false );
+        cnIndex.setWkDirPath( tempDir.toUri() );
+        OnlineIndexBuild indexBuild = partition.buildIndex( cnIndex );
+
+        // The index is registered at once, so that the writes update it
+        assertTrue( partition.hasUserIndexOn( cnAT ) );
+
+        for ( int i = 0; ( i < 200 ) && ( indexBuild.getState() == OnlineIndexBuild.State.BUILDING ); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertEquals( OnlineIndexBuild.State.READY, indexBuild.getState() );
+        assertEquals( 100, indexBuild.getProgress() );
+        assertNull( partition.getIndexBuild( cnAT ) );
+        assertTrue( partition.hasIndexOn( cnAT ) );
+
+        Index<String, String> index = ( Index<String, String> ) partition.getIndex( cnAT );
+        assertEquals( 3L, index.count( partitionTxn, new Value( cnAT, "jim bean" ).getNormalized() ) );
+        assertEquals( 6L, partition.getPresenceIndex().count( partitionTxn, cnAT.getOid() ) );
+    }
+
+
+    /**
+     * Restarts the partition with an additional cn index
+     */
+    private JdbmPartition restartWithCnIndex( boolean onlineIndexBuild ) throws Exception
+    {
+        partition.destroy( partitionTxn );
+
+        partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setCacheSize( 10 );
+        partition.setPartitionPath( tempDir.toUri() );
+        partition.setSyncOnWrite( false );
+        partition.setOnlineIndexBuild( onlineIndexBuild );
+
+        for ( String oid : new String[]
+            { SchemaConstants.OU_AT_OID, SchemaConstants.UID_AT_OID, SchemaConstants.CN_AT_OID } )
+        {
+            JdbmIndex<String> index = new JdbmIndex<>( oid, false );
+            index.setWkDirPath( tempDir.toUri() );
+            partition.addIndexedAttributes( index );
+        }
+
+        partition.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        partition.setCacheService( cacheService );
+        partition.initialize();
+
+        partitionTxn = partition.beginReadTransaction();
+
+        return partition;
+    }
+
+
+    @Test
+    public void testBuildIndexOnStartup() throws Exception
+    {
+        AttributeType cnAT = schemaManager.getAttributeType( SchemaConstants.CN_AT );
+
+        restartWithCnIndex( true );
+
+        // The new index is built in the background
+        OnlineIndexBuild indexBuild = partition.getIndexBuild( cnAT );
+
+        if ( indexBuild != null )
+        {
+            for ( int i = 0; ( i < 200 ) && ( indexBuild.getState() == OnlineIndexBuild.State.BUILDING ); i++ )
+            {
+                Thread.sleep( 50 );
+            }
+
+            assertEquals( OnlineIndexBuild.State.READY, indexBuild.getState() );
+        }
+
+        assertTrue( partition.hasIndexOn( cnAT ) );
+
+        Index<String, String> index = ( Index<String, String> ) partition.getIndex( cnAT );
+        assertEquals( 3L, index.count( partitionTxn, new Value( cnAT, "jim bean" ).getNormalized() ) );
+
+        // The build has been completed, it's not started again
+        restartWithCnIndex( true );
+
+        assertNull( partition.getIndexBuild( cnAT ) );
+        assertTrue( partition.hasIndexOn( cnAT ) );
+
+        index = ( Index<String, String> ) partition.getIndex( cnAT );
+        assertEquals( 3L, index.count( partitionTxn, new Value( cnAT, "jim bean" ).getNormalized() ) );
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import jdbm.recman.BaseRecordManager;
+
+
+/**
+ * Tests the ParallelIndexBuilder.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelIndexBuilderTest
+{
+    private static SchemaManager schemaManager;
+    private PartitionTxn partitionTxn;
+
+    /** The recordManager used */
+    private BaseRecordManager recMan;
+
+    /** The temporary directory the files will be created in */
+    private static Path tempDir;
+
+    private JdbmIndex<String> ouIdx;
+    private JdbmIndex<String> cnIdx;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        tempDir = Files.createTempDirectory( ParallelIndexBuilderTest.class.getSimpleName() );
+
+        File schemaRepository = new File( tempDir.toFile(), "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( tempDir.toFile() );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        Path tempFile = Files.createTempFile( tempDir, "data", null );
+        partitionTxn = new MockPartitionReadTxn();
+        recMan = new BaseRecordManager( tempFile.toFile().getPath() );
+
+        AttributeType ouAT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT );
+        ouIdx = new JdbmIndex<String>( ouAT.getName(), true );
+        ouIdx.init( recMan, schemaManager, ouAT );
+
+        AttributeType cnAT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CN_AT );
+        cnIdx = new JdbmIndex<String>( cnAT.getName(), false );
+        cnIdx.init( recMan, schemaManager, cnAT );
+    }
+
+
+    @After
+    public void teardown() throws Exception
+    {
+        ouIdx.close( partitionTxn );
+        cnIdx.close( partitionTxn );
+        recMan.close();
+    }
+
+
+    @AfterClass
+    public static void cleanup() throws Exception
+    {
+        FileUtils.deleteDirectory( tempDir.toFile() );
+    }
+
+
+    @Test
+    public void testBuild() throws Exception
+    {
+        Random random = new Random( 1L );
+
+        // Use a small queue and a small sort buffer, to exercise the runs
+        try ( ParallelIndexBuilder builder = new ParallelIndexBuilder( partitionTxn, 8, 50, tempDir.toFile() ) )
+        {
+            for ( int i = 0; i < 1000; i++ )
+            {
+                String id = toId( i );
+                builder.handle( ouIdx, "ou" + random.nextInt( 100 ), id );
+                builder.handle( cnIdx, normalize( cnIdx, "cn" + i ), id );
+            }
+
+            builder.finish();
+        }
+
+        assertEquals( 1000L, ouIdx.count( partitionTxn ) );
+        assertEquals( 1000L, cnIdx.count( partitionTxn ) );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            String id = toId( i );
+            assertTrue( ouIdx.reverse( partitionTxn, id ) );
+            assertEquals( id, cnIdx.forwardLookup( partitionTxn, normalize( cnIdx, "cn" + i ) ) );
+        }
+    }
+
+
+    @Test
+    public void testAbort() throws Exception
+    {
+        try ( ParallelIndexBuilder builder = new ParallelIndexBuilder( partitionTxn, 8, 50, tempDir.toFile() ) )
+        {
+            for ( int i = 0; i < 100; i++ )
+            {
+                builder.handle( cnIdx, normalize( cnIdx, "cn" + i ), toId( i ) );
+            }
+
+            // Closing the builder without finishing it
+        }
+
+        assertFalse( cnIdx.forward( partitionTxn, normalize( cnIdx, "cn1" ) ) );
+    }
+
+
+    /**
+     * Normalizes a value the way the partition does before indexing it
+     */
+    private static String normalize( JdbmIndex<String> index, String value ) throws Exception
+    {
+        return new Value( index.getAttribute(), value ).getNormalized();
+    }
+
+
+    /**
+     * Builds zero padded IDs, so that they are ordered
+     */
+    private static String toId( int i )
+    {
+        return String.format( "%08d", i );
+    }
+}
@@ -0,0 +1,666 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
+import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
+import org.apache.directory.api.ldap.model.message.ModifyResponse;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.factory.PartitionFactory;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerImpl;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A headless multi-master replication load harness. It starts N in-process peers on the
+ * loopback interface, each one replicating from all the others in MMR mode, and drives
+ * concurrent writes on every peer. A share of the writes targets a small set of hot entries,
+ * so that the same entries are modified on several peers at the same time. Once the load is
+ * done, the harness waits for the peers to converge, and checks that each entry holds, on
+ * every peer, the value written with the highest CSN. A {@link MmrLoadReport} is logged for
+ * each round, and the process exits with a non zero status if one of them has failed.
+ * <br>
+ * The harness is configured with system properties :
+ * <ul>
+ *   <li>mmr.peers : the number of peers (3)</li>
+ *   <li>mmr.writers : the number of concurrent writers on each peer (4)</li>
+ *   <li>mmr.ops : the number of writes done by each writer in a round (500)</li>
+ *   <li>mmr.entries : the number of replicated entries (200)</li>
+ *   <li>mmr.hotEntries : the number of entries in the hot set (5)</li>
+ *   <li>mmr.hotRatio : the percentage of the writes done on the hot set (50)</li>
+ *   <li>mmr.rounds : the number of load rounds, for soak runs (1)</li>
+ *   <li>mmr.seed : the seed of the writers random generators (42)</li>
+ *   <li>mmr.port : the port of the first peer, the others using the next ones (16000)</li>
+ *   <li>mmr.timeout : the maximum time to wait for the convergence, in seconds (120)</li>
+ *   <li>mmr.compressedTransport, mmr.deltaSync : the replication options to enable (false)</li>
+ *   <li>mmr.applyLanes : the number of apply lanes of the consumers (the default)</li>
+ * </ul>
+ * The writers use their own seeded generator, so that a run with the same settings does the
+ * same writes. Each peer works in <em>java.io.tmpdir/server-work-mmr-peer&lt;index&gt;</em>,
+ * which is cleaned when the harness starts.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MmrLoadHarness
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( MmrLoadHarness.class );
+
+    /** The replicated area */
+    private static final String REPL_AREA_SUFFIX = "ou=replicationarea,dc=example,dc=com";
+
+    /** The prefix of the replicated entries RDN */
+    private static final String RDN_PREFIX = "e";
+
+    /** The admin password */
+    private static final String ADMIN_PASSWORD = "secret";
+
+    /** The time to wait between two checks of the peers content, in milliseconds */
+    private static final long POLL_INTERVAL = 200L;
+
+    private final int nbPeers = Integer.getInteger( "mmr.peers", 3 );
+    private final int nbWriters = Integer.getInteger( "mmr.writers", 4 );
+    private final int nbOps = Integer.getInteger( "mmr.ops", 500 );
+    private final int nbEntries = Integer.getInteger( "mmr.entries", 200 );
+    private final int nbHotEntries = Integer.getInteger( "mmr.hotEntries", 5 );
+    private final int hotRatio = Integer.getInteger( "mmr.hotRatio", 50 );
+    private final int nbRounds = Integer.getInteger( "mmr.rounds", 1 );
+    private final long seed = Long.getLong( "mmr.seed", 42L );
+    private final int basePort = Integer.getInteger( "mmr.port", 16000 );
+    private final long timeout = TimeUnit.SECONDS.toNanos( Long.getLong( "mmr.timeout", 120L ) );
+    private final boolean compressedTransport = Boolean.getBoolean( "mmr.compressedTransport" );
+    private final boolean deltaSync = Boolean.getBoolean( "mmr.deltaSync" );
+    private final int applyLanes = Integer.getInteger( "mmr.applyLanes", 0 );
+
+    /** The peers */
+    private final List<LdapServer> peers = new ArrayList<LdapServer>();
+
+    /** The consumers of each peer */
+    private final List<List<ReplicationConsumerImpl>> consumers = new ArrayList<List<ReplicationConsumerImpl>>();
+
+    /** The connections used to check the peers content */
+    private final List<LdapNetworkConnection> connections = new ArrayList<LdapNetworkConnection>();
+
+
+    public MmrLoadHarness()
+    {
+        if ( nbPeers < 2 )
+        {
+            throw new IllegalArgumentException( "Atleast two peers are required to run the MMR load" );
+        }
+
+        if ( ( nbHotEntries < 1 ) || ( nbHotEntries >= nbEntries ) )
+        {
+            throw new IllegalArgumentException( "The hot set must contain between 1 and " + ( nbEntries - 1 )
+                + " entries" );
+        }
+    }
+
+
+    /**
+     * Starts the peers, and creates the replicated entries
+     */
+    public void start() throws Exception
+    {
+        for ( int i = 0; i < nbPeers; i++ )
+        {
+            peers.add( startPeer( i ) );
+        }
+
+        for ( LdapServer peer : peers )
+        {
+            connections.add( connect( peer ) );
+        }
+
+        CoreSession session = peers.get( 0 ).getDirectoryService().getAdminSession();
+
+        session.add( new DefaultEntry( session.getDirectoryService().getSchemaManager(), REPL_AREA_SUFFIX,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: replicationarea" ) );
+
+        // Wait for the replication to be established
+        waitForEntries( 0, "the replicated area" );
+
+        // Create the entries on all the peers
+        for ( int i = 0; i < nbEntries; i++ )
+        {
+            session = peers.get( i % nbPeers ).getDirectoryService().getAdminSession();
+
+            session.add( new DefaultEntry( session.getDirectoryService().getSchemaManager(), getDn( i ),
+                "objectClass: top",
+                "objectClass: person",
+                "cn: " + RDN_PREFIX + i,
+                "sn: " + RDN_PREFIX + i ) );
+        }
+
+        waitForEntries( nbEntries, "the initial entries" );
+    }
+
+
+    /**
+     * Runs a load round : the writers are started at the same time on all the peers, then the
+     * peers content is checked until they converge.
+     *
+     * @param round The round number
+     * @return The round report
+     */
+    public MmrLoadReport run( int round ) throws Exception
+    {
+        MmrLoadReport report = new MmrLoadReport( round );
+        ExecutorService executor = Executors.newFixedThreadPool( nbPeers * nbWriters );
+        CountDownLatch startSignal = new CountDownLatch( 1 );
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        List<LdapNetworkConnection> writerConnections = new ArrayList<LdapNetworkConnection>();
+
+        try
+        {
+            for ( int i = 0; i < nbPeers; i++ )
+            {
+                for ( int j = 0; j < nbWriters; j++ )
+                {
+                    LdapNetworkConnection connection = connect( peers.get( i ) );
+                    writerConnections.add( connection );
+
+                    // Each writer has its own reproducible sequence of writes
+                    Random random = new Random( seed + ( ( round * nbPeers + i ) * nbWriters + j ) );
+
+                    futures.add( executor.submit( new Writer( round, i, j, connection, random, startSignal,
+                        report ) ) );
+                }
+            }
+
+            long t0 = System.nanoTime();
+            startSignal.countDown();
+
+            for ( Future<Void> future : futures )
+            {
+                future.get();
+            }
+
+            long t1 = System.nanoTime();
+            report.setLoadNanos( t1 - t0 );
+
+            List<Map<Integer, String[]>> snapshots;
+
+            while ( true )
+            {
+                snapshots = takeSnapshots();
+
+                if ( isConverged( snapshots ) )
+                {
+                    report.setConvergenceNanos( System.nanoTime() - t1 );
+                    break;
+                }
+
+                if ( System.nanoTime() - t1 >= timeout )
+                {
+                    break;
+                }
+
+                Thread.sleep( POLL_INTERVAL );
+            }
+
+            report.verify( snapshots );
+
+            for ( int i = 0; i < nbPeers; i++ )
+            {
+                List<ReplicationStats> stats = new ArrayList<ReplicationStats>();
+
+                for ( ReplicationConsumerImpl consumer : consumers.get( i ) )
+                {
+                    stats.add( consumer.getStats() );
+                }
+
+                report.addPeerStats( i, stats );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+
+            for ( LdapNetworkConnection connection : writerConnections )
+            {
+                connection.close();
+            }
+        }
+
+        return report;
+    }
+
+
+    /**
+     * Stops the peers
+     */
+    public void stop()
+    {
+        for ( LdapNetworkConnection connection : connections )
+        {
+            try
+            {
+                connection.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to close a connection", e );
+            }
+        }
+
+        for ( LdapServer peer : peers )
+        {
+            try
+            {
+                peer.stop();
+                peer.getDirectoryService().shutdown();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to stop a peer", e );
+            }
+        }
+    }
+
+
+    /**
+     * Creates a peer, with a consumer for each of the other peers
+     */
+    private LdapServer startPeer( int index ) throws Exception
+    {
+        DefaultDirectoryServiceFactory factory = new DefaultDirectoryServiceFactory();
+
+        // The replica ID must be set before the startup, as it is used to generate the CSNs
+        DirectoryService ds = factory.getDirectoryService();
+        ds.setReplicaId( index + 1 );
+        factory.init( "mmr-peer" + index );
+
+        PartitionFactory partitionFactory = factory.getPartitionFactory();
+        Partition partition = partitionFactory.createPartition( ds.getSchemaManager(), ds.getDnFactory(),
+            "example", "dc=example,dc=com", 1000,
+            new File( ds.getInstanceLayout().getPartitionsDirectory(), "example" ) );
+        partition.setCacheService( ds.getCacheService() );
+        partitionFactory.addIndex( partition, SchemaConstants.OBJECT_CLASS_AT, 100 );
+        partitionFactory.addIndex( partition, SchemaConstants.OU_AT, 100 );
+        partitionFactory.addIndex( partition, SchemaConstants.CN_AT, 100 );
+        partition.initialize();
+        ds.addPartition( partition );
+
+        CoreSession session = ds.getAdminSession();
+        session.add( new DefaultEntry( ds.getSchemaManager(), "dc=example,dc=com",
+            "objectClass: domain",
+            "objectClass: top",
+            "dc: example" ) );
+
+        List<ReplicationConsumer> replConsumers = new ArrayList<ReplicationConsumer>();
+        List<ReplicationConsumerImpl> peerConsumers = new ArrayList<ReplicationConsumerImpl>();
+
+        for ( int j = 0; j < nbPeers; j++ )
+        {
+            if ( j == index )
+            {
+                continue;
+            }
+
+            SyncReplConfiguration config = new SyncReplConfiguration();
+            config.setRemoteHost( "localhost" );
+            config.setRemotePort( basePort + j );
+            config.setReplUserDn( ServerDNConstants.ADMIN_SYSTEM_DN );
+            config.setReplUserPassword( Strings.getBytesUtf8( ADMIN_PASSWORD ) );
+            config.setUseTls( false );
+            config.setBaseDn( REPL_AREA_SUFFIX );
+            config.setRefreshNPersist( true );
+            config.setMmrMode( true );
+            config.setCompressedTransport( compressedTransport );
+            config.setDeltaSync( deltaSync );
+
+            if ( applyLanes > 0 )
+            {
+                config.setApplyLanes( applyLanes );
+            }
+
+            // A distinct ID for each consumer, so that their metrics are all registered
+            config.setReplicaId( index * nbPeers + j + 1 );
+
+            // The entry the consumer stores its cookie in
+            Dn configDn = new Dn( ds.getSchemaManager(), "ads-replConsumerId=peer" + j + ",ou=system" );
+            config.setConfigEntryDn( configDn );
+
+            Entry configEntry = new DefaultEntry( ds.getSchemaManager(), configDn,
+                "objectClass: ads-replConsumer",
+                "ads-replConsumerId: peer" + j,
+                "ads-searchBaseDN", config.getBaseDn(),
+                "ads-replProvHostName", config.getRemoteHost(),
+                "ads-replProvPort", String.valueOf( config.getRemotePort() ),
+                "ads-replRefreshInterval", String.valueOf( config.getRefreshInterval() ),
+                "ads-replRefreshNPersist", String.valueOf( config.isRefreshNPersist() ),
+                "ads-replSearchScope", config.getSearchScope().getLdapUrlValue(),
+                "ads-replSearchFilter", config.getFilter(),
+                "ads-replSearchSizeLimit", String.valueOf( config.getSearchSizeLimit() ),
+                "ads-replSearchTimeOut", String.valueOf( config.getSearchTimeout() ),
+                "ads-replUserDn", config.getReplUserDn(),
+                "ads-replUserPassword", config.getReplUserPassword() );
+
+            configEntry.put( "ads-replAliasDerefMode", config.getAliasDerefMode().getJndiValue() );
+            configEntry.put( "ads-replAttributes", config.getAttributes() );
+            session.add( configEntry );
+
+            ReplicationConsumerImpl consumer = new ReplicationConsumerImpl();
+            consumer.setConfig( config );
+            replConsumers.add( consumer );
+            peerConsumers.add( consumer );
+        }
+
+        consumers.add( peerConsumers );
+
+        // The consumers retry until the other peers are started
+        LdapServer peer = new LdapServer();
+        peer.setDirectoryService( ds );
+        peer.setTransports( new TcpTransport( "localhost", basePort + index ) );
+        peer.setReplicationReqHandler( new SyncReplRequestHandler() );
+        peer.setReplConsumers( replConsumers );
+        peer.start();
+
+        return peer;
+    }
+
+
+    private LdapNetworkConnection connect( LdapServer peer ) throws Exception
+    {
+        LdapNetworkConnection connection = new LdapNetworkConnection( "localhost", peer.getPort() );
+        connection.setTimeOut( Long.MAX_VALUE );
+        connection.bind( ServerDNConstants.ADMIN_SYSTEM_DN, ADMIN_PASSWORD );
+
+        return connection;
+    }
+
+
+    private Dn getDn( int index ) throws Exception
+    {
+        return new Dn( "cn=" + RDN_PREFIX + index + "," + REPL_AREA_SUFFIX );
+    }
+
+
+    /**
+     * Reads the value and the entryCSN of all the replicated entries, on each peer
+     */
+    private List<Map<Integer, String[]>> takeSnapshots() throws Exception
+    {
+        List<Map<Integer, String[]>> snapshots = new ArrayList<Map<Integer, String[]>>();
+
+        for ( LdapNetworkConnection connection : connections )
+        {
+            Map<Integer, String[]> snapshot = new HashMap<Integer, String[]>();
+            EntryCursor cursor = connection.search( REPL_AREA_SUFFIX, "(objectClass=person)", SearchScope.ONELEVEL,
+                SchemaConstants.CN_AT, SchemaConstants.DESCRIPTION_AT, SchemaConstants.ENTRY_CSN_AT );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+                    int index = Integer.parseInt( entry.get( SchemaConstants.CN_AT ).getString()
+                        .substring( RDN_PREFIX.length() ) );
+                    Attribute description = entry.get( SchemaConstants.DESCRIPTION_AT );
+
+                    snapshot.put( index, new String[]
+                        {
+                            ( description == null ) ? null : description.getString(),
+                            entry.get( SchemaConstants.ENTRY_CSN_AT ).getString()
+                    } );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            snapshots.add( snapshot );
+        }
+
+        return snapshots;
+    }
+
+
+    private boolean isConverged( List<Map<Integer, String[]>> snapshots )
+    {
+        Map<Integer, String[]> reference = snapshots.get( 0 );
+
+        for ( int i = 1; i < snapshots.size(); i++ )
+        {
+            Map<Integer, String[]> snapshot = snapshots.get( i );
+
+            if ( snapshot.size() != reference.size() )
+            {
+                return false;
+            }
+
+            for ( Map.Entry<Integer, String[]> entry : reference.entrySet() )
+            {
+                String[] other = snapshot.get( entry.getKey() );
+
+                if ( !Arrays.equals( entry.getValue(), other ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Waits until all the peers hold the given number of replicated entries
+     */
+    private void waitForEntries( int count, String what ) throws Exception
+    {
+        long t0 = System.nanoTime();
+
+        while ( System.nanoTime() - t0 < timeout )
+        {
+            boolean done = true;
+
+            for ( LdapNetworkConnection connection : connections )
+            {
+                if ( !connection.exists( REPL_AREA_SUFFIX ) || ( countEntries( connection ) != count ) )
+                {
+                    done = false;
+                    break;
+                }
+            }
+
+            if ( done )
+            {
+                LOG.info( "{} replicated in {} ms", what, TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - t0 ) );
+
+                return;
+            }
+
+            Thread.sleep( POLL_INTERVAL );
+        }
+
+        throw new IllegalStateException( what + " have not been replicated on all the peers" );
+    }
+
+
+    private int countEntries( LdapNetworkConnection connection ) throws Exception
+    {
+        EntryCursor cursor = connection.search( REPL_AREA_SUFFIX, "(objectClass=person)", SearchScope.ONELEVEL,
+            SchemaConstants.NO_ATTRIBUTE_ARRAY );
+        int count = 0;
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                count++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Replaces the description of random entries on a peer, and reads back the entryCSN the
+     * peer has given to each write.
+     */
+    private class Writer implements Callable<Void>
+    {
+        private final int round;
+        private final int peer;
+        private final int writer;
+        private final LdapNetworkConnection connection;
+        private final Random random;
+        private final CountDownLatch startSignal;
+        private final MmrLoadReport report;
+
+
+        private Writer( int round, int peer, int writer, LdapNetworkConnection connection, Random random,
+            CountDownLatch startSignal, MmrLoadReport report )
+        {
+            this.round = round;
+            this.peer = peer;
+            this.writer = writer;
+            this.connection = connection;
+            this.random = random;
+            this.startSignal = startSignal;
+            this.report = report;
+        }
+
+
+        @Override
+        public Void call() throws Exception
+        {
+            startSignal.await();
+
+            for ( int op = 0; op < nbOps; op++ )
+            {
+                int index;
+
+                if ( random.nextInt( 100 ) < hotRatio )
+                {
+                    index = random.nextInt( nbHotEntries );
+                }
+                else
+                {
+                    index = nbHotEntries + random.nextInt( nbEntries - nbHotEntries );
+                }
+
+                Dn dn = getDn( index );
+                String value = "r" + round + "p" + peer + "w" + writer + "o" + op;
+
+                ModifyRequest modReq = new ModifyRequestImpl();
+                modReq.setName( dn );
+                modReq.replace( SchemaConstants.DESCRIPTION_AT, value );
+
+                long t0 = System.nanoTime();
+                ModifyResponse resp = connection.modify( modReq );
+                long elapsed = System.nanoTime() - t0;
+
+                if ( resp.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                {
+                    report.recordFailure();
+                    continue;
+                }
+
+                // The CSN is only known if the entry has not been modified since
+                Entry entry = connection.lookup( dn, SchemaConstants.DESCRIPTION_AT, SchemaConstants.ENTRY_CSN_AT );
+                String csn = null;
+
+                if ( ( entry != null ) && entry.contains( SchemaConstants.DESCRIPTION_AT, value ) )
+                {
+                    csn = entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+                }
+
+                report.recordWrite( peer, index, value, csn, elapsed );
+            }
+
+            return null;
+        }
+    }
+
+
+    public static void main( String[] args )
+    {
+        MmrLoadHarness harness = new MmrLoadHarness();
+        boolean successful = true;
+
+        try
+        {
+            harness.start();
+
+            for ( int round = 0; round < harness.nbRounds; round++ )
+            {
+                MmrLoadReport report = harness.run( round );
+                report.log();
+                successful &= report.isSuccessful();
+            }
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "The MMR load run has failed", e );
+            successful = false;
+        }
+        finally
+        {
+            harness.stop();
+        }
+
+        System.exit( successful ? 0 : 1 );
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Collects the results of a round of the {@link MmrLoadHarness} : the writes done on each
+ * peer, their latencies, the time the peers took to converge, and the final content of the
+ * replicated entries, which is checked against the CSN conflict resolution rule : on every
+ * peer, an entry must hold the value written with the highest CSN.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MmrLoadReport
+{
+    /** The logger the report is written to */
+    private static final Logger LOG = LoggerFactory.getLogger( MmrLoadReport.class );
+
+    /** The maximum number of violations listed in the report */
+    private static final int MAX_LISTED = 10;
+
+    /**
+     * A successful write, with the CSN it has been given by the peer it has been done on
+     */
+    private static class Write
+    {
+        private final int peer;
+        private final String value;
+        private final Csn csn;
+
+
+        private Write( int peer, String value, Csn csn )
+        {
+            this.peer = peer;
+            this.value = value;
+            this.csn = csn;
+        }
+    }
+
+    /** The round number */
+    private final int round;
+
+    /** The confirmed writes, per entry index */
+    private final Map<Integer, List<Write>> writes = new TreeMap<Integer, List<Write>>();
+
+    /** The latencies of the writes, in nanoseconds */
+    private long[] latencies = new long[1024];
+    private int nbWrites;
+
+    /** The writes overwritten by another one before their CSN could be read */
+    private int nbUnconfirmed;
+
+    /** The writes rejected by the server */
+    private int nbFailures;
+
+    /** The duration of the load, in nanoseconds */
+    private long loadNanos;
+
+    /** The time the peers took to converge, in nanoseconds, or -1 if they have not converged */
+    private long convergenceNanos = -1L;
+
+    /** The entries which are different on at least two peers */
+    private final List<String> divergent = new ArrayList<String>();
+
+    /** The entries not holding the value written with the highest CSN */
+    private final List<String> violations = new ArrayList<String>();
+
+    /** The replication metrics of each peer */
+    private final List<String> peerStats = new ArrayList<String>();
+
+
+    /**
+     * Creates a new instance of MmrLoadReport.
+     *
+     * @param round The round number
+     */
+    public MmrLoadReport( int round )
+    {
+        this.round = round;
+    }
+
+
+    /**
+     * Records a successful write
+     *
+     * @param peer The peer the write has been done on
+     * @param entry The index of the written entry
+     * @param value The written value
+     * @param csn The entryCSN read back after the write, or null if the entry had already been
+     * modified by another write
+     * @param elapsedNanos The write latency
+     */
+    public synchronized void recordWrite( int peer, int entry, String value, String csn, long elapsedNanos )
+    {
+        if ( nbWrites == latencies.length )
+        {
+            latencies = Arrays.copyOf( latencies, nbWrites * 2 );
+        }
+
+        latencies[nbWrites++] = elapsedNanos;
+
+        if ( csn == null )
+        {
+            nbUnconfirmed++;
+
+            return;
+        }
+
+        List<Write> entryWrites = writes.get( entry );
+
+        if ( entryWrites == null )
+        {
+            entryWrites = new ArrayList<Write>();
+            writes.put( entry, entryWrites );
+        }
+
+        entryWrites.add( new Write( peer, value, new Csn( csn ) ) );
+    }
+
+
+    /**
+     * Records a write rejected by the server
+     */
+    public synchronized void recordFailure()
+    {
+        nbFailures++;
+    }
+
+
+    /**
+     * @param loadNanos The duration of the load, in nanoseconds
+     */
+    public synchronized void setLoadNanos( long loadNanos )
+    {
+        this.loadNanos = loadNanos;
+    }
+
+
+    /**
+     * @param convergenceNanos The time the peers took to converge, in nanoseconds
+     */
+    public synchronized void setConvergenceNanos( long convergenceNanos )
+    {
+        this.convergenceNanos = convergenceNanos;
+    }
+
+
+    /**
+     * Compares the final content of the peers. Each snapshot maps the index of an entry to its
+     * value and its entryCSN.
+     *
+     * @param snapshots The final content of each peer
+     */
+    public synchronized void verify( List<Map<Integer, String[]>> snapshots )
+    {
+        Map<Integer, String[]> reference = snapshots.get( 0 );
+        Set<Integer> indexes = new HashSet<Integer>();
+
+        for ( Map<Integer, String[]> snapshot : snapshots )
+        {
+            indexes.addAll( snapshot.keySet() );
+        }
+
+        for ( Integer index : indexes )
+        {
+            for ( int i = 1; i < snapshots.size(); i++ )
+            {
+                if ( !Arrays.equals( reference.get( index ), snapshots.get( i ).get( index ) ) )
+                {
+                    divergent.add( "entry " + index + " : peer0=" + Arrays.toString( reference.get( index ) )
+                        + ", peer" + i + "=" + Arrays.toString( snapshots.get( i ).get( index ) ) );
+                    break;
+                }
+            }
+        }
+
+        for ( Map.Entry<Integer, List<Write>> entryWrites : writes.entrySet() )
+        {
+            Write winner = null;
+
+            for ( Write write : entryWrites.getValue() )
+            {
+                if ( ( winner == null ) || ( write.csn.compareTo( winner.csn ) > 0 ) )
+                {
+                    winner = write;
+                }
+            }
+
+            for ( int i = 0; i < snapshots.size(); i++ )
+            {
+                String[] actual = snapshots.get( i ).get( entryWrites.getKey() );
+
+                if ( ( actual == null ) || !winner.value.equals( actual[0] )
+                    || !winner.csn.toString().equals( actual[1] ) )
+                {
+                    violations.add( "entry " + entryWrites.getKey() + " on peer" + i + " : expected "
+                        + winner.value + " (" + winner.csn + ", written on peer" + winner.peer + "), found "
+                        + Arrays.toString( actual ) );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Records the replication metrics of a peer
+     *
+     * @param peer The peer index
+     * @param stats The metrics of the peer consumers
+     */
+    public synchronized void addPeerStats( int peer, List<ReplicationStats> stats )
+    {
+        for ( ReplicationStats consumerStats : stats )
+        {
+            peerStats.add( "peer" + peer + " " + consumerStats );
+        }
+    }
+
+
+    /**
+     * @return The number of entries written from at least two peers
+     */
+    public synchronized int getNbConflicted()
+    {
+        int nbConflicted = 0;
+
+        for ( List<Write> entryWrites : writes.values() )
+        {
+            Set<Integer> writers = new HashSet<Integer>();
+
+            for ( Write write : entryWrites )
+            {
+                writers.add( write.peer );
+            }
+
+            if ( writers.size() > 1 )
+            {
+                nbConflicted++;
+            }
+        }
+
+        return nbConflicted;
+    }
+
+
+    /**
+     * @return true if the peers have converged to the values written with the highest CSNs
+     */
+    public synchronized boolean isSuccessful()
+    {
+        return ( convergenceNanos >= 0 ) && divergent.isEmpty() && violations.isEmpty();
+    }
+
+
+    /**
+     * Logs the report
+     */
+    public synchronized void log()
+    {
+        long[] sorted = Arrays.copyOf( latencies, nbWrites );
+        Arrays.sort( sorted );
+        long total = 0L;
+
+        for ( long latency : sorted )
+        {
+            total += latency;
+        }
+
+        double seconds = loadNanos / 1e9d;
+
+        LOG.info( "==== MMR load round {} ====", round );
+        LOG.info( "writes       : {} ({} failed, {} overwritten before being read back)", nbWrites, nbFailures,
+            nbUnconfirmed );
+        LOG.info( "load         : {} ms, {} writes/s", TimeUnit.NANOSECONDS.toMillis( loadNanos ),
+            String.format( "%.1f", ( seconds > 0 ) ? nbWrites / seconds : 0d ) );
+
+        if ( nbWrites > 0 )
+        {
+            LOG.info( "latency (us) : avg={}, p50={}, p99={}, max={}",
+                TimeUnit.NANOSECONDS.toMicros( total / nbWrites ),
+                TimeUnit.NANOSECONDS.toMicros( sorted[nbWrites / 2] ),
+                TimeUnit.NANOSECONDS.toMicros( sorted[( int ) ( nbWrites * 0.99d )] ),
+                TimeUnit.NANOSECONDS.toMicros( sorted[nbWrites - 1] ) );
+        }
+
+        if ( convergenceNanos >= 0 )
+        {
+            LOG.info( "convergence  : {} ms", TimeUnit.NANOSECONDS.toMillis( convergenceNanos ) );
+        }
+        else
+        {
+            LOG.info( "convergence  : NOT CONVERGED" );
+        }
+
+        LOG.info( "entries      : {} written, {} written on several peers, {} divergent, {} CSN conflict violations",
+            writes.size(), getNbConflicted(), divergent.size(), violations.size() );
+
+        log( "divergent", divergent );
+        log( "violation", violations );
+
+        for ( String stats : peerStats )
+        {
+            LOG.info( stats );
+        }
+
+        LOG.info( "result       : {}", isSuccessful() ? "OK" : "FAILED" );
+    }
+
+
+    private void log( String label, List<String> lines )
+    {
+        for ( int i = 0; ( i < lines.size() ) && ( i < MAX_LISTED ); i++ )
+        {
+            LOG.info( "  {} : {}", label, lines.get( i ) );
+        }
+
+        if ( lines.size() > MAX_LISTED )
+        {
+            LOG.info( "  ... {} more", lines.size() - MAX_LISTED );
+        }
+    }
+}
@@ -159,6 +159,9 @@ public class LdapServer extends DirectoryBackedService
     /** The default service name. */
     private static final String SERVICE_NAME_DEFAULT = "ApacheDS LDAP Service";
 
+    /** The time given to each consumer thread to stop */
+    private static final long CONSUMER_STOP_TIMEOUT = 10000L;
+
     /** the session manager for this LdapServer */
     private LdapSessionManager ldapSessionManager = new LdapSessionManager();
 
@@ -258,6 +261,12 @@ public class LdapServer extends DirectoryBackedService
     /** The list of replication consumers */
     private List<ReplicationConsumer> replConsumers;
 
+    /** The thread pinging the replication providers */
+    private PingerThread pingerThread;
+
+    /** The threads running the replication consumers */
+    private List<Thread> consumerThreads = new ArrayList<>();
+
     private KeyManagerFactory keyManagerFactory;
 
     /** the time interval between subsequent pings to each replication provider */
@@ -745,7 +754,7 @@ public class LdapServer extends DirectoryBackedService
     {
         if ( ( replConsumers != null ) && !replConsumers.isEmpty() )
         {
-            final PingerThread pingerThread = new PingerThread( pingerSleepTime );
+            pingerThread = new PingerThread( pingerSleepTime );
             pingerThread.start();
 
             for ( final ReplicationConsumer consumer : replConsumers )
@@ -769,7 +778,12 @@ public class LdapServer extends DirectoryBackedService
                                 CONSUMER_LOG.info( "starting the replication consumer with {}", consumer );
                                 boolean isConnected = consumer.connect( ReplicationConsumer.NOW );
 
-                                if ( isConnected )
+                                if ( !isConnected )
+                                {
+                                    // The consumer has been stopped while reconnecting
+                                    break;
+                                }
+                                else
                                 {
                                     pingerThread.addConsumer( consumer );
 
@@ -801,6 +815,7 @@ public class LdapServer extends DirectoryBackedService
 
                 Thread consumerThread = new Thread( consumerTask );
                 consumerThread.setDaemon( true );
+                consumerThreads.add( consumerThread );
                 consumerThread.start();
             }
         }
@@ -812,6 +827,13 @@ public class LdapServer extends DirectoryBackedService
      */
     private void stopConsumers()
     {
+        // Stop the pinger first, so that it does not ping a consumer being stopped
+        if ( pingerThread != null )
+        {
+            pingerThread.stopPinging();
+            pingerThread = null;
+        }
+
         if ( replConsumers != null )
         {
             for ( ReplicationConsumer consumer : replConsumers )
@@ -820,6 +842,27 @@ public class LdapServer extends DirectoryBackedService
                 consumer.stop();
             }
         }
+
+        // The stopped consumers leave their synchronization loop
+        for ( Thread consumerThread : consumerThreads )
+        {
+            try
+            {
+                consumerThread.join( CONSUMER_STOP_TIMEOUT );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if ( consumerThread.isAlive() )
+            {
+                LOG.warn( "The consumer thread {} has not stopped", consumerThread.getName() );
+            }
+        }
+
+        consumerThreads.clear();
     }
 
 
@@ -0,0 +1,340 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.Deflater;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.util.Strings;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+
+/**
+ * Compresses the entries a provider sends to a consumer which has requested the compressed
+ * transport, by adding a control with the {@link #OID} to its syncrepl SearchRequest. The
+ * entries, with their SyncState, are serialized and batched, and each batch is sent in an
+ * IntermediateResponse named with the same OID.
+ * <br>
+ * All the batches of a replication search are compressed in a single deflate stream, flushed
+ * after each batch, so that the entries are compressed using the content of the previous
+ * ones. The stream is primed with a dictionary of the usual attribute names. The other
+ * messages (SyncInfo, SearchResultDone...) are not compressed, and the pending batch must
+ * be flushed before sending them.
+ * <br>
+ * The compressor is stored in the replication IoSession, and is bound to the SearchRequest
+ * it has been created for. The batches are written to the session while holding the
+ * compressor lock, to keep them in the deflate stream order.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaCompressor
+{
+    /** The compressed transport OID */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.11";
+
+    /** The default maximum number of entries in a batch */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** The maximum size of a batch before compression */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    /** The dictionary the deflate stream is primed with */
+    /* no qualifier */ static final byte[] DICTIONARY = Strings.getBytesUtf8(
+        "objectClass top person organizationalPerson inetOrgPerson groupOfNames groupOfUniqueNames "
+            + "organizationalUnit domain extensibleObject cn sn uid ou dc o givenName displayName mail "
+            + "description telephoneNumber userPassword member uniqueMember memberOf manager title "
+            + "entryUUID entryCSN entryDN entryParentId creatorsName createTimestamp modifiersName "
+            + "modifyTimestamp nbChildren nbSubordinates" );
+
+    /** The key used to store the compressor in the session */
+    private static final String SESSION_KEY = ReplicaCompressor.class.getName();
+
+    /** The ID of the SearchRequest this compressor is used for */
+    private final int messageId;
+
+    /** The metrics to update */
+    private final ReplicationStats stats;
+
+    /** The deflate stream */
+    private final Deflater deflater;
+
+    /** The maximum number of entries in a batch */
+    private final int batchSize;
+
+    /** The pending batch */
+    private ByteArrayOutputStream batchBytes;
+    private ObjectOutputStream batch;
+    private int nbPending;
+
+
+    /**
+     * Creates a new instance of ReplicaCompressor.
+     *
+     * @param messageId The ID of the SearchRequest this compressor is used for
+     * @param batchSize The maximum number of entries in a batch
+     * @param stats The metrics to update
+     */
+    public ReplicaCompressor( int messageId, int batchSize, ReplicationStats stats )
+    {
+        this.messageId = messageId;
+        this.batchSize = Math.max( 1, batchSize );
+        this.stats = stats;
+
+        deflater = new Deflater( Deflater.DEFAULT_COMPRESSION );
+        deflater.setDictionary( DICTIONARY );
+    }
+
+
+    /**
+     * Creates a compressor for the given request if the consumer has requested the compressed
+     * transport, and stores it in the session. The previous compressor of the session, if any,
+     * is released.
+     *
+     * @param session The replication session
+     * @param request The syncrepl SearchRequest
+     * @param stats The metrics to update
+     * @return The compressor, or null if the compressed transport has not been requested
+     */
+    public static ReplicaCompressor create( IoSession session, SearchRequest request, ReplicationStats stats )
+    {
+        ReplicaCompressor previous = ( ReplicaCompressor ) session.removeAttribute( SESSION_KEY );
+
+        if ( previous != null )
+        {
+            previous.release();
+        }
+
+        if ( !request.getControls().containsKey( OID ) )
+        {
+            return null;
+        }
+
+        ReplicaCompressor compressor = new ReplicaCompressor( request.getMessageId(), DEFAULT_BATCH_SIZE, stats );
+        session.setAttribute( SESSION_KEY, compressor );
+
+        return compressor;
+    }
+
+
+    /**
+     * Gets the compressor created for the given request
+     *
+     * @param session The replication session
+     * @param request The syncrepl SearchRequest
+     * @return The compressor, or null if the entries are not compressed
+     */
+    public static ReplicaCompressor get( IoSession session, SearchRequest request )
+    {
+        ReplicaCompressor compressor = ( ReplicaCompressor ) session.getAttribute( SESSION_KEY );
+
+        if ( ( compressor == null ) || ( compressor.messageId != request.getMessageId() ) )
+        {
+            return null;
+        }
+
+        return compressor;
+    }
+
+
+    /**
+     * Adds an entry to the pending batch. The batch is written to the session when full.
+     *
+     * @param session The replication session
+     * @param entry The entry to send
+     * @param syncStateType The entry SyncState
+     * @param entryUuid The entryUUID, as bytes
+     * @param cookie The cookie, if any
+     * @return The future of the written batch, or null if the batch is not full yet
+     * @throws IOException If the entry can't be serialized
+     */
+    public synchronized WriteFuture add( IoSession session, Entry entry, SyncStateTypeEnum syncStateType,
+        byte[] entryUuid, byte[] cookie ) throws IOException
+    {
+        if ( batch == null )
+        {
+            batchBytes = new ByteArrayOutputStream();
+            batch = new ObjectOutputStream( batchBytes );
+        }
+
+        batch.writeBoolean( true );
+        batch.writeByte( syncStateType.getValue() );
+        writeBytes( entryUuid );
+        writeBytes( cookie );
+        entry.getDn().writeExternal( batch );
+        entry.writeExternal( batch );
+        nbPending++;
+
+        if ( ( nbPending >= batchSize ) || ( batchBytes.size() >= MAX_BATCH_BYTES ) )
+        {
+            return flush( session );
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Compresses and writes an entry to the session, with the pending ones if any
+     *
+     * @param session The replication session
+     * @param entry The entry to send
+     * @param syncStateType The entry SyncState
+     * @param entryUuid The entryUUID, as bytes
+     * @param cookie The cookie, if any
+     * @return The future of the written batch
+     * @throws IOException If the entry can't be serialized
+     */
+    public synchronized WriteFuture send( IoSession session, Entry entry, SyncStateTypeEnum syncStateType,
+        byte[] entryUuid, byte[] cookie ) throws IOException
+    {
+        WriteFuture future = add( session, entry, syncStateType, entryUuid, cookie );
+
+        if ( future == null )
+        {
+            future = flush( session );
+        }
+
+        return future;
+    }
+
+
+    /**
+     * Compresses and writes the pending batch to the session
+     *
+     * @param session The replication session
+     * @return The future of the written batch, or null if there was no pending entry
+     * @throws IOException If the batch can't be serialized
+     */
+    public synchronized WriteFuture flush( IoSession session ) throws IOException
+    {
+        IntermediateResponse response = flushBatch();
+
+        if ( response == null )
+        {
+            return null;
+        }
+
+        return session.write( response );
+    }
+
+
+    /**
+     * Compresses the pending batch in an IntermediateResponse
+     *
+     * @return The IntermediateResponse, or null if there was no pending entry
+     * @throws IOException If the batch can't be serialized
+     */
+    /* no qualifier */ synchronized IntermediateResponse flushBatch() throws IOException
+    {
+        if ( nbPending == 0 )
+        {
+            return null;
+        }
+
+        // The end of the batch
+        batch.writeBoolean( false );
+        batch.close();
+
+        byte[] raw = batchBytes.toByteArray();
+        batch = null;
+        batchBytes = null;
+        nbPending = 0;
+
+        long t0 = System.nanoTime();
+        byte[] compressed = compress( raw );
+
+        if ( stats != null )
+        {
+            stats.recordCompression( raw.length, compressed.length, System.nanoTime() - t0 );
+        }
+
+        IntermediateResponse response = new IntermediateResponseImpl( messageId );
+        response.setResponseName( OID );
+        response.setResponseValue( compressed );
+
+        return response;
+    }
+
+
+    /**
+     * Releases the deflate stream. The pending entries are discarded.
+     */
+    public synchronized void release()
+    {
+        deflater.end();
+        batch = null;
+        batchBytes = null;
+        nbPending = 0;
+    }
+
+
+    /**
+     * @return The ID of the SearchRequest this compressor is used for
+     */
+    public int getMessageId()
+    {
+        return messageId;
+    }
+
+
+    private void writeBytes( byte[] bytes ) throws IOException
+    {
+        if ( bytes == null )
+        {
+            batch.writeInt( -1 );
+        }
+        else
+        {
+            batch.writeInt( bytes.length );
+            batch.write( bytes );
+        }
+    }
+
+
+    /**
+     * Deflates the data, and flushes the stream so that the consumer can inflate them
+     */
+    private byte[] compress( byte[] raw )
+    {
+        deflater.setInput( raw );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( raw.length / 2 + 64 );
+        byte[] buffer = new byte[8192];
+        int nbBytes;
+
+        do
+        {
+            nbBytes = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH );
+            out.write( buffer, 0, nbBytes );
+        }
+        while ( nbBytes == buffer.length );
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncStateValueDecorator;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * Decompresses the entries sent by a {@link ReplicaCompressor}. A decompressor must be
+ * used for a single replication search, as the batches are parts of the same deflate
+ * stream, and must be decompressed in the order they have been received.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaDecompressor
+{
+    /** The SchemaManager instance */
+    private final SchemaManager schemaManager;
+
+    /** The codec service used to create the SyncState controls */
+    private final LdapApiService codec;
+
+    /** The metrics to update */
+    private final ReplicationStats stats;
+
+    /** The inflate stream */
+    private final Inflater inflater = new Inflater();
+
+
+    /**
+     * Creates a new instance of ReplicaDecompressor.
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param codec The codec service
+     * @param stats The metrics to update, if any
+     */
+    public ReplicaDecompressor( SchemaManager schemaManager, LdapApiService codec, ReplicationStats stats )
+    {
+        this.schemaManager = schemaManager;
+        this.codec = codec;
+        this.stats = stats;
+    }
+
+
+    /**
+     * Decompresses a batch of entries
+     *
+     * @param response The received IntermediateResponse
+     * @return The entries, with their SyncState control
+     * @throws IOException If the batch can't be decompressed
+     */
+    public List<SearchResultEntry> decompress( IntermediateResponse response ) throws IOException
+    {
+        byte[] compressed = response.getResponseValue();
+
+        long t0 = System.nanoTime();
+        byte[] raw = inflate( compressed );
+
+        if ( stats != null )
+        {
+            stats.recordCompression( raw.length, compressed.length, System.nanoTime() - t0 );
+        }
+
+        List<SearchResultEntry> entries = new ArrayList<>();
+
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( raw ) ) )
+        {
+            while ( in.readBoolean() )
+            {
+                SyncStateTypeEnum syncStateType = SyncStateTypeEnum.getSyncStateType( in.readByte() );
+                byte[] entryUuid = readBytes( in );
+                byte[] cookie = readBytes( in );
+
+                Dn dn = new Dn( schemaManager );
+                dn.readExternal( in );
+
+                Entry entry = new DefaultEntry( schemaManager );
+                entry.readExternal( in );
+                entry.setDn( dn );
+
+                SyncStateValue syncStateCtrl = new SyncStateValueDecorator( codec );
+                syncStateCtrl.setSyncStateType( syncStateType );
+                syncStateCtrl.setEntryUUID( entryUuid );
+                syncStateCtrl.setCookie( cookie );
+
+                SearchResultEntry syncResult = new SearchResultEntryImpl( response.getMessageId() );
+                syncResult.setObjectName( dn );
+                syncResult.setEntry( entry );
+                syncResult.addControl( syncStateCtrl );
+
+                entries.add( syncResult );
+            }
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Releases the inflate stream
+     */
+    public void release()
+    {
+        inflater.end();
+    }
+
+
+    private byte[] readBytes( ObjectInputStream in ) throws IOException
+    {
+        int length = in.readInt();
+
+        if ( length < 0 )
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+
+        return bytes;
+    }
+
+
+    private byte[] inflate( byte[] compressed ) throws IOException
+    {
+        inflater.setInput( compressed );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( compressed.length * 4 );
+        byte[] buffer = new byte[8192];
+
+        try
+        {
+            while ( true )
+            {
+                int nbBytes = inflater.inflate( buffer );
+
+                if ( nbBytes > 0 )
+                {
+                    out.write( buffer, 0, nbBytes );
+                }
+                else if ( inflater.needsDictionary() )
+                {
+                    inflater.setDictionary( ReplicaCompressor.DICTIONARY );
+                }
+                else if ( inflater.needsInput() || inflater.finished() )
+                {
+                    break;
+                }
+            }
+        }
+        catch ( DataFormatException dfe )
+        {
+            throw new IOException( dfe.getMessage(), dfe );
+        }
+
+        return out.toByteArray();
+    }
+}
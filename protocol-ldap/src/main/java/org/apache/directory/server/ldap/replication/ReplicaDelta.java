@@ -0,0 +1,319 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The modifications applied on an entry, sent by a provider to the consumers which have
+ * requested the delta replication mode instead of the whole modified entry. It is sent in
+ * an IntermediateResponse named with the {@link #OID}, and requested by adding a control
+ * with the same OID to the syncrepl SearchRequest.
+ * <br>
+ * The consumer applies the modifications only if the local entry has the same entryCSN as
+ * the entry before the modifications on the provider. Otherwise, it falls back to the whole
+ * entry replication for this entry.
+ * <br>
+ * A delta is serialized following this format : <br>
+ * <ul>
+ * <li>byte[] : the serialized DN</li>
+ * <li>String : the entryUUID</li>
+ * <li>String : the entryCSN before the modifications</li>
+ * <li>String : the entryCSN after the modifications</li>
+ * <li>int : the cookie length, -1 if there is no cookie</li>
+ * <li>byte[] : the cookie</li>
+ * <li>int : the number of modifications</li>
+ * <li>byte[] : the serialized modifications</li>
+ * </ul>
+ * On the consumer, the received delta is attached as a control to the SearchResultEntry
+ * queued in the apply pipeline. It's never encoded as a control.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaDelta implements Control
+{
+    /** The delta replication OID */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.10";
+
+    /** The modified entry Dn */
+    private Dn dn;
+
+    /** The modified entry entryUUID */
+    private String entryUuid;
+
+    /** The entryCSN before the modifications */
+    private String beforeCsn;
+
+    /** The entryCSN after the modifications */
+    private String afterCsn;
+
+    /** The replication cookie */
+    private byte[] cookie;
+
+    /** The modifications */
+    private List<Modification> modifications;
+
+
+    /**
+     * Creates a new instance of ReplicaDelta.
+     *
+     * @param dn The modified entry Dn
+     * @param entryUuid The modified entry entryUUID
+     * @param beforeCsn The entryCSN before the modifications
+     * @param afterCsn The entryCSN after the modifications
+     * @param cookie The replication cookie, if any
+     * @param modifications The modifications
+     */
+    public ReplicaDelta( Dn dn, String entryUuid, String beforeCsn, String afterCsn, byte[] cookie,
+        List<Modification> modifications )
+    {
+        this.dn = dn;
+        this.entryUuid = entryUuid;
+        this.beforeCsn = beforeCsn;
+        this.afterCsn = afterCsn;
+        this.cookie = cookie;
+        this.modifications = modifications;
+    }
+
+
+    /**
+     * Creates the delta for a MODIFY message storing its modifications
+     *
+     * @param message The ReplicaEventMessage
+     * @param cookie The replication cookie, if any
+     * @return The delta
+     * @throws LdapInvalidAttributeValueException If the entry has no entryUUID or entryCSN
+     */
+    public static ReplicaDelta fromMessage( ReplicaEventMessage message, byte[] cookie )
+        throws LdapInvalidAttributeValueException
+    {
+        Entry entry = message.getEntry();
+
+        return new ReplicaDelta( entry.getDn(), entry.get( SchemaConstants.ENTRY_UUID_AT ).getString(),
+            message.getBeforeCsn(), entry.get( SchemaConstants.ENTRY_CSN_AT ).getString(), cookie,
+            message.getModifications() );
+    }
+
+
+    /**
+     * Serializes the delta
+     *
+     * @return The serialized delta
+     * @throws IOException If the serialization failed
+     */
+    public byte[] encode() throws IOException
+    {
+        try ( ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutput out = new ObjectOutputStream( baos ) )
+        {
+            dn.writeExternal( out );
+            out.writeUTF( entryUuid );
+            out.writeUTF( beforeCsn );
+            out.writeUTF( afterCsn );
+
+            if ( cookie == null )
+            {
+                out.writeInt( -1 );
+            }
+            else
+            {
+                out.writeInt( cookie.length );
+                out.write( cookie );
+            }
+
+            out.writeInt( modifications.size() );
+
+            for ( Modification modification : modifications )
+            {
+                modification.writeExternal( out );
+            }
+
+            out.flush();
+
+            return baos.toByteArray();
+        }
+    }
+
+
+    /**
+     * Deserializes a delta
+     *
+     * @param schemaManager The SchemaManager
+     * @param bytes The serialized delta
+     * @return The delta
+     * @throws IOException If the deserialization failed
+     */
+    public static ReplicaDelta decode( SchemaManager schemaManager, byte[] bytes ) throws IOException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            Dn dn = new Dn( schemaManager );
+            dn.readExternal( in );
+
+            String entryUuid = in.readUTF();
+            String beforeCsn = in.readUTF();
+            String afterCsn = in.readUTF();
+
+            byte[] cookie = null;
+            int cookieLength = in.readInt();
+
+            if ( cookieLength >= 0 )
+            {
+                cookie = new byte[cookieLength];
+                in.readFully( cookie );
+            }
+
+            int nbModifications = in.readInt();
+            List<Modification> modifications = new ArrayList<>( nbModifications );
+
+            for ( int i = 0; i < nbModifications; i++ )
+            {
+                Modification modification = new DefaultModification();
+                modification.readExternal( in );
+                modifications.add( new DefaultModification( schemaManager, modification ) );
+            }
+
+            return new ReplicaDelta( dn, entryUuid, beforeCsn, afterCsn, cookie, modifications );
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+    }
+
+
+    /**
+     * @return The modified entry Dn
+     */
+    public Dn getDn()
+    {
+        return dn;
+    }
+
+
+    /**
+     * @return The modified entry entryUUID
+     */
+    public String getEntryUuid()
+    {
+        return entryUuid;
+    }
+
+
+    /**
+     * @return The entryCSN before the modifications
+     */
+    public String getBeforeCsn()
+    {
+        return beforeCsn;
+    }
+
+
+    /**
+     * @return The entryCSN after the modifications
+     */
+    public String getAfterCsn()
+    {
+        return afterCsn;
+    }
+
+
+    /**
+     * @return The replication cookie, if any
+     */
+    public byte[] getCookie()
+    {
+        return cookie;
+    }
+
+
+    /**
+     * @return The modifications
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getOid()
+    {
+        return OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCritical()
+    {
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCritical( boolean isCritical )
+    {
+        // Nothing to do, the delta is never sent as a control
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "Delta for " ).append( dn );
+        sb.append( ", entryUUID " ).append( entryUuid );
+        sb.append( ", CSN " ).append( beforeCsn ).append( " -> " ).append( afterCsn );
+        sb.append( ", " ).append( modifications.size() ).append( " modifications" );
+
+        return sb.toString();
+    }
+}
@@ -21,15 +21,20 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
 /**
- * A place holder storing an Entry and the operation applied on it
+ * A place holder storing an Entry and the operation applied on it. A MODIFY message may
+ * also store the modifications applied on the entry, and the entryCSN the entry had
+ * before they were applied, so that they can be replicated instead of the whole entry.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -41,6 +46,15 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The entryCSN before the modifications, for a MODIFY message */
+    private String beforeCsn;
+
+    /** The modifications applied on the entry, for a MODIFY message */
+    private List<Modification> modifications;
+
+    /** The serialized message, shared by the logs storing it */
+    private volatile byte[] serialized;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
@@ -61,6 +75,22 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * Create a new ReplicaEvent instance for a Modify operation, storing the modifications
+     *
+     * @param entry The modified entry
+     * @param beforeCsn The entryCSN of the entry before the modifications
+     * @param modifications The applied modifications
+     */
+    public ReplicaEventMessage( Entry entry, String beforeCsn, List<Modification> modifications )
+    {
+        this( ChangeType.MODIFY, entry );
+
+        this.beforeCsn = beforeCsn;
+        this.modifications = modifications;
+    }
+
+
     /**
      * @return The changeType
      */
@@ -79,6 +109,53 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The entryCSN of the entry before the modifications, if stored
+     */
+    public String getBeforeCsn()
+    {
+        return beforeCsn;
+    }
+
+
+    /**
+     * @return The modifications applied on the entry, if stored
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * @return true if the modifications applied on the entry are stored
+     */
+    public boolean hasModifications()
+    {
+        return ( beforeCsn != null ) && ( modifications != null );
+    }
+
+
+    /**
+     * @return The serialized message, if it has already been serialized
+     */
+    /* no qualifier */ byte[] getSerialized()
+    {
+        return serialized;
+    }
+
+
+    /**
+     * Stores the serialized message, so that it's serialized only once when stored in many logs
+     *
+     * @param serialized The serialized message
+     */
+    /* no qualifier */ void setSerialized( byte[] serialized )
+    {
+        this.serialized = serialized;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
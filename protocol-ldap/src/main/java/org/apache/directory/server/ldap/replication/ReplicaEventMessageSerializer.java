@@ -26,11 +26,15 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -41,10 +45,14 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * 
  * A modification is serialized following this format : <br>
  * <ul>
- * <li>byte : EventType</li>
+ * <li>byte : EventType, with the MODIFICATIONS_FLAG bit set if the modifications are stored</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>String : the entryCSN before the modifications, if stored</li>
+ * <li>int : the number of modifications, if stored</li>
+ * <li>byte[] : the serialized modifications, if stored</li>
  * </ul>
+ * The messages written before the modifications were stored are read as is.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -56,6 +64,9 @@ public class ReplicaEventMessageSerializer implements Serializer
     /** The schemaManager */
     private transient SchemaManager schemaManager;
 
+    /** The flag added to the EventType when the modifications are stored */
+    private static final int MODIFICATIONS_FLAG = 0x40;
+
 
     /**
      * Creates a new instance of ReplicaEventMessageSerializer.
@@ -75,6 +86,14 @@ public class ReplicaEventMessageSerializer implements Serializer
     {
         ReplicaEventMessage replicaEventMessage = ( ReplicaEventMessage ) object;
 
+        // The same message may be stored in the logs of many consumers
+        byte[] serialized = replicaEventMessage.getSerialized();
+
+        if ( serialized != null )
+        {
+            return serialized;
+        }
+
         Entry entry = replicaEventMessage.getEntry();
         ChangeType changeType = replicaEventMessage.getChangeType();
 
@@ -83,7 +102,14 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
 
             // The change type first
-            out.writeByte( changeType.getValue() );
+            if ( replicaEventMessage.hasModifications() )
+            {
+                out.writeByte( changeType.getValue() | MODIFICATIONS_FLAG );
+            }
+            else
+            {
+                out.writeByte( changeType.getValue() );
+            }
 
             // The entry DN
             entry.getDn().writeExternal( out );
@@ -91,9 +117,24 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            // The modifications
+            if ( replicaEventMessage.hasModifications() )
+            {
+                out.writeUTF( replicaEventMessage.getBeforeCsn() );
+                out.writeInt( replicaEventMessage.getModifications().size() );
+
+                for ( Modification modification : replicaEventMessage.getModifications() )
+                {
+                    modification.writeExternal( out );
+                }
+            }
+
             out.flush();
 
-            return baos.toByteArray();
+            serialized = baos.toByteArray();
+            replicaEventMessage.setSerialized( serialized );
+
+            return serialized;
         }
     }
 
@@ -115,7 +156,8 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
             // The changeType
             byte type = in.readByte();
-            ChangeType changeType = ChangeType.getChangeType( type );
+            boolean hasModifications = ( type & MODIFICATIONS_FLAG ) != 0;
+            ChangeType changeType = ChangeType.getChangeType( type & ~MODIFICATIONS_FLAG );
 
             // The Entry's DN
             Dn entryDn = new Dn( schemaManager );
@@ -127,7 +169,25 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.setDn( entryDn );
 
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            if ( hasModifications )
+            {
+                String beforeCsn = in.readUTF();
+                int nbModifications = in.readInt();
+                List<Modification> modifications = new ArrayList<>( nbModifications );
+
+                for ( int i = 0; i < nbModifications; i++ )
+                {
+                    Modification modification = new DefaultModification();
+                    modification.readExternal( in );
+                    modifications.add( new DefaultModification( schemaManager, modification ) );
+                }
+
+                replicaEventMessage = new ReplicaEventMessage( entry, beforeCsn, modifications );
+            }
+            else
+            {
+                replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            }
         }
         catch ( ClassNotFoundException cnfe )
         {
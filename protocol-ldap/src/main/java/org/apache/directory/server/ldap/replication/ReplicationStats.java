@@ -0,0 +1,459 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Collects the replication metrics of a consumer, or of a provider for one of its
+ * consumers : the CSN lag, the number of pending changes, the throughput, the
+ * batches latencies and the transport compression. The metrics are registered in
+ * the platform MBeanServer, named
+ * <em>org.apache.directory.server:type=Replication,instance=&lt;instance&gt;,role=&lt;role&gt;,replicaId=&lt;id&gt;</em>,
+ * the instance being the ID of the DirectoryService, so that several services can run in
+ * the same JVM.
+ * <br>
+ * The number of pending changes is read by {@link #readQueueDepth()}, which is overridden
+ * by the component owning the queue.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationStats implements ReplicationStatsMXBean
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicationStats.class );
+
+    /** The provider role */
+    public static final String PROVIDER = "provider";
+
+    /** The consumer role */
+    public static final String CONSUMER = "consumer";
+
+    /** The number of seconds the throughput is computed on */
+    private static final int RATE_WINDOW = 60;
+
+    /** The replication side */
+    private final String role;
+
+    /** The replica ID */
+    private final int replicaId;
+
+    /** The CSN of the last sent or applied change */
+    private volatile String lastCsn;
+
+    /** The CSN of the most recent known change */
+    private volatile String referenceCsn;
+
+    /** The counters, protected by this instance lock */
+    private long nbEntries;
+    private long nbBatches;
+    private long totalLatencyNanos;
+    private long maxBatchLatencyNanos;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private long compressionNanos;
+
+    /** The number of entries processed during each of the last seconds, and the matching second */
+    private final long[] rateCounts = new long[RATE_WINDOW];
+    private final long[] rateSeconds = new long[RATE_WINDOW];
+
+    /** The name the MBean is registered with */
+    private ObjectName objectName;
+
+
+    /**
+     * Creates a new instance of ReplicationStats.
+     *
+     * @param role The replication side, {@link #PROVIDER} or {@link #CONSUMER}
+     * @param replicaId The replica ID
+     */
+    public ReplicationStats( String role, int replicaId )
+    {
+        this.role = role;
+        this.replicaId = replicaId;
+    }
+
+
+    /**
+     * Registers the metrics in the platform MBeanServer. A failure is only logged : if
+     * the name is already used, the registered metrics are left as they are, and those
+     * ones are not published.
+     *
+     * @param instanceId The ID of the DirectoryService
+     */
+    public synchronized void register( String instanceId )
+    {
+        try
+        {
+            ObjectName name = new ObjectName( "org.apache.directory.server:type=Replication,instance="
+                + ObjectName.quote( String.valueOf( instanceId ) ) + ",role=" + role + ",replicaId=" + replicaId );
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, name );
+            objectName = name;
+        }
+        catch ( InstanceAlreadyExistsException iaee )
+        {
+            LOG.warn( "The replication metrics of the {} {} of the instance {} are already registered, "
+                + "they won't be published", role, replicaId, instanceId );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to register the replication metrics of the {} {}", role, replicaId, e );
+        }
+    }
+
+
+    /**
+     * Unregisters the metrics from the platform MBeanServer
+     */
+    public synchronized void unregister()
+    {
+        if ( objectName == null )
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to unregister the replication metrics of the {} {}", role, replicaId, e );
+        }
+
+        objectName = null;
+    }
+
+
+    /**
+     * Records the CSN of the last change sent or applied
+     *
+     * @param csn The CSN
+     */
+    public void setLastCsn( String csn )
+    {
+        lastCsn = csn;
+    }
+
+
+    /**
+     * Records the CSN of a change logged or received. The most recent one is kept.
+     *
+     * @param csn The CSN
+     */
+    public synchronized void setReferenceCsn( String csn )
+    {
+        if ( ( csn != null ) && ( ( referenceCsn == null ) || ( csn.compareTo( referenceCsn ) > 0 ) ) )
+        {
+            referenceCsn = csn;
+        }
+    }
+
+
+    /**
+     * Records a batch of entries sent or applied
+     *
+     * @param nbBatchEntries The number of entries in the batch
+     * @param elapsedNanos The time spent processing the batch, in nanoseconds
+     */
+    public synchronized void recordBatch( int nbBatchEntries, long elapsedNanos )
+    {
+        nbEntries += nbBatchEntries;
+        nbBatches++;
+        totalLatencyNanos += elapsedNanos;
+        maxBatchLatencyNanos = Math.max( maxBatchLatencyNanos, elapsedNanos );
+
+        long second = currentSecond();
+        int slot = ( int ) ( second % RATE_WINDOW );
+
+        if ( rateSeconds[slot] != second )
+        {
+            rateSeconds[slot] = second;
+            rateCounts[slot] = 0L;
+        }
+
+        rateCounts[slot] += nbBatchEntries;
+    }
+
+
+    /**
+     * Records a compressed or decompressed transport message
+     *
+     * @param nbUncompressedBytes The uncompressed size
+     * @param nbCompressedBytes The compressed size
+     * @param elapsedNanos The time spent compressing or decompressing, in nanoseconds
+     */
+    public synchronized void recordCompression( long nbUncompressedBytes, long nbCompressedBytes, long elapsedNanos )
+    {
+        uncompressedBytes += nbUncompressedBytes;
+        compressedBytes += nbCompressedBytes;
+        compressionNanos += elapsedNanos;
+    }
+
+
+    /**
+     * Reads the number of changes waiting to be sent or applied. This implementation
+     * returns -1, meaning there is no known queue.
+     *
+     * @return The number of pending changes
+     */
+    protected long readQueueDepth()
+    {
+        return -1L;
+    }
+
+
+    /**
+     * @return The current time, in seconds. Overridden by the tests.
+     */
+    protected long currentSecond()
+    {
+        return TimeUnit.MILLISECONDS.toSeconds( System.currentTimeMillis() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRole()
+    {
+        return role;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getReplicaId()
+    {
+        return replicaId;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLastCsn()
+    {
+        return lastCsn;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getReferenceCsn()
+    {
+        return referenceCsn;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCsnLagSeconds()
+    {
+        String last = lastCsn;
+        String reference = referenceCsn;
+
+        if ( ( last == null ) || ( reference == null ) )
+        {
+            return 0L;
+        }
+
+        try
+        {
+            long lag = new Csn( reference ).getTimestamp() - new Csn( last ).getTimestamp();
+
+            return Math.max( 0L, TimeUnit.MILLISECONDS.toSeconds( lag ) );
+        }
+        catch ( RuntimeException re )
+        {
+            // Not a valid CSN
+            return 0L;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getQueueDepth()
+    {
+        try
+        {
+            return readQueueDepth();
+        }
+        catch ( RuntimeException re )
+        {
+            LOG.debug( "Cannot read the queue depth of the {} {}", role, replicaId, re );
+
+            return -1L;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getNbEntries()
+    {
+        return nbEntries;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized double getEntriesPerSecond()
+    {
+        long now = currentSecond();
+        long count = 0L;
+
+        for ( int i = 0; i < RATE_WINDOW; i++ )
+        {
+            if ( now - rateSeconds[i] < RATE_WINDOW )
+            {
+                count += rateCounts[i];
+            }
+        }
+
+        return ( double ) count / RATE_WINDOW;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getNbBatches()
+    {
+        return nbBatches;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized double getAverageBatchSize()
+    {
+        return ( nbBatches == 0 ) ? 0d : ( double ) nbEntries / nbBatches;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized double getAverageLatencyMicros()
+    {
+        return ( nbEntries == 0 ) ? 0d : ( double ) TimeUnit.NANOSECONDS.toMicros( totalLatencyNanos ) / nbEntries;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getMaxBatchLatencyMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros( maxBatchLatencyNanos );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getUncompressedBytes()
+    {
+        return uncompressedBytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getCompressedBytes()
+    {
+        return compressedBytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized double getCompressionRatio()
+    {
+        return ( compressedBytes == 0 ) ? 0d : ( double ) uncompressedBytes / compressedBytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getCompressionMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( compressionNanos );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "Replication " ).append( role ).append( ' ' ).append( replicaId );
+        sb.append( " : lastCsn=" ).append( lastCsn );
+        sb.append( ", referenceCsn=" ).append( referenceCsn );
+        sb.append( ", lag=" ).append( getCsnLagSeconds() ).append( "s" );
+        sb.append( ", queue=" ).append( getQueueDepth() );
+        sb.append( ", entries=" ).append( getNbEntries() );
+        sb.append( ", batches=" ).append( getNbBatches() );
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+/**
+ * The replication metrics of a consumer, or of a provider for one of its consumers,
+ * exposed through JMX.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ReplicationStatsMXBean
+{
+    /**
+     * @return The side of the replication, either "provider" or "consumer"
+     */
+    String getRole();
+
+
+    /**
+     * @return The replica ID
+     */
+    int getReplicaId();
+
+
+    /**
+     * @return The CSN of the last change sent (provider) or applied (consumer)
+     */
+    String getLastCsn();
+
+
+    /**
+     * @return The CSN of the most recent change logged (provider) or received (consumer)
+     */
+    String getReferenceCsn();
+
+
+    /**
+     * @return The number of seconds between the reference CSN and the last CSN
+     */
+    long getCsnLagSeconds();
+
+
+    /**
+     * @return The number of changes not yet sent (provider journal) or applied (consumer queue)
+     */
+    long getQueueDepth();
+
+
+    /**
+     * @return The number of entries sent (provider) or applied (consumer)
+     */
+    long getNbEntries();
+
+
+    /**
+     * @return The number of entries sent or applied per second, over the last minute
+     */
+    double getEntriesPerSecond();
+
+
+    /**
+     * @return The number of batches sent or applied
+     */
+    long getNbBatches();
+
+
+    /**
+     * @return The average number of entries in a batch
+     */
+    double getAverageBatchSize();
+
+
+    /**
+     * @return The average time spent to send or apply an entry, in microseconds
+     */
+    double getAverageLatencyMicros();
+
+
+    /**
+     * @return The longest time spent to send or apply a batch, in microseconds
+     */
+    long getMaxBatchLatencyMicros();
+
+
+    /**
+     * @return The number of bytes compressed (provider) or decompressed (consumer)
+     */
+    long getUncompressedBytes();
+
+
+    /**
+     * @return The number of compressed bytes sent (provider) or received (consumer)
+     */
+    long getCompressedBytes();
+
+
+    /**
+     * @return The uncompressed size divided by the compressed size, 0 if nothing was compressed
+     */
+    double getCompressionRatio();
+
+
+    /**
+     * @return The time spent compressing or decompressing, in milliseconds
+     */
+    long getCompressionMillis();
+}
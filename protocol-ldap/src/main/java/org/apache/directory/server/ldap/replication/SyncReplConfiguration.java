@@ -32,6 +32,7 @@ import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.Network;
 import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationApplyPipeline;
 
 
 /**
@@ -58,6 +59,12 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  *   <li>useTls : the connection uses TLS, defaults to true</li>
  *   <li>strictCertVerification : strictly verify the certificate, defaults to true</li>
  *   <li>trustManager : the trustManager to use, defaults to @link{NoVerificationTrustManager}</li>
+ *   <li>applyBatchSize : the maximum number of received changes applied in a batch, defaults to 100</li>
+ *   <li>cookieCheckpointInterval : the delay between two cookie checkpoints, defaults to 1s</li>
+ *   <li>applyLanes : the number of lanes applying the received changes concurrently, defaults to 1</li>
+ *   <li>deltaSync : request the modifications instead of the modified entries, defaults to false</li>
+ *   <li>snapshotProvisioning : bulk load the initial content in an empty replica, defaults to false</li>
+ *   <li>compressedTransport : request the replicated entries compressed, defaults to false</li>
  *   <li></li>
  * </ul>
  * 
@@ -133,6 +140,24 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** the maximum number of received changes applied in a batch, default is 100 */
+    private int applyBatchSize = ReplicationApplyPipeline.DEFAULT_BATCH_SIZE;
+
+    /** the delay between two cookie checkpoints while applying changes, default is 1 second */
+    private long cookieCheckpointInterval = ReplicationApplyPipeline.DEFAULT_CHECKPOINT_INTERVAL;
+
+    /** the number of lanes applying the received changes concurrently, default is 1 (serial apply) */
+    private int applyLanes = ReplicationApplyPipeline.DEFAULT_NB_LANES;
+
+    /** flag to request the modifications instead of the modified entries, default is false */
+    private boolean deltaSync = false;
+
+    /** flag to bulk load the initial content in an empty replica, default is false */
+    private boolean snapshotProvisioning = false;
+
+    /** flag to request the replicated entries compressed, default is false */
+    private boolean compressedTransport = false;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -580,6 +605,135 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the maximum number of received changes applied in a batch
+     */
+    public int getApplyBatchSize()
+    {
+        return applyBatchSize;
+    }
+
+
+    /**
+     * @param applyBatchSize the maximum number of received changes applied in a batch
+     */
+    public void setApplyBatchSize( int applyBatchSize )
+    {
+        this.applyBatchSize = applyBatchSize;
+    }
+
+
+    /**
+     * @return the delay between two cookie checkpoints, in milliseconds
+     */
+    public long getCookieCheckpointInterval()
+    {
+        return cookieCheckpointInterval;
+    }
+
+
+    /**
+     * Sets the delay between two cookie checkpoints while applying the received changes.
+     * The cookie is always stored when the consumer is idle, or when it disconnects.
+     *
+     * @param cookieCheckpointInterval the delay between two cookie checkpoints, in milliseconds
+     */
+    public void setCookieCheckpointInterval( long cookieCheckpointInterval )
+    {
+        this.cookieCheckpointInterval = cookieCheckpointInterval;
+    }
+
+
+    /**
+     * @return the number of lanes applying the received changes concurrently
+     */
+    public int getApplyLanes()
+    {
+        return applyLanes;
+    }
+
+
+    /**
+     * Sets the number of lanes applying the received changes concurrently. The changes
+     * are dispatched on the lanes by entryUUID, so the changes on a given entry are
+     * still applied in order.
+     *
+     * @param applyLanes the number of lanes, 1 to apply the changes serially
+     */
+    public void setApplyLanes( int applyLanes )
+    {
+        this.applyLanes = applyLanes;
+    }
+
+
+    /**
+     * @return true if the modifications are requested instead of the modified entries
+     */
+    public boolean isDeltaSync()
+    {
+        return deltaSync;
+    }
+
+
+    /**
+     * Enables or disables the delta replication mode. In this mode, the provider sends the
+     * modifications applied on an entry instead of the whole modified entry, and the consumer
+     * applies them directly if its entry has not diverged. This mode requires the replication
+     * of all the attributes.
+     *
+     * @param deltaSync true to request the modifications
+     */
+    public void setDeltaSync( boolean deltaSync )
+    {
+        this.deltaSync = deltaSync;
+    }
+
+
+    /**
+     * @return true if the initial content is bulk loaded in an empty replica
+     */
+    public boolean isSnapshotProvisioning()
+    {
+        return snapshotProvisioning;
+    }
+
+
+    /**
+     * Enables or disables the snapshot provisioning. When enabled, and when the replica has
+     * no cookie and the replicated base is the suffix of an empty JdbmPartition, the initial
+     * content is fetched in refreshOnly mode, spooled on disk and bulk loaded in the partition,
+     * bypassing the interceptors. The replication then goes on from the received cookie.
+     *
+     * @param snapshotProvisioning true to bulk load the initial content
+     */
+    public void setSnapshotProvisioning( boolean snapshotProvisioning )
+    {
+        this.snapshotProvisioning = snapshotProvisioning;
+    }
+
+
+    /**
+     * @return true if the replicated entries are requested compressed
+     */
+    public boolean isCompressedTransport()
+    {
+        return compressedTransport;
+    }
+
+
+    /**
+     * Enables or disables the compressed transport. When enabled, the provider batches the
+     * replicated entries and sends them deflated in IntermediateResponses, which saves
+     * bandwidth on slow or metered links at the expense of some CPU on both sides.
+     *
+     * @param compressedTransport true to request the replicated entries compressed
+     */
+    public void setCompressedTransport( boolean compressedTransport )
+    {
+        this.compressedTransport = compressedTransport;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -43,7 +43,7 @@ public class PingerThread extends Thread
     private Queue<ReplicationConsumer> consumers = new ConcurrentLinkedQueue<>();
 
     /** A flag to stop the pinger */
-    private boolean stop = false;
+    private volatile boolean stop = false;
 
     /** the time interval before this thread pings each replication provider. Default value is 5 seconds */
     private long sleepTime = 5000;
@@ -128,5 +128,6 @@ public class PingerThread extends Thread
     public void stopPinging()
     {
         stop = true;
+        interrupt();
     }
 }
\ No newline at end of file
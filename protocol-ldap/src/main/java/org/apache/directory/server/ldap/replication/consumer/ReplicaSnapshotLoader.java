@@ -0,0 +1,292 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.admin.AdministrativePointInterceptor;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.authz.AciAuthorizationInterceptor;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartitionBulkLoader;
+import org.apache.directory.server.core.subtree.SubentryInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Provisions an empty replica from the initial content sent by a provider. Instead of
+ * being added one by one through the interceptor chain, the received entries are
+ * spooled in a LDIF file, which is then loaded in the partition by a
+ * {@link JdbmPartitionBulkLoader} (sorted tables and indexes, no interceptors).
+ * <br>
+ * This is only possible when the replicated base is the suffix of an empty JdbmPartition.
+ * The partition is loaded while holding the OperationManager write lock. As the interceptors
+ * have not seen the loaded entries, the caches they build from the partitions content (the
+ * administrative points, the subentries, the ACI tuples and the groups) are then loaded
+ * from the partition, before the lock is released.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaSnapshotLoader
+{
+    /** Logger for this class */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The DirectoryService instance */
+    private final DirectoryService directoryService;
+
+    /** The partition to provision */
+    private final JdbmPartition partition;
+
+    /** The replica ID of this consumer */
+    private final int replicaId;
+
+    /** The file where the entries are spooled */
+    private final File spoolFile;
+
+    /** The spool file writer */
+    private Writer writer;
+
+    /** The number of spooled entries */
+    private long nbSpooled;
+
+
+    private ReplicaSnapshotLoader( DirectoryService directoryService, JdbmPartition partition, int replicaId )
+        throws IOException
+    {
+        this.directoryService = directoryService;
+        this.partition = partition;
+        this.replicaId = replicaId;
+
+        spoolFile = File.createTempFile( "replica-" + replicaId + "-", ".ldif",
+            directoryService.getInstanceLayout().getCacheDirectory() );
+        writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( spoolFile ),
+            StandardCharsets.UTF_8 ) );
+    }
+
+
+    /**
+     * Creates a loader for the given replicated base, if it can be provisioned from a snapshot.
+     *
+     * @param directoryService The DirectoryService instance
+     * @param baseDn The replicated base
+     * @param replicaId The replica ID of this consumer
+     * @return The loader, or null if the base is not the suffix of an empty JdbmPartition
+     * @throws LdapException If the partition can't be read
+     */
+    public static ReplicaSnapshotLoader create( DirectoryService directoryService, Dn baseDn, int replicaId )
+        throws LdapException
+    {
+        Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+
+        if ( !( partition instanceof JdbmPartition ) )
+        {
+            CONSUMER_LOG.info( "The partition {} is not a JdbmPartition, it can't be provisioned from a snapshot",
+                partition.getId() );
+
+            return null;
+        }
+
+        if ( !partition.getSuffixDn().equals( baseDn ) )
+        {
+            CONSUMER_LOG.info( "The replicated base {} is not the suffix of the partition {}, "
+                + "it can't be provisioned from a snapshot", baseDn, partition.getId() );
+
+            return null;
+        }
+
+        JdbmPartition jdbmPartition = ( JdbmPartition ) partition;
+
+        if ( jdbmPartition.getMasterTable().count( null ) != 0 )
+        {
+            CONSUMER_LOG.info( "The partition {} is not empty, it can't be provisioned from a snapshot",
+                partition.getId() );
+
+            return null;
+        }
+
+        try
+        {
+            return new ReplicaSnapshotLoader( directoryService, jdbmPartition, replicaId );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Spools an entry received from the provider, unless it's a deleted one. The parents
+     * must be spooled before their children.
+     *
+     * @param syncResult The received entry
+     * @throws LdapException If the entry can't be written
+     */
+    public void spool( SearchResultEntry syncResult ) throws LdapException
+    {
+        SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+
+        if ( ( syncStateCtrl != null ) && ( syncStateCtrl.getSyncStateType() == SyncStateTypeEnum.DELETE ) )
+        {
+            return;
+        }
+
+        try
+        {
+            writer.write( LdifUtils.convertToLdif( syncResult.getEntry() ) );
+            writer.write( '\n' );
+            nbSpooled++;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Loads the spooled entries into the partition. The operations are blocked while
+     * the partition is being loaded.
+     *
+     * @return The number of loaded entries
+     * @throws LdapException If the partition can't be loaded
+     */
+    public long load() throws LdapException
+    {
+        try
+        {
+            writer.close();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        CONSUMER_LOG.info( "Loading {} entries in the partition {}", nbSpooled, partition.getId() );
+
+        JdbmPartitionBulkLoader loader = new JdbmPartitionBulkLoader( partition, replicaId );
+        loader.setWorkDir( directoryService.getInstanceLayout().getCacheDirectory() );
+
+        directoryService.getOperationManager().lockWrite();
+
+        try ( LdifReader ldifReader = new LdifReader( spoolFile ) )
+        {
+            long nbLoaded = loader.load( ldifReader );
+
+            loadCaches();
+
+            return nbLoaded;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            directoryService.getOperationManager().unlockWrite();
+        }
+    }
+
+
+    /**
+     * Loads the administrative points, the subentries, the ACI tuples and the groups of
+     * the loaded partition in the interceptors caches.
+     */
+    private void loadCaches() throws LdapException
+    {
+        Dn suffixDn = partition.getSuffixDn();
+
+        AdministrativePointInterceptor administrativePointInterceptor = ( AdministrativePointInterceptor )
+            directoryService.getInterceptor( InterceptorEnum.ADMINISTRATIVE_POINT_INTERCEPTOR.getName() );
+
+        if ( administrativePointInterceptor != null )
+        {
+            administrativePointInterceptor.loadAdministrativePoints( suffixDn );
+        }
+
+        SubentryInterceptor subentryInterceptor = ( SubentryInterceptor )
+            directoryService.getInterceptor( InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() );
+
+        if ( subentryInterceptor != null )
+        {
+            subentryInterceptor.loadSubentries( suffixDn );
+        }
+
+        AciAuthorizationInterceptor aciAuthorizationInterceptor = ( AciAuthorizationInterceptor )
+            directoryService.getInterceptor( InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR.getName() );
+
+        if ( aciAuthorizationInterceptor != null )
+        {
+            aciAuthorizationInterceptor.loadTuplesAndGroups( suffixDn );
+        }
+
+        CONSUMER_LOG.debug( "Loaded the caches of the partition {}", partition.getId() );
+    }
+
+
+    /**
+     * @return The number of spooled entries
+     */
+    public long getNbSpooled()
+    {
+        return nbSpooled;
+    }
+
+
+    /**
+     * Removes the spool file
+     */
+    public void discard()
+    {
+        try
+        {
+            writer.close();
+        }
+        catch ( IOException ioe )
+        {
+            // Nothing to do
+        }
+
+        if ( spoolFile.exists() && !spoolFile.delete() )
+        {
+            CONSUMER_LOG.warn( "Failed to delete the spool file {}", spoolFile );
+        }
+    }
+}
@@ -0,0 +1,777 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.ldap.replication.ReplicationStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The consumer apply pipeline. The changes received from the producer are buffered, and
+ * applied by batches on dedicated threads while the listener thread keeps on reading the
+ * next responses. The cookie of the last applied change is checkpointed once per time
+ * window, or as soon as the pipeline is idle, instead of after every single change.
+ * <br>
+ * The changes are dispatched on one or more ordered lanes, each one served by its own
+ * thread :
+ * <ul>
+ *   <li>the changes on a given entry are always applied in the order they have been received,
+ *   in the lane selected by hashing its entryUUID</li>
+ *   <li>a change is applied in the same lane as the pending changes on its ancestors, so that
+ *   an entry is never added before its parent</li>
+ *   <li>a barrier change (a MODDN or a delete, which may affect a whole subtree) waits for all
+ *   the previous changes to be applied, and is applied before any of the next ones</li>
+ * </ul>
+ * A checkpointed cookie never goes past a change that has not been applied : if the consumer
+ * stops before the next checkpoint, the producer will send the last changes again.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationApplyPipeline
+{
+    /** A dedicated logger for the consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The default maximum number of changes applied in a batch */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** The default delay between two cookie checkpoints, in milliseconds */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000L;
+
+    /** The default number of lanes : the changes are applied serially */
+    public static final int DEFAULT_NB_LANES = 1;
+
+    /** The marker used to wake up the lane threads when the pipeline is stopped */
+    private static final Change STOP = new Change( 0L, null, null, null );
+
+    /** The marker used for the applied changes without cookie */
+    private static final byte[] NO_COOKIE = new byte[0];
+
+    /** The handler applying the changes */
+    private final ChangeHandler handler;
+
+    /** The lanes */
+    private final Lane[] lanes;
+
+    /** The maximum number of changes applied in a batch */
+    private final int batchSize;
+
+    /** The delay between two checkpoints */
+    private final long checkpointInterval;
+
+    /** Tells if the pipeline accepts new changes */
+    private volatile boolean running;
+
+    /** The lock protecting the counters, the pending changes and the cookie */
+    private final Object lock = new Object();
+
+    /** The number of submitted changes, also used as the changes sequence number */
+    private long nbSubmitted;
+
+    /** The number of applied changes */
+    private long nbApplied;
+
+    /** The sequence number up to which all the changes have been applied */
+    private long appliedUpTo;
+
+    /** The changes applied while a previous one is still pending, and their cookie */
+    private final Map<Long, byte[]> appliedAhead = new HashMap<>();
+
+    /** The pending changes per entryUUID */
+    private final Map<String, Pending> pendingUuids = new HashMap<>();
+
+    /** The pending changes per normalized Dn */
+    private final Map<String, Pending> pendingDns = new HashMap<>();
+
+    /** The cookie of the last applied change, not yet checkpointed */
+    private byte[] pendingCookie;
+
+    /** The last time a cookie was checkpointed */
+    private long lastCheckpoint;
+
+    /** The replication metrics updated when a batch is applied, if any */
+    private volatile ReplicationStats stats;
+
+    /** Some metrics */
+    private final AtomicLong nbBatches = new AtomicLong( 0L );
+    private final AtomicLong nbCheckpoints = new AtomicLong( 0L );
+    private final AtomicLong nbBarriers = new AtomicLong( 0L );
+
+    /**
+     * The component applying the changes and storing the cookies.
+     */
+    public interface ChangeHandler
+    {
+        /**
+         * Applies a change received from the producer. This method is called concurrently
+         * by the lane threads when more than one lane is used.
+         *
+         * @param change The received change
+         * @return The cookie carried by the change, or null if it has none or was not applied
+         */
+        byte[] apply( SearchResultEntry change );
+
+
+        /**
+         * Stores the cookie of the last applied change.
+         *
+         * @param cookie The cookie to store
+         */
+        void checkpoint( byte[] cookie );
+    }
+
+    /**
+     * A submitted change
+     */
+    private static final class Change
+    {
+        /** The change sequence number */
+        private final long seq;
+
+        /** The received entry */
+        private final SearchResultEntry entry;
+
+        /** The entryUUID */
+        private final String uuid;
+
+        /** The entry normalized Dn */
+        private final String dn;
+
+
+        private Change( long seq, SearchResultEntry entry, String uuid, String dn )
+        {
+            this.seq = seq;
+            this.entry = entry;
+            this.uuid = uuid;
+            this.dn = dn;
+        }
+    }
+
+    /**
+     * The number of pending changes on an entry, and the lane they have been dispatched to
+     */
+    private static final class Pending
+    {
+        private final int lane;
+        private int count;
+
+
+        private Pending( int lane )
+        {
+            this.lane = lane;
+        }
+    }
+
+    /**
+     * An ordered lane, applying its changes on its own thread
+     */
+    private final class Lane implements Runnable
+    {
+        /** The changes waiting to be applied */
+        private final BlockingQueue<Change> queue;
+
+        /** The thread applying the changes */
+        private Thread thread;
+
+
+        private Lane( int capacity )
+        {
+            queue = new LinkedBlockingQueue<>( capacity );
+        }
+
+
+        /**
+         * The lane thread loop
+         */
+        @Override
+        public void run()
+        {
+            List<Change> batch = new ArrayList<>( batchSize );
+
+            while ( running )
+            {
+                Change change;
+
+                try
+                {
+                    change = queue.poll( Math.max( 1L, checkpointInterval ), TimeUnit.MILLISECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    CONSUMER_LOG.warn( "The applier thread has been interrupted" );
+                    break;
+                }
+
+                if ( change == null )
+                {
+                    // Nothing received lately, store the last cookie
+                    checkpoint( true );
+                    continue;
+                }
+
+                batch.add( change );
+                queue.drainTo( batch, batchSize - 1 );
+
+                long t0 = System.nanoTime();
+                int nbBatchApplied = 0;
+
+                for ( Change next : batch )
+                {
+                    if ( ( next == STOP ) || !running )
+                    {
+                        break;
+                    }
+
+                    byte[] cookie = null;
+
+                    try
+                    {
+                        cookie = handler.apply( next.entry );
+                    }
+                    catch ( RuntimeException re )
+                    {
+                        CONSUMER_LOG.error( "Failed to apply the change {}", next.entry, re );
+                    }
+
+                    applied( next, cookie );
+                    nbBatchApplied++;
+                }
+
+                batch.clear();
+                nbBatches.incrementAndGet();
+
+                ReplicationStats currentStats = stats;
+
+                if ( ( currentStats != null ) && ( nbBatchApplied > 0 ) )
+                {
+                    currentStats.recordBatch( nbBatchApplied, System.nanoTime() - t0 );
+                }
+
+                // Don't wait for the end of the time window if the pipeline is idle
+                checkpoint( isIdle() );
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicationApplyPipeline, applying the changes serially.
+     *
+     * @param handler The handler applying the changes
+     * @param batchSize The maximum number of changes applied in a batch
+     * @param checkpointInterval The delay between two checkpoints, in milliseconds
+     */
+    public ReplicationApplyPipeline( ChangeHandler handler, int batchSize, long checkpointInterval )
+    {
+        this( handler, batchSize, checkpointInterval, DEFAULT_NB_LANES );
+    }
+
+
+    /**
+     * Creates a new instance of ReplicationApplyPipeline.
+     *
+     * @param handler The handler applying the changes
+     * @param batchSize The maximum number of changes applied in a batch
+     * @param checkpointInterval The delay between two checkpoints, in milliseconds
+     * @param nbLanes The number of lanes applying the changes concurrently
+     */
+    public ReplicationApplyPipeline( ChangeHandler handler, int batchSize, long checkpointInterval, int nbLanes )
+    {
+        this.handler = handler;
+        this.batchSize = Math.max( 1, batchSize );
+        this.checkpointInterval = Math.max( 0L, checkpointInterval );
+
+        lanes = new Lane[Math.max( 1, nbLanes )];
+
+        for ( int i = 0; i < lanes.length; i++ )
+        {
+            // Bound the number of buffered changes, so that a slow consumer
+            // stops reading the producer responses instead of exhausting the memory
+            lanes[i] = new Lane( this.batchSize * 10 );
+        }
+    }
+
+
+    /**
+     * Sets the replication metrics updated each time a batch is applied
+     *
+     * @param stats The replication metrics
+     */
+    public void setStats( ReplicationStats stats )
+    {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Starts the lane threads
+     *
+     * @param name The lane threads name prefix
+     */
+    public void start( String name )
+    {
+        running = true;
+        lastCheckpoint = System.currentTimeMillis();
+
+        for ( int i = 0; i < lanes.length; i++ )
+        {
+            String threadName = ( lanes.length == 1 ) ? name : name + "-" + i;
+
+            lanes[i].thread = new Thread( lanes[i], threadName );
+            lanes[i].thread.setDaemon( true );
+            lanes[i].thread.start();
+        }
+    }
+
+
+    /**
+     * Adds a change to the pipeline. The caller is blocked while the selected lane is full,
+     * and while a barrier change is being applied.
+     *
+     * @param change The change to apply
+     * @param uuid The changed entry entryUUID
+     * @param barrier Tells if the change must be applied once all the previous ones have been
+     * applied, and before any of the next ones
+     * @throws InterruptedException If the caller has been interrupted
+     */
+    public void submit( SearchResultEntry change, String uuid, boolean barrier ) throws InterruptedException
+    {
+        if ( !running )
+        {
+            return;
+        }
+
+        if ( lanes.length == 1 )
+        {
+            // The changes are applied serially, nothing to track
+            long seq;
+
+            synchronized ( lock )
+            {
+                seq = ++nbSubmitted;
+            }
+
+            dispatch( new Change( seq, change, null, null ), 0 );
+
+            return;
+        }
+
+        Dn dn = change.getObjectName();
+        String normDn = ( dn == null ) ? null : dn.getNormName();
+        long seq;
+        int lane;
+
+        synchronized ( lock )
+        {
+            seq = ++nbSubmitted;
+            lane = barrier ? -1 : selectLane( uuid, dn );
+        }
+
+        if ( lane < 0 )
+        {
+            // The change depends on changes dispatched on different lanes, or
+            // is a barrier : wait for all the previous changes to be applied
+            nbBarriers.incrementAndGet();
+            awaitApplied( seq - 1 );
+
+            lane = laneFor( uuid );
+        }
+
+        Change submitted = new Change( seq, change, uuid, normDn );
+
+        synchronized ( lock )
+        {
+            register( pendingUuids, uuid, lane );
+            register( pendingDns, normDn, lane );
+        }
+
+        dispatch( submitted, lane );
+
+        if ( barrier )
+        {
+            // The next changes can't be applied before this one
+            awaitApplied( seq );
+        }
+    }
+
+
+    /**
+     * Waits until all the submitted changes have been applied, and checkpoints the cookie
+     * of the last one.
+     *
+     * @throws InterruptedException If the caller has been interrupted
+     */
+    public void flush() throws InterruptedException
+    {
+        long seq;
+
+        synchronized ( lock )
+        {
+            seq = nbSubmitted;
+        }
+
+        awaitApplied( seq );
+        checkpoint( true );
+    }
+
+
+    /**
+     * Stops the pipeline. The changes being applied are completed, the buffered ones are
+     * discarded, and the cookie of the last change applied after all the previous ones is
+     * checkpointed.
+     */
+    public void stop()
+    {
+        running = false;
+
+        for ( Lane lane : lanes )
+        {
+            lane.queue.clear();
+            lane.queue.offer( STOP );
+        }
+
+        synchronized ( lock )
+        {
+            lock.notifyAll();
+        }
+
+        for ( Lane lane : lanes )
+        {
+            if ( ( lane.thread != null ) && ( lane.thread != Thread.currentThread() ) )
+            {
+                try
+                {
+                    lane.thread.join();
+                }
+                catch ( InterruptedException ie )
+                {
+                    CONSUMER_LOG.warn( "Interrupted while waiting for the applier thread to stop" );
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        checkpoint( true );
+    }
+
+
+    /**
+     * Selects the lane a change is dispatched to. Must be called with the lock held.
+     *
+     * @return The lane index, or -1 if the pending changes it depends on are on different lanes
+     */
+    private int selectLane( String uuid, Dn dn )
+    {
+        int lane = -1;
+
+        Pending pending = ( uuid == null ) ? null : pendingUuids.get( uuid );
+
+        if ( pending != null )
+        {
+            lane = pending.lane;
+        }
+
+        // Check the pending changes on the entry and on its ancestors
+        Dn current = dn;
+
+        while ( ( current != null ) && !current.isEmpty() )
+        {
+            pending = pendingDns.get( current.getNormName() );
+
+            if ( pending != null )
+            {
+                if ( ( lane >= 0 ) && ( lane != pending.lane ) )
+                {
+                    return -1;
+                }
+
+                lane = pending.lane;
+            }
+
+            current = current.getParent();
+        }
+
+        if ( lane < 0 )
+        {
+            lane = laneFor( uuid );
+        }
+
+        return lane;
+    }
+
+
+    /**
+     * @return The lane selected by hashing the entryUUID
+     */
+    private int laneFor( String uuid )
+    {
+        if ( uuid == null )
+        {
+            return 0;
+        }
+
+        return ( uuid.hashCode() & 0x7FFFFFFF ) % lanes.length;
+    }
+
+
+    /**
+     * Adds a change to a lane, waiting for some room if the lane is full
+     */
+    private void dispatch( Change change, int lane ) throws InterruptedException
+    {
+        while ( running )
+        {
+            if ( lanes[lane].queue.offer( change, 100L, TimeUnit.MILLISECONDS ) )
+            {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all the changes up to the given sequence number have been applied
+     */
+    private void awaitApplied( long seq ) throws InterruptedException
+    {
+        synchronized ( lock )
+        {
+            while ( running && ( appliedUpTo < seq ) )
+            {
+                lock.wait();
+            }
+        }
+    }
+
+
+    /**
+     * Records an applied change. The cookie can be checkpointed only once
+     * all the previous changes have been applied.
+     */
+    private void applied( Change change, byte[] cookie )
+    {
+        synchronized ( lock )
+        {
+            nbApplied++;
+            unregister( pendingUuids, change.uuid );
+            unregister( pendingDns, change.dn );
+
+            if ( change.seq == appliedUpTo + 1 )
+            {
+                appliedUpTo = change.seq;
+
+                if ( cookie != null )
+                {
+                    pendingCookie = cookie;
+                }
+
+                // The changes applied ahead of this one can now be accounted
+                byte[] aheadCookie = appliedAhead.remove( appliedUpTo + 1 );
+
+                while ( aheadCookie != null )
+                {
+                    appliedUpTo++;
+
+                    if ( aheadCookie != NO_COOKIE )
+                    {
+                        pendingCookie = aheadCookie;
+                    }
+
+                    aheadCookie = appliedAhead.remove( appliedUpTo + 1 );
+                }
+            }
+            else
+            {
+                appliedAhead.put( change.seq, ( cookie == null ) ? NO_COOKIE : cookie );
+            }
+
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Registers a pending change on an entry
+     */
+    private void register( Map<String, Pending> pendings, String key, int lane )
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        Pending pending = pendings.get( key );
+
+        if ( pending == null )
+        {
+            pending = new Pending( lane );
+            pendings.put( key, pending );
+        }
+
+        pending.count++;
+    }
+
+
+    /**
+     * Unregisters an applied change on an entry
+     */
+    private void unregister( Map<String, Pending> pendings, String key )
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        Pending pending = pendings.get( key );
+
+        if ( ( pending != null ) && ( --pending.count == 0 ) )
+        {
+            pendings.remove( key );
+        }
+    }
+
+
+    /**
+     * @return true if no change is waiting in the lanes
+     */
+    private boolean isIdle()
+    {
+        for ( Lane lane : lanes )
+        {
+            if ( !lane.queue.isEmpty() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Stores the cookie of the last applied change, if it has not already been stored.
+     *
+     * @param force If false, the cookie is stored only if the checkpoint interval has elapsed
+     */
+    private void checkpoint( boolean force )
+    {
+        // The lock is held while storing the cookie, so that an older
+        // cookie can't be stored after a newer one
+        synchronized ( lock )
+        {
+            if ( pendingCookie == null )
+            {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if ( !force && ( now - lastCheckpoint < checkpointInterval ) )
+            {
+                return;
+            }
+
+            byte[] cookie = pendingCookie;
+            pendingCookie = null;
+            lastCheckpoint = now;
+
+            handler.checkpoint( cookie );
+            nbCheckpoints.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * @return The number of lanes
+     */
+    public int getNbLanes()
+    {
+        return lanes.length;
+    }
+
+
+    /**
+     * @return The number of changes waiting to be applied
+     */
+    public int getQueueSize()
+    {
+        int size = 0;
+
+        for ( Lane lane : lanes )
+        {
+            size += lane.queue.size();
+        }
+
+        return size;
+    }
+
+
+    /**
+     * @return The number of applied changes
+     */
+    public long getNbApplied()
+    {
+        synchronized ( lock )
+        {
+            return nbApplied;
+        }
+    }
+
+
+    /**
+     * @return The number of applied batches
+     */
+    public long getNbBatches()
+    {
+        return nbBatches.get();
+    }
+
+
+    /**
+     * @return The number of checkpointed cookies
+     */
+    public long getNbCheckpoints()
+    {
+        return nbCheckpoints.get();
+    }
+
+
+    /**
+     * @return The number of times the dispatching waited for all the previous changes to be applied
+     */
+    public long getNbBarriers()
+    {
+        return nbBarriers.get();
+    }
+}
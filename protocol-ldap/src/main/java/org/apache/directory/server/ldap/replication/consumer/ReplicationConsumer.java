@@ -73,8 +73,8 @@ public interface ReplicationConsumer
     
     
     /**
-     * Test the connection with the provider. It does connect to the provider, and
-     * tries to bind on it using the consumer credentials.
+     * Test the connection with the provider. A lost connection is closed, the thread
+     * running the consumer then reconnects and restarts the synchronization.
      */
     void ping();
 
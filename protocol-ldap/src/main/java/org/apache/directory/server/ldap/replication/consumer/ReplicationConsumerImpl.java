@@ -22,11 +22,13 @@ package org.apache.directory.server.ldap.replication.consumer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.codec.controls.manageDsaIT.ManageDsaITDecorator;
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
@@ -34,6 +36,7 @@ import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRe
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncRequestValueDecorator;
+import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncStateValueDecorator;
 import org.apache.directory.api.ldap.extras.intermediate.syncrepl.SyncInfoValue;
 import org.apache.directory.api.ldap.extras.intermediate.syncrepl_impl.SyncInfoValueDecorator;
 import org.apache.directory.api.ldap.model.constants.Loggers;
@@ -48,6 +51,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapEntryAlreadyExistsException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
@@ -64,9 +68,11 @@ import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
 import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaITImpl;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.message.controls.SortRequestControlImpl;
@@ -93,8 +99,13 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.ReplicaCompressor;
+import org.apache.directory.server.ldap.replication.ReplicaDecompressor;
+import org.apache.directory.server.ldap.replication.ReplicaDelta;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
+import org.apache.directory.server.ldap.replication.ReplicationStats;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationApplyPipeline.ChangeHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -114,10 +125,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private SyncReplConfiguration config;
 
     /** the sync cookie sent by the server */
-    private byte[] syncCookie;
+    private volatile byte[] syncCookie;
 
     /** connection to the syncrepl provider */
-    private LdapNetworkConnection connection;
+    private volatile LdapNetworkConnection connection;
 
     /** the search request with control */
     private SearchRequest searchRequest;
@@ -131,6 +142,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /** flag to indicate whether the consumer was disconnected */
     private volatile boolean disconnected;
 
+    /** flag to indicate whether the consumer has been stopped : it must not reconnect anymore */
+    private volatile boolean stopped;
+
+    /** The delay after which a thread waiting for a response checks that the consumer is still connected */
+    private static final long RESPONSE_POLL_INTERVAL = 1000L;
+
+    /** The timeout of the bind and unbind requests. The responses of the sync search are polled */
+    private static final long OPERATION_TIMEOUT = 30000L;
+
     /** the core session */
     private CoreSession session;
 
@@ -164,7 +184,53 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private AttributeType adsReplCookieAT;
     private AttributeType adsDsReplicaIdAT;
 
-    private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
+    /** The AttributeTypes on which modification should be ignored */
+    private Set<AttributeType> modIgnoreAttributeTypes;
+
+    /** The number of modifications received in delta mode and applied as is */
+    private final AtomicLong nbDeltasApplied = new AtomicLong( 0L );
+
+    /** The number of modifications received in delta mode replaced by the whole entry */
+    private final AtomicLong nbDeltaFallbacks = new AtomicLong( 0L );
+
+    /** The locks serializing the updates on a given entry, when several consumers connected to
+     * several producers replicate the *same* base. An entry is mapped to a lock by its entryUUID */
+    private static final Object[] UUID_LOCKS = new Object[256];
+
+    static
+    {
+        for ( int i = 0; i < UUID_LOCKS.length; i++ )
+        {
+            UUID_LOCKS[i] = new Object();
+        }
+    }
+
+    /** The pipeline applying the received changes */
+    private volatile ReplicationApplyPipeline pipeline;
+
+    /** The replication metrics of this consumer */
+    private ReplicationStats stats;
+
+    /** Applies the changes queued in the pipeline, and stores the cookie of the last applied one */
+    private final ChangeHandler changeHandler = new ChangeHandler()
+    {
+        @Override
+        public byte[] apply( SearchResultEntry change )
+        {
+            byte[] cookie = handleSearchResultEntry( change );
+            stats.setLastCsn( getEntryCsn( change ) );
+
+            return cookie;
+        }
+
+
+        @Override
+        public void checkpoint( byte[] cookie )
+        {
+            syncCookie = cookie;
+            storeCookie();
+        }
+    };
 
 
     /**
@@ -184,6 +250,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         this.directoryService = directoryservice;
 
+        // The consumer may be restarted after having been stopped
+        stopped = false;
+
         session = directoryService.getAdminSession();
 
         schemaManager = directoryservice.getSchemaManager();
@@ -197,7 +266,27 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         Attribute ridAttr = new DefaultAttribute( adsDsReplicaIdAT );
         ridMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, ridAttr );
 
+        modIgnoreAttributeTypes = new HashSet<>();
+
+        for ( String modIgnoreAt : MOD_IGNORE_AT )
+        {
+            modIgnoreAttributeTypes.add( schemaManager.lookupAttributeTypeRegistry( modIgnoreAt ) );
+        }
+
         prepareSyncSearchRequest();
+
+        stats = new ReplicationStats( ReplicationStats.CONSUMER, config.getReplicaId() )
+        {
+            @Override
+            protected long readQueueDepth()
+            {
+                ReplicationApplyPipeline applyPipeline = pipeline;
+
+                return ( applyPipeline == null ) ? 0L : applyPipeline.getQueueSize();
+            }
+        };
+
+        stats.register( directoryService.getInstanceId() );
     }
 
 
@@ -212,13 +301,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         String providerHost = config.getRemoteHost();
         int port = config.getRemotePort();
 
+        if ( stopped )
+        {
+            return false;
+        }
+
         try
         {
             // Create a connection
             if ( connection == null )
             {
                 connection = new LdapNetworkConnection( providerHost, port );
-                connection.setTimeOut( -1L );
+                connection.setTimeOut( OPERATION_TIMEOUT );
                 connection.setSchemaManager( schemaManager );
 
                 if ( config.isUseTls() )
@@ -298,6 +392,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 new ManageDsaITImpl() ) );
         }
 
+        if ( config.isDeltaSync() )
+        {
+            // Ask the provider to send the modifications instead of the modified entries
+            searchRequest.addControl( new OpaqueControl( ReplicaDelta.OID ) );
+        }
+
+        if ( config.isCompressedTransport() )
+        {
+            // Ask the provider to send the entries compressed
+            searchRequest.addControl( new OpaqueControl( ReplicaCompressor.OID ) );
+        }
+
         if ( CONSUMER_LOG.isDebugEnabled() )
         {
             MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
@@ -342,13 +448,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      * - Moddn
      * - Delete
      * - Present
-     * @param syncResult
+     * This method is called by the apply pipeline thread. The cookie is not stored
+     * here, the pipeline checkpoints it once the change has been applied.
+     *
+     * @param syncResult The received change
+     * @return The cookie carried by the change, or null if it has none or was not applied
      */
-    private void handleSearchResultEntry( SearchResultEntry syncResult )
+    private byte[] handleSearchResultEntry( SearchResultEntry syncResult )
     {
         CONSUMER_LOG.debug( "------------- starting handleSearchResult ------------" );
 
         SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+        byte[] appliedCookie = null;
 
         try
         {
@@ -361,13 +472,13 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             synchronized ( lock )
             {
                 int rid = -1;
+                byte[] cookie = syncStateCtrl.getCookie();
 
-                if ( syncStateCtrl.getCookie() != null )
+                if ( cookie != null )
                 {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
+                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( cookie ) );
                     CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
+                        Strings.utf8ToString( cookie ) );
                 }
 
                 SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
@@ -384,29 +495,21 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 switch ( state )
                 {
                     case ADD:
-                        boolean remoteDnExist = false;
-
+                        // Don't check if the entry exists beforehand : the add fails if it does,
+                        // and we then update the existing entry. The added entry is a copy, as
+                        // the remote entry is still needed in this case.
                         try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
-
-                        if ( !remoteDnExist )
                         {
                             CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
                             CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry.clone() );
                             addContext.setReplEvent( true );
                             addContext.setRid( rid );
 
                             OperationManager operationManager = directoryService.getOperationManager();
                             operationManager.add( addContext );
                         }
-                        else
+                        catch ( LdapEntryAlreadyExistsException leaee )
                         {
                             CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
                             modify( remoteEntry, rid );
@@ -416,7 +519,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
                     case MODIFY:
                         CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
-                        modify( remoteEntry, rid );
+                        ReplicaDelta delta = ( ReplicaDelta ) syncResult.getControl( ReplicaDelta.OID );
+
+                        if ( delta != null )
+                        {
+                            applyDelta( remoteEntry, delta, rid );
+                        }
+                        else
+                        {
+                            modify( remoteEntry, rid );
+                        }
 
                         break;
 
@@ -429,20 +541,20 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                     case DELETE:
                         CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
 
-                        if ( !session.exists( remoteDn ) )
+                        try
+                        {
+                            // incase of a MODDN operation resulting in a branch to be moved out of scope
+                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
+                            // so the branch needs to be recursively deleted here
+                            deleteRecursive( remoteDn, rid );
+                        }
+                        catch ( LdapNoSuchObjectException lnsoe )
                         {
                             CONSUMER_LOG
                                 .debug(
                                     "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
                                     remoteDn );
                         }
-                        else
-                        {
-                            // incase of a MODDN operation resulting in a branch to be moved out of scope
-                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
-                            // so the branch needs to be recursively deleted here
-                            deleteRecursive( remoteEntry.getDn(), rid );
-                        }
 
                         break;
 
@@ -454,11 +566,8 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                         throw new IllegalArgumentException( "Unexpected sync state " + state );
                 }
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    storeCookie();
-                }
+                // the cookie will be stored only if the above operation was successful
+                appliedCookie = cookie;
             }
         }
         catch ( Exception e )
@@ -467,6 +576,96 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
 
         CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+
+        return appliedCookie;
+    }
+
+
+    /**
+     * Submits a received entry to the apply pipeline. The MODDN and DELETE changes may
+     * affect a whole subtree, they are applied once all the previous changes have been
+     * applied, and before any of the next ones.
+     */
+    private void submitSearchResultEntry( ReplicationApplyPipeline applyPipeline, SearchResultEntry syncResult )
+        throws InterruptedException
+    {
+        SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+        String uuid = null;
+        boolean barrier = false;
+
+        if ( syncStateCtrl != null )
+        {
+            if ( syncStateCtrl.getEntryUUID() != null )
+            {
+                uuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() );
+            }
+
+            SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+            barrier = ( state == SyncStateTypeEnum.MODDN ) || ( state == SyncStateTypeEnum.DELETE );
+        }
+
+        stats.setReferenceCsn( getEntryCsn( syncResult ) );
+        applyPipeline.submit( syncResult, uuid, barrier );
+    }
+
+
+    /**
+     * @return The entryCSN of a received entry, or null if it has none
+     */
+    private static String getEntryCsn( SearchResultEntry syncResult )
+    {
+        Entry entry = syncResult.getEntry();
+
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        Attribute csnAttr = entry.get( SchemaConstants.ENTRY_CSN_AT );
+
+        return ( csnAttr == null ) ? null : csnAttr.get().getValue();
+    }
+
+
+    /**
+     * Submits the modifications received in delta mode to the apply pipeline. They are
+     * attached to a SearchResultEntry with a MODIFY SyncState, containing only the
+     * entryUUID and the new entryCSN, so that they are ordered with the other changes.
+     */
+    private void submitDelta( ReplicationApplyPipeline applyPipeline, IntermediateResponse deltaResp )
+        throws InterruptedException
+    {
+        try
+        {
+            ReplicaDelta delta = ReplicaDelta.decode( schemaManager, deltaResp.getResponseValue() );
+            CONSUMER_LOG.debug( "Received {}", delta );
+
+            Entry entry = new DefaultEntry( schemaManager, delta.getDn() );
+            entry.add( SchemaConstants.ENTRY_UUID_AT, delta.getEntryUuid() );
+            entry.add( SchemaConstants.ENTRY_CSN_AT, delta.getAfterCsn() );
+
+            SyncStateValue syncStateCtrl = new SyncStateValueDecorator( directoryService.getLdapCodecService() );
+            syncStateCtrl.setSyncStateType( SyncStateTypeEnum.MODIFY );
+            syncStateCtrl.setEntryUUID( Strings.uuidToBytes( delta.getEntryUuid() ) );
+            syncStateCtrl.setCookie( delta.getCookie() );
+
+            SearchResultEntry syncResult = new SearchResultEntryImpl( deltaResp.getMessageId() );
+            syncResult.setObjectName( delta.getDn() );
+            syncResult.setEntry( entry );
+            syncResult.addControl( syncStateCtrl );
+            syncResult.addControl( delta );
+
+            stats.setReferenceCsn( delta.getAfterCsn() );
+            applyPipeline.submit( syncResult, delta.getEntryUuid(), false );
+        }
+        catch ( InterruptedException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( "Failed to read the modifications sent by the producer {}", config.getProducer(), e );
+        }
     }
 
 
@@ -567,6 +766,24 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         // read the cookie if persisted
         readCookie();
 
+        if ( ( syncCookie == null ) && config.isSnapshotProvisioning() )
+        {
+            try
+            {
+                provisionFromSnapshot();
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( "Failed to provision the replica from a snapshot of {}, doing a full refresh",
+                    config.getProducer(), e );
+            }
+
+            if ( disconnected )
+            {
+                return getDisconnectedStatus();
+            }
+        }
+
         if ( config.isRefreshNPersist() )
         {
             try
@@ -578,7 +795,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             catch ( Exception e )
             {
                 CONSUMER_LOG.error( "Failed to sync with refreshAndPersist mode", e );
-                return ReplicationStatusEnum.DISCONNECTED;
+                return getDisconnectedStatus();
             }
         }
         else
@@ -608,16 +825,136 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             {
                 CONSUMER_LOG.warn( "refresher thread interrupted" );
 
-                return ReplicationStatusEnum.DISCONNECTED;
+                return getDisconnectedStatus();
             }
             catch ( Exception e )
             {
                 CONSUMER_LOG.error( "Failed to sync with refresh only mode", e );
-                return ReplicationStatusEnum.DISCONNECTED;
+                return getDisconnectedStatus();
+            }
+        }
+
+        return getDisconnectedStatus();
+    }
+
+
+    /**
+     * @return STOPPED if the consumer has been stopped, DISCONNECTED if it must reconnect
+     */
+    private ReplicationStatusEnum getDisconnectedStatus()
+    {
+        return stopped ? ReplicationStatusEnum.STOPPED : ReplicationStatusEnum.DISCONNECTED;
+    }
+
+
+    /**
+     * Waits for the next response of a search. The search future is not notified when the
+     * connection is closed, so the wait is regularly interrupted to check the disconnected flag.
+     *
+     * @param sf The search future
+     * @return The next response, or null if the consumer has been disconnected
+     * @throws InterruptedException If the thread has been interrupted
+     */
+    private Response nextResponse( SearchFuture sf ) throws InterruptedException
+    {
+        while ( !disconnected && !sf.isCancelled() )
+        {
+            Response resp = sf.get( RESPONSE_POLL_INTERVAL, TimeUnit.MILLISECONDS );
+
+            if ( resp != null )
+            {
+                return resp;
             }
         }
 
-        return ReplicationStatusEnum.STOPPED;
+        return null;
+    }
+
+
+    /**
+     * Fetches the initial content in refreshOnly mode, and bulk loads it in the replica if it's
+     * empty. The received cookie is then stored, so that the replication goes on from the
+     * snapshot contextCSN.
+     *
+     * @return true if the replica has been provisioned
+     */
+    private boolean provisionFromSnapshot() throws Exception
+    {
+        ReplicaSnapshotLoader loader = ReplicaSnapshotLoader.create( directoryService,
+            new Dn( schemaManager, config.getBaseDn() ), config.getReplicaId() );
+
+        if ( loader == null )
+        {
+            return false;
+        }
+
+        CONSUMER_LOG.info( "Provisioning the replica {} from a snapshot of {}", config.getReplicaId(),
+            config.getProducer() );
+
+        SyncRequestValue syncReq = new SyncRequestValueDecorator( directoryService.getLdapCodecService() );
+        syncReq.setMode( SynchronizationModeEnum.REFRESH_ONLY );
+        searchRequest.addControl( syncReq );
+
+        ReplicaDecompressor decompressor = new ReplicaDecompressor( schemaManager,
+            directoryService.getLdapCodecService(), stats );
+
+        try
+        {
+            SearchFuture sf = connection.searchAsync( searchRequest );
+            Response resp = nextResponse( sf );
+
+            while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
+            {
+                if ( resp instanceof SearchResultEntry )
+                {
+                    loader.spool( ( SearchResultEntry ) resp );
+                }
+                else if ( ( resp instanceof IntermediateResponse )
+                    && ReplicaCompressor.OID.equals( ( ( IntermediateResponse ) resp ).getResponseName() ) )
+                {
+                    for ( SearchResultEntry syncResult : decompressor.decompress( ( IntermediateResponse ) resp ) )
+                    {
+                        loader.spool( syncResult );
+                    }
+                }
+
+                resp = nextResponse( sf );
+            }
+
+            if ( !( resp instanceof SearchResultDone )
+                || ( ( ( SearchResultDone ) resp ).getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS ) )
+            {
+                CONSUMER_LOG.warn( "The snapshot of {} has not been received, doing a full refresh",
+                    config.getProducer() );
+
+                return false;
+            }
+
+            SyncDoneValue syncDone = ( SyncDoneValue ) ( ( SearchResultDone ) resp ).getControl( SyncDoneValue.OID );
+
+            if ( ( syncDone == null ) || ( syncDone.getCookie() == null ) )
+            {
+                CONSUMER_LOG.warn( "No cookie received with the snapshot of {}, doing a full refresh",
+                    config.getProducer() );
+
+                return false;
+            }
+
+            long nbLoaded = loader.load();
+
+            syncCookie = syncDone.getCookie();
+            storeCookie();
+
+            CONSUMER_LOG.info( "Provisioned the replica {} with {} entries, replicating from cookie {}",
+                config.getReplicaId(), nbLoaded, Strings.utf8ToString( syncCookie ) );
+
+            return true;
+        }
+        finally
+        {
+            decompressor.release();
+            loader.discard();
+        }
     }
 
 
@@ -642,7 +979,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             connected = connect();
         }
 
-        while ( !connected )
+        while ( !connected && !stopped )
         {
             try
             {
@@ -661,9 +998,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             connected = connect();
         }
 
-        // TODO : we may have cases were we get here with the connected flag to false. With the above
-        // code, thi sis not possible
-
+        // We only get here with the connected flag to false if the consumer has been stopped
         return connected;
     }
 
@@ -673,31 +1008,24 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      */
     public void ping()
     {
-        boolean connected = !disconnected;
-
-        boolean restartSync = false;
-
-        if ( disconnected )
+        // A disconnected consumer is being reconnected by its thread
+        if ( stopped || disconnected )
         {
-            connected = connect();
-            restartSync = connected;
+            return;
         }
 
-        if ( connected )
+        LdapNetworkConnection currentConnection = connection;
+
+        if ( ( currentConnection != null ) && currentConnection.isConnected() )
         {
             CONSUMER_LOG.debug( "PING : The consumer {} is alive", config.getReplicaId() );
-
-            // DIRSERVER-2014
-            if ( restartSync )
-            {
-                CONSUMER_LOG.warn( "Restarting the disconnected consumer {}", config.getReplicaId() );
-                disconnected = false;
-                startSync();
-            }
         }
         else
         {
-            CONSUMER_LOG.debug( "PING : The consumer {} cannot be connected", config.getReplicaId() );
+            // DIRSERVER-2014
+            CONSUMER_LOG.warn( "PING : The consumer {} has lost its connection to {}, reconnecting",
+                config.getReplicaId(), config.getProducer() );
+            disconnect();
         }
     }
 
@@ -707,13 +1035,26 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      */
     public void stop()
     {
-        if ( !disconnected )
+        stopped = true;
+
+        disconnect();
+
+        if ( stats != null )
         {
-            disconnect();
+            stats.unregister();
         }
     }
 
 
+    /**
+     * @return The replication metrics of this consumer
+     */
+    public ReplicationStats getStats()
+    {
+        return stats;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -764,32 +1105,73 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         // Do the search. We use a searchAsync because we want to get SearchResultDone responses
         SearchFuture sf = connection.searchAsync( searchRequest );
 
-        Response resp = sf.get();
+        Response resp = nextResponse( sf );
 
         CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
 
-        // Now, process the responses. We loop until we have a connection termination or
-        // a SearchResultDone (RefreshOnly mode)
-        while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
+        // The received entries are applied by the pipeline thread, while we keep on reading
+        // the next responses
+        ReplicationApplyPipeline applyPipeline = new ReplicationApplyPipeline( changeHandler,
+            config.getApplyBatchSize(), config.getCookieCheckpointInterval(), config.getApplyLanes() );
+        applyPipeline.setStats( stats );
+        applyPipeline.start( "ReplicationConsumer-" + config.getReplicaId() );
+        pipeline = applyPipeline;
+
+        // The compressed batches of a search are parts of the same stream
+        ReplicaDecompressor decompressor = new ReplicaDecompressor( schemaManager,
+            directoryService.getLdapCodecService(), stats );
+
+        try
         {
-            if ( resp instanceof SearchResultEntry )
+            // Now, process the responses. We loop until we have a connection termination or
+            // a SearchResultDone (RefreshOnly mode)
+            while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
             {
-                SearchResultEntry result = ( SearchResultEntry ) resp;
+                if ( resp instanceof SearchResultEntry )
+                {
+                    submitSearchResultEntry( applyPipeline, ( SearchResultEntry ) resp );
+                }
+                else if ( resp instanceof SearchResultReference )
+                {
+                    handleSearchReference( ( SearchResultReference ) resp );
+                }
+                else if ( resp instanceof IntermediateResponse )
+                {
+                    IntermediateResponse intermediateResponse = ( IntermediateResponse ) resp;
+
+                    if ( ReplicaDelta.OID.equals( intermediateResponse.getResponseName() ) )
+                    {
+                        submitDelta( applyPipeline, intermediateResponse );
+                    }
+                    else if ( ReplicaCompressor.OID.equals( intermediateResponse.getResponseName() ) )
+                    {
+                        for ( SearchResultEntry syncResult : decompressor.decompress( intermediateResponse ) )
+                        {
+                            submitSearchResultEntry( applyPipeline, syncResult );
+                        }
+                    }
+                    else
+                    {
+                        // The entries received before the SyncInfo must be applied first
+                        applyPipeline.flush();
+                        handleSyncInfo( intermediateResponse );
+                    }
+                }
 
-                handleSearchResultEntry( result );
+                // Next entry
+                resp = nextResponse( sf );
+                CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
             }
-            else if ( resp instanceof SearchResultReference )
-            {
-                handleSearchReference( ( SearchResultReference ) resp );
-            }
-            else if ( resp instanceof IntermediateResponse )
+
+            if ( !sf.isCancelled() && !disconnected )
             {
-                handleSyncInfo( ( IntermediateResponse ) resp );
+                applyPipeline.flush();
             }
-
-            // Next entry
-            resp = sf.get();
-            CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
+        }
+        finally
+        {
+            applyPipeline.stop();
+            decompressor.release();
         }
 
         if ( sf.isCancelled() )
@@ -797,13 +1179,13 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
             CONSUMER_LOG.debug( "Search sync on {} has been canceled ", config.getProducer(), sf.getCause() );
 
-            return ReplicationStatusEnum.DISCONNECTED;
+            return getDisconnectedStatus();
         }
         else if ( disconnected )
         {
             CONSUMER_LOG.debug( "Disconnected from {}", config.getProducer() );
 
-            return ReplicationStatusEnum.DISCONNECTED;
+            return getDisconnectedStatus();
         }
         else
         {
@@ -871,20 +1253,24 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         disconnected = true;
 
+        // Wait for the changes being applied before closing the connection, the cookie is then checkpointed
+        ReplicationApplyPipeline applyPipeline = pipeline;
+
+        if ( applyPipeline != null )
+        {
+            applyPipeline.stop();
+        }
+
         try
         {
-            if ( ( connection != null ) && connection.isConnected() )
+            LdapNetworkConnection currentConnection = connection;
+
+            if ( ( currentConnection != null ) && currentConnection.isConnected() )
             {
-                connection.unBind();
+                currentConnection.unBind();
                 CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
 
-                if ( CONSUMER_LOG.isDebugEnabled() )
-                {
-                    MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
-                    CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
-                }
-
-                connection.close();
+                currentConnection.close();
                 CONSUMER_LOG.info( "Connection closed for the server {}", config.getProducer() );
 
                 connection = null;
@@ -906,9 +1292,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * stores the cookie.
+     * stores the cookie. This method is called by the listener thread and
+     * by the apply pipeline thread.
      */
-    private void storeCookie()
+    private synchronized void storeCookie()
     {
         CONSUMER_LOG.debug( "Storing the cookie '{}'", Strings.utf8ToString( syncCookie ) );
 
@@ -1202,6 +1589,140 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Applies the modifications received in delta mode. They are applied as is if the local
+     * entry is the one they have been applied on by the provider, i.e. it has the same entryCSN.
+     * Otherwise, the whole entry is read from the provider and replicated.
+     */
+    private void applyDelta( Entry remoteEntry, ReplicaDelta delta, int rid ) throws Exception
+    {
+        Dn dn = remoteEntry.getDn();
+
+        LookupOperationContext lookupCtx = new LookupOperationContext( session, dn, SchemaConstants.ENTRY_CSN_AT );
+        lookupCtx.setSyncreplLookup( true );
+
+        Entry localEntry = null;
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            lookupCtx.setTransaction( partitionTxn );
+            localEntry = directoryService.getOperationManager().lookup( lookupCtx );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            // The entry will be added from the provider
+        }
+
+        Attribute localCsnAttr = ( localEntry == null ) ? null : localEntry.get( SchemaConstants.ENTRY_CSN_AT );
+
+        if ( localCsnAttr != null )
+        {
+            String localCsn = localCsnAttr.getString();
+
+            if ( localCsn.equals( delta.getAfterCsn() ) )
+            {
+                CONSUMER_LOG.debug( "the modifications of dn {} have already been applied", dn );
+                return;
+            }
+
+            if ( localCsn.equals( delta.getBeforeCsn() ) )
+            {
+                List<Modification> mods = new ArrayList<>( delta.getModifications().size() + 1 );
+                boolean hasCsn = false;
+
+                for ( Modification mod : delta.getModifications() )
+                {
+                    AttributeType attributeType = mod.getAttribute().getAttributeType();
+
+                    if ( !modIgnoreAttributeTypes.contains( attributeType ) )
+                    {
+                        hasCsn |= attributeType.equals( directoryService.getAtProvider().getEntryCSN() );
+                        mods.add( mod );
+                    }
+                }
+
+                if ( !hasCsn )
+                {
+                    // The entry must get the provider entryCSN, not a local one
+                    mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                        new DefaultAttribute( directoryService.getAtProvider().getEntryCSN(), delta.getAfterCsn() ) ) );
+                }
+
+                ModifyOperationContext modifyContext = new ModifyOperationContext( session, dn, mods );
+                modifyContext.setReplEvent( true );
+                modifyContext.setRid( rid );
+
+                directoryService.getOperationManager().modify( modifyContext );
+                nbDeltasApplied.incrementAndGet();
+
+                return;
+            }
+
+            if ( config.isMmrMode() && ( new Csn( localCsn ).compareTo( new Csn( delta.getAfterCsn() ) ) > 0 ) )
+            {
+                // just discard the received modifications, they are old
+                CONSUMER_LOG.debug( "local modification is latest, discarding the modifications of dn {}", dn );
+                return;
+            }
+        }
+
+        // The local entry has diverged, or is missing : replicate the whole entry
+        nbDeltaFallbacks.incrementAndGet();
+        CONSUMER_LOG.debug( "the local entry {} is not the modified one, reading it from the producer", dn );
+
+        LdapNetworkConnection providerConnection = connection;
+
+        if ( providerConnection == null )
+        {
+            throw new LdapException( "Cannot read the entry " + dn + ", the consumer is disconnected" );
+        }
+
+        Entry providerEntry = providerConnection.lookup( dn,
+            computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES ) );
+
+        if ( providerEntry == null )
+        {
+            // The entry has been deleted since, the deletion will be received later
+            CONSUMER_LOG.debug( "the entry {} does not exist anymore on the producer", dn );
+            return;
+        }
+
+        Entry fullEntry = new DefaultEntry( schemaManager, providerEntry );
+
+        if ( localEntry == null )
+        {
+            AddOperationContext addContext = new AddOperationContext( session, fullEntry );
+            addContext.setReplEvent( true );
+            addContext.setRid( rid );
+
+            directoryService.getOperationManager().add( addContext );
+        }
+        else
+        {
+            modify( fullEntry, rid );
+        }
+    }
+
+
+    /**
+     * @return The number of modifications received in delta mode and applied as is
+     */
+    public long getNbDeltasApplied()
+    {
+        return nbDeltasApplied.get();
+    }
+
+
+    /**
+     * @return The number of modifications received in delta mode replaced by the whole entry
+     */
+    public long getNbDeltaFallbacks()
+    {
+        return nbDeltaFallbacks.get();
+    }
+
+
     /**
      * Create a new list combining a list and a newly added attribute
      */
@@ -1385,17 +1906,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
-    private synchronized Object getLockFor( String uuid )
+    private static Object getLockFor( String uuid )
     {
-        Object lock = UUID_LOCK_MAP.get( uuid );
-
-        if ( lock == null )
-        {
-            lock = new Object();
-            UUID_LOCK_MAP.put( uuid, lock );
-        }
-
-        return lock;
+        return UUID_LOCKS[( uuid.hashCode() & 0x7FFFFFFF ) % UUID_LOCKS.length];
     }
 
 
@@ -1452,6 +1965,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 operationManager.delete( ctx );
             }
         }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            // Already deleted, let the caller decide
+            throw lnsoe;
+        }
         catch ( Exception e )
         {
             String msg = "Failed to delete the Dn " + rootDn.getName() + " and its children (if any present)";
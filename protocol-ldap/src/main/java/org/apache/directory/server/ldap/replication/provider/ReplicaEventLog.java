@@ -23,6 +23,7 @@ package org.apache.directory.server.ldap.replication.provider;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 import jdbm.RecordManager;
 import jdbm.recman.BaseRecordManager;
@@ -31,6 +32,7 @@ import jdbm.recman.TransactionManager;
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
@@ -42,6 +44,7 @@ import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.apache.directory.server.ldap.replication.ReplicationStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,7 +83,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private String lastSentCsn;
 
     /** the persistent listener */
-    private SyncReplSearchListener persistentListener;
+    private volatile SyncReplSearchListener persistentListener;
 
     /** notification criteria used by the persistent search */
     private NotificationCriteria searchCriteria;
@@ -99,7 +102,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
     // fields that won't be serialized
     /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    private volatile JdbmTable<String, ReplicaEventMessage> journal;
 
     /** the underlying file  */
     private File journalFile;
@@ -123,6 +126,9 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     /** The partition transaction */
     private PartitionTxn partitionTxn;
 
+    /** The replication metrics for this consumer */
+    private final ReplicationStats stats;
+
 
     /**
      * Creates a new instance of EventLog for a replica
@@ -155,6 +161,27 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
             StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
         
         this.partitionTxn = partitionTxn;
+
+        stats = new ReplicationStats( ReplicationStats.PROVIDER, replicaId )
+        {
+            @Override
+            protected long readQueueDepth()
+            {
+                // Don't lock the log, it's held while the journal is sent to the consumer
+                JdbmTable<String, ReplicaEventMessage> currentJournal = journal;
+
+                try
+                {
+                    return ( currentJournal == null ) ? 0L : currentJournal.count( partitionTxn );
+                }
+                catch ( LdapException le )
+                {
+                    return -1L;
+                }
+            }
+        };
+
+        stats.register( directoryService.getInstanceId() );
     }
 
 
@@ -174,6 +201,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
             String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
             journal.put( partitionTxn, entryCsn, message );
+            stats.setReferenceCsn( entryCsn );
         }
         catch ( Exception e )
         {
@@ -183,6 +211,91 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     }
 
 
+    /**
+     * Compacts the changes the consumer has not received yet, replacing the successive changes
+     * applied on an entry by their net result (see {@link ReplicaEventLogCompactor}). The
+     * changes already sent are left to the janitor purge, as a consumer which has not stored
+     * its last cookie will replay them.
+     * <p>
+     * The log of a consumer receiving the changes in real time is not compacted : the last sent
+     * CSN is only updated once a pushed change has been written, so a change already pushed
+     * could be folded with a later one, which would then never be sent. The listener is locked
+     * before the log, as the writing threads do, so that the consumer can't switch to the
+     * realtime push meanwhile.
+     *
+     * @return The number of changes removed from the log
+     * @throws Exception If the log can't be read or updated
+     */
+    public long compact() throws Exception
+    {
+        SyncReplSearchListener listener = persistentListener;
+        Object listenerLock = ( listener != null ) ? listener : this;
+
+        synchronized ( listenerLock )
+        {
+            synchronized ( this )
+            {
+                if ( ( listener != null ) && listener.isPushInRealTime() )
+                {
+                    return 0L;
+                }
+
+                return compactPending();
+            }
+        }
+    }
+
+
+    /**
+     * Compacts the changes after the last sent CSN
+     */
+    private long compactPending() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+        ReplicaJournalCursor cursor = getCursor( lastSentCsn );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                ReplicaEventMessage message = cursor.get();
+                compactor.add( message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString(), message );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        // The journal is updated once the cursor is closed
+        for ( String csn : compactor.getRemovedCsns() )
+        {
+            journal.remove( partitionTxn, csn );
+        }
+
+        for ( Map.Entry<String, ChangeType> rewritten : compactor.getRewrittenCsns().entrySet() )
+        {
+            ReplicaEventMessage message = journal.get( partitionTxn, rewritten.getKey() );
+
+            if ( message != null )
+            {
+                journal.put( partitionTxn, rewritten.getKey(),
+                    new ReplicaEventMessage( rewritten.getValue(), message.getEntry() ) );
+            }
+        }
+
+        int nbRemoved = compactor.getRemovedCsns().size();
+
+        if ( nbRemoved > 0 )
+        {
+            PROVIDER_LOG.debug( "Compacted the log of replica {} : {} changes removed, {} rewritten", replicaId,
+                nbRemoved, compactor.getRewrittenCsns().size() );
+        }
+
+        return nbRemoved;
+    }
+
+
     /**
      * Deletes the queue (to remove the log) and recreates a new queue instance
      * with the same queue name. Also creates the corresponding message producer
@@ -213,6 +326,8 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     {
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
 
+        stats.unregister();
+
         // Close the producer and session, DO NOT close connection 
         if ( journal != null )
         {
@@ -364,10 +479,20 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         {
             this.lastSentCsn = lastSentCsn;
             dirty = true;
+            stats.setLastCsn( lastSentCsn );
         }
     }
 
 
+    /**
+     * @return The replication metrics for this consumer
+     */
+    public ReplicationStats getStats()
+    {
+        return stats;
+    }
+
+
     /**
      * @return The consumer Hostname
      */
@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+
+
+/**
+ * Computes the compaction of a replica event log : the successive changes applied on an
+ * entry are replaced by their net result, so that a consumer replays one change per entry
+ * instead of every intermediate version. The changes are read in the CSN order, and for
+ * each entryUUID :
+ * <ul>
+ *   <li>an ADD followed by MODIFYs becomes an ADD of the latest entry</li>
+ *   <li>successive MODIFYs become a MODIFY of the latest entry</li>
+ *   <li>an ADD followed by MODIFYs and a DELETE is removed</li>
+ *   <li>MODIFYs followed by a DELETE become the DELETE</li>
+ * </ul>
+ * A MODDN is never folded : the changes before and after it are compacted separately.
+ * The compacted change keeps the CSN of the latest change, and the rewritten MODIFYs don't
+ * carry their modifications anymore, as they are not relative to the consumer's entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaEventLogCompactor
+{
+    /** The CSN and the net change type of the last change of each entry */
+    private Map<String, Tuple<String, ChangeType>> pending = new HashMap<>();
+
+    /** The CSNs of the changes to remove */
+    private List<String> removedCsns = new ArrayList<>();
+
+    /** The CSNs of the changes to rewrite, with their new change type */
+    private Map<String, ChangeType> rewrittenCsns = new LinkedHashMap<>();
+
+
+    /**
+     * Adds the next change of the log
+     *
+     * @param csn The change CSN
+     * @param message The change
+     * @throws LdapInvalidAttributeValueException If the entryUUID can't be read
+     */
+    public void add( String csn, ReplicaEventMessage message ) throws LdapInvalidAttributeValueException
+    {
+        Attribute uuidAttr = message.getEntry().get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( uuidAttr == null )
+        {
+            return;
+        }
+
+        String uuid = uuidAttr.getString();
+        Tuple<String, ChangeType> previous = pending.get( uuid );
+        ChangeType changeType = message.getChangeType();
+
+        if ( changeType == null )
+        {
+            pending.remove( uuid );
+
+            return;
+        }
+
+        switch ( changeType )
+        {
+            case ADD:
+                pending.put( uuid, new Tuple<String, ChangeType>( csn, ChangeType.ADD ) );
+                break;
+
+            case MODIFY:
+                if ( previous == null )
+                {
+                    pending.put( uuid, new Tuple<String, ChangeType>( csn, ChangeType.MODIFY ) );
+                }
+                else
+                {
+                    // The previous change is replaced by this one, with the same net type
+                    remove( previous.getKey() );
+                    rewrittenCsns.put( csn, previous.getValue() );
+                    pending.put( uuid, new Tuple<String, ChangeType>( csn, previous.getValue() ) );
+                }
+
+                break;
+
+            case DELETE:
+                if ( previous != null )
+                {
+                    remove( previous.getKey() );
+
+                    if ( previous.getValue() == ChangeType.ADD )
+                    {
+                        // The entry has been added and deleted : nothing to replicate
+                        removedCsns.add( csn );
+                    }
+                }
+
+                pending.remove( uuid );
+                break;
+
+            default:
+                // A MODDN : the changes before it can't be folded with the next ones
+                pending.remove( uuid );
+                break;
+        }
+    }
+
+
+    private void remove( String csn )
+    {
+        removedCsns.add( csn );
+        rewrittenCsns.remove( csn );
+    }
+
+
+    /**
+     * @return The CSNs of the changes to remove from the log
+     */
+    public List<String> getRemovedCsns()
+    {
+        return removedCsns;
+    }
+
+
+    /**
+     * @return The CSNs of the changes to rewrite, with their new change type
+     */
+    public Map<String, ChangeType> getRewrittenCsns()
+    {
+        return rewrittenCsns;
+    }
+}
@@ -34,7 +34,8 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Deletes old entries from the replication event logs that are configured in refreshNPersist mode,
+ * and compacts the changes their consumers have not received yet.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -56,14 +57,18 @@ public class ReplicaEventLogJanitor extends Thread
 
     private long thresholdTime = 2 * 60 * 60 * 1000L;
 
+    /** The dispatcher delivering the changes to the consumers */
+    private ReplicationDispatcher dispatcher;
+
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicationDispatcher dispatcher )
     {
         // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
         // all the entries before the last sent CSN and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.dispatcher = dispatcher;
         setDaemon( true );
     }
 
@@ -75,6 +80,19 @@ public class ReplicaEventLogJanitor extends Thread
         {
             for ( ReplicaEventLog log : replicaLogMap.values() )
             {
+                try
+                {
+                    // Fold the changes the consumer has not received yet. The log's listener is
+                    // locked first, so the log must not be locked here
+                    long compactedCount = log.compact();
+
+                    LOG.debug( "compacted {} messages from the log {}", compactedCount, log.getName() );
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to compact the log {}", log.getName(), e );
+                }
+
                 synchronized ( log ) // lock the log and clean
                 {
                     try
@@ -183,7 +201,7 @@ public class ReplicaEventLogJanitor extends Thread
 
     public synchronized void removeEventLog( ReplicaEventLog replicaEventLog )
     {
-        directoryService.getEventService().removeListener( replicaEventLog.getPersistentListener() );
+        dispatcher.unregister( replicaEventLog.getPersistentListener() );
         String name = replicaEventLog.getName();
         LOG.debug( "removed the persistent listener for replication event log {}", name );
 
@@ -0,0 +1,106 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+
+
+/**
+ * The messages created for a change. The consumers notified of the same change share the
+ * same message instances, which are then serialized only once in their logs. A cache is
+ * used by a single thread, for a single change.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */ class ReplicaEventMessageCache
+{
+    /** The messages, per change type and entry */
+    private Map<ChangeType, Map<Entry, ReplicaEventMessage>> messages = new EnumMap<>( ChangeType.class );
+
+
+    /**
+     * Gets the message for a change applied on an entry, creating it if needed
+     *
+     * @param changeType The change type
+     * @param entry The entry
+     * @return The message
+     */
+    /* no qualifier */ ReplicaEventMessage get( ChangeType changeType, Entry entry )
+    {
+        Map<Entry, ReplicaEventMessage> typeMessages = getTypeMessages( changeType );
+        ReplicaEventMessage message = typeMessages.get( entry );
+
+        if ( message == null )
+        {
+            message = new ReplicaEventMessage( changeType, entry );
+            typeMessages.put( entry, message );
+        }
+
+        return message;
+    }
+
+
+    /**
+     * Gets the message for modifications applied on an entry, creating it if needed
+     *
+     * @param entry The modified entry
+     * @param beforeCsn The entryCSN of the entry before the modifications
+     * @param modifications The applied modifications
+     * @return The message
+     */
+    /* no qualifier */ ReplicaEventMessage get( Entry entry, String beforeCsn, List<Modification> modifications )
+    {
+        Map<Entry, ReplicaEventMessage> typeMessages = getTypeMessages( ChangeType.MODIFY );
+        ReplicaEventMessage message = typeMessages.get( entry );
+
+        if ( message == null )
+        {
+            message = new ReplicaEventMessage( entry, beforeCsn, new ArrayList<>( modifications ) );
+            typeMessages.put( entry, message );
+        }
+
+        return message;
+    }
+
+
+    private Map<Entry, ReplicaEventMessage> getTypeMessages( ChangeType changeType )
+    {
+        Map<Entry, ReplicaEventMessage> typeMessages = messages.get( changeType );
+
+        if ( typeMessages == null )
+        {
+            // The entries are compared by reference : they are the ones of the operation context
+            typeMessages = new IdentityHashMap<>();
+            messages.put( changeType, typeMessages );
+        }
+
+        return typeMessages;
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.ldap.replication.provider.SyncReplSearchListener.Push;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Delivers the changes to the replication consumers. The consumers with the same notification
+ * criteria are grouped, and each group is registered once in the EventService, so that a change
+ * is selected once per group, whatever the number of consumers. The writing thread logs the change
+ * in the consumers' logs before the operation returns, the messages stored in the logs being
+ * serialized once. Only the push to the connected consumers is queued : it's done by the
+ * dispatcher thread, in the order the changes have been made.
+ * <br>
+ * The queue is bounded : when it's full, the writing threads wait for the dispatcher thread.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationDispatcher
+{
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The maximum number of changes waiting to be delivered */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** The EventService the groups are registered in */
+    private final EventService eventService;
+
+    /** The consumer groups, per notification criteria */
+    private final Map<String, ConsumerGroup> groups = new HashMap<>();
+
+    /** The pushes waiting to be done */
+    private final BlockingQueue<Runnable> queue;
+
+    /** The dispatcher thread */
+    private Thread dispatcherThread;
+
+    /** Tells the dispatcher thread to stop once the queue is empty */
+    private volatile boolean stop = true;
+
+
+    /**
+     * A group of consumers sharing the same notification criteria
+     */
+    private class ConsumerGroup implements DirectoryListener
+    {
+        /** The group key */
+        private final String key;
+
+        /** The consumers' listeners */
+        private final List<SyncReplSearchListener> listeners = new CopyOnWriteArrayList<>();
+
+
+        private ConsumerGroup( String key )
+        {
+            this.key = key;
+        }
+
+
+        /**
+         * The change is logged by the writing thread, before the operation returns
+         */
+        @Override
+        public boolean isSynchronous()
+        {
+            return true;
+        }
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logAdded( addContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logDeleted( deleteContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logModified( modifyContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        @Override
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logRenamed( renameContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        @Override
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logMoved( moveContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        @Override
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            ReplicaEventMessageCache messages = new ReplicaEventMessageCache();
+            List<Push> pushes = new ArrayList<>();
+
+            for ( SyncReplSearchListener listener : listeners )
+            {
+                addPush( pushes, listener.logMovedAndRenamed( moveAndRenameContext, messages ) );
+            }
+
+            dispatch( pushes );
+        }
+
+
+        private void addPush( List<Push> pushes, Push push )
+        {
+            if ( push != null )
+            {
+                pushes.add( push );
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicationDispatcher.
+     *
+     * @param eventService The EventService to register the consumer groups in
+     */
+    public ReplicationDispatcher( EventService eventService )
+    {
+        this( eventService, DEFAULT_QUEUE_CAPACITY );
+    }
+
+
+    /**
+     * Creates a new instance of ReplicationDispatcher.
+     *
+     * @param eventService The EventService to register the consumer groups in
+     * @param queueCapacity The maximum number of changes waiting to be delivered
+     */
+    public ReplicationDispatcher( EventService eventService, int queueCapacity )
+    {
+        this.eventService = eventService;
+        this.queue = new LinkedBlockingQueue<>( queueCapacity );
+    }
+
+
+    /**
+     * Starts the dispatcher thread
+     */
+    public synchronized void start()
+    {
+        if ( !stop )
+        {
+            return;
+        }
+
+        stop = false;
+
+        dispatcherThread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                deliver();
+            }
+        }, "ReplicationDispatcher" );
+
+        dispatcherThread.setDaemon( true );
+        dispatcherThread.start();
+    }
+
+
+    /**
+     * Unregisters the consumer groups, and stops the dispatcher thread once the queued changes
+     * have been delivered.
+     */
+    public void stop()
+    {
+        Thread thread;
+
+        synchronized ( this )
+        {
+            for ( ConsumerGroup group : groups.values() )
+            {
+                eventService.removeListener( group );
+
+                for ( SyncReplSearchListener listener : group.listeners )
+                {
+                    listener.setDispatcher( null );
+                }
+            }
+
+            groups.clear();
+            stop = true;
+            thread = dispatcherThread;
+            dispatcherThread = null;
+        }
+
+        if ( thread != null )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException ie )
+            {
+                PROVIDER_LOG.warn( "Interrupted while delivering the last changes to the consumers" );
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // The changes queued while the thread was stopping
+        Runnable delivery = queue.poll();
+
+        while ( delivery != null )
+        {
+            delivery.run();
+            delivery = queue.poll();
+        }
+    }
+
+
+    /**
+     * Registers a consumer's listener. It's added to the group of consumers with the same
+     * notification criteria, which is created and registered in the EventService if needed.
+     *
+     * @param listener The consumer's listener
+     * @param criteria The consumer's notification criteria
+     * @throws Exception If the group can't be registered
+     */
+    public synchronized void register( SyncReplSearchListener listener, NotificationCriteria criteria )
+        throws Exception
+    {
+        String key = getKey( criteria );
+        ConsumerGroup group = groups.get( key );
+
+        if ( group == null )
+        {
+            group = new ConsumerGroup( key );
+            eventService.addListener( group, criteria );
+            groups.put( key, group );
+
+            PROVIDER_LOG.debug( "Registered the consumer group {}", key );
+        }
+
+        group.listeners.add( listener );
+        listener.setDispatcher( this );
+    }
+
+
+    /**
+     * Unregisters a consumer's listener. The group is unregistered from the EventService when
+     * it's empty.
+     *
+     * @param listener The consumer's listener
+     */
+    public synchronized void unregister( SyncReplSearchListener listener )
+    {
+        if ( listener == null )
+        {
+            return;
+        }
+
+        listener.setDispatcher( null );
+
+        for ( ConsumerGroup group : groups.values() )
+        {
+            if ( group.listeners.remove( listener ) )
+            {
+                if ( group.listeners.isEmpty() )
+                {
+                    eventService.removeListener( group );
+                    groups.remove( group.key );
+
+                    PROVIDER_LOG.debug( "Unregistered the consumer group {}", group.key );
+                }
+
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of consumer groups
+     */
+    public synchronized int getNbGroups()
+    {
+        return groups.size();
+    }
+
+
+    /**
+     * @return The number of changes waiting to be delivered
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+
+    /**
+     * Computes the key of the consumers group : the consumers are grouped when they are notified
+     * of the same changes
+     */
+    /* no qualifier */ static String getKey( NotificationCriteria criteria )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( criteria.getBase().getNormName() );
+        sb.append( '|' ).append( criteria.getScope() );
+        sb.append( '|' ).append( criteria.getAliasDerefMode() );
+        sb.append( '|' ).append( criteria.getEventMask() );
+        sb.append( '|' ).append( criteria.getFilter() );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Queues the pushes of a change to the consumers
+     */
+    private void dispatch( final List<Push> pushes )
+    {
+        if ( pushes.isEmpty() )
+        {
+            return;
+        }
+
+        dispatch( new Runnable()
+        {
+            public void run()
+            {
+                for ( Push push : pushes )
+                {
+                    push.run();
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * Queues a push. It's done by the calling thread if the dispatcher is stopped.
+     */
+    private void dispatch( Runnable delivery )
+    {
+        if ( stop )
+        {
+            delivery.run();
+
+            return;
+        }
+
+        try
+        {
+            queue.put( delivery );
+        }
+        catch ( InterruptedException ie )
+        {
+            // Don't lose the change
+            Thread.currentThread().interrupt();
+            delivery.run();
+        }
+    }
+
+
+    /**
+     * The dispatcher thread loop : delivers the queued changes until the dispatcher is stopped
+     * and the queue is empty
+     */
+    private void deliver()
+    {
+        while ( !stop || !queue.isEmpty() )
+        {
+            try
+            {
+                Runnable delivery = queue.poll( 1, TimeUnit.SECONDS );
+
+                if ( delivery != null )
+                {
+                    delivery.run();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                PROVIDER_LOG.warn( "The replication dispatcher thread has been interrupted" );
+            }
+            catch ( RuntimeException re )
+            {
+                PROVIDER_LOG.error( "Failed to deliver a change to the consumers", re );
+            }
+        }
+
+        PROVIDER_LOG.debug( "The replication dispatcher thread is stopped" );
+    }
+}
@@ -61,7 +61,6 @@ import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
@@ -104,6 +103,8 @@ import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
+import org.apache.directory.server.ldap.replication.ReplicaCompressor;
+import org.apache.directory.server.ldap.replication.ReplicaDelta;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -146,6 +147,9 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private ReplicaEventLogJanitor logJanitor;
 
+    /** The dispatcher delivering the changes to the consumers */
+    private ReplicationDispatcher dispatcher;
+
     private AttributeType replLogMaxIdleAT;
 
     private AttributeType replLogPurgeThresholdCountAT;
@@ -206,7 +210,10 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            dispatcher = new ReplicationDispatcher( dirService.getEventService() );
+            dispatcher.start();
+
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, dispatcher );
             logJanitor.start();
 
             registerPersistentSearches();
@@ -262,12 +269,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         //then stop the consumerInfoUpdateThread
         consumerInfoUpdateThread.interrupt();
         
+        // Deliver the queued changes before closing the logs
+        dispatcher.stop();
+
         for ( ReplicaEventLog log : replicaLogMap.values() )
         {
             try
             {
                 PROVIDER_LOG.debug( "Stopping the logging for replica {}", log.getId() );
-                evtSrv.removeListener( log.getPersistentListener() );
                 log.stop();
             }
             catch ( Exception e )
@@ -369,6 +378,9 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         PROVIDER_LOG.debug( "Processing the log for replica {}", clientMsgLog.getId() );
 
+        long t0 = System.nanoTime();
+        int nbSent = 0;
+
         try
         {
             while ( cursor.next() )
@@ -405,14 +417,30 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         throw new IllegalStateException( I18n.err( I18n.ERR_686 ) );
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                if ( replicaEventMessage.hasModifications() && req.getControls().containsKey( ReplicaDelta.OID ) )
+                {
+                    // The consumer wants the modifications, not the whole entry
+                    sendDelta( session, req, replicaEventMessage );
+                }
+                else
+                {
+                    sendSearchResultEntry( session, req, entry, syncStateType );
+                }
 
                 clientMsgLog.setLastSentCsn( lastSentCsn );
+                nbSent++;
 
                 PROVIDER_LOG.debug( "The latest entry sent to the consumer {} has this CSN : {}", clientMsgLog.getId(),
                     lastSentCsn );
             }
 
+            flushCompressed( session, req );
+
+            if ( nbSent > 0 )
+            {
+                clientMsgLog.getStats().recordBatch( nbSent, System.nanoTime() - t0 );
+            }
+
             PROVIDER_LOG.debug( "All pending modifciations for replica {} processed", clientMsgLog.getId() );
         }
         finally
@@ -429,56 +457,66 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     private void doContentUpdate( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog, String consumerCsn )
         throws Exception
     {
-        synchronized ( replicaLog )
-        {
-            boolean refreshNPersist = isRefreshNPersist( req );
+        // The changes logged while the log is being sent wait for the switch to the realtime push,
+        // so that each of them is either sent from the log, or pushed. The listener is locked
+        // before the log, as the writing threads do.
+        SyncReplSearchListener listener = replicaLog.getPersistentListener();
+        Object listenerLock = ( listener != null ) ? listener : replicaLog;
 
-            // if this method is called with refreshAndPersist
-            // means the client was offline after it initiated a persistent synch session
-            // we need to update the handler's session
-            if ( refreshNPersist )
+        synchronized ( listenerLock )
+        {
+            synchronized ( replicaLog )
             {
-                SyncReplSearchListener handler = replicaLog.getPersistentListener();
-                handler.setSearchRequest( req );
-                handler.setSession( session );
-            }
+                boolean refreshNPersist = isRefreshNPersist( req );
+                ReplicaCompressor.create( session.getIoSession(), req, replicaLog.getStats() );
 
-            sendContentFromLog( session, req, replicaLog, consumerCsn );
+                // if this method is called with refreshAndPersist
+                // means the client was offline after it initiated a persistent synch session
+                // we need to update the handler's session
+                if ( refreshNPersist )
+                {
+                    SyncReplSearchListener handler = replicaLog.getPersistentListener();
+                    handler.setSearchRequest( req );
+                    handler.setSession( session );
+                }
 
-            String lastSentCsn = replicaLog.getLastSentCsn();
+                sendContentFromLog( session, req, replicaLog, consumerCsn );
 
-            byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), lastSentCsn );
+                String lastSentCsn = replicaLog.getLastSentCsn();
 
-            if ( refreshNPersist )
-            {
-                IntermediateResponse intermResp = new IntermediateResponseImpl( req.getMessageId() );
-                intermResp.setResponseName( SyncInfoValue.OID );
+                byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), lastSentCsn );
 
-                SyncInfoValue syncInfo = new SyncInfoValueDecorator( ldapServer.getDirectoryService()
-                    .getLdapCodecService(),
-                    SynchronizationInfoEnum.NEW_COOKIE );
-                syncInfo.setCookie( cookie );
-                intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
+                if ( refreshNPersist )
+                {
+                    IntermediateResponse intermResp = new IntermediateResponseImpl( req.getMessageId() );
+                    intermResp.setResponseName( SyncInfoValue.OID );
 
-                PROVIDER_LOG.debug( "Sent the intermediate response to the {} consumer, {}", replicaLog.getId(),
-                    intermResp );
-                session.getIoSession().write( intermResp );
+                    SyncInfoValue syncInfo = new SyncInfoValueDecorator( ldapServer.getDirectoryService()
+                        .getLdapCodecService(),
+                        SynchronizationInfoEnum.NEW_COOKIE );
+                    syncInfo.setCookie( cookie );
+                    intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
 
-                replicaLog.getPersistentListener().setPushInRealTime( refreshNPersist );
-            }
-            else
-            {
-                SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
-                searchDoneResp.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
-                SyncDoneValue syncDone = new SyncDoneValueDecorator(
-                    ldapServer.getDirectoryService().getLdapCodecService() );
-                syncDone.setCookie( cookie );
-                searchDoneResp.addControl( syncDone );
+                    PROVIDER_LOG.debug( "Sent the intermediate response to the {} consumer, {}", replicaLog.getId(),
+                        intermResp );
+                    session.getIoSession().write( intermResp );
 
-                PROVIDER_LOG.debug( "Send a SearchResultDone response to the {} consumer", replicaLog.getId(),
-                    searchDoneResp );
+                    replicaLog.getPersistentListener().setPushInRealTime( refreshNPersist );
+                }
+                else
+                {
+                    SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
+                    searchDoneResp.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+                    SyncDoneValue syncDone = new SyncDoneValueDecorator(
+                        ldapServer.getDirectoryService().getLdapCodecService() );
+                    syncDone.setCookie( cookie );
+                    searchDoneResp.addControl( syncDone );
 
-                session.getIoSession().write( searchDoneResp );
+                    PROVIDER_LOG.debug( "Send a SearchResultDone response to the {} consumer", replicaLog.getId(),
+                        searchDoneResp );
+
+                    session.getIoSession().write( searchDoneResp );
+                }
             }
         }
     }
@@ -519,12 +557,6 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         ExprNode modifiedFilter = modifyFilter( session, request );
 
         Partition partition = dirService.getPartitionNexus().getPartition( request.getBase() );
-        String contextCsn;
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            contextCsn = partition.getContextCsn( partitionTxn );
-        }
 
         boolean refreshNPersist = isRefreshNPersist( request );
 
@@ -538,12 +570,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         }
 
         replicaLog.setRefreshNPersist( refreshNPersist );
-        Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
-
-        // modify the filter to include the context Csn
-        GreaterEqNode csnGeNode = new GreaterEqNode( csnAT, contexCsnValue );
-        ExprNode postInitContentFilter = new AndNode( modifiedFilter, csnGeNode );
-        request.setFilter( postInitContentFilter );
+        ReplicaCompressor.create( session.getIoSession(), request, replicaLog.getStats() );
 
         // now we process entries forever as they change
         // irrespective of the sync mode set the 'isRealtimePush' to false initially so that we can
@@ -560,13 +587,28 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         NotificationCriteria criteria = new NotificationCriteria( dirService.getSchemaManager() );
         criteria.setAliasDerefMode( request.getDerefAliases() );
         criteria.setBase( request.getBase() );
-        criteria.setFilter( request.getFilter() );
+        // The filter is not restricted on the entryCSN, so that the consumers with the same
+        // filter are grouped : the contextCSN is read once the listener is registered
+        criteria.setFilter( modifiedFilter );
         criteria.setScope( request.getScope() );
         criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
 
         replicaLog.setSearchCriteria( criteria );
 
-        dirService.getEventService().addListener( replicationListener, criteria );
+        dispatcher.register( replicationListener, criteria );
+
+        // Every change made from now on is logged. The contextCSN is read after the registration,
+        // so that the changes made before are sent by the initial refresh, and the ones made
+        // after are sent from the log, which skips the changes older than the contextCSN.
+        String contextCsn;
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            contextCsn = partition.getContextCsn( partitionTxn );
+        }
+
+        replicaLog.getStats().setReferenceCsn( contextCsn );
+        Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
 
         // then start pushing initial content
         LessEqNode csnNode = new LessEqNode( csnAT, contexCsnValue );
@@ -589,25 +631,31 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             {
                 PROVIDER_LOG
                     .debug( "Refresh&Persist requested : send the data being modified since the initial refresh" );
-                // Now, send the modified entries since the search has started
-                sendContentFromLog( session, request, replicaLog, contextCsn );
+                // The changes logged while the log is being sent wait for the switch to the
+                // realtime push, so that each of them is either sent from the log, or pushed
+                synchronized ( replicationListener )
+                {
+                    // Now, send the modified entries since the search has started
+                    sendContentFromLog( session, request, replicaLog, contextCsn );
 
-                byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
+                    byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
 
-                IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
-                intermResp.setResponseName( SyncInfoValue.OID );
+                    IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
+                    intermResp.setResponseName( SyncInfoValue.OID );
 
-                SyncInfoValue syncInfo = new SyncInfoValueDecorator(
-                    ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
-                syncInfo.setCookie( cookie );
-                intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
+                    SyncInfoValue syncInfo = new SyncInfoValueDecorator(
+                        ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
+                    syncInfo.setCookie( cookie );
+                    intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
 
-                PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
+                    PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
 
-                session.getIoSession().write( intermResp );
+                    session.getIoSession().write( intermResp );
+
+                    // switch the handler mode to realtime push
+                    replicationListener.setPushInRealTime( refreshNPersist );
+                }
 
-                // switch the handler mode to realtime push
-                replicationListener.setPushInRealTime( refreshNPersist );
                 PROVIDER_LOG.debug( "e waiting for any modification for {}", replicaLog );
             }
             else
@@ -635,7 +683,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             replicaLog = null;
 
             // remove the listener
-            dirService.getEventService().removeListener( replicationListener );
+            dispatcher.unregister( replicationListener );
 
             return;
         }
@@ -715,6 +763,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         Cursor<Entry> cursor, long sizeLimit, ReplicaEventLog replicaLog ) throws Exception
     {
         long count = 0;
+        long t0 = System.nanoTime();
 
         while ( ( count < sizeLimit ) && cursor.next() )
         {
@@ -744,8 +793,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             count++;
         }
 
+        flushCompressed( session, req );
+
         PROVIDER_LOG.debug( "Sent {} entries for {}", count, replicaLog );
 
+        if ( count > 0 )
+        {
+            replicaLog.getStats().recordBatch( ( int ) count, System.nanoTime() - t0 );
+        }
+
         // DO NOT WRITE THE RESPONSE - JUST RETURN IT
         ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
 
@@ -784,6 +840,18 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         }
 
         Response resp = generateResponse( session, req, entry );
+        ReplicaCompressor compressor = ReplicaCompressor.get( session.getIoSession(), req );
+
+        if ( ( compressor != null ) && ( resp instanceof SearchResultEntry ) )
+        {
+            PROVIDER_LOG.debug( "Compressing the entry:\n {}", entry );
+            compressor.add( session.getIoSession(), entry, syncStateType, syncStateControl.getEntryUUID(), null );
+
+            return;
+        }
+
+        // The compressed entries must be sent first
+        flushCompressed( session, req );
         resp.addControl( syncStateControl );
 
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
@@ -791,6 +859,38 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Sends the pending compressed entries, if any
+     */
+    private void flushCompressed( LdapSession session, SearchRequest req ) throws IOException
+    {
+        ReplicaCompressor compressor = ReplicaCompressor.get( session.getIoSession(), req );
+
+        if ( compressor != null )
+        {
+            compressor.flush( session.getIoSession() );
+        }
+    }
+
+
+    /**
+     * Send the modifications stored in a MODIFY message, in an intermediate response.
+     */
+    private void sendDelta( LdapSession session, SearchRequest req, ReplicaEventMessage replicaEventMessage )
+        throws Exception
+    {
+        // The compressed entries must be sent first
+        flushCompressed( session, req );
+
+        IntermediateResponse deltaResp = new IntermediateResponseImpl( req.getMessageId() );
+        deltaResp.setResponseName( ReplicaDelta.OID );
+        deltaResp.setResponseValue( ReplicaDelta.fromMessage( replicaEventMessage, null ).encode() );
+
+        PROVIDER_LOG.debug( "Sending the modifications of entry {}", replicaEventMessage.getEntry().getDn() );
+        session.getIoSession().write( deltaResp );
+    }
+
+
     /**
      * Build the response to be sent to the client
      */
@@ -1083,7 +1183,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 SyncReplSearchListener handler = new SyncReplSearchListener( null, null, log, false );
                 log.setPersistentListener( handler );
 
-                dirService.getEventService().addListener( handler, log.getSearchCriteria() );
+                dispatcher.register( handler, log.getSearchCriteria() );
             }
             else
             {
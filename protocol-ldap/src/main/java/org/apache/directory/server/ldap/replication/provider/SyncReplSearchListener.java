@@ -20,18 +20,24 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.io.IOException;
+
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncStateValueDecorator;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -48,7 +54,10 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.ReplicaCompressor;
+import org.apache.directory.server.ldap.replication.ReplicaDelta;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +66,7 @@ import org.slf4j.LoggerFactory;
 /**
  * A listener associated with the replication system. It does send the modifications to the 
  * consumer, if it's connected, or store the data into a queue for a later transmission.
+ * The changes are logged by the thread doing the operation, before it returns.
  * 
  * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery
  * 
@@ -78,10 +88,50 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
     /** The consumer configuration */
     private final ReplicaEventLog consumerMsgLog;
+
+    /** The dispatcher delivering the changes to this listener, if any */
+    private volatile ReplicationDispatcher dispatcher;
     
     private static String replConsumerConfigDn = Strings.toLowerCaseAscii( ServerDNConstants.REPL_CONSUMER_CONFIG_DN );
     private static String schemaDn = Strings.toLowerCaseAscii( SchemaConstants.OU_SCHEMA );
     private static String replConsumerDn = Strings.toLowerCaseAscii( ServerDNConstants.REPL_CONSUMER_DN_STR );
+
+
+    /**
+     * The push of a logged change to the consumer. The change is logged by the thread doing
+     * the operation, the push may be done later by the changes dispatcher.
+     */
+    /* no qualifier */ final class Push implements Runnable
+    {
+        /** The name of the sent entry */
+        private final Dn objectName;
+
+        /** The sent entry */
+        private final Entry entry;
+
+        /** The logged message */
+        private final ReplicaEventMessage message;
+
+        /** The event type */
+        private final EventType eventType;
+
+
+        private Push( Dn objectName, Entry entry, ReplicaEventMessage message, EventType eventType )
+        {
+            this.objectName = objectName;
+            this.entry = entry;
+            this.message = message;
+            this.eventType = eventType;
+        }
+
+
+        @Override
+        public void run()
+        {
+            send( this );
+        }
+    }
+
     
     /**
      * Create a new instance of a consumer listener
@@ -127,6 +177,16 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * Set the dispatcher delivering the changes to this listener
+     * @param dispatcher The dispatcher, or null
+     */
+    /* no qualifier */ void setDispatcher( ReplicationDispatcher dispatcher )
+    {
+        this.dispatcher = dispatcher;
+    }
+
+
     @Override
     public boolean isSynchronous()
     {
@@ -143,7 +203,12 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     {
         try
         {
-            if ( session != null )
+            if ( dispatcher != null )
+            {
+                // We first remove the Listener from the changes dispatcher
+                dispatcher.unregister( this );
+            }
+            else if ( session != null )
             {
                 // We first remove the Listener from the session's chain
                 session.getCoreSession().getDirectoryService().getEventService().removeListener( this );
@@ -192,10 +257,32 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
         SyncStateValue syncStateValue )
     {
-        searchResultEntry.addControl( syncStateValue );
-
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
-        WriteFuture future = session.getIoSession().write( searchResultEntry );
+        ReplicaCompressor compressor = ReplicaCompressor.get( session.getIoSession(), searchRequest );
+        WriteFuture future;
+
+        if ( compressor != null )
+        {
+            try
+            {
+                future = compressor.send( session.getIoSession(), searchResultEntry.getEntry(),
+                    syncStateValue.getSyncStateType(), syncStateValue.getEntryUUID(), syncStateValue.getCookie() );
+            }
+            catch ( IOException ioe )
+            {
+                LOG.error( "Failed to compress the entry {}", entry.getDn(), ioe );
+
+                // The change is in the log, it will be sent when the consumer reconnects
+                pushInRealTime = false;
+
+                return;
+            }
+        }
+        else
+        {
+            searchResultEntry.addControl( syncStateValue );
+            future = session.getIoSession().write( searchResultEntry );
+        }
 
         // Now, send the entry to the consumer
         handleWriteFuture( future, entry, eventType );
@@ -209,39 +296,33 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param addContext The Addition operation context
      */
     public void entryAdded( AddOperationContext addContext )
+    {
+        push( logAdded( addContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs an ADD operation, with the messages shared by the consumers notified of it. The
+     * change is logged before the operation returns, only the push to the consumer is deferred.
+     *
+     * @param addContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logAdded( AddOperationContext addContext, ReplicaEventMessageCache messages )
     {
         Entry entry = addContext.getEntry();
         
         if ( isConfigEntry( entry ) || isNotValidForReplication( addContext ) )
         {
-            return;
+            return null;
         }
 
-        try
-        {
-            //System.out.println( "ADD Listener : log " + entry.getDn() );
-            // we log it first
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry ) );
+        //System.out.println( "ADD Listener : log " + entry.getDn() );
+        ReplicaEventMessage message = messages.get( ChangeType.ADD, entry );
 
-            // We send the added entry directly to the consumer if it's connected
-            if ( pushInRealTime )
-            {
-                // Construct a new SearchResultEntry
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
-                // Create the control which will be added to the response.
-                SyncStateValue syncAdd = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.ADD, entry );
-                
-                sendResult( resultEntry, entry, EventType.ADD, syncAdd );
-            }
-        }
-        catch ( LdapInvalidAttributeValueException e )
-        {
-            // shouldn't happen
-            LOG.error( e.getMessage(), e );
-        }
+        // we log it first, and send the added entry directly to the consumer if it's connected
+        return log( entry.getDn(), entry, message, EventType.ADD );
     }
 
 
@@ -252,83 +333,100 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param deleteContext The delete operation context
      */
     public void entryDeleted( DeleteOperationContext deleteContext )
+    {
+        push( logDeleted( deleteContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs a Delete operation, with the messages shared by the consumers notified of it.
+     *
+     * @param deleteContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logDeleted( DeleteOperationContext deleteContext, ReplicaEventMessageCache messages )
     {
         Entry entry = deleteContext.getEntry();
         
         if ( isConfigEntry( entry ) || isNotValidForReplication( deleteContext ) )
         {
-            return;
+            return null;
         }
         
-        sendDeletedEntry( ( ( ClonedServerEntry ) entry ).getClonedEntry() );
+        return logDeletedEntry( ( ( ClonedServerEntry ) entry ).getClonedEntry(), messages );
     }
     
 
     /**
      * A helper method, as the delete opertaionis used by the ModDN operations.
      */
-    private void sendDeletedEntry( Entry entry )
+    private Push logDeletedEntry( Entry entry, ReplicaEventMessageCache messages )
     {
-        try
-        {
-            //System.out.println( "DELETE Listener : log " + entry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
+        //System.out.println( "DELETE Listener : log " + entry.getDn() );
+        ReplicaEventMessage message = messages.get( ChangeType.DELETE, entry );
 
-                SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
-
-                sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
-            }
-        }
-        catch ( LdapInvalidAttributeValueException e )
-        {
-            // shouldn't happen
-            LOG.error( e.getMessage(), e );
-        }
+        return log( entry.getDn(), entry, message, EventType.DELETE );
     }
 
 
     /**
      * Process a Modify operation. A modify event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * queue if the consumer is not connected. The modifications are stored with the modified
+     * entry, and sent instead of the entry if the consumer has requested the delta mode.
      * 
      * @param modifyContext The modify operation context
      */
     public void entryModified( ModifyOperationContext modifyContext )
+    {
+        push( logModified( modifyContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs a Modify operation, with the messages shared by the consumers notified of it.
+     *
+     * @param modifyContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logModified( ModifyOperationContext modifyContext, ReplicaEventMessageCache messages )
     {
         Entry alteredEntry = modifyContext.getAlteredEntry();
 
         if ( isConfigEntry( alteredEntry ) || isNotValidForReplication( modifyContext ) )
         {
-            return;
+            return null;
+        }
+
+        //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
+        ReplicaEventMessage message;
+        Attribute beforeCsn = null;
+
+        if ( modifyContext.getEntry() != null )
+        {
+            beforeCsn = modifyContext.getEntry().get( SchemaConstants.ENTRY_CSN_AT );
         }
 
         try
         {
-            //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
-            
-            if ( pushInRealTime )
+            if ( beforeCsn != null )
             {
-
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( modifyContext.getDn() );
-                resultEntry.setEntry( alteredEntry );
-
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, alteredEntry );
-
-                sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
+                message = messages.get( alteredEntry, beforeCsn.getString(), modifyContext.getModItems() );
+            }
+            else
+            {
+                message = messages.get( ChangeType.MODIFY, alteredEntry );
             }
         }
         catch ( Exception e )
         {
             LOG.error( e.getMessage(), e );
+
+            return null;
         }
+
+        return log( modifyContext.getDn(), alteredEntry, message, EventType.MODIFY );
     }
 
 
@@ -339,41 +437,37 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param moveContext The move operation context
      */
     public void entryMoved( MoveOperationContext moveContext )
+    {
+        push( logMoved( moveContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs a Move operation, with the messages shared by the consumers notified of it.
+     *
+     * @param moveContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logMoved( MoveOperationContext moveContext, ReplicaEventMessageCache messages )
     {
         // should always send the modified entry cause the consumer perform the modDn operation locally
         Entry entry = moveContext.getModifiedEntry();
 
         if ( isConfigEntry( entry ) || isNotValidForReplication( moveContext ) )
         {
-            return;
+            return null;
         }
 
-        try
+        if ( !moveContext.getNewSuperior().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
         {
-            if ( !moveContext.getNewSuperior().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
-            {
-                sendDeletedEntry( moveContext.getOriginalEntry() );
-                return;
-            }
-
-            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( moveContext.getDn() );
-                resultEntry.setEntry( entry );
+            return logDeletedEntry( moveContext.getOriginalEntry(), messages );
+        }
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+        //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
+        ReplicaEventMessage message = messages.get( ChangeType.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE, syncModify );
-            }
-        }
-        catch ( Exception e )
-        {
-            LOG.error( e.getMessage(), e );
-        }
+        return log( moveContext.getDn(), entry, message, EventType.MOVE );
     }
 
 
@@ -384,43 +478,39 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param moveAndRenameContext The move and rename operation context
      */
     public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+    {
+        push( logMovedAndRenamed( moveAndRenameContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs a MoveAndRename operation, with the messages shared by the consumers notified of it.
+     *
+     * @param moveAndRenameContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext,
+        ReplicaEventMessageCache messages )
     {
         // should always send the modified entry cause the consumer perform the modDn operation locally
         Entry entry = moveAndRenameContext.getModifiedEntry();
 
         if ( isConfigEntry( entry ) || isNotValidForReplication( moveAndRenameContext ) )
         {
-            return;
+            return null;
         }
 
-        try
+        if ( !moveAndRenameContext.getNewSuperiorDn().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
         {
-            if ( !moveAndRenameContext.getNewSuperiorDn().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
-            {
-                sendDeletedEntry( entry );
-                return;
-            }
-
-
-            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
-            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
+            return logDeletedEntry( entry, messages );
+        }
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+        //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
+        //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
+        ReplicaEventMessage message = messages.get( ChangeType.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
-            }
-        }
-        catch ( Exception e )
-        {
-            LOG.error( e.getMessage(), e );
-        }
+        return log( entry.getDn(), entry, message, EventType.MOVE_AND_RENAME );
     }
 
 
@@ -431,33 +521,109 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param renameContext The rename operation context
      */
     public void entryRenamed( RenameOperationContext renameContext )
+    {
+        push( logRenamed( renameContext, new ReplicaEventMessageCache() ) );
+    }
+
+
+    /**
+     * Logs a Rename operation, with the messages shared by the consumers notified of it.
+     *
+     * @param renameContext The operation context
+     * @param messages The messages created for this change
+     * @return The push of the change to the consumer, or null if it's not pushed
+     */
+    /* no qualifier */ Push logRenamed( RenameOperationContext renameContext, ReplicaEventMessageCache messages )
     {
         // should always send the modified entry cause the consumer perform the modDn operation locally
         Entry entry = renameContext.getModifiedEntry();
 
         if ( isConfigEntry( entry ) || isNotValidForReplication( renameContext ) )
+        {
+            return null;
+        }
+
+        // should always send the original entry cause the consumer perform the modDn operation there
+        //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
+        ReplicaEventMessage message = messages.get( ChangeType.MODDN, entry );
+
+        return log( entry.getDn(), entry, message, EventType.RENAME );
+    }
+
+
+    /**
+     * Logs a change, and creates its push if the consumer is connected. The changes logged
+     * while it's not are sent from the log : the switch to the realtime push is done while
+     * holding this listener's lock, after the log has been sent.
+     */
+    private synchronized Push log( Dn objectName, Entry entry, ReplicaEventMessage message, EventType eventType )
+    {
+        consumerMsgLog.log( message );
+
+        if ( !pushInRealTime )
+        {
+            return null;
+        }
+
+        return new Push( objectName, entry, message, eventType );
+    }
+
+
+    /**
+     * Pushes a logged change to the consumer
+     *
+     * @param push The push, or null
+     */
+    /* no qualifier */ void push( Push push )
+    {
+        if ( push != null )
+        {
+            push.run();
+        }
+    }
+
+
+    /**
+     * Sends a logged change to the consumer : the modifications if the consumer has requested
+     * the delta mode, the whole entry otherwise. The listener is locked so that the log can't be
+     * compacted while a change is being pushed.
+     */
+    private synchronized void send( Push push )
+    {
+        // The consumer may have disconnected since the change has been logged
+        if ( !pushInRealTime )
         {
             return;
         }
 
+        ReplicaEventMessage message = push.message;
+        Entry entry = push.entry;
+
         try
         {
-            // should always send the original entry cause the consumer perform the modDn operation there
-            //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
+            if ( message.hasModifications() && isDeltaRequested() )
+            {
+                IntermediateResponse deltaResp = new IntermediateResponseImpl( searchRequest.getMessageId() );
+                deltaResp.setResponseName( ReplicaDelta.OID );
+                deltaResp.setResponseValue( ReplicaDelta.fromMessage( message, getCookie( entry ) ).encode() );
+
+                LOG.debug( "sending the modifications of entry {}", entry.getDn() );
+                WriteFuture future = session.getIoSession().write( deltaResp );
+
+                handleWriteFuture( future, entry, push.eventType );
+            }
+            else
             {
+                // Construct a new SearchResultEntry
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
+                resultEntry.setObjectName( push.objectName );
                 resultEntry.setEntry( entry );
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
-                
-                // In this case, the cookie is different
-                syncModify.setCookie( getCookie( entry ) );
+                // Create the control which will be added to the response.
+                SyncStateValue syncStateValue = createControl( session.getCoreSession().getDirectoryService(),
+                    getSyncStateType( message.getChangeType() ), entry );
 
-                sendResult( resultEntry, entry, EventType.RENAME, syncModify );
+                sendResult( resultEntry, entry, push.eventType, syncStateValue );
             }
         }
         catch ( Exception e )
@@ -467,6 +633,28 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * @return The SyncState type of a change
+     */
+    private static SyncStateTypeEnum getSyncStateType( ChangeType changeType )
+    {
+        switch ( changeType )
+        {
+            case ADD:
+                return SyncStateTypeEnum.ADD;
+
+            case DELETE:
+                return SyncStateTypeEnum.DELETE;
+
+            case MODDN:
+                return SyncStateTypeEnum.MODDN;
+
+            default:
+                return SyncStateTypeEnum.MODIFY;
+        }
+    }
+
+
     /**
      * @return true if the entries are sent to the consumer in real time
      */
@@ -486,6 +674,15 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * @return true if the consumer has requested the modifications instead of the modified entries
+     */
+    private boolean isDeltaRequested()
+    {
+        return ( searchRequest != null ) && searchRequest.getControls().containsKey( ReplicaDelta.OID );
+    }
+
+
     /**
      * Get the cookie from the entry
      */
@@ -498,37 +695,44 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process the writing of the replicated entry to the consumer
+     * Process the writing of the replicated entry to the consumer. The write is not waited for,
+     * the last sent CSN is updated when it completes, so that a slow consumer does not delay the
+     * delivery of the changes to the other ones.
      */
-    private void handleWriteFuture( WriteFuture future, Entry entry, EventType event )
+    private void handleWriteFuture( WriteFuture future, final Entry entry, final EventType event )
     {
-        // Let the operation be executed.
-        // Note : we wait 10 seconds max
-        future.awaitUninterruptibly( 10000L );
-        
-        if ( !future.isWritten() )
-        {
-            LOG.error( "Failed to write to the consumer {} during the event {} on entry {}", new Object[] { 
-                           consumerMsgLog.getId(), event, entry.getDn() } );
-            LOG.error( "", future.getException() );
+        final long t0 = System.nanoTime();
 
-            // set realtime push to false, will be set back to true when the client
-            // comes back and sends another request this flag will be set to true
-            pushInRealTime = false;
-        }
-        else
+        future.addListener( new IoFutureListener<WriteFuture>()
         {
-            try
+            public void operationComplete( WriteFuture writeFuture )
             {
-                // if successful update the last sent CSN
-                consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                if ( !writeFuture.isWritten() )
+                {
+                    LOG.error( "Failed to write to the consumer {} during the event {} on entry {}", new Object[] {
+                        consumerMsgLog.getId(), event, entry.getDn() } );
+                    LOG.error( "", writeFuture.getException() );
+
+                    // set realtime push to false, will be set back to true when the client
+                    // comes back and sends another request this flag will be set to true
+                    pushInRealTime = false;
+                }
+                else
+                {
+                    try
+                    {
+                        // if successful update the last sent CSN
+                        consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                        consumerMsgLog.getStats().recordBatch( 1, System.nanoTime() - t0 );
+                    }
+                    catch ( Exception e )
+                    {
+                        //should never happen
+                        LOG.error( "No entry CSN attribute found", e );
+                    }
+                }
             }
-            catch ( Exception e )
-            {
-                //should never happen
-                LOG.error( "No entry CSN attribute found", e );
-            }
-        }
+        } );
     }
     
     
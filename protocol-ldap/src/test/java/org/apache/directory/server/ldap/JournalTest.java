@@ -21,9 +21,13 @@ package org.apache.directory.server.ldap;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.RecordManager;
 import jdbm.recman.BaseRecordManager;
@@ -34,8 +38,12 @@ import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.csn.CsnFactory;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
@@ -47,6 +55,7 @@ import org.apache.directory.api.util.exception.Exceptions;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.ldap.replication.ReplicaDelta;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
 import org.junit.After;
@@ -295,6 +304,62 @@ public class JournalTest
     }
 
 
+    /**
+     * test that the modifications stored with a MODIFY ReplicaEventMessage are read back, and
+     * that they are correctly transmitted as a ReplicaDelta.
+     */
+    @Test
+    public void testJournalModifications() throws Exception
+    {
+        Csn beforeCsn = csnFactory.newInstance();
+        Csn afterCsn = csnFactory.newInstance();
+
+        Entry entry = new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou: test",
+            "description: modified",
+            "entryUUID: f1c8a3f4-2b8e-4c1b-9c3e-7a5d2b3c4d5e",
+            "entryCsn", afterCsn.toString()
+            );
+
+        List<Modification> modifications = new ArrayList<Modification>();
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            new DefaultAttribute( schemaManager.lookupAttributeTypeRegistry( "description" ), "modified" ) ) );
+
+        journal.put( partitionTxn, afterCsn.toString(),
+            new ReplicaEventMessage( entry, beforeCsn.toString(), modifications ) );
+
+        // A message without modifications is still read back as before
+        Csn addCsn = csnFactory.newInstance();
+        journal.put( partitionTxn, addCsn.toString(), new ReplicaEventMessage( ChangeType.ADD, entry ) );
+
+        ReplicaEventMessage message = journal.get( partitionTxn, afterCsn.toString() );
+
+        assertEquals( ChangeType.MODIFY, message.getChangeType() );
+        assertTrue( message.hasModifications() );
+        assertEquals( beforeCsn.toString(), message.getBeforeCsn() );
+        assertEquals( 1, message.getModifications().size() );
+        assertEquals( "modified", message.getEntry().get( "description" ).getString() );
+
+        assertFalse( journal.get( partitionTxn, addCsn.toString() ).hasModifications() );
+
+        // Now, transmit the modifications
+        ReplicaDelta delta = ReplicaDelta.decode( schemaManager,
+            ReplicaDelta.fromMessage( message, new byte[]
+                { 0x01, 0x02 } ).encode() );
+
+        assertEquals( entry.getDn(), delta.getDn() );
+        assertEquals( "f1c8a3f4-2b8e-4c1b-9c3e-7a5d2b3c4d5e", delta.getEntryUuid() );
+        assertEquals( beforeCsn.toString(), delta.getBeforeCsn() );
+        assertEquals( afterCsn.toString(), delta.getAfterCsn() );
+        assertEquals( 2, delta.getCookie().length );
+        assertEquals( 1, delta.getModifications().size() );
+        assertEquals( ModificationOperation.REPLACE_ATTRIBUTE, delta.getModifications().get( 0 ).getOperation() );
+        assertEquals( "modified", delta.getModifications().get( 0 ).getAttribute().getString() );
+    }
+
+
     /**
      * Test the performances for 100 000 writes, read and delete.
      * On my laptop, it takes : <br>
@@ -0,0 +1,142 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicaCompressor} and {@link ReplicaDecompressor} classes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaCompressorTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The codec service */
+    private static LdapApiService codec;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        codec = LdapApiServiceFactory.getSingleton();
+    }
+
+
+    private Entry createEntry( int i ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=user" + i + ",ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: user" + i,
+            "sn: User " + i,
+            "description: A replicated entry" );
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        ReplicationStats providerStats = new ReplicationStats( ReplicationStats.PROVIDER, 1 );
+        ReplicationStats consumerStats = new ReplicationStats( ReplicationStats.CONSUMER, 1 );
+        ReplicaCompressor compressor = new ReplicaCompressor( 5, 100, providerStats );
+        ReplicaDecompressor decompressor = new ReplicaDecompressor( schemaManager, codec, consumerStats );
+
+        try
+        {
+            // Nothing to send yet
+            assertNull( compressor.flushBatch() );
+
+            // Two batches, the second one depends on the first one
+            for ( int batch = 0; batch < 2; batch++ )
+            {
+                for ( int i = 0; i < 10; i++ )
+                {
+                    byte[] cookie = ( i == 9 ) ? Strings.getBytesUtf8( "rid=001,csn=" + batch ) : null;
+
+                    assertNull( compressor.add( null, createEntry( batch * 10 + i ), SyncStateTypeEnum.ADD,
+                        Strings.getBytesUtf8( "uuid-" + i ), cookie ) );
+                }
+
+                IntermediateResponse response = compressor.flushBatch();
+
+                assertEquals( ReplicaCompressor.OID, response.getResponseName() );
+                assertEquals( 5, response.getMessageId() );
+
+                List<SearchResultEntry> entries = decompressor.decompress( response );
+
+                assertEquals( 10, entries.size() );
+
+                for ( int i = 0; i < 10; i++ )
+                {
+                    SearchResultEntry syncResult = entries.get( i );
+                    SyncStateValue syncState = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+
+                    assertEquals( createEntry( batch * 10 + i ), syncResult.getEntry() );
+                    assertEquals( SyncStateTypeEnum.ADD, syncState.getSyncStateType() );
+                    assertArrayEquals( Strings.getBytesUtf8( "uuid-" + i ), syncState.getEntryUUID() );
+
+                    if ( i == 9 )
+                    {
+                        assertEquals( "rid=001,csn=" + batch, Strings.utf8ToString( syncState.getCookie() ) );
+                    }
+                    else
+                    {
+                        assertNull( syncState.getCookie() );
+                    }
+                }
+            }
+
+            // The entries are similar, they must be compressed
+            assertTrue( providerStats.getCompressionRatio() > 2d );
+            assertEquals( providerStats.getUncompressedBytes(), consumerStats.getUncompressedBytes() );
+            assertEquals( providerStats.getCompressedBytes(), consumerStats.getCompressedBytes() );
+        }
+        finally
+        {
+            compressor.release();
+            decompressor.release();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicationStats} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationStatsTest
+{
+    /**
+     * A ReplicationStats instance with a manually set clock
+     */
+    private static class ManualClockStats extends ReplicationStats
+    {
+        private long second = 1000L;
+
+
+        private ManualClockStats()
+        {
+            super( ReplicationStats.CONSUMER, 1 );
+        }
+
+
+        @Override
+        protected long currentSecond()
+        {
+            return second;
+        }
+    }
+
+
+    @Test
+    public void testCsnLag() throws Exception
+    {
+        ReplicationStats stats = new ReplicationStats( ReplicationStats.PROVIDER, 1 );
+
+        // Nothing sent yet
+        assertEquals( 0L, stats.getCsnLagSeconds() );
+
+        String last = new Csn( 1000000L, 0, 1, 0 ).toString();
+        String newer = new Csn( 1030000L, 0, 1, 0 ).toString();
+        String older = new Csn( 1010000L, 0, 1, 0 ).toString();
+
+        stats.setLastCsn( last );
+        stats.setReferenceCsn( newer );
+        stats.setReferenceCsn( older );
+
+        // The most recent reference CSN is kept
+        assertEquals( newer, stats.getReferenceCsn() );
+        assertEquals( 30L, stats.getCsnLagSeconds() );
+
+        // Caught up
+        stats.setLastCsn( newer );
+        assertEquals( 0L, stats.getCsnLagSeconds() );
+
+        // No queue known
+        assertEquals( -1L, stats.getQueueDepth() );
+    }
+
+
+    @Test
+    public void testBatches() throws Exception
+    {
+        ManualClockStats stats = new ManualClockStats();
+
+        stats.recordBatch( 10, 2000000L );
+        stats.recordBatch( 30, 6000000L );
+
+        assertEquals( 40L, stats.getNbEntries() );
+        assertEquals( 2L, stats.getNbBatches() );
+        assertEquals( 20d, stats.getAverageBatchSize(), 0d );
+        assertEquals( 200d, stats.getAverageLatencyMicros(), 0d );
+        assertEquals( 6000L, stats.getMaxBatchLatencyMicros() );
+
+        // 40 entries over the last minute
+        stats.second += 10;
+        stats.recordBatch( 20, 0L );
+        assertEquals( 1d, stats.getEntriesPerSecond(), 0d );
+
+        // The first batches are out of the window
+        stats.second += 55;
+        assertEquals( 20d / 60, stats.getEntriesPerSecond(), 0.0001d );
+    }
+
+
+    private ReplicationStats createStats( final long queueDepth )
+    {
+        return new ReplicationStats( ReplicationStats.CONSUMER, 42 )
+        {
+            @Override
+            protected long readQueueDepth()
+            {
+                return queueDepth;
+            }
+        };
+    }
+
+
+    @Test
+    public void testRegister() throws Exception
+    {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+            "org.apache.directory.server:type=Replication,instance=\"test\",role=consumer,replicaId=42" );
+
+        ReplicationStats stats = createStats( 5L );
+        stats.register( "test" );
+
+        try
+        {
+            assertTrue( mbeanServer.isRegistered( name ) );
+            assertEquals( 5L, mbeanServer.getAttribute( name, "QueueDepth" ) );
+        }
+        finally
+        {
+            stats.unregister();
+        }
+
+        assertTrue( !mbeanServer.isRegistered( name ) );
+    }
+
+
+    /**
+     * The metrics of the same replica in two DirectoryServices don't replace each other
+     */
+    @Test
+    public void testRegisterSameName() throws Exception
+    {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name1 = new ObjectName(
+            "org.apache.directory.server:type=Replication,instance=\"server1\",role=consumer,replicaId=42" );
+        ObjectName name2 = new ObjectName(
+            "org.apache.directory.server:type=Replication,instance=\"server2\",role=consumer,replicaId=42" );
+
+        ReplicationStats stats1 = createStats( 1L );
+        ReplicationStats stats2 = createStats( 2L );
+        ReplicationStats duplicate = createStats( 3L );
+
+        stats1.register( "server1" );
+        stats2.register( "server2" );
+        duplicate.register( "server1" );
+
+        try
+        {
+            assertEquals( 1L, mbeanServer.getAttribute( name1, "QueueDepth" ) );
+            assertEquals( 2L, mbeanServer.getAttribute( name2, "QueueDepth" ) );
+
+            // The duplicate has not been registered, it does not unregister the first metrics
+            duplicate.unregister();
+            assertTrue( mbeanServer.isRegistered( name1 ) );
+        }
+        finally
+        {
+            stats1.unregister();
+            stats2.unregister();
+        }
+
+        assertTrue( !mbeanServer.isRegistered( name1 ) );
+        assertTrue( !mbeanServer.isRegistered( name2 ) );
+    }
+}
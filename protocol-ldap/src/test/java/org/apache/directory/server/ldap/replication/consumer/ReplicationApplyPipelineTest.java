@@ -0,0 +1,332 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationApplyPipeline.ChangeHandler;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicationApplyPipeline} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationApplyPipelineTest
+{
+    private static SearchResultEntry change( int id, String dn ) throws Exception
+    {
+        SearchResultEntry change = new SearchResultEntryImpl( id );
+        change.setObjectName( new Dn( dn ) );
+
+        return change;
+    }
+
+
+    /**
+     * A handler recording the applied changes and the stored cookies. The changes
+     * can be blocked until the release latch is counted down.
+     */
+    private static class RecordingHandler implements ChangeHandler
+    {
+        private final List<Integer> applied = Collections.synchronizedList( new ArrayList<Integer>() );
+
+        private final List<String> cookies = Collections.synchronizedList( new ArrayList<String>() );
+
+        private final CountDownLatch started = new CountDownLatch( 1 );
+
+        private final CountDownLatch release;
+
+
+        private RecordingHandler( boolean blocked )
+        {
+            release = new CountDownLatch( blocked ? 1 : 0 );
+        }
+
+
+        @Override
+        public byte[] apply( SearchResultEntry change )
+        {
+            started.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            applied.add( change.getMessageId() );
+
+            return Strings.getBytesUtf8( "cookie" + change.getMessageId() );
+        }
+
+
+        @Override
+        public void checkpoint( byte[] cookie )
+        {
+            cookies.add( Strings.utf8ToString( cookie ) );
+        }
+    }
+
+
+    @Test
+    public void testApplyInOrder() throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler( false );
+        ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 10, 1000L );
+        pipeline.start( "test" );
+
+        try
+        {
+            for ( int i = 1; i <= 50; i++ )
+            {
+                pipeline.submit( new SearchResultEntryImpl( i ), null, false );
+            }
+
+            pipeline.flush();
+
+            assertEquals( 50L, pipeline.getNbApplied() );
+            assertEquals( 50, handler.applied.size() );
+
+            for ( int i = 1; i <= 50; i++ )
+            {
+                assertEquals( Integer.valueOf( i ), handler.applied.get( i - 1 ) );
+            }
+
+            // The last applied cookie is always stored when flushing
+            assertEquals( "cookie50", handler.cookies.get( handler.cookies.size() - 1 ) );
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+
+    @Test
+    public void testCheckpointByBatch() throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler( true );
+        ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 100, 3600000L );
+        pipeline.start( "test" );
+
+        try
+        {
+            pipeline.submit( new SearchResultEntryImpl( 1 ), null, false );
+            handler.started.await();
+
+            // Those changes are buffered while the first one is being applied
+            for ( int i = 2; i <= 20; i++ )
+            {
+                pipeline.submit( new SearchResultEntryImpl( i ), null, false );
+            }
+
+            handler.release.countDown();
+            pipeline.flush();
+
+            assertEquals( 20L, pipeline.getNbApplied() );
+            assertTrue( pipeline.getNbBatches() <= 2 );
+            assertTrue( pipeline.getNbCheckpoints() <= 2 );
+            assertEquals( "cookie20", handler.cookies.get( handler.cookies.size() - 1 ) );
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+
+    @Test
+    public void testStopDiscardsBufferedChanges() throws Exception
+    {
+        final RecordingHandler handler = new RecordingHandler( true );
+        final ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 100, 1000L );
+        pipeline.start( "test" );
+
+        pipeline.submit( new SearchResultEntryImpl( 1 ), null, false );
+        handler.started.await();
+
+        for ( int i = 2; i <= 5; i++ )
+        {
+            pipeline.submit( new SearchResultEntryImpl( i ), null, false );
+        }
+
+        Thread stopper = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pipeline.stop();
+            }
+        } );
+
+        stopper.start();
+        Thread.sleep( 100L );
+        handler.release.countDown();
+        stopper.join();
+
+        // The change being applied is completed, and its cookie stored
+        assertEquals( 1, handler.applied.size() );
+        assertEquals( 1, handler.cookies.size() );
+        assertEquals( "cookie1", handler.cookies.get( 0 ) );
+    }
+
+
+    @Test
+    public void testLanesKeepEntriesOrdered() throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler( false );
+        ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 10, 1000L, 4 );
+        pipeline.start( "test" );
+
+        try
+        {
+            // 5 changes on 10 entries, interleaved
+            for ( int i = 0; i < 50; i++ )
+            {
+                int entry = i % 10;
+                pipeline.submit( change( i + 1, "cn=e" + entry + ",dc=test" ), "uuid" + entry, false );
+            }
+
+            pipeline.flush();
+
+            assertEquals( 50, handler.applied.size() );
+
+            for ( int entry = 0; entry < 10; entry++ )
+            {
+                int previous = 0;
+
+                for ( Integer id : handler.applied )
+                {
+                    if ( ( id - 1 ) % 10 == entry )
+                    {
+                        assertTrue( id > previous );
+                        previous = id;
+                    }
+                }
+            }
+
+            // The cookie is the one of the last change, all the previous ones being applied
+            assertEquals( "cookie50", handler.cookies.get( handler.cookies.size() - 1 ) );
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+
+    @Test
+    public void testLanesKeepParentFirst() throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler( true );
+        ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 10, 1000L, 4 );
+        pipeline.start( "test" );
+
+        try
+        {
+            // Whatever their entryUUID, the children go in the same lane as their pending parent
+            pipeline.submit( change( 1, "ou=parent,dc=test" ), "parent", false );
+
+            for ( int i = 2; i <= 10; i++ )
+            {
+                pipeline.submit( change( i, "cn=child" + i + ",ou=parent,dc=test" ), "child" + i, false );
+            }
+
+            handler.release.countDown();
+            pipeline.flush();
+
+            for ( int i = 1; i <= 10; i++ )
+            {
+                assertEquals( Integer.valueOf( i ), handler.applied.get( i - 1 ) );
+            }
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+
+    @Test
+    public void testBarrier() throws Exception
+    {
+        final RecordingHandler handler = new RecordingHandler( true );
+        final ReplicationApplyPipeline pipeline = new ReplicationApplyPipeline( handler, 10, 1000L, 4 );
+        pipeline.start( "test" );
+
+        try
+        {
+            pipeline.submit( change( 1, "cn=e1,dc=test" ), "uuid1", false );
+            pipeline.submit( change( 2, "cn=e2,dc=test" ), "uuid2", false );
+
+            Thread submitter = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        pipeline.submit( change( 3, "ou=moved,dc=test" ), "uuid3", true );
+                        pipeline.submit( change( 4, "cn=e4,dc=test" ), "uuid4", false );
+                    }
+                    catch ( Exception e )
+                    {
+                        // Nothing to do
+                    }
+                }
+            } );
+
+            submitter.start();
+            Thread.sleep( 100L );
+
+            // The barrier waits for the previous changes to be applied
+            assertTrue( submitter.isAlive() );
+            assertEquals( 1, pipeline.getNbBarriers() );
+
+            handler.release.countDown();
+            submitter.join();
+            pipeline.flush();
+
+            assertEquals( 4, handler.applied.size() );
+            assertEquals( Integer.valueOf( 3 ), handler.applied.get( 2 ) );
+            assertEquals( Integer.valueOf( 4 ), handler.applied.get( 3 ) );
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+}
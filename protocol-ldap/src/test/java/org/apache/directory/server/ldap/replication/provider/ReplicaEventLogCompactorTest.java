@@ -0,0 +1,144 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicaEventLogCompactor} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaEventLogCompactorTest
+{
+    private static final String UUID1 = "f290425c-8272-4e62-8a67-92b06f38dbf5";
+    private static final String UUID2 = "9b4e19a2-1a3e-4d4e-9d9b-1c1f4c2b4b9e";
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    private ReplicaEventMessage message( ChangeType changeType, String uuid ) throws Exception
+    {
+        return new ReplicaEventMessage( changeType, new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: test",
+            "entryUUID: " + uuid ) );
+    }
+
+
+    @Test
+    public void testAddModify() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+
+        compactor.add( "csn1", message( ChangeType.ADD, UUID1 ) );
+        compactor.add( "csn2", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn3", message( ChangeType.MODIFY, UUID2 ) );
+        compactor.add( "csn4", message( ChangeType.MODIFY, UUID1 ) );
+
+        // The entry is added with its latest state
+        assertEquals( Arrays.asList( "csn1", "csn2" ), compactor.getRemovedCsns() );
+        assertEquals( 1, compactor.getRewrittenCsns().size() );
+        assertEquals( ChangeType.ADD, compactor.getRewrittenCsns().get( "csn4" ) );
+    }
+
+
+    @Test
+    public void testModifies() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+
+        compactor.add( "csn1", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn2", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn3", message( ChangeType.MODIFY, UUID1 ) );
+
+        assertEquals( Arrays.asList( "csn1", "csn2" ), compactor.getRemovedCsns() );
+        assertEquals( 1, compactor.getRewrittenCsns().size() );
+        assertEquals( ChangeType.MODIFY, compactor.getRewrittenCsns().get( "csn3" ) );
+    }
+
+
+    @Test
+    public void testAddModifyDelete() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+
+        compactor.add( "csn1", message( ChangeType.ADD, UUID1 ) );
+        compactor.add( "csn2", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn3", message( ChangeType.DELETE, UUID1 ) );
+
+        // Nothing left to replicate
+        assertEquals( Arrays.asList( "csn1", "csn2", "csn3" ), compactor.getRemovedCsns() );
+        assertTrue( compactor.getRewrittenCsns().isEmpty() );
+    }
+
+
+    @Test
+    public void testModifyDelete() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+
+        compactor.add( "csn1", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn2", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn3", message( ChangeType.DELETE, UUID1 ) );
+
+        // Only the delete is kept
+        assertEquals( Arrays.asList( "csn1", "csn2" ), compactor.getRemovedCsns() );
+        assertTrue( compactor.getRewrittenCsns().isEmpty() );
+    }
+
+
+    @Test
+    public void testModDnBarrier() throws Exception
+    {
+        ReplicaEventLogCompactor compactor = new ReplicaEventLogCompactor();
+
+        compactor.add( "csn1", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn2", message( ChangeType.MODDN, UUID1 ) );
+        compactor.add( "csn3", message( ChangeType.MODIFY, UUID1 ) );
+        compactor.add( "csn4", message( ChangeType.MODIFY, UUID1 ) );
+
+        // The modify before the rename is kept
+        assertEquals( Arrays.asList( "csn3" ), compactor.getRemovedCsns() );
+        assertEquals( ChangeType.MODIFY, compactor.getRewrittenCsns().get( "csn4" ) );
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests the compaction of the {@link ReplicaEventLog} changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaEventLogTest
+{
+    private static final String UUID = "f290425c-8272-4e62-8a67-92b06f38dbf5";
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    /** The tested log */
+    private ReplicaEventLog log;
+
+    /** The CSNs of the changes, in ascending order */
+    private String[] csns = new String[3];
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    @Before
+    public void createLog() throws Exception
+    {
+        final InstanceLayout layout = new InstanceLayout( tmpFolder.newFolder( "instance" ) );
+        layout.getReplDirectory().mkdirs();
+
+        MockDirectoryService directoryService = new MockDirectoryService()
+        {
+            @Override
+            public InstanceLayout getInstanceLayout()
+            {
+                return layout;
+            }
+        };
+
+        directoryService.setSchemaManager( schemaManager );
+
+        // The journal is not transactional
+        log = new ReplicaEventLog( null, directoryService, 1 );
+
+        long now = System.currentTimeMillis();
+
+        for ( int i = 0; i < csns.length; i++ )
+        {
+            csns[i] = new Csn( now + i, 0, 1, 0 ).toString();
+        }
+    }
+
+
+    @After
+    public void stopLog() throws Exception
+    {
+        log.stop();
+    }
+
+
+    private ReplicaEventMessage message( ChangeType changeType, String csn ) throws Exception
+    {
+        return new ReplicaEventMessage( changeType, new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: test",
+            "entryUUID: " + UUID,
+            "entryCSN: " + csn ) );
+    }
+
+
+    /**
+     * The entry has been added and deleted while the consumer was receiving the changes in
+     * real time, but the writes have not completed yet : the last sent CSN has not been updated.
+     * The add has already been pushed, so it must not be folded with the delete.
+     */
+    @Test
+    public void testNoCompactionInRealtimePush() throws Exception
+    {
+        SyncReplSearchListener listener = new SyncReplSearchListener( null, null, log, true );
+        log.setPersistentListener( listener );
+        log.setLastSentCsn( csns[0] );
+
+        log.log( message( ChangeType.ADD, csns[1] ) );
+        log.log( message( ChangeType.DELETE, csns[2] ) );
+
+        assertEquals( 0L, log.compact() );
+        assertEquals( 2L, log.count() );
+
+        // The consumer is disconnected, it will get the changes from the log
+        listener.setPushInRealTime( false );
+
+        assertEquals( 2L, log.compact() );
+        assertEquals( 0L, log.count() );
+    }
+
+
+    @Test
+    public void testCompactionWithoutListener() throws Exception
+    {
+        log.setLastSentCsn( csns[0] );
+
+        log.log( message( ChangeType.ADD, csns[1] ) );
+        log.log( message( ChangeType.DELETE, csns[2] ) );
+
+        assertEquals( 2L, log.compact() );
+        assertEquals( 0L, log.count() );
+    }
+}
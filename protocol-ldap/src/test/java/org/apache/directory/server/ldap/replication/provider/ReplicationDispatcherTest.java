@@ -0,0 +1,129 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ReplicationDispatcher} consumer groups.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationDispatcherTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+
+    /**
+     * An EventService storing the registered listeners
+     */
+    private static class MockEventService implements EventService
+    {
+        private List<DirectoryListener> listeners = new ArrayList<>();
+
+
+        public void addListener( DirectoryListener listener, NotificationCriteria criteria )
+        {
+            listeners.add( listener );
+        }
+
+
+        public void removeListener( DirectoryListener listener )
+        {
+            listeners.remove( listener );
+        }
+
+
+        public List<RegistrationEntry> getRegistrationEntries()
+        {
+            return new ArrayList<>();
+        }
+    }
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    private NotificationCriteria criteria( String filter ) throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( new Dn( schemaManager, "ou=system" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setFilter( filter );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+        return criteria;
+    }
+
+
+    @Test
+    public void testGroups() throws Exception
+    {
+        MockEventService eventService = new MockEventService();
+        ReplicationDispatcher dispatcher = new ReplicationDispatcher( eventService );
+
+        SyncReplSearchListener listener1 = new SyncReplSearchListener( null, null, null, false );
+        SyncReplSearchListener listener2 = new SyncReplSearchListener( null, null, null, false );
+        SyncReplSearchListener listener3 = new SyncReplSearchListener( null, null, null, false );
+
+        // The two first consumers are notified of the same changes
+        dispatcher.register( listener1, criteria( "(objectClass=*)" ) );
+        dispatcher.register( listener2, criteria( "(objectClass=*)" ) );
+        dispatcher.register( listener3, criteria( "(ou=people)" ) );
+
+        assertEquals( 2, dispatcher.getNbGroups() );
+        assertEquals( 2, eventService.listeners.size() );
+
+        dispatcher.unregister( listener1 );
+        assertEquals( 2, dispatcher.getNbGroups() );
+
+        // The group is unregistered with its last consumer
+        dispatcher.unregister( listener2 );
+        assertEquals( 1, dispatcher.getNbGroups() );
+        assertEquals( 1, eventService.listeners.size() );
+
+        dispatcher.stop();
+        assertEquals( 0, dispatcher.getNbGroups() );
+        assertTrue( eventService.listeners.isEmpty() );
+    }
+}
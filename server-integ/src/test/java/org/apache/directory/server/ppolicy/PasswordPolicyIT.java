@@ -1201,6 +1201,58 @@ public class PasswordPolicyIT extends AbstractLdapTestUnit
     }
 
 
+    /**
+     * Check that the failures below the lockout threshold are kept in memory when
+     * the password policy state writes are deferred, and that the lockout is written
+     * immediately.
+     */
+    @Test
+    public void testPwdLockoutWithDeferredStateWrites() throws Exception
+    {
+        policyConfig.setPwdLockout( true );
+        policyConfig.setPwdMaxFailure( 3 );
+
+        AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+        authenticationInterceptor.setPwdPolicyStateFlushPeriod( 60000L );
+
+        try
+        {
+            Dn userDn = new Dn( getService().getSchemaManager(), "cn=userDeferred,ou=system" );
+            LdapConnection adminConnection = getAdminNetworkConnection( getLdapServer() );
+
+            addUser( adminConnection, "userDeferred", "12345" );
+
+            LdapConnection userConnection = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME,
+                ldapServer.getPort() );
+            userConnection.setTimeOut( 0L );
+
+            checkBind( userConnection, userDn, "badPassword", 2,
+                "INVALID_CREDENTIALS: Bind failed: ERR_229 Cannot authenticate user cn=userDeferred,ou=system" );
+
+            // The failures have not been written yet
+            Entry userEntry = adminConnection.lookup( userDn, "+" );
+            assertNull( userEntry.get( PWD_FAILURE_TIME_AT ) );
+
+            // The third failure locks the account
+            checkBind( userConnection, userDn, "badPassword", 1,
+                "INVALID_CREDENTIALS: Bind failed: ERR_229 Cannot authenticate user cn=userDeferred,ou=system" );
+
+            userEntry = adminConnection.lookup( userDn, "+" );
+            assertEquals( 3, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+            assertNotNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+            assertEquals( 0, authenticationInterceptor.getPwdPolicyStateStore().size() );
+
+            userConnection.close();
+            adminConnection.close();
+        }
+        finally
+        {
+            authenticationInterceptor.setPwdPolicyStateFlushPeriod( 0L );
+        }
+    }
+
+
     /**
      * Check that the failure attempts are removed from the entry when the 
      * pwdFailureCountInterval attribute is set.
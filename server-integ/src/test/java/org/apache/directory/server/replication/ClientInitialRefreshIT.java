@@ -21,11 +21,13 @@
 package org.apache.directory.server.replication;
 
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -452,6 +454,67 @@ public class ClientInitialRefreshIT
     }
 
 
+    /**
+     * Test that the entries added while a consumer registers are received once : the ones
+     * added before the contextCSN is read by the provider are sent by the initial refresh,
+     * the other ones from the log, or pushed.
+     */
+    @Test
+    public void testInitialRefreshWhileAdding() throws Exception
+    {
+        final int additionalCount = 100;
+        final List<Dn> newEntries = Collections.synchronizedList( new ArrayList<Dn>() );
+
+        Runnable writerTask = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    for ( int i = 0; i < additionalCount; i++ )
+                    {
+                        Entry addedEntry = createEntry();
+                        providerSession.add( addedEntry );
+                        newEntries.add( addedEntry.getDn() );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+
+        Thread writerThread = new Thread( writerTask );
+        writerThread.start();
+
+        ReplicationConsumer consumer = createConsumer();
+
+        writerThread.join();
+
+        try
+        {
+            assertEquals( additionalCount, newEntries.size() );
+
+            // No entry is lost
+            assertTrue( waitForSyncReplClient( consumer, TOTAL_COUNT + additionalCount ) );
+
+            // and none is received twice
+            Thread.sleep( 1000 );
+            assertEquals( TOTAL_COUNT + additionalCount, ( ( MockSyncReplConsumer ) consumer ).getNbAdded() );
+        }
+        finally
+        {
+            for ( Dn dn : newEntries )
+            {
+                providerSession.delete( dn );
+            }
+
+            consumer.stop();
+        }
+    }
+
+
     /**
      * Test with 2 consumers
      */
@@ -0,0 +1,498 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.replication;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.annotations.CreateConsumer;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.ldap.replication.consumer.ReplicaSnapshotLoader;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerImpl;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the provisioning of an empty replica from a snapshot of the provider : the
+ * initial content is bulk loaded instead of going through the interceptors, the
+ * interceptors caches are loaded from it, and the replication goes on from the stored
+ * cookie. A replica which is not empty falls back to a full refresh.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SnapshotProvisioningReplicationIT
+{
+    private static final String READERS_ACI = "{ " +
+        "  identificationTag \"readersRead\", " +
+        "  precedence 14, " +
+        "  authenticationLevel none, " +
+        "  itemOrUserFirst userFirst: " +
+        "  { " +
+        "    userClasses { userGroup { \"cn=readers,ou=people,dc=example,dc=com\" } }, " +
+        "    userPermissions " +
+        "    { " +
+        "      { " +
+        "        protectedItems { entry, allUserAttributeTypesAndValues }, " +
+        "        grantsAndDenials { grantRead, grantReturnDN, grantBrowse } " +
+        "      } " +
+        "    } " +
+        "  } " +
+        "}";
+
+    private static LdapServer providerServer;
+
+    private static LdapServer snapshotServer;
+
+    private static LdapServer refreshServer;
+
+    private static ReplicationConsumerImpl snapshotConsumer;
+
+    private static ReplicationConsumerImpl refreshConsumer;
+
+    private static SchemaManager schemaManager;
+
+    private static CoreSession providerSession;
+
+    private static int nbProviderEntries;
+
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        Class.forName( FrameworkRunner.class.getName() );
+
+        startProvider();
+
+        // The content must exist on the provider before the replicas are started
+        nbProviderEntries = addProviderEntries();
+
+        startSnapshotConsumer();
+        startRefreshConsumer();
+    }
+
+
+    @AfterClass
+    public static void tearDown() throws Exception
+    {
+        refreshServer.stop();
+        refreshServer.getDirectoryService().shutdown();
+        snapshotServer.stop();
+        snapshotServer.getDirectoryService().shutdown();
+        providerServer.stop();
+        providerServer.getDirectoryService().shutdown();
+    }
+
+
+    private static int addProviderEntries() throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        entries.add( new DefaultEntry( schemaManager, "ou=people,dc=example,dc=com",
+            "objectClass: organizationalUnit",
+            "ou: people" ) );
+
+        entries.add( new DefaultEntry( schemaManager, "uid=reader,ou=people,dc=example,dc=com",
+            "objectClass: inetOrgPerson",
+            "uid: reader",
+            "cn: reader",
+            "sn: reader",
+            "userPassword: secret" ) );
+
+        entries.add( new DefaultEntry( schemaManager, "uid=other,ou=people,dc=example,dc=com",
+            "objectClass: inetOrgPerson",
+            "uid: other",
+            "cn: other",
+            "sn: other",
+            "userPassword: secret" ) );
+
+        entries.add( new DefaultEntry( schemaManager, "cn=readers,ou=people,dc=example,dc=com",
+            "objectClass: groupOfNames",
+            "cn: readers",
+            "member: uid=reader,ou=people,dc=example,dc=com" ) );
+
+        entries.add( new DefaultEntry( schemaManager, "cn=protected,dc=example,dc=com",
+            "objectClass: person",
+            "cn: protected",
+            "sn: protected",
+            "entryACI", READERS_ACI ) );
+
+        for ( Entry entry : entries )
+        {
+            providerSession.add( entry );
+        }
+
+        // The context entry, and the added entries
+        return entries.size() + 1;
+    }
+
+
+    /**
+     * Waits up to 10 seconds for an entry to exist on a replica
+     */
+    private boolean waitForEntry( LdapServer server, String dn ) throws Exception
+    {
+        CoreSession session = server.getDirectoryService().getAdminSession();
+        Dn entryDn = new Dn( schemaManager, dn );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            if ( session.exists( entryDn ) )
+            {
+                return true;
+            }
+
+            Thread.sleep( 100 );
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Waits up to 10 seconds for a consumer to have applied a number of entries
+     */
+    private long waitForNbEntries( ReplicationConsumerImpl consumer, long nbEntries ) throws Exception
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            if ( consumer.getStats().getNbEntries() >= nbEntries )
+            {
+                break;
+            }
+
+            Thread.sleep( 100 );
+        }
+
+        return consumer.getStats().getNbEntries();
+    }
+
+
+    /**
+     * The empty replica is bulk loaded : no entry is applied through the consumer, and the
+     * cookie received with the snapshot is stored. The next changes are replicated from it.
+     */
+    @Test
+    public void testSnapshotProvisioning() throws Exception
+    {
+        assertTrue( waitForEntry( snapshotServer, "cn=protected,dc=example,dc=com" ) );
+        assertTrue( waitForEntry( snapshotServer, "cn=readers,ou=people,dc=example,dc=com" ) );
+
+        assertEquals( 0L, snapshotConsumer.getStats().getNbEntries() );
+
+        CoreSession session = snapshotServer.getDirectoryService().getAdminSession();
+        Entry configEntry = session.lookup( snapshotConsumer.getConfig().getConfigEntryDn(), "*", "+" );
+        assertNotNull( configEntry.get( "ads-replCookie" ) );
+
+        // Only the changes done after the snapshot are sent
+        providerSession.add( new DefaultEntry( schemaManager, "cn=afterSnapshot,dc=example,dc=com",
+            "objectClass: person",
+            "cn: afterSnapshot",
+            "sn: afterSnapshot" ) );
+
+        assertTrue( waitForEntry( snapshotServer, "cn=afterSnapshot,dc=example,dc=com" ) );
+        assertEquals( 1L, waitForNbEntries( snapshotConsumer, 1L ) );
+    }
+
+
+    /**
+     * The groups of the loaded partition are known by the ACI interceptor : a member of
+     * the group granted by the replicated entryACI can read the protected entry.
+     */
+    @Test
+    public void testCachesLoaded() throws Exception
+    {
+        assertTrue( waitForEntry( snapshotServer, "cn=protected,dc=example,dc=com" ) );
+
+        DirectoryService directoryService = snapshotServer.getDirectoryService();
+        Dn protectedDn = new Dn( schemaManager, "cn=protected,dc=example,dc=com" );
+        directoryService.setAccessControlEnabled( true );
+
+        try
+        {
+            CoreSession readerSession = directoryService.getSession(
+                new Dn( schemaManager, "uid=reader,ou=people,dc=example,dc=com" ), Strings.getBytesUtf8( "secret" ) );
+            // The entryACI is only read by the ACI interceptor when the operational attributes are requested
+            Entry entry = readerSession.lookup( protectedDn, "*", "+" );
+            assertNotNull( entry );
+            assertEquals( "protected", entry.get( SchemaConstants.CN_AT ).getString() );
+
+            CoreSession otherSession = directoryService.getSession(
+                new Dn( schemaManager, "uid=other,ou=people,dc=example,dc=com" ), Strings.getBytesUtf8( "secret" ) );
+
+            try
+            {
+                otherSession.lookup( protectedDn, "*", "+" );
+                fail();
+            }
+            catch ( LdapNoPermissionException lnpe )
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            directoryService.setAccessControlEnabled( false );
+        }
+    }
+
+
+    /**
+     * A replica which is not empty can't be provisioned from a snapshot : it gets the
+     * initial content through a full refresh.
+     */
+    @Test
+    public void testFallbackToFullRefresh() throws Exception
+    {
+        assertTrue( waitForEntry( refreshServer, "cn=protected,dc=example,dc=com" ) );
+        assertTrue( waitForNbEntries( refreshConsumer, nbProviderEntries ) >= nbProviderEntries );
+
+        CoreSession session = refreshServer.getDirectoryService().getAdminSession();
+        Entry configEntry = session.lookup( refreshConsumer.getConfig().getConfigEntryDn(), "*", "+" );
+        assertNotNull( configEntry.get( "ads-replCookie" ) );
+    }
+
+
+    /**
+     * Only the suffix of an empty JdbmPartition can be provisioned from a snapshot
+     */
+    @Test
+    public void testEligibility() throws Exception
+    {
+        // Not empty
+        assertNull( ReplicaSnapshotLoader.create( refreshServer.getDirectoryService(),
+            new Dn( schemaManager, "dc=example,dc=com" ), 3 ) );
+
+        // Not the suffix
+        assertTrue( waitForEntry( snapshotServer, "ou=people,dc=example,dc=com" ) );
+        assertNull( ReplicaSnapshotLoader.create( snapshotServer.getDirectoryService(),
+            new Dn( schemaManager, "ou=people,dc=example,dc=com" ), 2 ) );
+
+        // The suffix of an empty partition
+        ReplicaSnapshotLoader loader = ReplicaSnapshotLoader.create( snapshotServer.getDirectoryService(),
+            new Dn( schemaManager, "dc=empty,dc=com" ), 2 );
+        assertNotNull( loader );
+        assertEquals( 0L, loader.getNbSpooled() );
+        loader.discard();
+    }
+
+
+    @CreateDS(
+        allowAnonAccess = true,
+        name = "provider-snapshot",
+        enableChangeLog = false,
+        partitions =
+            {
+                @CreatePartition(
+                    name = "example",
+                    suffix = "dc=example,dc=com",
+                    indexes =
+                        {
+                            @CreateIndex(attribute = "objectClass"),
+                            @CreateIndex(attribute = "dc"),
+                            @CreateIndex(attribute = "ou")
+                    },
+                    contextEntry = @ContextEntry(entryLdif =
+                        "dn: dc=example,dc=com\n" +
+                            "objectClass: domain\n" +
+                            "dc: example"))
+        })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 16400, protocol = "LDAP") })
+    public static void startProvider() throws Exception
+    {
+        DirectoryService provDirService = DSAnnotationProcessor.getDirectoryService();
+
+        providerServer = ServerAnnotationProcessor.getLdapServer( provDirService );
+        providerServer.setReplicationReqHandler( new SyncReplRequestHandler() );
+        providerServer.startReplicationProducer();
+
+        schemaManager = provDirService.getSchemaManager();
+        providerSession = provDirService.getAdminSession();
+    }
+
+
+    /**
+     * The replica has no context entry : it's provisioned from a snapshot. It replicates
+     * the entryACI attribute, so that the ACIs can be checked on the replica.
+     */
+    @CreateDS(
+        allowAnonAccess = true,
+        enableChangeLog = false,
+        name = "consumer-snapshot",
+        partitions =
+            {
+                @CreatePartition(
+                    name = "example",
+                    suffix = "dc=example,dc=com",
+                    indexes =
+                        {
+                            @CreateIndex(attribute = "objectClass"),
+                            @CreateIndex(attribute = "dc"),
+                            @CreateIndex(attribute = "ou")
+                    }),
+                @CreatePartition(
+                    name = "empty",
+                    suffix = "dc=empty,dc=com")
+        })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 17400, protocol = "LDAP") })
+    @CreateConsumer
+        (
+            remotePort = 16400,
+            replUserDn = "uid=admin,ou=system",
+            replUserPassword = "secret",
+            useTls = false,
+            baseDn = "dc=example,dc=com",
+            refreshInterval = 1000,
+            replicaId = 2
+        )
+    public static void startSnapshotConsumer() throws Exception
+    {
+        DirectoryService dirService = DSAnnotationProcessor.getDirectoryService();
+        snapshotServer = ServerAnnotationProcessor.getLdapServer( dirService );
+        snapshotConsumer = ( ReplicationConsumerImpl ) ServerAnnotationProcessor.createConsumer();
+
+        SyncReplConfiguration config = ( SyncReplConfiguration ) snapshotConsumer.getConfig();
+        config.setSnapshotProvisioning( true );
+        config.setAttributes( new String[]
+            { SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ENTRY_ACI_AT } );
+
+        startConsumer( snapshotServer, snapshotConsumer, "snapshot" );
+    }
+
+
+    /**
+     * The replica has a context entry : it can't be provisioned from a snapshot
+     */
+    @CreateDS(
+        allowAnonAccess = true,
+        enableChangeLog = false,
+        name = "consumer-refresh",
+        partitions =
+            {
+                @CreatePartition(
+                    name = "example",
+                    suffix = "dc=example,dc=com",
+                    indexes =
+                        {
+                            @CreateIndex(attribute = "objectClass"),
+                            @CreateIndex(attribute = "dc"),
+                            @CreateIndex(attribute = "ou")
+                    },
+                    contextEntry = @ContextEntry(entryLdif =
+                        "dn: dc=example,dc=com\n" +
+                            "objectClass: domain\n" +
+                            "dc: example"))
+        })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 17401, protocol = "LDAP") })
+    @CreateConsumer
+        (
+            remotePort = 16400,
+            replUserDn = "uid=admin,ou=system",
+            replUserPassword = "secret",
+            useTls = false,
+            baseDn = "dc=example,dc=com",
+            refreshInterval = 1000,
+            replicaId = 3
+        )
+    public static void startRefreshConsumer() throws Exception
+    {
+        DirectoryService dirService = DSAnnotationProcessor.getDirectoryService();
+        refreshServer = ServerAnnotationProcessor.getLdapServer( dirService );
+        refreshConsumer = ( ReplicationConsumerImpl ) ServerAnnotationProcessor.createConsumer();
+
+        ( ( SyncReplConfiguration ) refreshConsumer.getConfig() ).setSnapshotProvisioning( true );
+
+        startConsumer( refreshServer, refreshConsumer, "refresh" );
+    }
+
+
+    /**
+     * Adds the consumer configuration entry, where the cookie is stored, then starts the consumer
+     */
+    private static void startConsumer( LdapServer consumerServer, ReplicationConsumerImpl consumer, String id )
+        throws Exception
+    {
+        List<ReplicationConsumer> replConsumers = new ArrayList<ReplicationConsumer>();
+        replConsumers.add( consumer );
+
+        consumerServer.setReplConsumers( replConsumers );
+
+        DirectoryService ds = consumerServer.getDirectoryService();
+        SyncReplConfiguration config = ( SyncReplConfiguration ) consumer.getConfig();
+
+        Dn configDn = new Dn( ds.getSchemaManager(), "ads-replConsumerId=" + id + ",ou=system" );
+        config.setConfigEntryDn( configDn );
+
+        Entry consumerConfigEntry = new DefaultEntry( ds.getSchemaManager(), configDn,
+            "objectClass: ads-replConsumer",
+            "ads-replConsumerId", id,
+            "ads-searchBaseDN", config.getBaseDn(),
+            "ads-replProvHostName", config.getRemoteHost(),
+            "ads-replProvPort", String.valueOf( config.getRemotePort() ),
+            "ads-replRefreshInterval", String.valueOf( config.getRefreshInterval() ),
+            "ads-replRefreshNPersist", String.valueOf( config.isRefreshNPersist() ),
+            "ads-replSearchScope", config.getSearchScope().getLdapUrlValue(),
+            "ads-replSearchFilter", config.getFilter(),
+            "ads-replSearchSizeLimit", String.valueOf( config.getSearchSizeLimit() ),
+            "ads-replSearchTimeOut", String.valueOf( config.getSearchTimeout() ),
+            "ads-replUserDn", config.getReplUserDn(),
+            "ads-replUserPassword", config.getReplUserPassword() );
+
+        consumerConfigEntry.put( "ads-replAliasDerefMode", config.getAliasDerefMode().getJndiValue() );
+        consumerConfigEntry.put( "ads-replAttributes", config.getAttributes() );
+
+        ds.getAdminSession().add( consumerConfigEntry );
+
+        consumerServer.startReplicationConsumers();
+    }
+}
@@ -92,7 +92,6 @@ import org.apache.directory.server.core.authn.DelegatingAuthenticator;
 import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
 import org.apache.directory.server.core.changelog.DefaultChangeLog;
 import org.apache.directory.server.core.journal.DefaultJournal;
-import org.apache.directory.server.core.journal.DefaultJournalStore;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmDnIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
@@ -352,7 +351,7 @@ public final class ServiceBuilder
         journal.setRotation( journalBean.getJournalRotation() );
         journal.setEnabled( journalBean.isEnabled() );
 
-        JournalStore store = new DefaultJournalStore();
+        JournalStore store = DefaultJournal.createJournalStore();
 
         store.setFileName( journalBean.getJournalFileName() );
         store.setWorkingDirectory( journalBean.getJournalWorkingDir() );
@@ -24,12 +24,15 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -145,7 +148,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** The path in which this Partition stores files */
     protected URI partitionPath;
 
-    /** The set of indexed attributes */
+    /** The set of indexed attributes. It's updated by the online index builds, so it's a concurrent set */
     private Set<Index<?, String>> indexedAttributes;
 
     /** the master table storing entries by primary key */
@@ -210,6 +213,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
+
+    /** The user indexes built online, per attributeType OID */
+    private final Map<String, OnlineIndexBuild> indexBuilds = new ConcurrentHashMap<>();
+
+    /** The executor running the online index builds */
+    private ExecutorService indexBuildExecutor;
     
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -248,7 +257,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     private void initInstance()
     {
-        indexedAttributes = new HashSet<>();
+        indexedAttributes = newIndexSet();
 
         // Initialize Attribute types used all over this method
         objectClassAT = schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT );
@@ -543,6 +552,16 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         entryDnCache.removeAll();
         
+        synchronized ( indexBuilds )
+        {
+            if ( indexBuildExecutor != null )
+            {
+                // The builds check the partition state before processing each batch
+                indexBuildExecutor.shutdown();
+                indexBuildExecutor = null;
+            }
+        }
+
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
         for ( Index<?, String> index : userIndices.values() )
@@ -2223,7 +2242,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 AttributeType attributeType = modDnAva.getAva().getAttributeType();
                 
-                if ( !hasIndexOn( attributeType ) )
+                if ( !hasUserIndexOn( attributeType ) )
                 {
                     break;
                 }
@@ -2885,6 +2904,108 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Adds a user index to an initialized partition, and builds it in the background.
+     * The index is updated by the write operations as soon as this method returns, but
+     * it's only used by the searches once it has been built.
+     * <br>
+     * The index is not persisted in the partition configuration : it has to be added
+     * there too, otherwise it will be ignored when the partition is restarted. If the
+     * partition is stopped before the build is completed, the index must be removed
+     * so that it's rebuilt on the next startup.
+     *
+     * @param index The index to add
+     * @return The index build, to follow its progress
+     * @throws LdapException If the index can't be added
+     */
+    public OnlineIndexBuild buildIndex( Index<?, String> index ) throws LdapException
+    {
+        if ( !initialized )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The partition " + getId() + " must be initialized to build an index" );
+        }
+
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() );
+        String oid = attributeType.getOid();
+
+        if ( SYS_INDEX_OIDS.contains( oid ) || userIndices.containsKey( oid ) )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The partition " + getId() + " already has an index on " + attributeType.getName() );
+        }
+
+        if ( attributeType.getEquality() == null )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                I18n.err( I18n.ERR_4, attributeType.getName() ) );
+        }
+
+        Index<?, String> userIndex = convertAndInit( index );
+        OnlineIndexBuild indexBuild = new OnlineIndexBuild( this, userIndex, OnlineIndexBuild.DEFAULT_BATCH_SIZE );
+
+        if ( rwLock == null )
+        {
+            // Create a ReadWrite lock from scratch
+            rwLock = new ReentrantReadWriteLock();
+        }
+
+        // Register the index while no write operation is running, so that all
+        // the subsequent writes update it
+        lockWrite();
+
+        try
+        {
+            indexBuilds.put( oid, indexBuild );
+
+            Map<String, Index<?, String>> tmp = new HashMap<>( userIndices );
+            tmp.put( oid, userIndex );
+            userIndices = tmp;
+        }
+        finally
+        {
+            unlockWrite();
+        }
+
+        synchronized ( indexBuilds )
+        {
+            if ( indexBuildExecutor == null )
+            {
+                indexBuildExecutor = Executors.newSingleThreadExecutor();
+            }
+
+            indexBuildExecutor.execute( indexBuild );
+        }
+
+        return indexBuild;
+    }
+
+
+    /**
+     * Called by the build thread when an online index build is completed : the index
+     * can now be used by the searches.
+     *
+     * @param indexBuild The completed build
+     */
+    protected void indexBuilt( OnlineIndexBuild indexBuild )
+    {
+        indexedAttributes.add( indexBuild.getIndex() );
+        indexBuilds.remove( indexBuild.getIndex().getAttribute().getOid() );
+    }
+
+
+    /**
+     * Gets the online build of a user index, if it has not been completed yet.
+     *
+     * @param attributeType The indexed AttributeType
+     * @return The index build, or null if the index is not being built
+     */
+    public OnlineIndexBuild getIndexBuild( AttributeType attributeType )
+    {
+        return indexBuilds.get( attributeType.getOid() );
+    }
+
+
     /**
      * Add some new indexes
      * @param indexes The added indexes
@@ -2904,7 +3025,23 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public void setIndexedAttributes( Set<Index<?, String>> indexedAttributes )
     {
-        this.indexedAttributes = indexedAttributes;
+        Set<Index<?, String>> indexes = newIndexSet();
+
+        if ( indexedAttributes != null )
+        {
+            indexes.addAll( indexedAttributes );
+        }
+
+        this.indexedAttributes = indexes;
+    }
+
+
+    /**
+     * @return A new set of indexes, which can be updated while it's being read
+     */
+    private static Set<Index<?, String>> newIndexSet()
+    {
+        return Collections.newSetFromMap( new ConcurrentHashMap<Index<?, String>, Boolean>() );
     }
 
 
@@ -2945,7 +3082,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         String id = attributeType.getOid();
 
-        if ( userIndices.containsKey( id ) )
+        if ( userIndices.containsKey( id ) && !indexBuilds.containsKey( id ) )
         {
             return userIndices.get( id );
         }
@@ -3117,7 +3254,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     @Override
     public boolean hasIndexOn( AttributeType attributeType ) throws LdapException
     {
-        return hasUserIndexOn( attributeType ) || hasSystemIndexOn( attributeType );
+        return ( hasUserIndexOn( attributeType ) && !isIndexBuilding( attributeType ) )
+            || hasSystemIndexOn( attributeType );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isIndexBuilding( AttributeType attributeType )
+    {
+        return indexBuilds.containsKey( attributeType.getOid() );
     }
 
 
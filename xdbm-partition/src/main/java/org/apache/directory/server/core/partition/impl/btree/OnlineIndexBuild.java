@@ -0,0 +1,310 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.Index;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The background build of a user index added to a running partition. The index is
+ * registered in the partition before the build starts, so that the write operations
+ * update it like any other user index, but it is not used by the searches until the
+ * build is completed.
+ * <br>
+ * The master table is read by batches. Each batch is processed while holding the
+ * partition write lock, so an entry can't be modified while its tuples are being
+ * added. The lock is released between two batches, to let the write operations go
+ * through : an entry modified before being read gets its tuples added twice, which
+ * is harmless, and an entry added after its position has been read is indexed by
+ * the add operation itself.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OnlineIndexBuild implements Runnable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( OnlineIndexBuild.class );
+
+    /** The default number of entries indexed while holding the write lock */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The index build states
+     */
+    public enum State
+    {
+        /** The index is being built, it can't be used by the searches */
+        BUILDING,
+
+        /** The index has been built, and can be used by the searches */
+        READY,
+
+        /** The build has failed. The index is maintained, but not used by the searches */
+        FAILED
+    }
+
+    /** The partition */
+    private final AbstractBTreePartition partition;
+
+    /** The index being built */
+    private final Index<Object, String> index;
+
+    /** The indexed AttributeType */
+    private final AttributeType attributeType;
+
+    /** The number of entries indexed while holding the write lock */
+    private final int batchSize;
+
+    /** The build state */
+    private volatile State state = State.BUILDING;
+
+    /** The number of entries in the partition when the build started */
+    private volatile long nbEntries;
+
+    /** The number of entries read so far */
+    private volatile long nbRead;
+
+    /** The error that stopped the build, if any */
+    private volatile Exception failure;
+
+    /** The ID of the last entry read */
+    private String lastId;
+
+
+    /**
+     * Creates a new instance of OnlineIndexBuild.
+     *
+     * @param partition The partition
+     * @param index The index to build. It must have been initialized.
+     * @param batchSize The number of entries indexed while holding the write lock
+     */
+    @SuppressWarnings("unchecked")
+    /* no qualifier */ OnlineIndexBuild( AbstractBTreePartition partition, Index<?, String> index, int batchSize )
+    {
+        this.partition = partition;
+        this.index = ( Index<Object, String> ) index;
+        this.attributeType = index.getAttribute();
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        LOG.info( "Starting the online build of the {} index on the {} partition", attributeType.getName(),
+            partition.getId() );
+
+        try
+        {
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                nbEntries = partition.count( partitionTxn );
+            }
+
+            while ( indexBatch() )
+            {
+                LOG.debug( "{} : {} entries read on {}", attributeType.getName(), nbRead, nbEntries );
+            }
+
+            state = State.READY;
+            partition.indexBuilt( this );
+
+            LOG.info( "The {} index of the {} partition has been built, {} entries read", attributeType.getName(),
+                partition.getId(), nbRead );
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "The online build of the {} index on the {} partition has failed", attributeType.getName(),
+                partition.getId(), e );
+            failure = e;
+            state = State.FAILED;
+        }
+    }
+
+
+    /**
+     * Index the next batch of entries.
+     *
+     * @return <code>true</code> if some entries remain to be read
+     */
+    private boolean indexBatch() throws LdapException, CursorException, IOException
+    {
+        Lock lock = partition.getReadWriteLock().writeLock();
+        lock.lock();
+
+        try
+        {
+            if ( !partition.isInitialized() )
+            {
+                throw new IllegalStateException( "The partition " + partition.getId() + " has been destroyed" );
+            }
+
+            PartitionTxn partitionTxn = partition.beginWriteTransaction();
+            Cursor<Tuple<String, Entry>> cursor = partition.getMasterTable().cursor();
+            int nbIndexed = 0;
+
+            try
+            {
+                if ( lastId == null )
+                {
+                    cursor.beforeFirst();
+                }
+                else
+                {
+                    cursor.after( new Tuple<String, Entry>( lastId, null ) );
+                }
+
+                while ( ( nbIndexed < batchSize ) && cursor.next() )
+                {
+                    Tuple<String, Entry> tuple = cursor.get();
+                    String id = tuple.getKey();
+                    Attribute attribute = tuple.getValue().get( attributeType );
+
+                    if ( attribute != null )
+                    {
+                        for ( Value value : attribute )
+                        {
+                            index.add( partitionTxn, value.getNormalized(), id );
+                        }
+
+                        // Adds only those attributes that are indexed
+                        partition.getPresenceIndex().add( partitionTxn, attributeType.getOid(), id );
+                    }
+
+                    lastId = id;
+                    nbIndexed++;
+                }
+
+                partitionTxn.commit();
+            }
+            catch ( LdapException | CursorException | IOException e )
+            {
+                partitionTxn.abort();
+
+                throw e;
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            nbRead += nbIndexed;
+
+            return nbIndexed == batchSize;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The index being built
+     */
+    public Index<?, String> getIndex()
+    {
+        return index;
+    }
+
+
+    /**
+     * @return The build state
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+
+    /**
+     * @return The number of entries in the partition when the build started
+     */
+    public long getNbEntries()
+    {
+        return nbEntries;
+    }
+
+
+    /**
+     * @return The number of entries read so far
+     */
+    public long getNbRead()
+    {
+        return nbRead;
+    }
+
+
+    /**
+     * @return The build progress, in percent. It's an estimation, as entries may be
+     * added or deleted during the build.
+     */
+    public int getProgress()
+    {
+        if ( state == State.READY )
+        {
+            return 100;
+        }
+
+        if ( nbEntries == 0 )
+        {
+            return 0;
+        }
+
+        return ( int ) Math.min( 99L, nbRead * 100L / nbEntries );
+    }
+
+
+    /**
+     * @return The error that stopped the build, if any
+     */
+    public Exception getFailure()
+    {
+        return failure;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "OnlineIndexBuild[" + attributeType.getName() + ", " + state + ", " + getProgress() + "%]";
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The compact binary format used to store the entries in the master tables. Like the
+ * previous format, only the entry's Rdn is stored, but the entry is written directly
+ * as a sequence of primitives, without the overhead of the Java serialization streams,
+ * and the attributes are prefixed by an offset table :
+ * <ul>
+ *   <li><b>[a byte]</b> : the format marker, {@link #COMPACT_FORMAT}</li>
+ *   <li><b>[a byte]</b> : if the Dn is empty 0 will be written else 1</li>
+ *   <li><b>[Rdn]</b> : The entry's Rdn.</li>
+ *   <li><b>[numberAttr]</b> : the number of attributes. Can be 0</li>
+ *   <li>For each Attribute : <b>[attribute's oid]</b> and <b>[offset]</b>, the position
+ *   of the attribute, relative to the first attribute</li>
+ *   <li>The attributes</li>
+ * </ul>
+ * The offset table locates each attribute without decoding the previous ones. The entries
+ * are still fully decoded, as the partitions cache and filter whole entries.
+ * <br>
+ * The previous format starts with the Java serialization stream magic number, so both
+ * formats can be told apart using {@link #isCompact(byte[], int)}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class CompactEntryCodec
+{
+    /** The first byte of a compact serialized entry */
+    public static final byte COMPACT_FORMAT = 0x02;
+
+
+    private CompactEntryCodec()
+    {
+    }
+
+
+    /**
+     * Serializes an entry.
+     *
+     * @param entry The entry to serialize
+     * @return The serialized entry
+     * @throws IOException If the entry can't be serialized
+     */
+    public static byte[] serialize( Entry entry ) throws IOException
+    {
+        int nbAttributes = entry.getAttributes().size();
+        String[] oids = new String[nbAttributes];
+        int[] offsets = new int[nbAttributes];
+
+        // First write the attributes, to compute their offsets
+        ByteArrayOutputStream attributesBytes = new ByteArrayOutputStream();
+        DataObjectOutput attributesOut = new DataObjectOutput( attributesBytes );
+        int pos = 0;
+
+        for ( Attribute attribute : entry.getAttributes() )
+        {
+            oids[pos] = attribute.getAttributeType().getOid();
+            offsets[pos] = attributesOut.size();
+            attribute.writeExternal( attributesOut );
+            pos++;
+        }
+
+        attributesOut.flush();
+
+        // Then the header
+        ByteArrayOutputStream baos = new ByteArrayOutputStream( attributesBytes.size() + 32 * nbAttributes + 64 );
+        DataObjectOutput out = new DataObjectOutput( baos );
+
+        out.writeByte( COMPACT_FORMAT );
+
+        Dn dn = entry.getDn();
+
+        // Write the Rdn of the Dn
+        if ( dn.isEmpty() )
+        {
+            out.writeByte( 0 );
+        }
+        else
+        {
+            out.writeByte( 1 );
+            Rdn rdn = dn.getRdn();
+            rdn.writeExternal( out );
+        }
+
+        out.writeInt( nbAttributes );
+
+        for ( int i = 0; i < nbAttributes; i++ )
+        {
+            out.writeUTF( oids[i] );
+            out.writeInt( offsets[i] );
+        }
+
+        out.flush();
+        attributesBytes.writeTo( baos );
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Tells if a serialized entry uses the compact format.
+     *
+     * @param bytes The buffer containing the serialized entry
+     * @param offset The position of the serialized entry in the buffer
+     * @return <code>true</code> if the entry uses the compact format
+     */
+    public static boolean isCompact( byte[] bytes, int offset )
+    {
+        return ( bytes != null ) && ( bytes.length > offset ) && ( bytes[offset] == COMPACT_FORMAT );
+    }
+
+
+    /**
+     * Deserializes an entry.
+     *
+     * @param schemaManager The SchemaManager
+     * @param bytes The buffer containing the serialized entry
+     * @param offset The position of the serialized entry in the buffer
+     * @param length The length of the serialized entry
+     * @return The entry
+     * @throws IOException If the entry can't be deserialized
+     */
+    public static Entry deserialize( SchemaManager schemaManager, byte[] bytes, int offset, int length )
+        throws IOException
+    {
+        DataObjectInput in = new DataObjectInput( new ByteArrayInputStream( bytes, offset, length ) );
+
+        if ( in.readByte() != COMPACT_FORMAT )
+        {
+            throw new IOException( "The serialized entry is not using the compact format" );
+        }
+
+        Entry entry = new DefaultEntry( schemaManager );
+
+        // Read the Dn, if any
+        byte hasDn = in.readByte();
+
+        try
+        {
+            if ( hasDn == 1 )
+            {
+                Rdn rdn = new Rdn( schemaManager );
+                rdn.readExternal( in );
+                entry.setDn( new Dn( schemaManager, rdn ) );
+            }
+            else
+            {
+                entry.setDn( Dn.EMPTY_DN );
+            }
+
+            // Read the offset table
+            int nbAttributes = in.readInt();
+            String[] oids = new String[nbAttributes];
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                oids[i] = in.readUTF();
+
+                // The attributes are read sequentially, their offset is not needed
+                in.readInt();
+            }
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( oids[i] );
+                Attribute attribute = new DefaultAttribute( attributeType );
+                attribute.readExternal( in );
+
+                entry.add( attribute );
+            }
+
+            return entry;
+        }
+        catch ( LdapException | ClassNotFoundException e )
+        {
+            throw new IOException( e.getMessage(), e );
+        }
+    }
+
+    /**
+     * An ObjectOutput writing primitives only, without the Java serialization stream overhead
+     */
+    private static final class DataObjectOutput extends DataOutputStream implements ObjectOutput
+    {
+        private DataObjectOutput( OutputStream out )
+        {
+            super( out );
+        }
+
+
+        @Override
+        public void writeObject( Object obj ) throws IOException
+        {
+            throw new UnsupportedOperationException( "Objects can't be written in a compact entry" );
+        }
+    }
+
+    /**
+     * An ObjectInput reading primitives only
+     */
+    private static final class DataObjectInput extends DataInputStream implements ObjectInput
+    {
+        private DataObjectInput( InputStream in )
+        {
+            super( in );
+        }
+
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException
+        {
+            throw new UnsupportedOperationException( "Objects can't be read from a compact entry" );
+        }
+    }
+}
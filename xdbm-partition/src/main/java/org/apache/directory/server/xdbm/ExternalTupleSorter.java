@@ -0,0 +1,497 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+
+
+/**
+ * An external merge sorter for {@link Table} tuples. The tuples are kept in memory
+ * until a given threshold is reached, then sorted and spilled into a temporary file.
+ * The sorted runs are then merged back when the tuples are read, so the memory used
+ * to sort N tuples is bounded by the threshold, plus one tuple per run.
+ * <br>
+ * The keys and the values must be serializable. This class is not thread safe.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ExternalTupleSorter<K, V> implements Closeable
+{
+    /** The default number of tuples kept in memory before being spilled on disk */
+    public static final int DEFAULT_MAX_TUPLES_IN_MEMORY = 100000;
+
+    /** The comparator used to order the keys */
+    private final Comparator<K> keyComparator;
+
+    /** The comparator used to order the values of a same key. May be null. */
+    private final Comparator<V> valueComparator;
+
+    /** The comparator used to order the tuples */
+    private final Comparator<Tuple<K, V>> tupleComparator;
+
+    /** The maximum number of tuples kept in memory */
+    private final int maxTuplesInMemory;
+
+    /** The directory where the runs are created */
+    private final File workDir;
+
+    /** The in-memory tuples */
+    private List<Tuple<K, V>> buffer = new ArrayList<>();
+
+    /** The sorted runs */
+    private final List<File> runs = new ArrayList<>();
+
+    /** The streams opened on the runs while merging */
+    private final List<ObjectInputStream> openedRuns = new ArrayList<>();
+
+    /** The number of tuples added to this sorter */
+    private long nbTuples;
+
+
+    /**
+     * Creates a new instance of ExternalTupleSorter.
+     *
+     * @param keyComparator The comparator used to order the keys
+     * @param valueComparator The comparator used to order the values of a same key. May be null.
+     * @param maxTuplesInMemory The maximum number of tuples kept in memory
+     * @param workDir The directory where the temporary files are created. If null, the
+     * default temporary directory is used
+     */
+    public ExternalTupleSorter( final Comparator<K> keyComparator, final Comparator<V> valueComparator,
+        int maxTuplesInMemory, File workDir )
+    {
+        if ( maxTuplesInMemory <= 0 )
+        {
+            throw new IllegalArgumentException( "The number of tuples kept in memory must be positive" );
+        }
+
+        this.keyComparator = keyComparator;
+        this.valueComparator = valueComparator;
+        this.maxTuplesInMemory = maxTuplesInMemory;
+        this.workDir = workDir;
+
+        tupleComparator = new Comparator<Tuple<K, V>>()
+        {
+            @Override
+            public int compare( Tuple<K, V> t1, Tuple<K, V> t2 )
+            {
+                int res = keyComparator.compare( t1.getKey(), t2.getKey() );
+
+                if ( ( res != 0 ) || ( valueComparator == null ) )
+                {
+                    return res;
+                }
+
+                return valueComparator.compare( t1.getValue(), t2.getValue() );
+            }
+        };
+    }
+
+
+    /**
+     * Adds a tuple into the sorter.
+     *
+     * @param key The tuple key
+     * @param value The tuple value
+     * @throws IOException If the tuples can't be spilled on disk
+     */
+    public void add( K key, V value ) throws IOException
+    {
+        buffer.add( new Tuple<K, V>( key, value ) );
+        nbTuples++;
+
+        if ( buffer.size() >= maxTuplesInMemory )
+        {
+            spill();
+        }
+    }
+
+
+    /**
+     * @return The number of tuples added into this sorter
+     */
+    public long getNbTuples()
+    {
+        return nbTuples;
+    }
+
+
+    /**
+     * @return The number of sorted runs stored on disk
+     */
+    public int getNbRuns()
+    {
+        return runs.size();
+    }
+
+
+    private void spill() throws IOException
+    {
+        if ( buffer.isEmpty() )
+        {
+            return;
+        }
+
+        Collections.sort( buffer, tupleComparator );
+
+        File run = File.createTempFile( "sort-", ".run", workDir );
+        run.deleteOnExit();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream(
+            new BufferedOutputStream( new FileOutputStream( run ), 64 * 1024 ) ) )
+        {
+            int count = 0;
+
+            for ( Tuple<K, V> tuple : buffer )
+            {
+                out.writeObject( tuple.getKey() );
+                out.writeObject( tuple.getValue() );
+
+                // Don't let the stream keep a reference on all the written objects
+                if ( ++count % 1000 == 0 )
+                {
+                    out.reset();
+                }
+            }
+        }
+
+        runs.add( run );
+        buffer = new ArrayList<>();
+    }
+
+
+    /**
+     * Returns the added tuples, sorted. This method must be called once all the
+     * tuples have been added.
+     *
+     * @return An iterator on the sorted tuples
+     * @throws IOException If the sorted runs can't be read
+     */
+    public Iterator<Tuple<K, V>> sortedIterator() throws IOException
+    {
+        if ( runs.isEmpty() )
+        {
+            Collections.sort( buffer, tupleComparator );
+
+            return buffer.iterator();
+        }
+
+        spill();
+
+        final PriorityQueue<Run> queue = new PriorityQueue<>( runs.size(), new Comparator<Run>()
+        {
+            @Override
+            public int compare( Run r1, Run r2 )
+            {
+                return tupleComparator.compare( r1.current, r2.current );
+            }
+        } );
+
+        for ( File file : runs )
+        {
+            ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+            openedRuns.add( in );
+            Run run = new Run( in );
+
+            if ( run.next() )
+            {
+                queue.add( run );
+            }
+        }
+
+        return new Iterator<Tuple<K, V>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return !queue.isEmpty();
+            }
+
+
+            @Override
+            public Tuple<K, V> next()
+            {
+                Run run = queue.poll();
+
+                if ( run == null )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                Tuple<K, V> tuple = run.current;
+
+                try
+                {
+                    if ( run.next() )
+                    {
+                        queue.add( run );
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new IllegalStateException( ioe.getMessage(), ioe );
+                }
+
+                return tuple;
+            }
+
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    /**
+     * Returns the added tuples, sorted, with the values of a same key grouped, as expected by
+     * a B-tree allowing duplicate values. The values of a key are read from the sorted runs
+     * as they are iterated, they are not loaded in memory. A value equal to the previous one
+     * is returned only once. This method must be called once all the tuples have been added.
+     * <br>
+     * The values iterator of a key can't be used anymore once the grouped iterator is used again.
+     *
+     * @return An iterator on the grouped tuples
+     * @throws IOException If the sorted runs can't be read
+     */
+    public Iterator<Tuple<K, Iterator<V>>> groupedIterator() throws IOException
+    {
+        final Iterator<Tuple<K, V>> sorted = sortedIterator();
+
+        return new Iterator<Tuple<K, Iterator<V>>>()
+        {
+            /** The next tuple read from the runs, which has not been returned yet */
+            private Tuple<K, V> pending = sorted.hasNext() ? sorted.next() : null;
+
+            /** The current key */
+            private K key;
+
+            /** The last value returned for the current key */
+            private V lastValue;
+
+            /** Tells if a value has been returned for the current key */
+            private boolean hasLastValue;
+
+
+            @Override
+            public boolean hasNext()
+            {
+                skipValues();
+
+                return pending != null;
+            }
+
+
+            @Override
+            public Tuple<K, Iterator<V>> next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                key = pending.getKey();
+                hasLastValue = false;
+
+                return new Tuple<K, Iterator<V>>( key, new Iterator<V>()
+                {
+                    /** The key these values belong to */
+                    private final K valuesKey = key;
+
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return ( valuesKey == key ) && hasNextValue();
+                    }
+
+
+                    @Override
+                    public V next()
+                    {
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+
+                        lastValue = pending.getValue();
+                        hasLastValue = true;
+                        pending = sorted.hasNext() ? sorted.next() : null;
+
+                        return lastValue;
+                    }
+
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                } );
+            }
+
+
+            /**
+             * Tells if the pending tuple is a new value of the current key, skipping the
+             * values equal to the last returned one
+             */
+            private boolean hasNextValue()
+            {
+                while ( ( pending != null ) && ( keyComparator.compare( key, pending.getKey() ) == 0 ) )
+                {
+                    if ( !hasLastValue || !isSameValue( lastValue, pending.getValue() ) )
+                    {
+                        return true;
+                    }
+
+                    pending = sorted.hasNext() ? sorted.next() : null;
+                }
+
+                return false;
+            }
+
+
+            /**
+             * Skips the values of the current key which have not been read
+             */
+            private void skipValues()
+            {
+                if ( key != null )
+                {
+                    while ( ( pending != null ) && ( keyComparator.compare( key, pending.getKey() ) == 0 ) )
+                    {
+                        pending = sorted.hasNext() ? sorted.next() : null;
+                    }
+
+                    key = null;
+                    hasLastValue = false;
+                }
+            }
+
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    private boolean isSameValue( V value1, V value2 )
+    {
+        if ( valueComparator != null )
+        {
+            return valueComparator.compare( value1, value2 ) == 0;
+        }
+
+        return ( value1 == null ) ? ( value2 == null ) : value1.equals( value2 );
+    }
+
+
+    /**
+     * Closes the opened runs and removes them from the disk.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for ( ObjectInputStream in : openedRuns )
+        {
+            in.close();
+        }
+
+        openedRuns.clear();
+
+        for ( File run : runs )
+        {
+            if ( !run.delete() )
+            {
+                run.deleteOnExit();
+            }
+        }
+
+        runs.clear();
+        buffer = new ArrayList<>();
+    }
+
+    /**
+     * A sorted run being merged
+     */
+    private final class Run
+    {
+        private final ObjectInputStream in;
+
+        private Tuple<K, V> current;
+
+
+        private Run( ObjectInputStream in )
+        {
+            this.in = in;
+        }
+
+
+        @SuppressWarnings("unchecked")
+        private boolean next() throws IOException
+        {
+            try
+            {
+                K key = ( K ) in.readObject();
+                V value = ( V ) in.readObject();
+                current = new Tuple<K, V>( key, value );
+
+                return true;
+            }
+            catch ( EOFException eofe )
+            {
+                current = null;
+
+                return false;
+            }
+            catch ( ClassNotFoundException cnfe )
+            {
+                throw new IOException( cnfe.getMessage(), cnfe );
+            }
+        }
+    }
+}
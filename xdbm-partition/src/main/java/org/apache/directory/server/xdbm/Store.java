@@ -257,6 +257,16 @@ public interface Store
     boolean hasUserIndexOn( AttributeType attributeType ) throws LdapException;
 
 
+    /**
+     * Tells if a User's index is being built. Such an index is updated by the write
+     * operations, but it can't be used by the searches until the build is completed.
+     * 
+     * @param attributeType The attributeType index we are looking for
+     * @return <code>true</code> if the index is being built
+     */
+    boolean isIndexBuilding( AttributeType attributeType );
+
+
     /**
      * Tells if an index is already present in the System's index list
      * @param attributeType The index we are looking for
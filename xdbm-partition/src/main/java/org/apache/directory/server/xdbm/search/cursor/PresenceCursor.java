@@ -83,7 +83,7 @@ public class PresenceCursor extends AbstractIndexCursor<String>
         // we don't maintain a presence index for objectClass, and entryCSN
         // as it doesn't make sense because every entry has such an attribute
         // instead for those attributes and all un-indexed attributes we use the ndn index
-        if ( store.hasUserIndexOn( type ) )
+        if ( store.hasUserIndexOn( type ) && !store.isIndexBuilding( type ) )
         {
             presenceCursor = store.getPresenceIndex().forwardCursor( partitionTxn, type.getOid() );
             uuidCursor = null;
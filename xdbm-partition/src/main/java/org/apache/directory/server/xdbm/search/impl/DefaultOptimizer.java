@@ -466,7 +466,7 @@ public class DefaultOptimizer implements Optimizer
      */
     private long getPresenceScan( PartitionTxn partitionTxn, PresenceNode node ) throws LdapException
     {
-        if ( db.hasUserIndexOn( node.getAttributeType() )
+        if ( ( db.hasUserIndexOn( node.getAttributeType() ) && !db.isIndexBuilding( node.getAttributeType() ) )
              || node.getAttributeType().getOid().equals( SchemaConstants.ADMINISTRATIVE_ROLE_AT_OID ) )
         {
             Index<String, String> presenceIndex = db.getPresenceIndex();
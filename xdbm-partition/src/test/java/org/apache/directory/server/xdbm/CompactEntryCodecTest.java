@@ -0,0 +1,149 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.impl.avl.AvlPartitionTest;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CompactEntryCodec} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactEntryCodecTest
+{
+    private static SchemaManager schemaManager = null;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = AvlPartitionTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    private Entry createEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=Test User,ou=people,dc=example,dc=com",
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: inetOrgPerson",
+            "cn: Test User",
+            "cn: test",
+            "sn: User" );
+
+        entry.add( SchemaConstants.USER_PASSWORD_AT, new byte[]
+            { 0x01, 0x02, 0x03 } );
+
+        return entry;
+    }
+
+
+    @Test
+    public void testSerializeDeserialize() throws Exception
+    {
+        Entry entry = createEntry();
+
+        byte[] bytes = CompactEntryCodec.serialize( entry );
+
+        assertTrue( CompactEntryCodec.isCompact( bytes, 0 ) );
+
+        Entry result = CompactEntryCodec.deserialize( schemaManager, bytes, 0, bytes.length );
+
+        assertEquals( "cn=Test User", result.getDn().getName() );
+        assertEquals( 4, result.size() );
+        assertEquals( 3, result.get( SchemaConstants.OBJECT_CLASS_AT ).size() );
+        assertTrue( result.contains( SchemaConstants.CN_AT, "test", "Test User" ) );
+        assertArrayEquals( new byte[]
+            { 0x01, 0x02, 0x03 }, result.get( SchemaConstants.USER_PASSWORD_AT ).getBytes() );
+    }
+
+
+    @Test
+    public void testDeserializeInBuffer() throws Exception
+    {
+        Entry entry = createEntry();
+
+        // Put the entry in the middle of a larger buffer
+        byte[] serialized = CompactEntryCodec.serialize( entry );
+        byte[] bytes = new byte[serialized.length + 10];
+        System.arraycopy( serialized, 0, bytes, 5, serialized.length );
+
+        assertTrue( CompactEntryCodec.isCompact( bytes, 5 ) );
+
+        Entry result = CompactEntryCodec.deserialize( schemaManager, bytes, 5, serialized.length );
+
+        assertEquals( "cn=Test User", result.getDn().getName() );
+        assertEquals( 4, result.size() );
+        assertEquals( "User", result.get( SchemaConstants.SN_AT ).getString() );
+    }
+
+
+    @Test
+    public void testLegacyFormatIsNotCompact() throws Exception
+    {
+        // The Java serialization streams start with 0xACED
+        assertFalse( CompactEntryCodec.isCompact( new byte[]
+            { ( byte ) 0xAC, ( byte ) 0xED, 0x00, 0x05 }, 0 ) );
+        assertFalse( CompactEntryCodec.isCompact( Strings.EMPTY_BYTES, 0 ) );
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests the {@link ExternalTupleSorter} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ExternalTupleSorterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Comparator<String> COMPARATOR = new Comparator<String>()
+    {
+        @Override
+        public int compare( String s1, String s2 )
+        {
+            return s1.compareTo( s2 );
+        }
+    };
+
+
+    @Test
+    public void testSortInMemory() throws Exception
+    {
+        try ( ExternalTupleSorter<String, String> sorter = new ExternalTupleSorter<>( COMPARATOR, COMPARATOR, 10,
+            folder.getRoot() ) )
+        {
+            sorter.add( "b", "2" );
+            sorter.add( "a", "3" );
+            sorter.add( "a", "1" );
+
+            assertEquals( 0, sorter.getNbRuns() );
+
+            Iterator<Tuple<String, String>> tuples = sorter.sortedIterator();
+
+            assertEquals( "1", tuples.next().getValue() );
+            assertEquals( "3", tuples.next().getValue() );
+            assertEquals( "b", tuples.next().getKey() );
+            assertFalse( tuples.hasNext() );
+        }
+    }
+
+
+    @Test
+    public void testSortOnDisk() throws Exception
+    {
+        File workDir = folder.newFolder( "runs" );
+        Random random = new Random( 1L );
+
+        try ( ExternalTupleSorter<String, String> sorter = new ExternalTupleSorter<>( COMPARATOR, null, 100,
+            workDir ) )
+        {
+            for ( int i = 0; i < 5000; i++ )
+            {
+                sorter.add( Integer.toString( random.nextInt( 100000 ) ), Integer.toString( i ) );
+            }
+
+            assertEquals( 5000L, sorter.getNbTuples() );
+            assertTrue( sorter.getNbRuns() > 1 );
+
+            Iterator<Tuple<String, String>> tuples = sorter.sortedIterator();
+            String previous = "";
+            int count = 0;
+
+            while ( tuples.hasNext() )
+            {
+                String key = tuples.next().getKey();
+                assertTrue( previous.compareTo( key ) <= 0 );
+                previous = key;
+                count++;
+            }
+
+            assertEquals( 5000, count );
+        }
+
+        assertEquals( 0, workDir.list().length );
+    }
+
+
+    @Test
+    public void testGroupedIterator() throws Exception
+    {
+        File workDir = folder.newFolder( "grouped" );
+
+        try ( ExternalTupleSorter<String, String> sorter = new ExternalTupleSorter<>( COMPARATOR, COMPARATOR, 2,
+            workDir ) )
+        {
+            sorter.add( "person", "id3" );
+            sorter.add( "organization", "id1" );
+            sorter.add( "person", "id2" );
+            sorter.add( "person", "id4" );
+            sorter.add( "organization", "id5" );
+            sorter.add( "person", "id3" );
+            sorter.add( "top", "id6" );
+
+            Iterator<Tuple<String, Iterator<String>>> tuples = sorter.groupedIterator();
+
+            // The values of a key are not all read
+            Tuple<String, Iterator<String>> tuple = tuples.next();
+            assertEquals( "organization", tuple.getKey() );
+            assertEquals( "id1", tuple.getValue().next() );
+
+            // The duplicate values are returned once
+            tuple = tuples.next();
+            assertEquals( "person", tuple.getKey() );
+            Iterator<String> values = tuple.getValue();
+            assertEquals( "id2", values.next() );
+            assertEquals( "id3", values.next() );
+            assertEquals( "id4", values.next() );
+            assertFalse( values.hasNext() );
+
+            assertTrue( tuples.hasNext() );
+            tuple = tuples.next();
+            assertEquals( "top", tuple.getKey() );
+            assertEquals( "id6", tuple.getValue().next() );
+            assertFalse( tuple.getValue().hasNext() );
+
+            assertFalse( tuples.hasNext() );
+        }
+    }
+}